@@ -0,0 +1,216 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.shindig.common.cache;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A bounded in-memory cache that approximates LRU using the CLOCK (second chance) algorithm.
+ *
+ * Entries live in a segmented {@link ConcurrentHashMap}, so reads never take a lock and never
+ * block writers; a read only sets the entry's reference bit. Writers that push the cache over
+ * capacity sweep the insertion queue, evicting entries that have not been read since the last
+ * sweep. Only one writer sweeps at a time.
+ *
+ * By default every entry weighs 1, so the capacity is a number of entries. When constructed with
+ * a {@link Weigher} the capacity is a budget for the total weight of all entries instead, and
+ * values heavier than the whole budget are not cached at all.
+ *
+ * Unlike {@link LruCache}, the size may briefly exceed the capacity while concurrent writers race
+ * with the sweep.
+ */
+public class ConcurrentLruCache<K, V> implements Cache<K, V> {
+  // Orphaned queue entries tolerated before a sweep is forced, on top of one per live entry.
+  private static final int CLOCK_SLACK = 16;
+
+  private static final Weigher<Object> UNIT_WEIGHER = new Weigher<Object>() {
+    public int weigh(Object value) {
+      return 1;
+    }
+  };
+
+  final long capacity;
+
+  private final Weigher<? super V> weigher;
+  private final ConcurrentMap<K, Node<K, V>> map = new ConcurrentHashMap<K, Node<K, V>>();
+  private final Queue<Node<K, V>> clock = new ConcurrentLinkedQueue<Node<K, V>>();
+  private final AtomicInteger size = new AtomicInteger();
+  private final AtomicLong weightedSize = new AtomicLong();
+  private final AtomicInteger clockLength = new AtomicInteger();
+  private final Lock evictionLock = new ReentrantLock();
+
+  public ConcurrentLruCache(int capacity) {
+    this(capacity, UNIT_WEIGHER);
+  }
+
+  public ConcurrentLruCache(long capacity, Weigher<? super V> weigher) {
+    this.capacity = capacity;
+    this.weigher = weigher;
+  }
+
+  public V getElement(K key) {
+    Node<K, V> node = map.get(key);
+    if (node == null) {
+      return null;
+    }
+    // Avoid a volatile write (and the cache line traffic) when the bit is already set.
+    if (!node.referenced) {
+      node.referenced = true;
+    }
+    return node.value;
+  }
+
+  public void addElement(K key, V value) {
+    int weight = weigher.weigh(value);
+    if (weight > capacity) {
+      // Never cacheable; make sure an older value is not served in its place.
+      removeElement(key);
+      return;
+    }
+    Node<K, V> node = new Node<K, V>(key, value, weight);
+    while (!insertOrUpdate(node)) {
+      // The existing entry was removed while we were updating it; try again.
+    }
+    // Writers that find a sweep in progress leave the work to the sweeping thread, which
+    // re-checks the size after releasing the lock.
+    boolean progress = true;
+    while (progress && needsSweep() && evictionLock.tryLock()) {
+      try {
+        progress = evict();
+      } finally {
+        evictionLock.unlock();
+      }
+    }
+  }
+
+  public V removeElement(K key) {
+    Node<K, V> node = map.remove(key);
+    if (node == null) {
+      return null;
+    }
+    // The node stays in the clock queue until the next sweep discards it.
+    retire(node);
+    return node.value;
+  }
+
+  public long getCapacity() {
+    return capacity;
+  }
+
+  public long getSize() {
+    return size.get();
+  }
+
+  /**
+   * @return The total weight of all entries. Equal to {@link #getSize()} unless a
+   *     {@link Weigher} was supplied.
+   */
+  public long getWeightedSize() {
+    return weightedSize.get();
+  }
+
+  private boolean insertOrUpdate(Node<K, V> node) {
+    Node<K, V> existing = map.putIfAbsent(node.key, node);
+    if (existing == null) {
+      clock.offer(node);
+      clockLength.incrementAndGet();
+      size.incrementAndGet();
+      weightedSize.addAndGet(node.weight);
+      return true;
+    }
+    synchronized (existing) {
+      if (existing.removed) {
+        return false;
+      }
+      weightedSize.addAndGet(node.weight - existing.weight);
+      existing.value = node.value;
+      existing.weight = node.weight;
+      existing.referenced = true;
+      return true;
+    }
+  }
+
+  private void retire(Node<K, V> node) {
+    synchronized (node) {
+      node.removed = true;
+      weightedSize.addAndGet(-node.weight);
+    }
+    size.decrementAndGet();
+  }
+
+  private boolean needsSweep() {
+    return weightedSize.get() > capacity || clockLength.get() > 2 * size.get() + CLOCK_SLACK;
+  }
+
+  /**
+   * Sweeps the clock until the cache is back within capacity. Also discards queue entries
+   * orphaned by {@link #removeElement}, so the queue stays proportional to the size.
+   * Must be called with the eviction lock held.
+   *
+   * @return false if the queue ran dry before the sweep finished.
+   */
+  private boolean evict() {
+    while (needsSweep()) {
+      Node<K, V> node = clock.poll();
+      if (node == null) {
+        return false;
+      }
+      clockLength.decrementAndGet();
+      if (map.get(node.key) != node) {
+        // Removed, or removed and re-added under a new node.
+        continue;
+      }
+      boolean full = weightedSize.get() > capacity;
+      if (full && !node.referenced) {
+        if (map.remove(node.key, node)) {
+          retire(node);
+        }
+        continue;
+      }
+      if (full) {
+        node.referenced = false;
+      }
+      clock.offer(node);
+      clockLength.incrementAndGet();
+    }
+    return true;
+  }
+
+  private static final class Node<K, V> {
+    final K key;
+    volatile V value;
+    volatile int weight;
+    volatile boolean referenced;
+    // Guarded by the node's monitor.
+    boolean removed;
+
+    Node(K key, V value, int weight) {
+      this.key = key;
+      this.value = value;
+      this.weight = weight;
+    }
+  }
+}
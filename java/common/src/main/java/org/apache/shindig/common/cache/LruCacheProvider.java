@@ -90,9 +90,16 @@ public class LruCacheProvider implements CacheProvider {
       if (LOG.isLoggable(Level.FINE)) {
         LOG.fine("Creating cache named " + name);
       }
-      cache = new LruCache<K, V>(capacity);
+      cache = newCache(capacity);
       caches.put(name, cache);
     }
     return cache;
   }
+
+  /**
+   * Creates the backing cache for a newly requested name.
+   */
+  protected <K, V> Cache<K, V> newCache(int capacity) {
+    return new LruCache<K, V>(capacity);
+  }
 }
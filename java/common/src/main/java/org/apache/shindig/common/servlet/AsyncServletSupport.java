@@ -0,0 +1,388 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.shindig.common.servlet;
+
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import com.google.inject.name.Named;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.Writer;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.servlet.ServletOutputStream;
+import javax.servlet.ServletRequest;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Lets servlets built against the Servlet 2.5 API hand a request over to another thread when they
+ * run in a Servlet 3 container, so that the container thread is not held while the response is
+ * fetched and rewritten. The Servlet 3 async API is reached through reflection.
+ *
+ * Requests are only handed over if an executor is bound to shindig.servlet.async.executor and the
+ * container allows async processing of the request, which needs async-supported to be set for the
+ * servlet and every filter in front of it in a version 3.0 web.xml. Otherwise the request is
+ * handled in the calling thread, as before. The web.xml shipped with Shindig is a version 2.5
+ * one, so a Servlet 3 deployment has to provide its own descriptor to use this.
+ *
+ * Once the container times out or fails a handed over request it may recycle the response, so
+ * the response given to the handler stops accepting output from then on.
+ */
+@Singleton
+public class AsyncServletSupport {
+  private static final Logger LOG = Logger.getLogger(AsyncServletSupport.class.getName());
+
+  // Null unless the container implements Servlet 3.
+  private static final Method IS_ASYNC_SUPPORTED = findMethod("javax.servlet.ServletRequest",
+      "isAsyncSupported");
+  private static final Method START_ASYNC = findMethod("javax.servlet.ServletRequest",
+      "startAsync");
+  private static final Method SET_TIMEOUT = findMethod("javax.servlet.AsyncContext",
+      "setTimeout", long.class);
+  private static final Method COMPLETE = findMethod("javax.servlet.AsyncContext", "complete");
+  private static final Class<?> ASYNC_LISTENER = findClass("javax.servlet.AsyncListener");
+  private static final Method ADD_LISTENER = ASYNC_LISTENER == null ? null
+      : findMethod("javax.servlet.AsyncContext", "addListener", ASYNC_LISTENER);
+
+  private static final long DEFAULT_TIMEOUT_MS = 60000;
+
+  /**
+   * The part of a request's handling that may run on another thread.
+   */
+  public interface Handler {
+    /**
+     * @param response The response to write to. When the handler runs on another thread, writes
+     *     fail once the container has given up on the request.
+     */
+    void handle(HttpServletResponse response) throws IOException;
+  }
+
+  private final AtomicInteger inFlight = new AtomicInteger();
+  private ExecutorService executor;
+  private long timeoutMs = DEFAULT_TIMEOUT_MS;
+
+  @Inject(optional = true)
+  public void setExecutor(@Named("shindig.servlet.async.executor") ExecutorService executor) {
+    this.executor = executor;
+  }
+
+  @Inject(optional = true)
+  public void setTimeoutMs(@Named("shindig.servlet.async.timeout-ms") long timeoutMs) {
+    this.timeoutMs = timeoutMs;
+  }
+
+  /**
+   * Runs the handler for a request, on the executor if the request can be made asynchronous and
+   * in the calling thread otherwise. The response is completed once the handler returns.
+   */
+  public void dispatch(HttpServletRequest request, HttpServletResponse response,
+      final Handler handler) throws IOException {
+    final Object asyncContext = executor != null ? startAsync(request) : null;
+    if (asyncContext == null) {
+      handler.handle(response);
+      return;
+    }
+
+    final AsyncResponse asyncResponse = new AsyncResponse(response, asyncContext);
+    invoke(ADD_LISTENER, asyncContext, asyncResponse.createListener());
+    inFlight.incrementAndGet();
+    Runnable task = new Runnable() {
+      public void run() {
+        try {
+          handler.handle(asyncResponse.getResponse());
+        } catch (Exception e) {
+          if (asyncResponse.isAbandoned()) {
+            LOG.log(Level.FINE, "Asynchronous request ended by the container", e);
+          } else {
+            LOG.log(Level.WARNING, "Error handling asynchronous request", e);
+            asyncResponse.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
+          }
+        } finally {
+          inFlight.decrementAndGet();
+          asyncResponse.complete();
+        }
+      }
+    };
+    try {
+      executor.execute(task);
+    } catch (RejectedExecutionException e) {
+      // Saturated; fall back to holding the container thread.
+      task.run();
+    }
+  }
+
+  /**
+   * @return The number of requests handed over to the executor that have not completed yet.
+   */
+  public int getInFlightCount() {
+    return inFlight.get();
+  }
+
+  /**
+   * @return True if the container implements the Servlet 3 async API.
+   */
+  public static boolean isAvailable() {
+    return START_ASYNC != null && IS_ASYNC_SUPPORTED != null && SET_TIMEOUT != null
+        && COMPLETE != null && ADD_LISTENER != null;
+  }
+
+  private Object startAsync(HttpServletRequest request) {
+    if (!isAvailable() || !Boolean.TRUE.equals(invoke(IS_ASYNC_SUPPORTED, request))) {
+      return null;
+    }
+    Object asyncContext = invoke(START_ASYNC, request);
+    if (asyncContext != null) {
+      invoke(SET_TIMEOUT, asyncContext, timeoutMs);
+    }
+    return asyncContext;
+  }
+
+  private static Object invoke(Method method, Object target, Object... args) {
+    if (method == null) {
+      return null;
+    }
+    try {
+      return method.invoke(target, args);
+    } catch (IllegalAccessException e) {
+      LOG.log(Level.WARNING, "Unable to call " + method, e);
+    } catch (InvocationTargetException e) {
+      LOG.log(Level.WARNING, "Unable to call " + method, e.getCause());
+    }
+    return null;
+  }
+
+  private static Method findMethod(String className, String name, Class<?>... parameterTypes) {
+    Class<?> clazz = findClass(className);
+    if (clazz == null) {
+      return null;
+    }
+    try {
+      return clazz.getMethod(name, parameterTypes);
+    } catch (NoSuchMethodException e) {
+      return null;
+    }
+  }
+
+  private static Class<?> findClass(String className) {
+    try {
+      // Load through the servlet API's own loader, which is the container's.
+      return Class.forName(className, false, ServletRequest.class.getClassLoader());
+    } catch (ClassNotFoundException e) {
+      return null;
+    }
+  }
+
+  /**
+   * Tracks a request handed over to the executor. The handler and the container's listener
+   * callbacks race to end it; whichever is first completes the async context, and from then on
+   * the response handed to the handler rejects any further output.
+   */
+  static class AsyncResponse implements InvocationHandler {
+    private final HttpServletResponse response;
+    private final Object asyncContext;
+    private final HttpServletResponse guarded;
+    private boolean done;
+    private boolean abandoned;
+
+    AsyncResponse(HttpServletResponse response, Object asyncContext) {
+      this.response = response;
+      this.asyncContext = asyncContext;
+      this.guarded = (HttpServletResponse) Proxy.newProxyInstance(
+          HttpServletResponse.class.getClassLoader(), new Class<?>[] { HttpServletResponse.class },
+          this);
+    }
+
+    HttpServletResponse getResponse() {
+      return guarded;
+    }
+
+    synchronized boolean isAbandoned() {
+      return abandoned;
+    }
+
+    /**
+     * Completes the request once the handler is finished, unless the container already ended it.
+     */
+    synchronized void complete() {
+      if (!done) {
+        done = true;
+        invoke(COMPLETE, asyncContext);
+      }
+    }
+
+    /**
+     * Ends the request on behalf of the container. Once this returns the handler can no longer
+     * write to the response.
+     */
+    synchronized void abandon(int status) {
+      if (!done) {
+        done = true;
+        abandoned = true;
+        if (status != 0) {
+          sendError(status);
+        }
+        invoke(COMPLETE, asyncContext);
+      }
+    }
+
+    synchronized void sendError(int status) {
+      if (!response.isCommitted()) {
+        try {
+          response.sendError(status);
+        } catch (IOException e) {
+          // The client has gone away.
+        }
+      }
+    }
+
+    /**
+     * @return A javax.servlet.AsyncListener that abandons the request on timeout or error.
+     */
+    Object createListener() {
+      return Proxy.newProxyInstance(ASYNC_LISTENER.getClassLoader(),
+          new Class<?>[] { ASYNC_LISTENER }, new InvocationHandler() {
+            public Object invoke(Object proxy, Method method, Object[] args) {
+              String name = method.getName();
+              if ("onTimeout".equals(name)) {
+                abandon(HttpServletResponse.SC_GATEWAY_TIMEOUT);
+              } else if ("onError".equals(name)) {
+                abandon(0);
+              } else if ("equals".equals(name)) {
+                return proxy == args[0];
+              } else if ("hashCode".equals(name)) {
+                return System.identityHashCode(proxy);
+              } else if ("toString".equals(name)) {
+                return "AsyncServletSupport listener";
+              }
+              return null;
+            }
+          });
+    }
+
+    public synchronized Object invoke(Object proxy, Method method, Object[] args)
+        throws Throwable {
+      String name = method.getName();
+      boolean readOnly = method.getDeclaringClass() == Object.class || name.startsWith("get")
+          || name.startsWith("is") || name.startsWith("contains") || name.startsWith("encode");
+      if (done && !readOnly) {
+        throw new IllegalStateException("Response already completed");
+      }
+      Object result;
+      try {
+        result = method.invoke(response, args);
+      } catch (InvocationTargetException e) {
+        throw e.getCause();
+      }
+      if ("getOutputStream".equals(name)) {
+        return new GuardedOutputStream((ServletOutputStream) result);
+      } else if ("getWriter".equals(name)) {
+        return new PrintWriter(new GuardedWriter((PrintWriter) result));
+      }
+      return result;
+    }
+
+    synchronized void checkOpen() throws IOException {
+      if (done) {
+        throw new IOException("Response already completed");
+      }
+    }
+
+    private class GuardedOutputStream extends ServletOutputStream {
+      private final ServletOutputStream out;
+
+      GuardedOutputStream(ServletOutputStream out) {
+        this.out = out;
+      }
+
+      @Override
+      public void write(int b) throws IOException {
+        synchronized (AsyncResponse.this) {
+          checkOpen();
+          out.write(b);
+        }
+      }
+
+      @Override
+      public void write(byte[] b, int off, int len) throws IOException {
+        synchronized (AsyncResponse.this) {
+          checkOpen();
+          out.write(b, off, len);
+        }
+      }
+
+      @Override
+      public void flush() throws IOException {
+        synchronized (AsyncResponse.this) {
+          checkOpen();
+          out.flush();
+        }
+      }
+
+      @Override
+      public void close() throws IOException {
+        synchronized (AsyncResponse.this) {
+          checkOpen();
+          out.close();
+        }
+      }
+    }
+
+    private class GuardedWriter extends Writer {
+      private final Writer out;
+
+      GuardedWriter(Writer out) {
+        this.out = out;
+      }
+
+      @Override
+      public void write(char[] cbuf, int off, int len) throws IOException {
+        synchronized (AsyncResponse.this) {
+          checkOpen();
+          out.write(cbuf, off, len);
+        }
+      }
+
+      @Override
+      public void flush() throws IOException {
+        synchronized (AsyncResponse.this) {
+          checkOpen();
+          out.flush();
+        }
+      }
+
+      @Override
+      public void close() throws IOException {
+        synchronized (AsyncResponse.this) {
+          checkOpen();
+          out.close();
+        }
+      }
+    }
+  }
+}
@@ -28,6 +28,7 @@ import com.google.inject.tools.jmx.Manager;
 import org.apache.commons.lang.StringUtils;
 
 import java.util.List;
+import java.util.logging.Logger;
 
 import javax.servlet.ServletContext;
 import javax.servlet.ServletContextEvent;
@@ -48,6 +49,8 @@ public class GuiceServletContextListener implements ServletContextListener {
   private static final String SYSTEM_PROPERTIES = "system.properties";
   private boolean jmxInitialized = false;
 
+  private static final Logger LOG = Logger.getLogger(GuiceServletContextListener.class.getName());
+
   public void contextInitialized(ServletContextEvent event) {
     ServletContext context = event.getServletContext();
     //HNN setting all system.properties specified in the web.xml
@@ -73,6 +76,11 @@ public class GuiceServletContextListener implements ServletContextListener {
     Injector injector = Guice.createInjector(Stage.PRODUCTION, modules);
     context.setAttribute(INJECTOR_ATTRIBUTE, injector);
 
+    if (context.getMajorVersion() >= 3 && AsyncServletSupport.isAvailable()) {
+      LOG.info("Servlet 3 container: servlets and filters marked async-supported will not hold "
+          + "container threads while responses are fetched");
+    }
+
     try {
       if (!jmxInitialized) {
         Manager.manage("ShindigGuiceContext", injector);
@@ -19,13 +19,18 @@
 package org.apache.shindig.common.servlet;
 
 import com.google.common.base.Preconditions;
+import com.google.inject.Inject;
 import com.google.inject.Injector;
 
+import java.io.IOException;
+
 import javax.servlet.ServletConfig;
 import javax.servlet.ServletContext;
 import javax.servlet.ServletException;
 import javax.servlet.UnavailableException;
 import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
 
 /**
  * Supports DI for servlets. Can't handle ctor injection since
@@ -34,6 +39,13 @@ import javax.servlet.http.HttpServlet;
 public abstract class InjectedServlet extends HttpServlet {
   protected Injector injector;
   protected transient boolean initialized = false;
+  private transient AsyncServletSupport asyncSupport;
+
+  @Inject(optional = true)
+  public void setAsyncServletSupport(AsyncServletSupport asyncSupport) {
+    checkInitialized();
+    this.asyncSupport = asyncSupport;
+  }
 
   @Override
   public void init(ServletConfig config) throws ServletException {
@@ -52,6 +64,19 @@ public abstract class InjectedServlet extends HttpServlet {
     initialized = true;
   }
 
+  /**
+   * Runs the handler for a request, off the container thread where the container allows it. See
+   * {@link AsyncServletSupport}.
+   */
+  protected void dispatch(HttpServletRequest request, HttpServletResponse response,
+      AsyncServletSupport.Handler handler) throws IOException {
+    if (asyncSupport == null) {
+      handler.handle(response);
+    } else {
+      asyncSupport.dispatch(request, response, handler);
+    }
+  }
+
   /**
    * Called in each guice injected method to insure we are not initialized twice
    */
@@ -0,0 +1,140 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.shindig.common.util;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A {@link ThreadPoolExecutor} that keeps simple counters describing how it is coping with its
+ * load: how long tasks wait before a thread picks them up, how long they run, and how many were
+ * turned away because the pool and its queue were full.
+ *
+ * Rejected tasks are still reported to the caller with a {@link RejectedExecutionException}, so
+ * a bounded pool can be shared by callers that fall back to doing the work themselves.
+ */
+public class InstrumentedThreadPoolExecutor extends ThreadPoolExecutor {
+  private final AtomicLong rejected = new AtomicLong();
+  private final AtomicLong completed = new AtomicLong();
+  private final AtomicLong totalQueueNanos = new AtomicLong();
+  private final AtomicLong maxQueueNanos = new AtomicLong();
+  private final AtomicLong totalRunNanos = new AtomicLong();
+
+  public InstrumentedThreadPoolExecutor(int corePoolSize, int maximumPoolSize, long keepAliveTime,
+      TimeUnit unit, BlockingQueue<Runnable> workQueue, ThreadFactory threadFactory) {
+    super(corePoolSize, maximumPoolSize, keepAliveTime, unit, workQueue, threadFactory);
+  }
+
+  @Override
+  public void execute(Runnable command) {
+    try {
+      super.execute(new TimedTask(command));
+    } catch (RejectedExecutionException e) {
+      rejected.incrementAndGet();
+      throw e;
+    }
+  }
+
+  @Override
+  protected void beforeExecute(Thread t, Runnable r) {
+    super.beforeExecute(t, r);
+    if (r instanceof TimedTask) {
+      TimedTask task = (TimedTask) r;
+      task.started = System.nanoTime();
+      long waited = task.started - task.submitted;
+      totalQueueNanos.addAndGet(waited);
+      long max = maxQueueNanos.get();
+      while (waited > max && !maxQueueNanos.compareAndSet(max, waited)) {
+        max = maxQueueNanos.get();
+      }
+    }
+  }
+
+  @Override
+  protected void afterExecute(Runnable r, Throwable t) {
+    if (r instanceof TimedTask) {
+      totalRunNanos.addAndGet(System.nanoTime() - ((TimedTask) r).started);
+      completed.incrementAndGet();
+    }
+    super.afterExecute(r, t);
+  }
+
+  /**
+   * @return The number of tasks refused because every thread was busy and the queue was full.
+   */
+  public long getRejectedCount() {
+    return rejected.get();
+  }
+
+  /**
+   * @return The number of tasks that have finished running.
+   */
+  public long getFinishedCount() {
+    return completed.get();
+  }
+
+  /**
+   * @return The mean time finished tasks spent queued before they started, in milliseconds.
+   */
+  public double getMeanQueueMillis() {
+    long count = completed.get();
+    return count == 0 ? 0 : totalQueueNanos.get() / 1e6 / count;
+  }
+
+  /**
+   * @return The longest time any task spent queued before it started, in milliseconds.
+   */
+  public long getMaxQueueMillis() {
+    return TimeUnit.NANOSECONDS.toMillis(maxQueueNanos.get());
+  }
+
+  /**
+   * @return The mean running time of finished tasks, in milliseconds.
+   */
+  public double getMeanRunMillis() {
+    long count = completed.get();
+    return count == 0 ? 0 : totalRunNanos.get() / 1e6 / count;
+  }
+
+  @Override
+  public String toString() {
+    return "active=" + getActiveCount() + " pool=" + getPoolSize() + " queued=" + getQueue().size()
+        + " finished=" + getFinishedCount() + " rejected=" + getRejectedCount()
+        + " meanQueueMs=" + getMeanQueueMillis() + " maxQueueMs=" + getMaxQueueMillis()
+        + " meanRunMs=" + getMeanRunMillis();
+  }
+
+  private static final class TimedTask implements Runnable {
+    final Runnable delegate;
+    final long submitted = System.nanoTime();
+    long started;
+
+    TimedTask(Runnable delegate) {
+      this.delegate = delegate;
+    }
+
+    public void run() {
+      delegate.run();
+    }
+  }
+}
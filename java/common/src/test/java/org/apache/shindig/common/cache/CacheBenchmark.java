@@ -0,0 +1,103 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.shindig.common.cache;
+
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Compares throughput of {@link LruCache} and {@link ConcurrentLruCache} under a read-mostly
+ * workload at increasing thread counts. Run as a standalone program.
+ */
+public class CacheBenchmark {
+  private static final int[] THREAD_COUNTS = {8, 16, 32, 64};
+  private static final int CAPACITY = 10000;
+  private static final int KEY_SPACE = 20000;
+  // Roughly one write for every ten lookups, similar to a warm httpResponses cache.
+  private static final int WRITE_PERCENT = 10;
+
+  private final int opsPerThread;
+
+  private CacheBenchmark(int opsPerThread) {
+    this.opsPerThread = opsPerThread;
+  }
+
+  private long time(final Cache<Integer, Integer> cache, int threads) throws InterruptedException {
+    final CountDownLatch start = new CountDownLatch(1);
+    final CountDownLatch done = new CountDownLatch(threads);
+    for (int t = 0; t < threads; ++t) {
+      final Random random = new Random(t);
+      new Thread() {
+        @Override
+        public void run() {
+          try {
+            start.await();
+            for (int i = 0; i < opsPerThread; ++i) {
+              Integer key = random.nextInt(KEY_SPACE);
+              if (random.nextInt(100) < WRITE_PERCENT) {
+                cache.addElement(key, key);
+              } else {
+                cache.getElement(key);
+              }
+            }
+          } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+          } finally {
+            done.countDown();
+          }
+        }
+      }.start();
+    }
+    long begin = System.nanoTime();
+    start.countDown();
+    done.await();
+    return System.nanoTime() - begin;
+  }
+
+  private void run(boolean warmup) throws InterruptedException {
+    for (int threads : THREAD_COUNTS) {
+      long lru = time(new LruCache<Integer, Integer>(CAPACITY), threads);
+      long concurrent = time(new ConcurrentLruCache<Integer, Integer>(CAPACITY), threads);
+      if (!warmup) {
+        double ops = (double) threads * opsPerThread;
+        System.out.println(threads + " threads: LruCache [" + format(ops, lru)
+            + "] ConcurrentLruCache [" + format(ops, concurrent) + ']');
+      }
+    }
+  }
+
+  private static String format(double ops, long nanos) {
+    return (long) (ops / (nanos / 1e9)) + " ops/s";
+  }
+
+  public static void main(String[] args) throws Exception {
+    int opsPerThread = 1000000;
+    if (args.length == 1) {
+      try {
+        opsPerThread = Integer.parseInt(args[0]);
+      } catch (NumberFormatException e) {
+        System.err.println("Invalid ops-per-thread argument: " + args[0]);
+        System.exit(1);
+      }
+    }
+    CacheBenchmark benchmark = new CacheBenchmark(opsPerThread);
+    benchmark.run(true);
+    benchmark.run(false);
+  }
+}
@@ -0,0 +1,157 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.shindig.common.cache;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class ConcurrentLruCacheTest {
+  private static final int TEST_CAPACITY = 2;
+
+  private final ConcurrentLruCache<String, String> cache
+      = new ConcurrentLruCache<String, String>(TEST_CAPACITY);
+
+  @Test
+  public void normalCapacityOk() {
+    for (int i = 0; i < TEST_CAPACITY; ++i) {
+      cache.addElement(Integer.toString(i), Integer.toString(i));
+    }
+    assertEquals(TEST_CAPACITY, cache.getSize());
+    assertEquals(TEST_CAPACITY, cache.getCapacity());
+    assertEquals("0", cache.getElement("0"));
+  }
+
+  @Test
+  public void exceededCapacityRemoved() {
+    for (int i = 0; i < TEST_CAPACITY + 1; ++i) {
+      cache.addElement(Integer.toString(i), Integer.toString(i));
+    }
+    assertEquals(TEST_CAPACITY, cache.getSize());
+    assertNull(cache.getElement("0"));
+  }
+
+  @Test
+  public void recentlyReadEntryKept() {
+    cache.addElement("0", "0");
+    cache.addElement("1", "1");
+    cache.getElement("0");
+    cache.addElement("2", "2");
+    assertEquals("0", cache.getElement("0"));
+    assertNull(cache.getElement("1"));
+    assertEquals("2", cache.getElement("2"));
+  }
+
+  @Test
+  public void replaceDoesNotGrow() {
+    cache.addElement("0", "a");
+    cache.addElement("0", "b");
+    assertEquals(1, cache.getSize());
+    assertEquals("b", cache.getElement("0"));
+  }
+
+  @Test
+  public void removeElement() {
+    cache.addElement("0", "0");
+    assertEquals("0", cache.removeElement("0"));
+    assertNull(cache.getElement("0"));
+    assertNull(cache.removeElement("0"));
+    assertEquals(0, cache.getSize());
+  }
+
+  @Test
+  public void removedEntriesDoNotAccumulate() {
+    for (int i = 0; i < 1000; ++i) {
+      cache.addElement(Integer.toString(i), Integer.toString(i));
+      cache.removeElement(Integer.toString(i));
+    }
+    cache.addElement("a", "a");
+    cache.addElement("b", "b");
+    assertEquals(TEST_CAPACITY, cache.getSize());
+    assertEquals("a", cache.getElement("a"));
+    assertEquals("b", cache.getElement("b"));
+  }
+
+  @Test
+  public void weightedCapacity() {
+    ConcurrentLruCache<String, String> weighted = new ConcurrentLruCache<String, String>(10,
+        new Weigher<String>() {
+          public int weigh(String value) {
+            return value.length();
+          }
+        });
+    weighted.addElement("a", "aaaa");
+    weighted.addElement("b", "bbbb");
+    assertEquals(8, weighted.getWeightedSize());
+    weighted.addElement("c", "cccc");
+    assertEquals(2, weighted.getSize());
+    assertEquals(8, weighted.getWeightedSize());
+    assertNull(weighted.getElement("a"));
+
+    weighted.addElement("c", "cc");
+    assertEquals(6, weighted.getWeightedSize());
+  }
+
+  @Test
+  public void valueHeavierThanCapacityNotCached() {
+    ConcurrentLruCache<String, String> weighted = new ConcurrentLruCache<String, String>(10,
+        new Weigher<String>() {
+          public int weigh(String value) {
+            return value.length();
+          }
+        });
+    weighted.addElement("a", "a");
+    weighted.addElement("a", "aaaaaaaaaaaa");
+    assertNull(weighted.getElement("a"));
+    assertEquals(0, weighted.getWeightedSize());
+  }
+
+  @Test
+  public void concurrentWritersStayBounded() throws Exception {
+    final ConcurrentLruCache<Integer, Integer> shared = new ConcurrentLruCache<Integer, Integer>(100);
+    final CountDownLatch done = new CountDownLatch(8);
+    final AtomicInteger failures = new AtomicInteger();
+    for (int t = 0; t < 8; ++t) {
+      final int offset = t * 10000;
+      new Thread() {
+        @Override
+        public void run() {
+          try {
+            for (int i = 0; i < 10000; ++i) {
+              shared.addElement(offset + i, i);
+              shared.getElement(offset + i / 2);
+            }
+          } catch (RuntimeException e) {
+            failures.incrementAndGet();
+          } finally {
+            done.countDown();
+          }
+        }
+      }.start();
+    }
+    done.await();
+    assertEquals(0, failures.get());
+    assertTrue(shared.getSize() <= 100);
+  }
+}
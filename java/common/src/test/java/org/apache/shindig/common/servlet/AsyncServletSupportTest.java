@@ -0,0 +1,119 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.shindig.common.servlet;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.easymock.EasyMock;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import javax.servlet.ServletOutputStream;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+public class AsyncServletSupportTest {
+  private final HttpServletRequest request = EasyMock.createNiceMock(HttpServletRequest.class);
+  private final HttpServletResponse response = EasyMock.createNiceMock(HttpServletResponse.class);
+
+  @Test
+  public void handledInCallingThreadWithoutServlet3() throws Exception {
+    // The tests run against the Servlet 2.5 API.
+    assertFalse(AsyncServletSupport.isAvailable());
+
+    AsyncServletSupport support = new AsyncServletSupport();
+    support.setExecutor(new AbstractExecutorService() {
+      public void execute(Runnable command) {
+        throw new AssertionError("Should not be used");
+      }
+      public void shutdown() {}
+      public List<Runnable> shutdownNow() { return null; }
+      public boolean isShutdown() { return false; }
+      public boolean isTerminated() { return false; }
+      public boolean awaitTermination(long timeout, TimeUnit unit) { return false; }
+    });
+
+    final Thread caller = Thread.currentThread();
+    final Thread[] handledBy = new Thread[1];
+    support.dispatch(request, response, new AsyncServletSupport.Handler() {
+      public void handle(HttpServletResponse resp) {
+        handledBy[0] = Thread.currentThread();
+      }
+    });
+    assertSame(caller, handledBy[0]);
+    assertEquals(0, support.getInFlightCount());
+  }
+
+  @Test(expected = IOException.class)
+  public void errorsPropagateWhenHandledInCallingThread() throws Exception {
+    new AsyncServletSupport().dispatch(request, response, new AsyncServletSupport.Handler() {
+      public void handle(HttpServletResponse resp) throws IOException {
+        throw new IOException("failed");
+      }
+    });
+  }
+
+  @Test
+  public void abandonedResponseRejectsOutput() throws Exception {
+    final ByteArrayOutputStream body = new ByteArrayOutputStream();
+    final ServletOutputStream out = new ServletOutputStream() {
+      @Override
+      public void write(int b) {
+        body.write(b);
+      }
+    };
+    EasyMock.expect(response.getOutputStream()).andReturn(out).anyTimes();
+    response.setStatus(HttpServletResponse.SC_OK);
+    EasyMock.expectLastCall().once();
+    EasyMock.replay(response);
+
+    AsyncServletSupport.AsyncResponse asyncResponse =
+        new AsyncServletSupport.AsyncResponse(response, new Object());
+    HttpServletResponse guarded = asyncResponse.getResponse();
+    guarded.setStatus(HttpServletResponse.SC_OK);
+    ServletOutputStream stream = guarded.getOutputStream();
+    stream.write(new byte[] { 'a', 'b' });
+
+    asyncResponse.abandon(0);
+    assertTrue(asyncResponse.isAbandoned());
+    try {
+      stream.write('c');
+      fail("Write after the container ended the request");
+    } catch (IOException e) {
+      // Expected.
+    }
+    try {
+      guarded.setStatus(HttpServletResponse.SC_NOT_FOUND);
+      fail("Status set after the container ended the request");
+    } catch (IllegalStateException e) {
+      // Expected.
+    }
+    assertEquals("ab", body.toString());
+    EasyMock.verify(response);
+  }
+}
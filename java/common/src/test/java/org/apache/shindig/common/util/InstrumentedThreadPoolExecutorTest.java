@@ -0,0 +1,76 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.apache.shindig.common.util;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tests InstrumentedThreadPoolExecutor.
+ */
+public class InstrumentedThreadPoolExecutorTest extends Assert {
+  private final InstrumentedThreadPoolExecutor executor = new InstrumentedThreadPoolExecutor(
+      0, 1, 60L, TimeUnit.SECONDS, new SynchronousQueue<Runnable>(),
+      Executors.defaultThreadFactory());
+
+  @Test
+  public void testCountsFinishedTasks() throws Exception {
+    executor.submit(new Runnable() {
+      public void run() { }
+    }).get();
+    executor.shutdown();
+    assertTrue(executor.awaitTermination(5, TimeUnit.SECONDS));
+
+    assertEquals(1, executor.getFinishedCount());
+    assertEquals(0, executor.getRejectedCount());
+    assertTrue(executor.getMeanQueueMillis() >= 0);
+    assertTrue(executor.getMeanRunMillis() >= 0);
+  }
+
+  @Test
+  public void testCountsRejectedTasks() throws Exception {
+    final CountDownLatch release = new CountDownLatch(1);
+    executor.execute(new Runnable() {
+      public void run() {
+        try {
+          release.await();
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+        }
+      }
+    });
+    try {
+      executor.execute(new Runnable() {
+        public void run() { }
+      });
+      fail("Second task should not fit in a saturated pool");
+    } catch (RejectedExecutionException e) {
+      // Expected.
+    } finally {
+      release.countDown();
+      executor.shutdown();
+    }
+    assertEquals(1, executor.getRejectedCount());
+  }
+}
@@ -30,6 +30,8 @@ import com.google.inject.name.Names;
 
 import org.apache.commons.lang.StringUtils;
 
+import org.apache.shindig.common.util.InstrumentedThreadPoolExecutor;
+
 import org.apache.shindig.gadgets.config.ConfigContributor;
 import org.apache.shindig.gadgets.config.CoreUtilConfigContributor;
 import org.apache.shindig.gadgets.config.OsapiServicesConfigContributor;
@@ -52,7 +54,11 @@ import java.util.List;
 import java.util.Set;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.SynchronousQueue;
 import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Creates a module to supply all of the core gadget classes.
@@ -61,6 +67,11 @@ import java.util.concurrent.ThreadFactory;
  * multibindings for features and rpc handlers.
  */
 public class DefaultGuiceModule extends AbstractModule {
+  private static final int REFRESH_THREADS = 8;
+  private static final int REFRESH_QUEUE_SIZE = 1000;
+  private static final int ASYNC_SERVLET_THREADS = 512;
+  private static final int CONCAT_THREADS = 64;
+  private static final int MAKE_REQUEST_BATCH_THREADS = 64;
 
   /** {@inheritDoc} */
   @Override
@@ -68,11 +79,53 @@ public class DefaultGuiceModule extends AbstractModule {
 
     final ExecutorService service = Executors.newCachedThreadPool(DAEMON_THREAD_FACTORY);
     bind(ExecutorService.class).toInstance(service);
-    bind(ExecutorService.class).annotatedWith(Names.named("shindig.concat.executor")).toInstance(service);
+
+    // Background refreshes of stale HTTP responses must not grow without bound when origins are
+    // slow, so they get their own fixed pool and queue. Rejected refreshes run inline instead.
+    final ExecutorService refreshService = new ThreadPoolExecutor(REFRESH_THREADS, REFRESH_THREADS,
+        60L, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(REFRESH_QUEUE_SIZE),
+        DAEMON_THREAD_FACTORY);
+    bind(ExecutorService.class).annotatedWith(Names.named("shindig.http.refresh.executor"))
+        .toInstance(refreshService);
+
+    // Requests that servlets hand off the container thread are fetched and rewritten here. When
+    // every thread is busy the container thread does the work instead.
+    final ExecutorService asyncServletService = new ThreadPoolExecutor(0, ASYNC_SERVLET_THREADS,
+        60L, TimeUnit.SECONDS, new SynchronousQueue<Runnable>(), DAEMON_THREAD_FACTORY);
+    bind(ExecutorService.class).annotatedWith(Names.named("shindig.servlet.async.executor"))
+        .toInstance(asyncServletService);
+
+    // Concat fetches share a bounded pool so one large bundle cannot starve the others. When every
+    // thread is busy the servlet fetches the remaining resources itself.
+    final ExecutorService concatService = new InstrumentedThreadPoolExecutor(0, CONCAT_THREADS,
+        60L, TimeUnit.SECONDS, new SynchronousQueue<Runnable>(), DAEMON_THREAD_FACTORY);
+    bind(ExecutorService.class).annotatedWith(Names.named("shindig.concat.executor"))
+        .toInstance(concatService);
+
+    // Requests of makeRequest batches are fetched here, a few per batch at a time. When every
+    // thread is busy the servlet fetches the remaining requests itself.
+    final ExecutorService batchService = new InstrumentedThreadPoolExecutor(0,
+        MAKE_REQUEST_BATCH_THREADS, 60L, TimeUnit.SECONDS, new SynchronousQueue<Runnable>(),
+        DAEMON_THREAD_FACTORY);
+    bind(ExecutorService.class).annotatedWith(Names.named("shindig.makerequest.batch.executor"))
+        .toInstance(batchService);
+
+    // Parsing stylesheets only takes CPU, so more threads than processors wouldn't help. When
+    // every thread is busy the rewriting thread parses the remaining stylesheets itself.
+    final ExecutorService cssParseService = new InstrumentedThreadPoolExecutor(0,
+        Runtime.getRuntime().availableProcessors(), 60L, TimeUnit.SECONDS,
+        new SynchronousQueue<Runnable>(), DAEMON_THREAD_FACTORY);
+    bind(ExecutorService.class).annotatedWith(Names.named("shindig.css.parse.executor"))
+        .toInstance(cssParseService);
 
     Runtime.getRuntime().addShutdownHook(new Thread() {
         public void run() {
             service.shutdownNow();
+            refreshService.shutdownNow();
+            asyncServletService.shutdownNow();
+            concatService.shutdownNow();
+            batchService.shutdownNow();
+            cssParseService.shutdownNow();
         }
     });
 
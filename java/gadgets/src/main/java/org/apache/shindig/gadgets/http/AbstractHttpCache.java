@@ -23,6 +23,9 @@ import org.apache.shindig.auth.SecurityToken;
 import org.apache.shindig.gadgets.AuthType;
 import org.apache.shindig.gadgets.uri.UriCommon;
 
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
 /**
  * Base class for content caches. Defines cache expiration rules and
  * and restrictions on allowed content.
@@ -37,6 +40,8 @@ public abstract class AbstractHttpCache implements HttpCache {
   private static final String RESIZE_WIDTH = UriCommon.Param.RESIZE_WIDTH.getKey();
   private static final String RESIZE_QUALITY = UriCommon.Param.RESIZE_QUALITY.getKey();
 
+  private final List<ChangeListener> listeners = new CopyOnWriteArrayList<ChangeListener>();
+
   // Implement these methods to create a concrete HttpCache class.
   protected abstract HttpResponse getResponseImpl(String key);
   protected abstract void addResponseImpl(String key, HttpResponse response);
@@ -65,6 +70,7 @@ public abstract class AbstractHttpCache implements HttpCache {
       response = responseBuilder.create();
       String keyString = createKey(request);
       addResponseImpl(keyString, response);
+      fireChange(keyString, false);
       return true;
     }
 
@@ -72,16 +78,39 @@ public abstract class AbstractHttpCache implements HttpCache {
   }
 
   public HttpResponse removeResponse(HttpRequest request) {
-    String keyString = createKey(request);
-    HttpResponse response = getResponseImpl(keyString);
-    removeResponseImpl(keyString);
+    return removeResponseForKey(createKey(request));
+  }
+
+  public HttpResponse removeResponseForKey(String key) {
+    HttpResponse response = removeResponseImpl(key);
+    if (response != null) {
+      fireChange(key, true);
+    }
     if (responseStillUsable(response)) {
       return response;
     }
     return null;
   }
 
-  protected boolean isCacheable(HttpRequest request) {
+  /**
+   * Registers a listener to be told about entries stored or removed through this cache, for
+   * callers that keep results derived from cached responses. Entries the underlying cache evicts
+   * by itself are not reported.
+   */
+  public void addChangeListener(ChangeListener listener) {
+    listeners.add(listener);
+  }
+
+  private void fireChange(String key, boolean removed) {
+    for (ChangeListener listener : listeners) {
+      listener.onChange(key, removed);
+    }
+  }
+
+  /**
+   * @return true if responses to the request may be cached and shared with other callers.
+   */
+  public static boolean isCacheable(HttpRequest request) {
     if (request.getIgnoreCache()) {
       return false;
     }
@@ -89,7 +118,10 @@ public abstract class AbstractHttpCache implements HttpCache {
             "GET".equals(request.getHeader("X-Method-Override")));
   }
 
-  protected boolean isCacheable(HttpRequest request, HttpResponse response) {
+  /**
+   * @return true if the response to the request may be cached and shared with other callers.
+   */
+  public static boolean isCacheable(HttpRequest request, HttpResponse response) {
     if (!isCacheable(request)) {
       return false;
     }
@@ -129,14 +161,29 @@ public abstract class AbstractHttpCache implements HttpCache {
    * Except for the first two, all of these may be unset or <code>null</code>,
    * depending on authentication rules. See individual methods for details.  New cache key items
    * should always be inserted using {@code CacheKeyBuilder#setParam(String, Object)}.
+   *
+   * The key of an unauthenticated request is remembered by the request, so the lookup, the
+   * in-flight check and the store for one request build it only once.
    */
   public String createKey(HttpRequest request) {
-    if ((request.getAuthType() != AuthType.NONE) &&
-        (request.getSecurityToken() == null)) {
-      throw new IllegalArgumentException(
-          "Cannot sign request without security token: [" + request + ']');
+    if (request.getAuthType() != AuthType.NONE) {
+      if (request.getSecurityToken() == null) {
+        throw new IllegalArgumentException(
+            "Cannot sign request without security token: [" + request + ']');
+      }
+      // Depends on the token and OAuth arguments, which can change without the request knowing.
+      return buildKey(request);
     }
 
+    String key = request.getCacheKey();
+    if (key == null) {
+      key = buildKey(request);
+      request.setCacheKey(key);
+    }
+    return key;
+  }
+
+  private String buildKey(HttpRequest request) {
     CacheKeyBuilder keyBuilder = new CacheKeyBuilder()
         .setLegacyParam(0, request.getUri())
         .setLegacyParam(1, request.getAuthType())
@@ -229,4 +276,14 @@ public abstract class AbstractHttpCache implements HttpCache {
   protected boolean responseStillUsable(HttpResponse response) {
     return response != null;
   }
+
+  /**
+   * Told whenever the entry under a key is replaced or removed.
+   */
+  public interface ChangeListener {
+    /**
+     * @param removed true if the entry was removed, false if it was stored.
+     */
+    void onChange(String key, boolean removed);
+  }
 }
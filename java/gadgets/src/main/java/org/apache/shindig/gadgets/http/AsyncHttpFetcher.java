@@ -0,0 +1,40 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.apache.shindig.gadgets.http;
+
+import org.apache.shindig.gadgets.GadgetException;
+
+import java.util.concurrent.Future;
+
+/**
+ * An HttpFetcher that can start a fetch without holding the calling thread for the round trip to
+ * the origin, so that callers can fan out many fetches and collect the results later.
+ */
+public interface AsyncHttpFetcher extends HttpFetcher {
+
+  /**
+   * Start fetching HTTP content.
+   *
+   * @param request The request to fetch.
+   * @return A future for the HTTP response, including error conditions. Failures that can't be
+   *     mapped to an HTTP result code are reported as an ExecutionException wrapping a
+   *     GadgetException.
+   * @throws GadgetException If the request itself is invalid.
+   */
+  Future<HttpResponse> fetchAsync(HttpRequest request) throws GadgetException;
+}
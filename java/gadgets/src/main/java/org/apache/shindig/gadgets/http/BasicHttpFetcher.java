@@ -19,6 +19,8 @@ package org.apache.shindig.gadgets.http;
 
 import com.google.common.base.Preconditions;
 import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
 import com.google.inject.Inject;
 import com.google.inject.Singleton;
 import com.google.inject.name.Named;
@@ -46,40 +48,64 @@ import org.apache.http.client.params.HttpClientParams;
 import org.apache.http.client.protocol.RequestAddCookies;
 import org.apache.http.client.protocol.ResponseProcessCookies;
 import org.apache.http.conn.ClientConnectionManager;
+import org.apache.http.conn.ConnectionKeepAliveStrategy;
+import org.apache.http.conn.ManagedClientConnection;
 import org.apache.http.conn.ConnectionPoolTimeoutException;
 import org.apache.http.conn.HttpHostConnectException;
 import org.apache.http.conn.params.ConnManagerParams;
-import org.apache.http.conn.params.ConnPerRouteBean;
+import org.apache.http.conn.params.ConnPerRoute;
 import org.apache.http.conn.params.ConnRouteParams;
+import org.apache.http.conn.routing.HttpRoute;
+import org.apache.http.conn.routing.HttpRoutePlanner;
 import org.apache.http.conn.scheme.PlainSocketFactory;
 import org.apache.http.conn.scheme.Scheme;
 import org.apache.http.conn.scheme.SchemeRegistry;
 import org.apache.http.conn.ssl.SSLSocketFactory;
 import org.apache.http.entity.HttpEntityWrapper;
 import org.apache.http.entity.InputStreamEntity;
+import org.apache.http.impl.client.DefaultConnectionKeepAliveStrategy;
 import org.apache.http.impl.client.DefaultHttpClient;
 import org.apache.http.impl.client.DefaultHttpRequestRetryHandler;
 import org.apache.http.impl.conn.ProxySelectorRoutePlanner;
 import org.apache.http.impl.conn.tsccm.ThreadSafeClientConnManager;
+import org.apache.http.message.BasicHttpRequest;
 import org.apache.http.params.BasicHttpParams;
 import org.apache.http.params.HttpConnectionParams;
 import org.apache.http.params.HttpParams;
 import org.apache.http.params.HttpProtocolParams;
+import org.apache.http.protocol.BasicHttpContext;
 import org.apache.http.protocol.HttpContext;
 import org.apache.http.util.ByteArrayBuffer;
 import org.apache.shindig.common.uri.Uri;
+import org.apache.shindig.common.util.TimeSource;
+import org.apache.shindig.gadgets.DefaultGuiceModule;
 import org.apache.shindig.gadgets.GadgetException;
 
 import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.ref.WeakReference;
+import java.net.ConnectException;
 import java.net.ProxySelector;
 import java.net.SocketException;
 import java.net.SocketTimeoutException;
 import java.net.UnknownHostException;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.zip.GZIPInputStream;
@@ -102,15 +128,51 @@ public class BasicHttpFetcher implements HttpFetcher {
   private static final int DEFAULT_READ_TIMEOUT_MS = 5000;
   private static final int DEFAULT_MAX_OBJECT_SIZE = 0;  // no limit
   private static final long DEFAULT_SLOW_RESPONSE_WARNING = 10000;
+  private static final int DEFAULT_MAX_CONNECTIONS_PER_HOST = 256;
+  private static final int DEFAULT_CIRCUIT_FAILURE_THRESHOLD = 5;
+  private static final long DEFAULT_CIRCUIT_OPEN_MS = 30000;
+  private static final long DEFAULT_IDLE_CONNECTION_TIMEOUT_MS = 30000;
+  private static final int DEFAULT_WARM_UP_CONNECTIONS = 2;
+  private static final int DEFAULT_WARM_UP_CONNECT_TIMEOUT_MS = 2000;
+  private static final long EVICTION_INTERVAL_MS = 5000;
+
+  // Shared by all fetchers: closing idle connections is cheap and rarely has anything to do.
+  private static final ScheduledExecutorService EVICTOR =
+      Executors.newSingleThreadScheduledExecutor(DefaultGuiceModule.DAEMON_THREAD_FACTORY);
+
+  // Warm up connects block, so they get a thread of their own rather than holding up eviction.
+  // It is only kept while there is warming up to do.
+  private static final ExecutorService WARM_UP = new ThreadPoolExecutor(0, 1, 60L,
+      TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+      DefaultGuiceModule.DAEMON_THREAD_FACTORY);
+
+  // Hosts beyond this are still fetched, but healthy hosts are forgotten to make room.
+  private static final int MAX_TRACKED_HOSTS = 1000;
 
   protected final HttpClient FETCHER;
 
   // mutable fields must be volatile
   private volatile int maxObjSize;
   private volatile long slowResponseWarning;
+  private volatile int circuitFailureThreshold = DEFAULT_CIRCUIT_FAILURE_THRESHOLD;
+  private volatile long circuitOpenMs = DEFAULT_CIRCUIT_OPEN_MS;
+  private volatile TimeSource timeSource = new TimeSource();
+  private volatile long idleConnectionTimeoutMs = DEFAULT_IDLE_CONNECTION_TIMEOUT_MS;
+  private volatile int warmUpConnections = DEFAULT_WARM_UP_CONNECTIONS;
+  private volatile int warmUpConnectTimeoutMs = DEFAULT_WARM_UP_CONNECT_TIMEOUT_MS;
+
+  private final HttpRoutePlanner routePlanner;
+
+  private final HostConnectionLimits connectionLimits =
+      new HostConnectionLimits(DEFAULT_MAX_CONNECTIONS_PER_HOST);
+  private final ConcurrentMap<String, HostStats> hostStats =
+      new ConcurrentHashMap<String, HostStats>();
 
   private static final Logger LOG = Logger.getLogger(BasicHttpFetcher.class.getName());
 
+  // Buffer used when streaming a body to a ResponseSink.
+  private static final int STREAM_BUFFER_SIZE = 16384;
+
   private final Set<Class<?>> TIMEOUT_EXCEPTIONS = ImmutableSet.<Class<?>>of(ConnectionPoolTimeoutException.class,
       SocketTimeoutException.class, SocketException.class, HttpHostConnectException.class, NoHttpResponseException.class,
       InterruptedException.class, UnknownHostException.class);
@@ -149,7 +211,7 @@ public class BasicHttpFetcher implements HttpFetcher {
 
     // These are probably overkill for most sites.
     ConnManagerParams.setMaxTotalConnections(params, 1152);
-    ConnManagerParams.setMaxConnectionsPerRoute(params, new ConnPerRouteBean(256));
+    ConnManagerParams.setMaxConnectionsPerRoute(params, connectionLimits);
 
     HttpProtocolParams.setVersion(params, HttpVersion.HTTP_1_1);
     HttpProtocolParams.setUserAgent(params, "Apache Shindig");
@@ -157,7 +219,9 @@ public class BasicHttpFetcher implements HttpFetcher {
 
     HttpConnectionParams.setConnectionTimeout(params, connectionTimeoutMs);
     HttpConnectionParams.setSoTimeout(params, readTimeoutMs);
-    HttpConnectionParams.setStaleCheckingEnabled(params, true);
+    // Connections that have been idle too long are closed by the evictor instead, sparing every
+    // request a blocking read to find out whether its connection is still open.
+    HttpConnectionParams.setStaleCheckingEnabled(params, false);
 
     HttpClientParams.setRedirecting(params, true);
     HttpClientParams.setAuthenticating(params, false);
@@ -215,6 +279,17 @@ public class BasicHttpFetcher implements HttpFetcher {
     });
     client.setHttpRequestRetryHandler(new DefaultHttpRequestRetryHandler() );
 
+    // Keep connections only as long as the origin said it would, and never longer than the evictor
+    // would let them sit idle.
+    client.setKeepAliveStrategy(new DefaultConnectionKeepAliveStrategy() {
+      @Override
+      public long getKeepAliveDuration(org.apache.http.HttpResponse response,
+          HttpContext context) {
+        long duration = super.getKeepAliveDuration(response, context);
+        return duration < 0 ? idleConnectionTimeoutMs : Math.min(duration, idleConnectionTimeoutMs);
+      }
+    });
+
     // Disable automatic storage and sending of cookies (see SHINDIG-1382)
     client.removeRequestInterceptorByClass(RequestAddCookies.class); 
     client.removeResponseInterceptorByClass(ResponseProcessCookies.class);
@@ -228,6 +303,10 @@ public class BasicHttpFetcher implements HttpFetcher {
     }
 
     FETCHER = client;
+    this.routePlanner = client.getRoutePlanner();
+    IdleConnectionEvictor evictor = new IdleConnectionEvictor(this);
+    evictor.future = EVICTOR.scheduleWithFixedDelay(evictor, EVICTION_INTERVAL_MS,
+        EVICTION_INTERVAL_MS, TimeUnit.MILLISECONDS);
   }
 
   static class GzipDecompressingEntity extends HttpEntityWrapper {
@@ -322,6 +401,13 @@ public class BasicHttpFetcher implements HttpFetcher {
     // Get the http host to connect to.
     HttpHost host = new HttpHost(hostparts[0], port, uri.getScheme());
 
+    HostStats stats = getHostStats(uri.getAuthority().toLowerCase());
+    if (!stats.breaker.allowRequest()) {
+      // The origin has stopped answering; don't tie up a connection waiting for it.
+      LOG.fine("Circuit open for " + uri.getAuthority() + ", not fetching " + uri);
+      return HttpResponse.timeout();
+    }
+
     try {
       if ("POST".equals(methodType) || "PUT".equals(methodType)) {
         HttpEntityEnclosingRequestBase enclosingMethod = ("POST".equals(methodType))
@@ -350,28 +436,34 @@ public class BasicHttpFetcher implements HttpFetcher {
 
       // HttpClient doesn't handle all cases when breaking url (specifically '_' in domain)
       // So lets pass it the url parsed:
-      response = FETCHER.execute(host, httpMethod);
+      response = execute(host, httpMethod);
 
       if (response == null) {
         throw new IOException("Unknown problem with request");
       }
 
       long now = System.currentTimeMillis();
+      stats.latency.record(now - started);
+      stats.breaker.onSuccess();
       if (now - started > slowResponseWarning) {
         slowResponseWarning(request, started, now);
       }
 
-      return makeResponse(response);
+      return makeResponse(request, response);
 
     } catch (Exception e) {
       long now = System.currentTimeMillis();
 
       // Find timeout exceptions, respond accordingly
       if (TIMEOUT_EXCEPTIONS.contains(e.getClass())) {
+        stats.latency.record(now - started);
+        stats.breaker.onFailure();
         LOG.info("Timeout for " + request.getUri() + " Exception: " + e.getClass().getName() + " - " + e.getMessage() + " - " + (now - started) + "ms");
         return HttpResponse.timeout();
       }
 
+      // The origin answered, even if badly, so it is not a reason to stop fetching from it.
+      stats.breaker.onSuccess();
       LOG.log(Level.INFO, "Got Exception fetching " + request.getUri() + " - " + (now - started) + "ms", e);
 
       // Separate shindig error from external error
@@ -387,6 +479,29 @@ public class BasicHttpFetcher implements HttpFetcher {
     }
   }
 
+  /**
+   * Executes a request. Stale checking is off, so a pooled connection the origin has since closed
+   * only shows up once the request has been sent, as a reset or a missing response. Requests that
+   * are safe to repeat are then retried once with stale checking on, so that they get a live
+   * connection, before the failure counts against the origin.
+   */
+  private org.apache.http.HttpResponse execute(HttpHost host, HttpUriRequest httpMethod)
+      throws IOException {
+    try {
+      return FETCHER.execute(host, httpMethod);
+    } catch (IOException e) {
+      boolean stale = (e instanceof SocketException && !(e instanceof ConnectException))
+          || e instanceof NoHttpResponseException;
+      String method = httpMethod.getMethod();
+      if (!stale || !("GET".equals(method) || "HEAD".equals(method))) {
+        throw e;
+      }
+      LOG.fine("Retrying " + httpMethod.getURI() + " on " + host + " after " + e);
+      HttpConnectionParams.setStaleCheckingEnabled(httpMethod.getParams(), true);
+      return FETCHER.execute(host, httpMethod);
+    }
+  }
+
   /**
    * Called when a request takes too long.   Consider subclassing this if you want to do something other than logging
    * a warning .
@@ -399,6 +514,125 @@ public class BasicHttpFetcher implements HttpFetcher {
     LOG.warning("Slow response from " + request.getUri() + ' ' + (finished - started) + "ms");
   }
 
+  /**
+   * @return The latency of the fetches made to each host (host:port) fetched from recently.
+   */
+  public Map<String, LatencyHistogram> getLatencyHistograms() {
+    Map<String, LatencyHistogram> histograms = Maps.newHashMap();
+    for (Map.Entry<String, HostStats> entry : hostStats.entrySet()) {
+      histograms.put(entry.getKey(), entry.getValue().latency);
+    }
+    return histograms;
+  }
+
+  /**
+   * @return The circuit breaker for the given host:port, or null if it has not been fetched from
+   *     recently.
+   */
+  public CircuitBreaker getCircuitBreaker(String authority) {
+    HostStats stats = hostStats.get(authority.toLowerCase());
+    return stats == null ? null : stats.breaker;
+  }
+
+  /**
+   * @return Up to limit hosts (host:port), most fetched from first. Useful as a starting point
+   *     for the warm up hosts of freshly started servers.
+   */
+  public List<String> getHotHosts(int limit) {
+    List<Map.Entry<String, HostStats>> entries = Lists.newArrayList(hostStats.entrySet());
+    Collections.sort(entries, new Comparator<Map.Entry<String, HostStats>>() {
+      public int compare(Map.Entry<String, HostStats> a, Map.Entry<String, HostStats> b) {
+        long countA = a.getValue().latency.getCount();
+        long countB = b.getValue().latency.getCount();
+        return countA > countB ? -1 : (countA == countB ? 0 : 1);
+      }
+    });
+    List<String> hosts = Lists.newArrayList();
+    for (Map.Entry<String, HostStats> entry : entries.subList(0, Math.min(limit, entries.size()))) {
+      hosts.add(entry.getKey());
+    }
+    return hosts;
+  }
+
+  /**
+   * Opens connections to the given origins and leaves them in the pool, so that the first fetches
+   * from them don't pay for TCP and TLS handshakes. Origins that can't be reached are skipped;
+   * connects give up after the warm up connect timeout.
+   *
+   * @param origins The origins to connect to. Only scheme, host and port are used.
+   * @param connectionsPerOrigin How many connections to open to each.
+   * @return The number of connections opened.
+   */
+  public int warmUp(Collection<Uri> origins, int connectionsPerOrigin) {
+    ClientConnectionManager cm = FETCHER.getConnectionManager();
+    HttpParams params = FETCHER.getParams().copy();
+    HttpConnectionParams.setConnectionTimeout(params,
+        Math.min(warmUpConnectTimeoutMs, HttpConnectionParams.getConnectionTimeout(params)));
+    int opened = 0;
+    for (Uri origin : origins) {
+      try {
+        // Built the same way as in fetch(), so that the routes match and the connections are used.
+        String[] hostparts = StringUtils.splitPreserveAllTokens(origin.getAuthority(), ':');
+        HttpHost host = new HttpHost(hostparts[0],
+            hostparts.length == 2 ? Integer.parseInt(hostparts[1]) : -1, origin.getScheme());
+        HttpContext context = new BasicHttpContext();
+        HttpRoute route = routePlanner.determineRoute(host,
+            new BasicHttpRequest("HEAD", "/"), context);
+        if (route.isTunnelled()) {
+          // Establishing the tunnel takes a request; leave that to the first fetch.
+          continue;
+        }
+        List<ManagedClientConnection> connections = Lists.newArrayList();
+        try {
+          for (int i = 0; i < connectionsPerOrigin; i++) {
+            ManagedClientConnection connection = cm.requestConnection(route, null)
+                .getConnection(ConnManagerParams.getTimeout(FETCHER.getParams()),
+                    TimeUnit.MILLISECONDS);
+            connections.add(connection);
+            if (!connection.isOpen()) {
+              connection.open(route, context, params);
+              opened++;
+            }
+            connection.markReusable();
+          }
+        } finally {
+          // Only release once all are taken, otherwise the same connection would be handed back.
+          for (ManagedClientConnection connection : connections) {
+            cm.releaseConnection(connection, idleConnectionTimeoutMs, TimeUnit.MILLISECONDS);
+          }
+        }
+      } catch (Exception e) {
+        LOG.log(Level.INFO, "Unable to warm up connections to " + origin, e);
+      }
+    }
+    return opened;
+  }
+
+  private HostStats getHostStats(String authority) {
+    HostStats stats = hostStats.get(authority);
+    if (stats == null) {
+      if (hostStats.size() >= MAX_TRACKED_HOSTS) {
+        forgetHealthyHost();
+      }
+      stats = new HostStats(
+          new CircuitBreaker(circuitFailureThreshold, circuitOpenMs, timeSource));
+      HostStats existing = hostStats.putIfAbsent(authority, stats);
+      if (existing != null) {
+        stats = existing;
+      }
+    }
+    return stats;
+  }
+
+  private void forgetHealthyHost() {
+    for (Map.Entry<String, HostStats> entry : hostStats.entrySet()) {
+      if (!entry.getValue().breaker.isOpen()) {
+        hostStats.remove(entry.getKey(), entry.getValue());
+        return;
+      }
+    }
+  }
+
   /**
    * Change the global maximum fetch size (in bytes) for all fetches.
    *
@@ -444,12 +678,135 @@ public class BasicHttpFetcher implements HttpFetcher {
 
 
   /**
+   * Change the default maximum number of pooled connections to a single host.
+   *
+   * @param maxConnections maximum connections per host
+   */
+  @Inject(optional = true)
+  public void setMaxConnectionsPerHost(
+      @Named("shindig.http.client.max-connections-per-host") int maxConnections) {
+    Preconditions.checkArgument(maxConnections > 0,
+        "max-connections-per-host must be greater than 0");
+    connectionLimits.defaultMax = maxConnections;
+  }
+
+  /**
+   * Override the maximum number of pooled connections for individual hosts, so that a slow host
+   * cannot take the whole pool. Only applies to hosts not yet connected to.
+   *
+   * @param limits comma separated list of host=connections pairs
+   */
+  @Inject(optional = true)
+  public void setHostConnectionLimits(
+      @Named("shindig.http.client.host-connection-limits") String limits) {
+    for (String limit : StringUtils.split(StringUtils.defaultString(limits), ',')) {
+      String[] parts = StringUtils.split(limit, '=');
+      Preconditions.checkArgument(parts.length == 2,
+          "host-connection-limits entries must be host=connections: " + limit);
+      connectionLimits.limits.put(parts[0].trim().toLowerCase(),
+          Integer.parseInt(parts[1].trim()));
+    }
+  }
+
+  /**
+   * Change how many consecutive timeouts from a host open its circuit breaker. Only applies to
+   * hosts not yet fetched from.
+   *
+   * @param failureThreshold number of timeouts, or 0 to never stop fetching from a host
+   */
+  @Inject(optional = true)
+  public void setCircuitBreakerFailureThreshold(
+      @Named("shindig.http.client.circuit-breaker.failure-threshold") int failureThreshold) {
+    this.circuitFailureThreshold = failureThreshold;
+  }
+
+  /**
+   * Change how long fetches to a host fail fast once its circuit breaker is open. Only applies
+   * to hosts not yet fetched from.
+   *
+   * @param openMs time in milliseconds before a trial fetch is let through
+   */
+  @Inject(optional = true)
+  public void setCircuitBreakerOpenMs(
+      @Named("shindig.http.client.circuit-breaker.open-ms") long openMs) {
+    this.circuitOpenMs = openMs;
+  }
+
+  /**
+   * Change how long pooled connections may sit idle before they are closed. Origins that ask for
+   * a shorter keep alive get it.
+   *
+   * @param idleTimeoutMs time in milliseconds
+   */
+  @Inject(optional = true)
+  public void setIdleConnectionTimeoutMs(
+      @Named("shindig.http.client.idle-connection-timeout-ms") long idleTimeoutMs) {
+    Preconditions.checkArgument(idleTimeoutMs > 0,
+        "idle-connection-timeout-ms must be greater than 0");
+    this.idleConnectionTimeoutMs = idleTimeoutMs;
+  }
+
+  /**
+   * Change how many connections are opened to each warm up host.
+   *
+   * @param connections connections per host
+   */
+  @Inject(optional = true)
+  public void setWarmUpConnections(
+      @Named("shindig.http.client.warm-up-connections") int connections) {
+    this.warmUpConnections = connections;
+  }
+
+  /**
+   * Change how long warm up waits for each connection to be established.
+   *
+   * @param connectTimeoutMs time in milliseconds
+   */
+  @Inject(optional = true)
+  public void setWarmUpConnectTimeoutMs(
+      @Named("shindig.http.client.warm-up-connect-timeout-ms") int connectTimeoutMs) {
+    Preconditions.checkArgument(connectTimeoutMs > 0,
+        "warm-up-connect-timeout-ms must be greater than 0");
+    this.warmUpConnectTimeoutMs = connectTimeoutMs;
+  }
+
+  /**
+   * Set the origins that are connected to in the background when the fetcher is created, such as
+   * the hosts that serve most gadget specs and message bundles.
+   *
+   * @param origins comma separated list of origins, such as http://example.org:8080
+   */
+  @Inject(optional = true)
+  public void setWarmUpHosts(@Named("shindig.http.client.warm-up-hosts") String origins) {
+    final List<Uri> uris = Lists.newArrayList();
+    for (String origin : StringUtils.split(StringUtils.defaultString(origins), ',')) {
+      uris.add(Uri.parse(origin.trim()));
+    }
+    if (uris.isEmpty()) {
+      return;
+    }
+    WARM_UP.execute(new Runnable() {
+      public void run() {
+        int opened = warmUp(uris, warmUpConnections);
+        LOG.info("Opened " + opened + " connections to " + uris.size() + " warm up hosts");
+      }
+    });
+  }
+
+  @Inject(optional = true)
+  public void setTimeSource(TimeSource timeSource) {
+    this.timeSource = timeSource;
+  }
+
+  /**
+   * @param request The request being fetched
    * @param response The response to parse
    * @return A HttpResponse object made by consuming the response of the
    *         given HttpMethod.
    * @throws IOException when problems occur processing the body content
    */
-  private HttpResponse makeResponse(org.apache.http.HttpResponse response) throws IOException {
+  private HttpResponse makeResponse(HttpRequest request, org.apache.http.HttpResponse response)
+      throws IOException {
     HttpResponseBuilder builder = new HttpResponseBuilder();
 
     if (response.getAllHeaders() != null) {
@@ -465,14 +822,62 @@ public class BasicHttpFetcher implements HttpFetcher {
       return HttpResponse.badrequest("Exceeded maximum number of bytes - " + maxObjSize);
     }
 
+    builder.setHttpStatusCode(response.getStatusLine().getStatusCode());
+
+    ResponseSink sink = request.getResponseSink();
+    if (sink != null && entity != null) {
+      OutputStream out = sink.open(request, builder.create());
+      if (out != null) {
+        HttpResponse streamed = streamEntity(entity, out) ? builder.create()
+            : HttpResponse.badrequest("Exceeded maximum number of bytes - " + maxObjSize);
+        return new HttpResponseBuilder(streamed).setMetadata(ResponseSink.STREAMED, "true")
+            .create();
+      }
+    }
+
     byte[] responseBytes = (entity == null) ? null : toByteArraySafe(entity);
 
     return builder
-        .setHttpStatusCode(response.getStatusLine().getStatusCode())
         .setResponse(responseBytes)
         .create();
   }
 
+  /**
+   * Copies the entity to the given stream through a fixed size buffer, so the body is never held
+   * in memory. Stops as soon as more than maxObjSize bytes have been read; the caller aborts the
+   * connection.
+   *
+   * @return false if the entity exceeded the maximum object size.
+   * @throws IOException if an error occurs reading the entity or writing the stream
+   */
+  private boolean streamEntity(HttpEntity entity, OutputStream out) throws IOException {
+    InputStream instream = entity.getContent();
+    if (instream == null) {
+      return true;
+    }
+    byte[] tmp = new byte[STREAM_BUFFER_SIZE];
+    long total = 0;
+    try {
+      int l;
+      while ((l = instream.read(tmp)) != -1) {
+        total += l;
+        if (maxObjSize > 0 && total > maxObjSize) {
+          // Don't close the stream: that would read the rest of the body.
+          return false;
+        }
+        out.write(tmp, 0, l);
+      }
+    } catch (EOFException eofe) {
+      // See toByteArraySafe.
+      if (!isSpuriousEof(instream, eofe)) {
+        throw eofe;
+      }
+      LOG.log(Level.FINE, "EOFException: ", eofe);
+    }
+    instream.close();
+    return true;
+  }
+
   /**
    * This method is Safe replica version of org.apache.http.util.EntityUtils.toByteArray.
    * The try block embedding 'instream.read' has a corresponding catch block for 'EOFException'
@@ -525,9 +930,7 @@ public class BasicHttpFetcher implements HttpFetcher {
        * throws EOFException with empty message. A bug has been filed with Sun
        * and will be mentioned here once it is accepted.
        */
-      if (instream.available() == 0 &&
-          (eofe.getMessage() == null ||
-           eofe.getMessage().equals("Unexpected end of ZLIB input stream"))) {
+      if (isSpuriousEof(instream, eofe)) {
         LOG.log(Level.FINE, "EOFException: ", eofe);
       } else {
         throw eofe;
@@ -538,4 +941,63 @@ public class BasicHttpFetcher implements HttpFetcher {
     }
     return buffer.toByteArray();
   }
+
+  private static boolean isSpuriousEof(InputStream instream, EOFException eofe)
+      throws IOException {
+    return instream.available() == 0 &&
+        (eofe.getMessage() == null ||
+         eofe.getMessage().equals("Unexpected end of ZLIB input stream"));
+  }
+
+  private static class HostStats {
+    final CircuitBreaker breaker;
+    final LatencyHistogram latency = new LatencyHistogram();
+
+    HostStats(CircuitBreaker breaker) {
+      this.breaker = breaker;
+    }
+  }
+
+  /**
+   * Pool size for each route, by target host name. Read when a route's pool is first created.
+   */
+  private static class HostConnectionLimits implements ConnPerRoute {
+    volatile int defaultMax;
+    final Map<String, Integer> limits = new ConcurrentHashMap<String, Integer>();
+
+    HostConnectionLimits(int defaultMax) {
+      this.defaultMax = defaultMax;
+    }
+
+    public int getMaxForRoute(HttpRoute route) {
+      Integer max = limits.get(route.getTargetHost().getHostName().toLowerCase());
+      return max != null ? max : defaultMax;
+    }
+  }
+
+  /**
+   * Closes connections that the origin has closed, or that have sat idle too long. Only holds the
+   * fetcher weakly, and stops once it has been collected.
+   */
+  private static class IdleConnectionEvictor implements Runnable {
+    private final WeakReference<BasicHttpFetcher> fetcher;
+    volatile ScheduledFuture<?> future;
+
+    IdleConnectionEvictor(BasicHttpFetcher fetcher) {
+      this.fetcher = new WeakReference<BasicHttpFetcher>(fetcher);
+    }
+
+    public void run() {
+      BasicHttpFetcher target = fetcher.get();
+      if (target == null) {
+        if (future != null) {
+          future.cancel(false);
+        }
+        return;
+      }
+      ClientConnectionManager cm = target.FETCHER.getConnectionManager();
+      cm.closeExpiredConnections();
+      cm.closeIdleConnections(target.idleConnectionTimeoutMs, TimeUnit.MILLISECONDS);
+    }
+  }
 }
@@ -92,27 +92,33 @@ public class CacheKeyBuilder {
    * reasons.
    */
   public String build() {
-    StringBuilder keyBuilder = new StringBuilder(2 * String.valueOf(legacyParams[0]).length());
+    String first = getValueOrDefault(legacyParams[0]);
+    // Room for the URI, the other legacy params at their defaults, and an auth type.
+    StringBuilder keyBuilder = new StringBuilder(first.length() + 4 * NUM_LEGACY_PARAMS);
+    keyBuilder.append(first);
     appendLegacyKeys(keyBuilder);
 
     if (!paramMap.isEmpty()) {
       for (Map.Entry<String, Object> mapEntry : paramMap.entrySet()) {
-        keyBuilder.append(KEY_SEPARATOR);
-        keyBuilder.append(String.format("%s=%s", mapEntry.getKey(), mapEntry.getValue()));
+        keyBuilder.append(KEY_SEPARATOR)
+            .append(mapEntry.getKey())
+            .append('=')
+            .append(mapEntry.getValue());
       }
     }
     return keyBuilder.toString();
   }
 
   private void appendLegacyKeys(StringBuilder key) {
-    boolean first = true;
-    for (Object legacyParam : legacyParams) {
-      if (!first) {
-        key.append(KEY_SEPARATOR);
+    // The first parameter has already been appended.
+    for (int i = 1; i < NUM_LEGACY_PARAMS; ++i) {
+      key.append(KEY_SEPARATOR);
+      Object legacyParam = legacyParams[i];
+      if (legacyParam == null) {
+        key.append(DEFAULT_KEY_VALUE);
       } else {
-        first = false;
+        key.append(legacyParam);
       }
-      key.append(getValueOrDefault(legacyParam));
     }
   }
 }
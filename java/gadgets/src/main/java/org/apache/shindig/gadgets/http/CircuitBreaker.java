@@ -0,0 +1,98 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.apache.shindig.gadgets.http;
+
+import org.apache.shindig.common.util.TimeSource;
+
+/**
+ * Tracks the health of one origin so that fetches to it can fail fast once it has stopped
+ * responding, instead of each tying up a connection and a thread until it times out.
+ *
+ * The breaker opens after a number of consecutive failures. While open, requests are refused
+ * until the open period has passed; then a single trial request is let through. If the trial
+ * succeeds the breaker closes, otherwise it opens again for another period.
+ */
+public class CircuitBreaker {
+  private final int failureThreshold;
+  private final long openMillis;
+  private final TimeSource timeSource;
+
+  // Guarded by this.
+  private int consecutiveFailures;
+  private long openUntil;
+  private boolean trialInFlight;
+  private long rejected;
+
+  /**
+   * @param failureThreshold consecutive failures before the breaker opens, or 0 to never open.
+   * @param openMillis how long to refuse requests once open, in milliseconds.
+   */
+  public CircuitBreaker(int failureThreshold, long openMillis, TimeSource timeSource) {
+    this.failureThreshold = failureThreshold;
+    this.openMillis = openMillis;
+    this.timeSource = timeSource;
+  }
+
+  /**
+   * @return true if a request may be made. A caller that is allowed a request must report its
+   *     outcome with {@link #onSuccess} or {@link #onFailure}.
+   */
+  public synchronized boolean allowRequest() {
+    if (openUntil == 0) {
+      return true;
+    }
+    if (!trialInFlight && timeSource.currentTimeMillis() >= openUntil) {
+      trialInFlight = true;
+      return true;
+    }
+    rejected++;
+    return false;
+  }
+
+  public synchronized void onSuccess() {
+    consecutiveFailures = 0;
+    openUntil = 0;
+    trialInFlight = false;
+  }
+
+  public synchronized void onFailure() {
+    consecutiveFailures++;
+    if (trialInFlight || (failureThreshold > 0 && consecutiveFailures >= failureThreshold)) {
+      openUntil = timeSource.currentTimeMillis() + openMillis;
+    }
+    trialInFlight = false;
+  }
+
+  /**
+   * @return true if requests are currently being refused.
+   */
+  public synchronized boolean isOpen() {
+    return openUntil != 0;
+  }
+
+  public synchronized int getConsecutiveFailures() {
+    return consecutiveFailures;
+  }
+
+  /**
+   * @return The number of requests refused since the breaker was created.
+   */
+  public synchronized long getRejectedCount() {
+    return rejected;
+  }
+}
@@ -17,39 +17,168 @@
  */
 package org.apache.shindig.gadgets.http;
 
+import org.apache.commons.lang.StringUtils;
 import org.apache.shindig.common.cache.Cache;
 import org.apache.shindig.common.cache.CacheProvider;
+import org.apache.shindig.common.cache.ConcurrentLruCache;
 
 import com.google.inject.Inject;
 import com.google.inject.Singleton;
+import com.google.inject.name.Named;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
 /**
  * Simple cache of HttpResponses. It is recommended that this cache be configured with a shared
  * cache rather than a memory only cache.
+ *
+ * When shindig.cache.http.maxBytes is set to a positive value, the cache provider is bypassed and
+ * responses are kept in a memory only cache bounded by the estimated byte size of the cached
+ * bodies and headers (see {@link HttpResponseWeigher}) instead of by the number of responses.
+ *
+ * When shindig.cache.http.disk.dir is set, every cached response is also written to a
+ * {@link MappedResponseStore} in that directory. Responses missing from the in-memory cache are
+ * looked up there, so the cache stays warm across restarts. Responses with bodies larger than
+ * shindig.cache.http.disk.largeBodyBytes are only kept on disk.
+ *
+ * Text bodies are held gzipped in memory unless shindig.cache.http.compress is false. They are only
+ * decompressed when read, and servlets can send them to clients that accept gzip as they are.
+ * Bodies under 1KB are not worth compressing and stay as they are. Once a gzipped response has been
+ * read shindig.cache.http.compress.hotReads times it keeps its decompressed body as well, trading
+ * memory that maxBytes doesn't account for against decompressing it on every read. The disk tier
+ * stores gzipped bodies as they are.
  */
 @Singleton
 public class DefaultHttpCache extends AbstractHttpCache {
   public static final String CACHE_NAME = "httpResponses";
+  static final int DEFAULT_LARGE_BODY_BYTES = 64 * 1024;
+  static final int DEFAULT_HOT_READS = 8;
+
+  private static final Logger LOG = Logger.getLogger(DefaultHttpCache.class.getName());
 
   private final Cache<String, HttpResponse> cache;
+  private final ConcurrentLruCache<String, HttpResponse> weightedCache;
+  private MappedResponseStore diskTier;
+  private int largeBodyBytes = DEFAULT_LARGE_BODY_BYTES;
+  private boolean compressBodies = true;
+  private int hotReads = DEFAULT_HOT_READS;
 
-  @Inject
   public DefaultHttpCache(CacheProvider cacheProvider) {
-    cache = cacheProvider.createCache(CACHE_NAME);
+    this(cacheProvider, 0);
+  }
+
+  /**
+   * @param maxBytes When positive, bounds a memory only cache by size instead of creating one
+   *     through the cacheProvider.
+   */
+  @Inject
+  public DefaultHttpCache(CacheProvider cacheProvider,
+      @Named("shindig.cache.http.maxBytes") long maxBytes) {
+    if (maxBytes > 0) {
+      weightedCache = new ConcurrentLruCache<String, HttpResponse>(maxBytes,
+          new HttpResponseWeigher());
+      cache = weightedCache;
+    } else {
+      weightedCache = null;
+      cache = cacheProvider.createCache(CACHE_NAME);
+    }
+  }
+
+  @Inject(optional = true)
+  public void setDiskTier(@Named("shindig.cache.http.disk.dir") String directory,
+      @Named("shindig.cache.http.disk.maxBytes") long maxBytes) {
+    if (StringUtils.isEmpty(directory) || maxBytes <= 0) {
+      return;
+    }
+    try {
+      diskTier = new MappedResponseStore(new File(directory), maxBytes);
+    } catch (IOException e) {
+      LOG.log(Level.WARNING, "Unable to open http cache directory " + directory
+          + ", continuing without it", e);
+    }
+  }
+
+  @Inject(optional = true)
+  public void setLargeBodyBytes(@Named("shindig.cache.http.disk.largeBodyBytes") int bytes) {
+    this.largeBodyBytes = bytes;
+  }
+
+  @Inject(optional = true)
+  public void setCompressBodies(@Named("shindig.cache.http.compress") boolean compressBodies) {
+    this.compressBodies = compressBodies;
+  }
+
+  /**
+   * @param hotReads Reads after which a gzipped response also keeps its decompressed body, or -1
+   *     to always decompress it when read.
+   */
+  @Inject(optional = true)
+  public void setHotReads(@Named("shindig.cache.http.compress.hotReads") int hotReads) {
+    this.hotReads = hotReads;
+  }
+
+  /**
+   * @return The estimated number of bytes held by the cache, or -1 if the cache is not bounded
+   *     by size.
+   */
+  public long getWeightedSize() {
+    return weightedCache != null ? weightedCache.getWeightedSize() : -1;
   }
 
   @Override
   protected HttpResponse getResponseImpl(String key) {
-    return cache.getElement(key);
+    HttpResponse response = cache.getElement(key);
+    if (response == null && diskTier != null) {
+      response = diskTier.get(key);
+      if (response != null && !isLarge(response)) {
+        response = compress(response);
+        cache.addElement(key, response);
+      }
+    }
+    return handOut(response);
   }
 
   @Override
   protected void addResponseImpl(String key, HttpResponse response) {
+    response = compress(response);
+    if (diskTier != null) {
+      diskTier.put(key, response);
+      if (isLarge(response)) {
+        cache.removeElement(key);
+        return;
+      }
+    }
     cache.addElement(key, response);
   }
 
   @Override
   protected HttpResponse removeResponseImpl(String key) {
-    return cache.removeElement(key);
+    HttpResponse response = cache.removeElement(key);
+    if (diskTier != null) {
+      if (response == null) {
+        response = diskTier.get(key);
+      }
+      diskTier.remove(key);
+    }
+    return handOut(response);
+  }
+
+  private HttpResponse compress(HttpResponse response) {
+    return compressBodies ? response.compress() : response;
+  }
+
+  /**
+   * A compressed response held by the cache decompresses its body every time it is read, so
+   * callers get a copy of their own that decompresses it at most once.
+   */
+  private HttpResponse handOut(HttpResponse response) {
+    return response != null && response.isCompressed() ? response.handOut(hotReads) : response;
+  }
+
+  private boolean isLarge(HttpResponse response) {
+    return response.getContentLength() > largeBodyBytes;
   }
 }
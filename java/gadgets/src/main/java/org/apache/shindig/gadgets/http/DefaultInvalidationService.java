@@ -17,16 +17,22 @@
  */
 package org.apache.shindig.gadgets.http;
 
-import org.apache.commons.lang.StringUtils;
 import org.apache.shindig.auth.SecurityToken;
 import org.apache.shindig.common.cache.Cache;
 import org.apache.shindig.common.cache.CacheProvider;
 import org.apache.shindig.common.uri.Uri;
 import org.apache.shindig.gadgets.AuthType;
 
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
 import com.google.inject.Inject;
+import com.google.inject.name.Named;
 
+import java.util.Iterator;
+import java.util.List;
 import java.util.Set;
+import java.util.UUID;
 import java.util.concurrent.atomic.AtomicLong;
 
 /**
@@ -46,34 +52,101 @@ import java.util.concurrent.atomic.AtomicLong;
  * This technique is reliable if the lifetime of the HttpCache is tied to the invalidation cache
  * and when the invalidation cache is canonical. A non-canonical invalidation cache can be used
  * but cached responses must become invalid if an invalidation entry is missing.
+ *
+ * Authenticated responses the HttpCache will store are also indexed by the tags built by
+ * {@link InvalidationTags}, so that {@link #invalidateTags} can drop every variant of a resource,
+ * or everything fetched for an application or user, in time proportional to the number of tagged
+ * entries. The index only holds cache keys. Keys are dropped when the HttpCache reports their
+ * entry removed, but the HttpCache doesn't report its own evictions, so a tag keeps at most
+ * shindig.invalidation.max-keys-per-tag keys and drops the entries of the oldest ones beyond
+ * that. Those are mostly gone from the HttpCache already. Since tags can also be evicted from
+ * their own cache, a cached authenticated response is only valid while each of its tags still
+ * lists its key; responses that lost a tag are refetched rather than served unchecked.
+ *
+ * Every invalidation is also published on an {@link InvalidationBus} and applied when received
+ * from the other servers on the bus, so that all of them stop serving the invalidated content.
+ * Marks are allocated by each server independently, which is safe as long as servers do not
+ * share an HttpCache.
  */
 public class DefaultInvalidationService implements InvalidationService {
 
   public static final String CACHE_NAME = "invalidatedUsers";
+  public static final String TAG_CACHE_NAME = "invalidationTags";
+  public static final String KEY_TAGS_CACHE_NAME = "invalidationKeyTags";
+
+  static final int DEFAULT_MAX_KEYS_PER_TAG = 10000;
 
   private final HttpCache httpCache;
   protected final Cache<String,Long> invalidationEntries;
+  // Tag -> set of cache keys, oldest first.
+  protected final Cache<String,TaggedKeys> taggedKeys;
+  // Cache key -> its tags, to take keys out of taggedKeys when their entry is removed.
+  protected final Cache<String,Set<String>> keyTags;
   private final AtomicLong marker;
+  private final InvalidationBus bus;
+  private final String origin = UUID.randomUUID().toString();
+
+  private final AtomicLong remoteInvalidations = new AtomicLong();
+  private final AtomicLong totalConvergenceMillis = new AtomicLong();
+  private final AtomicLong maxConvergenceMillis = new AtomicLong();
+  private int maxKeysPerTag = DEFAULT_MAX_KEYS_PER_TAG;
 
   private static final String TOKEN_PREFIX = "INV_TOK:";
 
-  @Inject
   public DefaultInvalidationService(HttpCache httpCache, CacheProvider cacheProvider) {
+    this(httpCache, cacheProvider, new LocalInvalidationBus());
+  }
+
+  @Inject
+  public DefaultInvalidationService(HttpCache httpCache, CacheProvider cacheProvider,
+      InvalidationBus bus) {
     // Initialize to current time to mimimize conflict with persistent caches
-    this(httpCache, cacheProvider, new AtomicLong(System.currentTimeMillis()));
+    this(httpCache, cacheProvider, new AtomicLong(System.currentTimeMillis()), bus);
   }
 
   DefaultInvalidationService(HttpCache httpCache, CacheProvider cacheProvider, AtomicLong marker) {
+    this(httpCache, cacheProvider, marker, new LocalInvalidationBus());
+  }
+
+  DefaultInvalidationService(HttpCache httpCache, CacheProvider cacheProvider, AtomicLong marker,
+      InvalidationBus bus) {
     this.httpCache = httpCache;
     invalidationEntries = cacheProvider.createCache(CACHE_NAME);
+    taggedKeys = cacheProvider.createCache(TAG_CACHE_NAME);
+    keyTags = cacheProvider.createCache(KEY_TAGS_CACHE_NAME);
     this.marker = marker;
+    if (httpCache instanceof AbstractHttpCache) {
+      ((AbstractHttpCache) httpCache).addChangeListener(new AbstractHttpCache.ChangeListener() {
+        public void onChange(String key, boolean removed) {
+          if (removed) {
+            untag(key);
+          }
+        }
+      });
+    }
+    this.bus = bus;
+    bus.addListener(new InvalidationBus.Listener() {
+      public void onInvalidation(InvalidationEvent event) {
+        if (!origin.equals(event.getOrigin())) {
+          applyRemote(event);
+        }
+      }
+    });
+  }
+
+  @Inject(optional = true)
+  public void setMaxKeysPerTag(@Named("shindig.invalidation.max-keys-per-tag") int maxKeysPerTag) {
+    this.maxKeysPerTag = maxKeysPerTag;
   }
 
   public void invalidateApplicationResources(Set<Uri> uris, SecurityToken token) {
     // TODO Add checks on content
+    Set<String> resources = Sets.newHashSet();
     for (Uri uri : uris) {
-      httpCache.removeResponse(new HttpRequest(uri));
+      resources.add(uri.toString());
     }
+    removeResources(resources, token == null ? null : InvalidationTags.getAppKey(token));
+    publish(InvalidationEvent.Type.RESOURCES, token, resources);
   }
 
   /**
@@ -83,9 +156,100 @@ public class DefaultInvalidationService implements InvalidationService {
    * @param token
    */
   public void invalidateUserResources(Set<String> opensocialIds, SecurityToken token) {
+    markUsers(opensocialIds, InvalidationTags.getAppKey(token));
+    publish(InvalidationEvent.Type.USERS, token, opensocialIds);
+  }
+
+  public void invalidateTags(Set<String> tags, SecurityToken token) {
+    removeTagged(tags);
+    publish(InvalidationEvent.Type.TAGS, token, tags);
+  }
+
+  /**
+   * @return The number of invalidations received from other servers.
+   */
+  public long getRemoteInvalidationCount() {
+    return remoteInvalidations.get();
+  }
+
+  /**
+   * @return The mean time between an invalidation being made on another server and it being
+   *     applied here, in milliseconds. Includes any clock skew between the servers.
+   */
+  public long getMeanConvergenceMillis() {
+    long count = remoteInvalidations.get();
+    return count == 0 ? 0 : totalConvergenceMillis.get() / count;
+  }
+
+  /**
+   * @return The longest time between an invalidation being made on another server and it being
+   *     applied here, in milliseconds.
+   */
+  public long getMaxConvergenceMillis() {
+    return maxConvergenceMillis.get();
+  }
+
+  private void publish(InvalidationEvent.Type type, SecurityToken token, Set<String> values) {
+    if (values.isEmpty()) {
+      return;
+    }
+    String appKey = token == null ? null : InvalidationTags.getAppKey(token);
+    bus.publish(new InvalidationEvent(type, origin, appKey, values, System.currentTimeMillis()));
+  }
+
+  private void applyRemote(InvalidationEvent event) {
+    switch (event.getType()) {
+      case RESOURCES:
+        removeResources(event.getValues(), event.getAppKey());
+        break;
+      case USERS:
+        markUsers(event.getValues(), event.getAppKey());
+        break;
+      case TAGS:
+        removeTagged(event.getValues());
+        break;
+    }
+
+    long convergence = Math.max(0, System.currentTimeMillis() - event.getCreated());
+    remoteInvalidations.incrementAndGet();
+    totalConvergenceMillis.addAndGet(convergence);
+    long max = maxConvergenceMillis.get();
+    while (convergence > max && !maxConvergenceMillis.compareAndSet(max, convergence)) {
+      max = maxConvergenceMillis.get();
+    }
+  }
+
+  private void removeResources(Set<String> uris, String appKey) {
+    Set<String> tags = Sets.newHashSet();
+    for (String value : uris) {
+      Uri uri = Uri.parse(value);
+      httpCache.removeResponse(new HttpRequest(uri));
+      if (appKey != null) {
+        // The application's signed and OAuth variants have keys that depend on the token they
+        // were fetched with.
+        tags.add(InvalidationTags.forUri(uri, appKey));
+      }
+    }
+    removeTagged(tags);
+  }
+
+  private void markUsers(Set<String> opensocialIds, String appKey) {
     for (String userId : opensocialIds) {
       // Allocate a new mark for each user
-      invalidationEntries.addElement(getKey(userId, token), marker.incrementAndGet());
+      invalidationEntries.addElement(getKey(userId, appKey), marker.incrementAndGet());
+    }
+  }
+
+  private void removeTagged(Set<String> tags) {
+    for (String tag : tags) {
+      TaggedKeys keys = taggedKeys.removeElement(tag);
+      if (keys != null) {
+        for (String key : keys.getKeys()) {
+          httpCache.removeResponseForKey(key);
+          // The HttpCache only reports entries it still had.
+          untag(key);
+        }
+      }
     }
   }
 
@@ -98,13 +262,16 @@ public class DefaultInvalidationService implements InvalidationService {
     if (invalidationHeader == null) {
       invalidationHeader = "";
     }
-    return invalidationHeader.equals(getInvalidationMark(request));
+    return invalidationHeader.equals(getInvalidationMark(request)) && isTagged(request);
   }
 
   public HttpResponse markResponse(HttpRequest request, HttpResponse response) {
     if (request.getAuthType() == AuthType.NONE) {
       return response;
     }
+    if (AbstractHttpCache.isCacheable(request, response)) {
+      tagResponse(request);
+    }
     String mark = getInvalidationMark(request);
     if (mark.length() > 0) {
       return new HttpResponseBuilder(response).setHeader(INVALIDATION_HEADER, mark).create();
@@ -112,23 +279,76 @@ public class DefaultInvalidationService implements InvalidationService {
     return response;
   }
 
+  /**
+   * Record the cache key of the request under each of its tags.
+   */
+  private void tagResponse(HttpRequest request) {
+    String key = httpCache.createKey(request);
+    Set<String> tags = InvalidationTags.forRequest(request);
+    List<String> dropped = Lists.newArrayList();
+    for (String tag : tags) {
+      TaggedKeys keys = taggedKeys.getElement(tag);
+      if (keys == null) {
+        synchronized (taggedKeys) {
+          keys = taggedKeys.getElement(tag);
+          if (keys == null) {
+            keys = new TaggedKeys();
+            taggedKeys.addElement(tag, keys);
+          }
+        }
+      }
+      dropped.addAll(keys.add(key, maxKeysPerTag));
+    }
+    keyTags.addElement(key, tags);
+    for (String droppedKey : dropped) {
+      // Mostly keys of evicted entries by now. Any entry still cached is no longer listed by
+      // this tag, so it is removed rather than left to fail validation.
+      httpCache.removeResponseForKey(droppedKey);
+      untag(droppedKey);
+    }
+  }
+
+  /**
+   * Take a key whose entry is gone out of the sets of its tags.
+   */
+  private void untag(String key) {
+    Set<String> tags = keyTags.removeElement(key);
+    if (tags == null) {
+      return;
+    }
+    for (String tag : tags) {
+      TaggedKeys keys = taggedKeys.getElement(tag);
+      if (keys != null) {
+        keys.remove(key);
+      }
+    }
+  }
+
+  /**
+   * @return true if each tag of the request still lists its cache key. A tag that was evicted
+   *     may have missed an invalidation.
+   */
+  private boolean isTagged(HttpRequest request) {
+    String key = httpCache.createKey(request);
+    for (String tag : InvalidationTags.forRequest(request)) {
+      TaggedKeys keys = taggedKeys.getElement(tag);
+      if (keys == null || !keys.contains(key)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
   /**
    * Get the invalidation entry key for a user in the scope of a given
    * application
    */
   private String getKey(String userId, SecurityToken token) {
-    // Convert the id to the container relative form
-    int colonIndex = userId.lastIndexOf(':');
-    if (colonIndex != -1) {
-      userId = userId.substring(colonIndex + 1);
-    }
+    return getKey(userId, InvalidationTags.getAppKey(token));
+  }
 
-    // Assume the container is consistent in its use of either appId or appUrl.
-    // Use appId
-    if (!StringUtils.isEmpty(token.getAppId())) {
-      return TOKEN_PREFIX + token.getAppId() + ':' + userId;
-    }
-    return TOKEN_PREFIX + token.getAppUrl() + ':' + userId;
+  private String getKey(String userId, String appKey) {
+    return TOKEN_PREFIX + appKey + ':' + InvalidationTags.getLocalUserId(userId);
   }
 
   /**
@@ -163,4 +383,46 @@ public class DefaultInvalidationService implements InvalidationService {
     return currentInvalidation.toString();
   }
 
+  /**
+   * The cache keys listed by a tag, in the order they were last tagged.
+   */
+  static final class TaggedKeys {
+    private final Set<String> keys = Sets.newLinkedHashSet();
+
+    /**
+     * Lists the key as the newest one.
+     *
+     * @return The oldest keys dropped to keep at most maxKeys.
+     */
+    synchronized List<String> add(String key, int maxKeys) {
+      keys.remove(key);
+      keys.add(key);
+      if (keys.size() <= maxKeys) {
+        return ImmutableList.of();
+      }
+      List<String> dropped = Lists.newArrayList();
+      Iterator<String> it = keys.iterator();
+      while (keys.size() > Math.max(maxKeys, 1)) {
+        dropped.add(it.next());
+        it.remove();
+      }
+      return dropped;
+    }
+
+    synchronized boolean contains(String key) {
+      return keys.contains(key);
+    }
+
+    synchronized void remove(String key) {
+      keys.remove(key);
+    }
+
+    synchronized List<String> getKeys() {
+      return ImmutableList.copyOf(keys);
+    }
+
+    synchronized int size() {
+      return keys.size();
+    }
+  }
 }
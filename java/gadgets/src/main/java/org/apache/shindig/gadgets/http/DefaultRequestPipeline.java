@@ -17,6 +17,8 @@
  */
 package org.apache.shindig.gadgets.http;
 
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
 import com.google.inject.Inject;
 import com.google.inject.Provider;
 import com.google.inject.Singleton;
@@ -29,12 +31,61 @@ import org.apache.shindig.gadgets.oauth.OAuthRequest;
 import org.apache.shindig.gadgets.rewrite.ResponseRewriterRegistry;
 import org.apache.shindig.gadgets.rewrite.RewritingException;
 
+import java.util.Collection;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
 /**
  * A standard implementation of a request pipeline. Performs request caching and
  * signing on top of standard HTTP requests.
+ *
+ * Concurrent cache misses for the same cache key are coalesced: the first request fetches and
+ * rewrites the response while the others wait up to shindig.http.coalesce.wait-ms for its result,
+ * falling back to their own fetch if it takes longer. A wait of 0 disables coalescing. Only
+ * cacheable requests without caller specific headers are coalesced, and a result is only shared
+ * if it could have been cached; otherwise the waiting requests fetch for themselves.
+ *
+ * When shindig.http.stale-while-revalidate is enabled, a good but stale cached response is
+ * served immediately while it is refreshed on the shindig.http.refresh.executor, much like
+ * {@link org.apache.shindig.gadgets.AbstractSpecFactory} refreshes specs. At most
+ * shindig.http.refresh.max-per-host refreshes run at once for any one host; beyond that, and
+ * whenever the executor rejects a refresh, the request refetches in its own thread as before.
+ *
+ * Stale responses carrying an ETag or Last-Modified header are refetched conditionally. When the
+ * origin answers 304 the cached response is re-cached with the new freshness headers, without
+ * transferring the body again or re-running the pre-cache rewriters.
  */
 @Singleton
 public class DefaultRequestPipeline implements RequestPipeline {
+  private static final Logger LOG = Logger.getLogger(DefaultRequestPipeline.class.getName());
+
+  static final long DEFAULT_COALESCE_WAIT_MS = 10000L;
+  static final int DEFAULT_MAX_REFRESHES_PER_HOST = 4;
+
+  // Headers of a 304 response that replace those of the cached response (RFC 2616, 10.3.5).
+  // Date is always present, so a revalidated response's freshness is measured from the 304.
+  private static final List<String> REVALIDATION_HEADERS = ImmutableList.of(
+      "Date", "Cache-Control", "Expires", "ETag", "Last-Modified", "Vary");
+
+  // Request headers that don't make a response specific to the caller. Requests with any other
+  // header, such as Cookie or Authorization, are never coalesced.
+  private static final Set<String> COALESCABLE_HEADERS = ImmutableSet.of(
+      "accept", "accept-charset", "accept-encoding", "accept-language", "cache-control", "pragma",
+      "user-agent", "x-forwarded-for", HttpRequest.DOS_PREVENTION_HEADER.toLowerCase());
+
   private final HttpFetcher httpFetcher;
   private final HttpCache httpCache;
   private final Provider<OAuthRequest> oauthRequestProvider;
@@ -42,6 +93,24 @@ public class DefaultRequestPipeline implements RequestPipeline {
   private final InvalidationService invalidationService;
   private final HttpResponseMetadataHelper metadataHelper;
 
+  private final ConcurrentMap<String, FutureTask<HttpResponse>> inFlightFetches =
+      new ConcurrentHashMap<String, FutureTask<HttpResponse>>();
+  private final AtomicLong coalescedFetches = new AtomicLong();
+  private final AtomicLong coalesceTimeouts = new AtomicLong();
+  private long coalesceWaitMs = DEFAULT_COALESCE_WAIT_MS;
+
+  private final ConcurrentMap<String, Boolean> pendingRefreshes =
+      new ConcurrentHashMap<String, Boolean>();
+  private final ConcurrentMap<String, AtomicInteger> refreshesPerHost =
+      new ConcurrentHashMap<String, AtomicInteger>();
+  private final AtomicLong refreshSuccesses = new AtomicLong();
+  private final AtomicLong refreshFailures = new AtomicLong();
+  private final AtomicLong refreshesRejected = new AtomicLong();
+  private final AtomicLong revalidations = new AtomicLong();
+  private boolean staleWhileRevalidate;
+  private int maxRefreshesPerHost = DEFAULT_MAX_REFRESHES_PER_HOST;
+  private ExecutorService refreshExecutor;
+
   @Inject
   public DefaultRequestPipeline(HttpFetcher httpFetcher,
                                 HttpCache httpCache,
@@ -58,6 +127,73 @@ public class DefaultRequestPipeline implements RequestPipeline {
     this.metadataHelper = metadataHelper;
   }
 
+  @Inject(optional = true)
+  public void setCoalesceWaitMs(@Named("shindig.http.coalesce.wait-ms") long coalesceWaitMs) {
+    this.coalesceWaitMs = coalesceWaitMs;
+  }
+
+  @Inject(optional = true)
+  public void setStaleWhileRevalidate(
+      @Named("shindig.http.stale-while-revalidate") boolean staleWhileRevalidate) {
+    this.staleWhileRevalidate = staleWhileRevalidate;
+  }
+
+  @Inject(optional = true)
+  public void setMaxRefreshesPerHost(
+      @Named("shindig.http.refresh.max-per-host") int maxRefreshesPerHost) {
+    this.maxRefreshesPerHost = maxRefreshesPerHost;
+  }
+
+  @Inject(optional = true)
+  public void setRefreshExecutor(
+      @Named("shindig.http.refresh.executor") ExecutorService refreshExecutor) {
+    this.refreshExecutor = refreshExecutor;
+  }
+
+  /**
+   * @return The number of background refreshes that replaced a stale response.
+   */
+  public long getRefreshSuccessCount() {
+    return refreshSuccesses.get();
+  }
+
+  /**
+   * @return The number of background refreshes that failed, leaving the stale response cached.
+   */
+  public long getRefreshFailureCount() {
+    return refreshFailures.get();
+  }
+
+  /**
+   * @return The number of stale hits refetched in the request thread because the host was at its
+   *     refresh limit or the executor was saturated.
+   */
+  public long getRefreshRejectedCount() {
+    return refreshesRejected.get();
+  }
+
+  /**
+   * @return The number of stale responses the origin confirmed as current with a 304.
+   */
+  public long getRevalidatedCount() {
+    return revalidations.get();
+  }
+
+  /**
+   * @return The number of fetches avoided by waiting on an identical in-flight fetch.
+   */
+  public long getCoalescedFetchCount() {
+    return coalescedFetches.get();
+  }
+
+  /**
+   * @return The number of requests that gave up waiting on an in-flight fetch and fetched
+   *     on their own.
+   */
+  public long getCoalesceTimeoutCount() {
+    return coalesceTimeouts.get();
+  }
+
   public HttpResponse execute(HttpRequest request) throws GadgetException {
     normalizeProtocol(request);
     HttpResponse invalidatedResponse = null;
@@ -83,19 +219,199 @@ public class DefaultRequestPipeline implements RequestPipeline {
       }
     }
 
+    if (staleResponse != null && staleWhileRevalidate && scheduleRefresh(request, staleResponse)) {
+      return staleResponse;
+    }
+
+    // A streamed body goes to one caller only, so streaming fetches are never shared.
+    if (coalesceWaitMs > 0 && request.getResponseSink() == null && isCoalescable(request)) {
+      return coalescedFetch(request, invalidatedResponse, staleResponse);
+    }
+    return fetchResponse(request, invalidatedResponse, staleResponse);
+  }
+
+  /**
+   * Fetches the response for a request through the in-flight fetch for the same cache key,
+   * starting one if there is none.
+   */
+  private HttpResponse coalescedFetch(final HttpRequest request,
+      final HttpResponse invalidatedResponse, final HttpResponse staleResponse)
+      throws GadgetException {
+    String key = httpCache.createKey(request);
+    if (key == null) {
+      return fetchResponse(request, invalidatedResponse, staleResponse);
+    }
+
+    FutureTask<HttpResponse> fetch = new FutureTask<HttpResponse>(new Callable<HttpResponse>() {
+      public HttpResponse call() throws GadgetException {
+        return fetchResponse(request, invalidatedResponse, staleResponse);
+      }
+    });
+    FutureTask<HttpResponse> inFlight = inFlightFetches.putIfAbsent(key, fetch);
+    if (inFlight == null) {
+      try {
+        fetch.run();
+      } finally {
+        inFlightFetches.remove(key, fetch);
+      }
+      inFlight = fetch;
+    }
+
+    try {
+      HttpResponse response = inFlight.get(coalesceWaitMs, TimeUnit.MILLISECONDS);
+      if (inFlight == fetch) {
+        return response;
+      }
+      if (!AbstractHttpCache.isCacheable(request, response)) {
+        // Private or no-store responses are only for the caller that fetched them.
+        return fetchResponse(request, invalidatedResponse, staleResponse);
+      }
+      coalescedFetches.incrementAndGet();
+      return response;
+    } catch (TimeoutException e) {
+      coalesceTimeouts.incrementAndGet();
+      return fetchResponse(request, invalidatedResponse, staleResponse);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new GadgetException(GadgetException.Code.INTERNAL_SERVER_ERROR, e);
+    } catch (ExecutionException e) {
+      Throwable cause = e.getCause();
+      if (cause instanceof GadgetException) {
+        throw (GadgetException) cause;
+      } else if (cause instanceof RuntimeException) {
+        throw (RuntimeException) cause;
+      } else if (cause instanceof Error) {
+        throw (Error) cause;
+      }
+      throw new GadgetException(GadgetException.Code.INTERNAL_SERVER_ERROR, cause);
+    }
+  }
+
+  private static boolean isCoalescable(HttpRequest request) {
+    if (!AbstractHttpCache.isCacheable(request)) {
+      return false;
+    }
+    for (String name : request.getHeaders().keySet()) {
+      if (!COALESCABLE_HEADERS.contains(name.toLowerCase())) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Schedules an asynchronous refresh of a stale response.
+   *
+   * @return true if a refresh for the request is pending, and the stale response may be served.
+   */
+  private boolean scheduleRefresh(HttpRequest request, final HttpResponse staleResponse) {
+    if (refreshExecutor == null || !"GET".equals(request.getMethod())) {
+      return false;
+    }
+    final String key = httpCache.createKey(request);
+    if (key == null) {
+      return false;
+    }
+    if (pendingRefreshes.putIfAbsent(key, Boolean.TRUE) != null) {
+      // Another request already started refreshing this response.
+      return true;
+    }
+
+    final AtomicInteger hostRefreshes = getHostRefreshes(request.getUri().getAuthority());
+    if (hostRefreshes.incrementAndGet() > maxRefreshesPerHost) {
+      hostRefreshes.decrementAndGet();
+      pendingRefreshes.remove(key);
+      refreshesRejected.incrementAndGet();
+      return false;
+    }
+
+    // The caller still owns the original request.
+    final HttpRequest refreshRequest = new HttpRequest(request);
+    try {
+      refreshExecutor.execute(new Runnable() {
+        public void run() {
+          try {
+            HttpResponse response = fetchResponse(refreshRequest, null, staleResponse);
+            if (response == staleResponse || response.isError()) {
+              refreshFailures.incrementAndGet();
+            } else {
+              refreshSuccesses.incrementAndGet();
+            }
+          } catch (GadgetException e) {
+            refreshFailures.incrementAndGet();
+            LOG.log(Level.INFO, "Failed to refresh {0}. Using cached version.",
+                refreshRequest.getUri());
+          } catch (RuntimeException e) {
+            refreshFailures.incrementAndGet();
+            LOG.log(Level.WARNING, "Failed to refresh " + refreshRequest.getUri(), e);
+          } finally {
+            hostRefreshes.decrementAndGet();
+            pendingRefreshes.remove(key);
+          }
+        }
+      });
+    } catch (RejectedExecutionException e) {
+      hostRefreshes.decrementAndGet();
+      pendingRefreshes.remove(key);
+      refreshesRejected.incrementAndGet();
+      return false;
+    }
+    return true;
+  }
+
+  private AtomicInteger getHostRefreshes(String host) {
+    String hostKey = host == null ? "" : host;
+    AtomicInteger count = refreshesPerHost.get(hostKey);
+    if (count == null) {
+      AtomicInteger newCount = new AtomicInteger();
+      count = refreshesPerHost.putIfAbsent(hostKey, newCount);
+      if (count == null) {
+        count = newCount;
+      }
+    }
+    return count;
+  }
+
+  private HttpResponse fetchResponse(HttpRequest request, HttpResponse invalidatedResponse,
+      HttpResponse staleResponse) throws GadgetException {
+    HttpRequest fetchRequest = request;
+    if (staleResponse != null) {
+      fetchRequest = addValidators(request, staleResponse);
+    }
+
     HttpResponse fetchedResponse = null;
     switch (request.getAuthType()) {
       case NONE:
-        fetchedResponse = httpFetcher.fetch(request);
+        fetchedResponse = httpFetcher.fetch(fetchRequest);
         break;
       case SIGNED:
       case OAUTH:
-        fetchedResponse = oauthRequestProvider.get().fetch(request);
+        fetchedResponse = oauthRequestProvider.get().fetch(fetchRequest);
         break;
       default:
         return HttpResponse.error();
     }
 
+    if (fetchedResponse.getMetadata().containsKey(ResponseSink.STREAMED)) {
+      // The body has already been passed on; there is nothing to rewrite or cache.
+      return fetchedResponse;
+    }
+
+    if (fetchRequest != request
+        && fetchedResponse.getHttpStatusCode() == HttpResponse.SC_NOT_MODIFIED) {
+      // The stale response is still current. It was already rewritten and hashed before it was
+      // cached, so only its freshness needs to be updated.
+      revalidations.incrementAndGet();
+      HttpResponse revalidated = revalidate(staleResponse, fetchedResponse);
+      if (!request.getIgnoreCache()) {
+        if (revalidated.getCacheTtl() > 0) {
+          revalidated = invalidationService.markResponse(request, revalidated);
+        }
+        httpCache.addResponse(request, revalidated);
+      }
+      return revalidated;
+    }
+
     if (fetchedResponse.isError() && invalidatedResponse != null) {
       // Use the invalidated cached response if it is not stale. We don't update its
       // mark so it remains invalidated
@@ -128,6 +444,48 @@ public class DefaultRequestPipeline implements RequestPipeline {
     return fetchedResponse;
   }
 
+  /**
+   * @return A copy of the request that asks the origin to answer 304 if the cached response is
+   *     still current, or the request itself if the cached response has no validators or the
+   *     request is already conditional.
+   */
+  private static HttpRequest addValidators(HttpRequest request, HttpResponse cached) {
+    if (request.getHeader("If-None-Match") != null
+        || request.getHeader("If-Modified-Since") != null) {
+      return request;
+    }
+    String etag = cached.getHeader("ETag");
+    String lastModified = cached.getHeader("Last-Modified");
+    if (etag == null && lastModified == null) {
+      return request;
+    }
+    HttpRequest conditional = new HttpRequest(request);
+    if (etag != null) {
+      conditional.setHeader("If-None-Match", etag);
+    }
+    if (lastModified != null) {
+      conditional.setHeader("If-Modified-Since", lastModified);
+    }
+    return conditional;
+  }
+
+  /**
+   * Applies the freshness headers of a 304 response to the cached response it validated.
+   */
+  private static HttpResponse revalidate(HttpResponse cached, HttpResponse notModified) {
+    HttpResponseBuilder builder = new HttpResponseBuilder(cached);
+    for (String name : REVALIDATION_HEADERS) {
+      Collection<String> values = notModified.getHeaders(name);
+      if (!values.isEmpty()) {
+        builder.removeHeader(name);
+        for (String value : values) {
+          builder.addHeader(name, value);
+        }
+      }
+    }
+    return builder.create();
+  }
+
   protected void normalizeProtocol(HttpRequest request) throws GadgetException {
     // Normalize the protocol part of the URI
     if (request.getUri().getScheme()== null) {
@@ -37,6 +37,11 @@ public interface HttpCache {
   boolean addResponse(HttpRequest request, HttpResponse response);
 
   HttpResponse removeResponse(HttpRequest key);
+
+  /**
+   * Remove the entry stored under a key previously returned by {@link #createKey}.
+   */
+  HttpResponse removeResponseForKey(String key);
   
   /**
    * Create a string representation of the cache key.  If two requests are cache equivalent (a
@@ -88,6 +88,13 @@ public class HttpRequest {
 
   private String rewriteMimeType;
 
+  // Not copied: it writes to the original caller's output.
+  private ResponseSink responseSink;
+
+  // The HttpCache key of an unauthenticated request, computed on first use. Cleared by the
+  // setters of the values it is derived from.
+  private String cacheKey;
+
   /**
    * Construct a new request for the given uri.
    */
@@ -107,6 +114,8 @@ public class HttpRequest {
     postBody = request.postBody;
     ignoreCache = request.ignoreCache;
     cacheTtl = request.cacheTtl;
+    sanitizationRequested = request.sanitizationRequested;
+    cajaRequested = request.cajaRequested;
     gadget = request.gadget;
     container = request.container;
     securityToken = request.securityToken;
@@ -116,6 +125,7 @@ public class HttpRequest {
     authType = request.authType;
     rewriteMimeType = request.rewriteMimeType;
     followRedirects = request.followRedirects;
+    params.putAll(request.params);
   }
 
   public HttpRequest setMethod(String method) {
@@ -125,6 +135,7 @@ public class HttpRequest {
 
   public HttpRequest setUri(Uri uri) {
     this.uri = uri;
+    cacheKey = null;
     return this;
   }
 
@@ -267,6 +278,7 @@ public class HttpRequest {
    */
   public HttpRequest setSecurityToken(SecurityToken securityToken) {
     this.securityToken = securityToken;
+    cacheKey = null;
     return this;
   }
 
@@ -275,6 +287,7 @@ public class HttpRequest {
    */
   public HttpRequest setOAuthArguments(OAuthArguments oauthArguments) {
     this.oauthArguments = oauthArguments;
+    cacheKey = null;
     return this;
   }
 
@@ -291,6 +304,7 @@ public class HttpRequest {
    */
   public HttpRequest setAuthType(AuthType authType) {
     this.authType = authType;
+    cacheKey = null;
     return this;
   }
 
@@ -305,6 +319,15 @@ public class HttpRequest {
     return this;
   }
 
+  /**
+   * @param responseSink Offered the response body as it is fetched, instead of having it
+   * buffered. Fetchers that cannot stream ignore it.
+   */
+  public HttpRequest setResponseSink(ResponseSink responseSink) {
+    this.responseSink = responseSink;
+    return this;
+  }
+
   public String getMethod() {
     return method;
   }
@@ -421,12 +444,25 @@ public class HttpRequest {
 
   public <T> void setParam(String paramName, T paramValue) {
     params.put(paramName,  (paramValue == null) ? null : String.valueOf(paramValue));
+    cacheKey = null;
   }
 
+  /**
+   * @return The live parameter map. Use {@link #setParam} to change parameters that are part of
+   * the cache key.
+   */
   public Map<String, String> getParams() {
     return params;
   }
 
+  String getCacheKey() {
+    return cacheKey;
+  }
+
+  void setCacheKey(String cacheKey) {
+    this.cacheKey = cacheKey;
+  }
+
   /**
    * @return The container responsible for making this request.
    */
@@ -471,6 +507,13 @@ public class HttpRequest {
     return rewriteMimeType;
   }
 
+  /**
+   * @return The sink to stream the response body to, if any.
+   */
+  public ResponseSink getResponseSink() {
+    return responseSink;
+  }
+
   @Override
   public String toString() {
     StringBuilder buf = new StringBuilder(method);
@@ -20,6 +20,7 @@ package org.apache.shindig.gadgets.http;
 import com.google.common.base.Supplier;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Iterables;
 import com.google.common.collect.Lists;
 import com.google.common.collect.MapMaker;
 import com.google.common.collect.Maps;
@@ -28,6 +29,7 @@ import com.google.common.collect.Multimaps;
 import com.google.inject.Inject;
 import com.google.inject.name.Named;
 
+import org.apache.commons.io.IOUtils;
 import org.apache.commons.lang.StringUtils;
 import org.apache.shindig.common.servlet.HttpUtil;
 import org.apache.shindig.common.util.DateUtil;
@@ -35,6 +37,7 @@ import org.apache.shindig.common.util.TimeSource;
 import org.apache.shindig.gadgets.encoding.EncodingDetector;
 
 import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.Externalizable;
 import java.io.IOException;
 import java.io.InputStream;
@@ -51,6 +54,9 @@ import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
 
 /**
  * Represents the results of an HTTP content retrieval operation.
@@ -115,6 +121,9 @@ public final class HttpResponse implements Externalizable {
       "video/x-ms-asf", "application/pdf", "image/x-icon"
   );
 
+  // Smaller bodies save too little to be worth compressing.
+  private static final int MIN_COMPRESSIBLE_BYTES = 1024;
+
   // These HTTP status codes should always honor the HTTP status returned by the remote host. All
   // other error codes are treated as errors and will use the negativeCacheTtl value.
   private static final Set<Integer> NEGATIVE_CACHING_EXEMPT_STATUS
@@ -168,7 +177,14 @@ public final class HttpResponse implements Externalizable {
 
   private int httpStatusCode;
   private Multimap<String, String> headers;
-  private byte[] responseBytes;
+  // Null while the body is only held gzipped and has not been read.
+  private volatile byte[] responseBytes;
+  private byte[] gzippedBytes;
+  private int contentLength;
+  // False for compressed responses held in a cache, which must not keep the body once read.
+  private boolean retainBody = true;
+  // Copies handed out of a compressed response held in a cache.
+  private final AtomicInteger handedOut = new AtomicInteger();
 
   /**
    * Needed for serialization. Do not use this for any other purpose.
@@ -180,22 +196,78 @@ public final class HttpResponse implements Externalizable {
    */
   HttpResponse(HttpResponseBuilder builder) {
     httpStatusCode = builder.getHttpStatusCode();
-    Multimap<String, String> headerCopy = HttpResponse.newHeaderMultimap();
-
-    // Always safe, HttpResponseBuilder won't modify the body.
-    responseBytes = builder.getResponse();
 
-    // Copy headers after builder.getResponse(), since that can modify Content-Type.
-    headerCopy.putAll(builder.getHeaders());
+    HttpResponse bodySource = builder.getBodySource();
+    if (bodySource != null && bodySource.gzippedBytes != null) {
+      // An unchanged compressed body stays compressed, and is only decompressed if read.
+      responseBytes = bodySource.responseBytes;
+      gzippedBytes = bodySource.gzippedBytes;
+      contentLength = bodySource.contentLength;
+    } else {
+      // Always safe, HttpResponseBuilder won't modify the body.
+      responseBytes = builder.getResponse();
+      contentLength = responseBytes.length;
+    }
 
     Map<String, String> metadataCopy = Maps.newHashMap(builder.getMetadata());
     metadata = Collections.unmodifiableMap(metadataCopy);
 
-    // We want to modify the headers to ensure that the proper Content-Type and Date headers
-    // have been set. This allows us to avoid these expensive calculations from the cache.
-    date = getAndUpdateDate(headerCopy);
-    encoding = getAndUpdateEncoding(headerCopy, responseBytes);
-    headers = Multimaps.unmodifiableMultimap(headerCopy);
+    // A copy that only changes headers shares the body, so it can also share the encoding
+    // detected for it and the decoded string, keeping the copy O(headers).
+    boolean sameBody = bodySource != null
+        && (gzippedBytes != null || bodySource.responseBytes == responseBytes);
+
+    // Read headers after builder.getResponse(), since that can modify Content-Type.
+    HttpResponse headerSource = builder.getHeaderSource();
+    long sharedDate = -1;
+    Charset sharedEncoding = null;
+    if (headerSource != null) {
+      sharedDate = getDate(headerSource.headers);
+      sharedEncoding = sameBody ? bodySource.encoding
+          : getDeclaredEncoding(headerSource.headers, contentLength);
+    }
+
+    if (sharedDate != -1 && sharedEncoding != null) {
+      // The headers already carry a current Date and the charset, so they can be shared as is.
+      headers = headerSource.headers;
+      date = sharedDate;
+      encoding = sharedEncoding;
+    } else {
+      Multimap<String, String> headerCopy = HttpResponse.newHeaderMultimap();
+      headerCopy.putAll(builder.getHeaders());
+
+      // We want to modify the headers to ensure that the proper Content-Type and Date headers
+      // have been set. This allows us to avoid these expensive calculations from the cache.
+      date = getAndUpdateDate(headerCopy);
+      if (sameBody && Iterables.elementsEqual(bodySource.headers.get("Content-Type"),
+          headerCopy.get("Content-Type"))) {
+        encoding = bodySource.encoding;
+      } else {
+        encoding = getAndUpdateEncoding(headerCopy, getResponseAsBytes());
+      }
+      headers = Multimaps.unmodifiableMultimap(headerCopy);
+    }
+
+    if (sameBody && bodySource.encoding.equals(encoding)) {
+      responseString = bodySource.responseString;
+    }
+  }
+
+  /**
+   * Copies a response, replacing its body representation.
+   */
+  private HttpResponse(HttpResponse source, byte[] responseBytes, byte[] gzippedBytes) {
+    httpStatusCode = source.httpStatusCode;
+    headers = source.headers;
+    metadata = source.metadata;
+    date = source.date;
+    encoding = source.encoding;
+    contentLength = source.contentLength;
+    this.responseBytes = responseBytes;
+    this.gzippedBytes = gzippedBytes;
+    if (responseBytes != null) {
+      responseString = source.responseString;
+    }
   }
 
   private HttpResponse(int httpStatusCode, String body) {
@@ -253,14 +325,30 @@ public final class HttpResponse implements Externalizable {
    * @return the content length
    */
   public int getContentLength() {
-    return responseBytes.length;
+    return contentLength;
   }
 
   /**
    * @return An input stream suitable for reading the entirety of the response.
    */
   public InputStream getResponse() {
-    return new ByteArrayInputStream(responseBytes);
+    return new ByteArrayInputStream(getResponseAsBytes());
+  }
+
+  /**
+   * @return The body gzipped, if that is how this response holds it (typically because it came
+   *     from a cache that stores bodies compressed), or null. Can be sent as is to clients that
+   *     accept gzip.
+   */
+  public InputStream getGzippedResponse() {
+    return gzippedBytes == null ? null : new ByteArrayInputStream(gzippedBytes);
+  }
+
+  /**
+   * @return The length of the gzipped body, or -1 if the body is not held gzipped.
+   */
+  public int getGzippedContentLength() {
+    return gzippedBytes == null ? -1 : gzippedBytes.length;
   }
 
   /**
@@ -271,15 +359,19 @@ public final class HttpResponse implements Externalizable {
    * @return The body as a string.
    */
   public String getResponseAsString() {
-    if (responseString == null) {
-      responseString = encoding.decode(ByteBuffer.wrap(responseBytes)).toString();
+    String string = responseString;
+    if (string == null) {
+      string = encoding.decode(ByteBuffer.wrap(getResponseAsBytes())).toString();
 
       // Strip BOM if present.
-      if (responseString.length() > 0 && responseString.codePointAt(0) == 0xFEFF) {
-        responseString = responseString.substring(1);
+      if (string.length() > 0 && string.codePointAt(0) == 0xFEFF) {
+        string = string.substring(1);
+      }
+      if (retainBody) {
+        responseString = string;
       }
     }
-    return responseString;
+    return string;
   }
 
   /**
@@ -459,24 +551,32 @@ public final class HttpResponse implements Externalizable {
    * @return The value of the date header, in milliseconds, or -1 if no Date could be determined.
    */
   private static long getAndUpdateDate(Multimap<String, String> headers) {
+    long timestamp = getDate(headers);
+    if (timestamp == -1) {
+      timestamp = getTimeSource().currentTimeMillis();
+      headers.replaceValues("Date", ImmutableList.of(DateUtil.formatRfc1123Date(timestamp)));
+    }
+    return timestamp;
+  }
+
+  /**
+   * @return The value of the date header, in milliseconds, or -1 if it is missing, invalid or
+   *     too far from the current time to be trusted.
+   */
+  private static long getDate(Multimap<String, String> headers) {
     // Validate the Date header. Must conform to the HTTP date format.
-    long timestamp = -1;
-    long currentTime = getTimeSource().currentTimeMillis();
     Collection<String> dates = headers.get("Date");
-
-    if (!dates.isEmpty()) {
-      Date d = DateUtil.parseRfc1123Date(dates.iterator().next());
-      if (d != null) {
-        timestamp = d.getTime();
-        if (Math.abs(currentTime - timestamp) > responseDateDriftLimit) {
-          // Do not trust the date from response if it is too old (server time out of sync)
-          timestamp = -1;
-        }
-      }
+    if (dates.isEmpty()) {
+      return -1;
     }
-    if (timestamp == -1) {
-      timestamp = currentTime;
-      headers.replaceValues("Date", ImmutableList.of(DateUtil.formatRfc1123Date(timestamp)));
+    Date d = DateUtil.parseRfc1123Date(dates.iterator().next());
+    if (d == null) {
+      return -1;
+    }
+    long timestamp = d.getTime();
+    if (Math.abs(getTimeSource().currentTimeMillis() - timestamp) > responseDateDriftLimit) {
+      // Do not trust the date from response if it is too old (server time out of sync)
+      return -1;
     }
     return timestamp;
   }
@@ -497,48 +597,62 @@ public final class HttpResponse implements Externalizable {
    * @return The detected encoding or DEFAULT_ENCODING.
    */
   private static Charset getAndUpdateEncoding(Multimap<String, String> headers, byte[] body) {
-    if (body == null || body.length == 0) {
+    Charset declared = getDeclaredEncoding(headers, body.length);
+    if (declared != null) {
+      return declared;
+    }
+
+    Collection<String> values = headers.get("Content-Type");
+    String contentType = values.iterator().next();
+    Charset encoding = EncodingDetector.detectEncoding(body, fastEncodingDetection,
+        customEncodingDetector);
+    // Record the charset in the content-type header so that its value can be cached
+    // and re-used. This is a BIG performance win.
+    values.clear();
+    values.add(contentType + "; charset=" + encoding.name());
+
+    return encoding;
+  }
+
+  /**
+   * @return The encoding of the body as determined from the headers alone, or null if it has to
+   *     be detected from the body.
+   */
+  private static Charset getDeclaredEncoding(Multimap<String, String> headers, int bodyLength) {
+    if (bodyLength == 0) {
       return DEFAULT_ENCODING;
     }
 
     Collection<String> values = headers.get("Content-Type");
-    if (!values.isEmpty()) {
-      String contentType = values.iterator().next();
-      String[] parts = StringUtils.split(contentType, ';');
-      if (parts == null
-          || parts.length == 0
-          || BINARY_CONTENT_TYPES.contains(parts[0])) {
-        return DEFAULT_ENCODING;
-      }
-      if (parts.length == 2) {
-        int offset = parts[1].toLowerCase().indexOf("charset=");
-        if (offset != -1) {
-          String charset = parts[1].substring(offset + 8).toUpperCase();
-          // Some servers include quotes around the charset:
-          //   Content-Type: text/html; charset="UTF-8"
-          if (charset.length() >= 2 && charset.startsWith("\"") && charset.endsWith("\"")) {
-            charset = charset.substring(1, charset.length() - 1);
-          }
+    if (values.isEmpty()) {
+      // If no content type was specified, we'll assume an unknown binary type.
+      return DEFAULT_ENCODING;
+    }
+    String contentType = values.iterator().next();
+    String[] parts = StringUtils.split(contentType, ';');
+    if (parts == null
+        || parts.length == 0
+        || BINARY_CONTENT_TYPES.contains(parts[0])) {
+      return DEFAULT_ENCODING;
+    }
+    if (parts.length == 2) {
+      int offset = parts[1].toLowerCase().indexOf("charset=");
+      if (offset != -1) {
+        String charset = parts[1].substring(offset + 8).toUpperCase();
+        // Some servers include quotes around the charset:
+        //   Content-Type: text/html; charset="UTF-8"
+        if (charset.length() >= 2 && charset.startsWith("\"") && charset.endsWith("\"")) {
+          charset = charset.substring(1, charset.length() - 1);
+        }
 
-          try {
-            return charsetForName(charset);
-          } catch (IllegalArgumentException e) {
-            // fall through to detection
-          }
+        try {
+          return charsetForName(charset);
+        } catch (IllegalArgumentException e) {
+          // fall through to detection
         }
       }
-      Charset encoding = EncodingDetector.detectEncoding(body, fastEncodingDetection,
-          customEncodingDetector);
-      // Record the charset in the content-type header so that its value can be cached
-      // and re-used. This is a BIG performance win.
-      values.clear();
-      values.add(contentType + "; charset=" + encoding.name());
-
-      return encoding;
-    } else {
-      // If no content type was specified, we'll assume an unknown binary type.
-      return DEFAULT_ENCODING;
     }
+    return null;
   }
 
   /**
@@ -560,7 +674,7 @@ public final class HttpResponse implements Externalizable {
   public int hashCode() {
     return httpStatusCode
       ^ headers.hashCode()
-      ^ Arrays.hashCode(responseBytes);
+      ^ Arrays.hashCode(getResponseAsBytes());
   }
 
   @Override
@@ -572,7 +686,7 @@ public final class HttpResponse implements Externalizable {
 
     return httpStatusCode == response.httpStatusCode &&
            headers.equals(response.headers) &&
-           Arrays.equals(responseBytes, response.responseBytes);
+           Arrays.equals(getResponseAsBytes(), response.getResponseAsBytes());
   }
 
   @Override
@@ -590,7 +704,91 @@ public final class HttpResponse implements Externalizable {
    * making a new HttpResponseBuilder.
    */
   byte[] getResponseAsBytes() {
-    return responseBytes;
+    byte[] body = responseBytes;
+    if (body == null) {
+      body = decompress();
+      if (retainBody) {
+        responseBytes = body;
+      }
+    }
+    return body;
+  }
+
+  private byte[] decompress() {
+    try {
+      return IOUtils.toByteArray(new GZIPInputStream(new ByteArrayInputStream(gzippedBytes)));
+    } catch (IOException e) {
+      throw new IllegalStateException("Unable to decompress response body", e);
+    }
+  }
+
+  /**
+   * @return A copy of this response holding only the gzipped body, to save memory while it is
+   *     cached, or this response if its body is not worth compressing. The copy decompresses its
+   *     body each time it is read, so callers should be handed a {@link #copy} of it instead.
+   */
+  HttpResponse compress() {
+    if (gzippedBytes != null || contentLength < MIN_COMPRESSIBLE_BYTES || !isCompressible()) {
+      return this;
+    }
+    ByteArrayOutputStream gzipped = new ByteArrayOutputStream(contentLength / 4);
+    try {
+      GZIPOutputStream out = new GZIPOutputStream(gzipped);
+      out.write(responseBytes);
+      out.close();
+    } catch (IOException e) {
+      // Doesn't occur; written to memory.
+      return this;
+    }
+    if (gzipped.size() >= contentLength) {
+      return this;
+    }
+    HttpResponse compressed = new HttpResponse(this, null, gzipped.toByteArray());
+    compressed.retainBody = false;
+    return compressed;
+  }
+
+  /**
+   * @return A copy of this response sharing its body. A compressed body is decompressed at most
+   *     once, when the copy is first read.
+   */
+  HttpResponse copy() {
+    return new HttpResponse(this, responseBytes, gzippedBytes);
+  }
+
+  /**
+   * @return A {@link #copy} for a caller of this compressed response held in a cache. After
+   *     hotCopies copies this response keeps its decompressed body too, so that copies of a hot
+   *     response share it instead of each decompressing it. A negative hotCopies never does.
+   */
+  HttpResponse handOut(int hotCopies) {
+    if (responseBytes == null && gzippedBytes != null && hotCopies >= 0
+        && handedOut.incrementAndGet() > hotCopies) {
+      // Racing callers may both decompress; either result will do.
+      responseBytes = decompress();
+    }
+    return copy();
+  }
+
+  /**
+   * @return True if the body is held gzipped.
+   */
+  boolean isCompressed() {
+    return gzippedBytes != null;
+  }
+
+  private boolean isCompressible() {
+    if (headers.containsKey("Content-Encoding")) {
+      return false;
+    }
+    Collection<String> values = headers.get("Content-Type");
+    if (values.isEmpty()) {
+      return false;
+    }
+    String mimeType = StringUtils.substringBefore(values.iterator().next(), ";").trim()
+        .toLowerCase();
+    return mimeType.startsWith("text/") || mimeType.endsWith("javascript")
+        || mimeType.endsWith("json") || mimeType.endsWith("xml");
   }
 
   /**
@@ -616,18 +814,20 @@ public final class HttpResponse implements Externalizable {
     }
 
     int bodyLength = in.readInt();
-    responseBytes = new byte[bodyLength];
+    byte[] body = new byte[bodyLength];
     int cnt, offset = 0;
-    while ((cnt = in.read(responseBytes, offset, bodyLength)) > 0) {
+    while ((cnt = in.read(body, offset, bodyLength)) > 0) {
       offset += cnt;
       bodyLength -= cnt;
     }
-    if (offset != responseBytes.length) {
-      throw new IOException("Invalid body! Expected length = " + responseBytes.length + ", bytes readed = " + offset + '.');
+    if (offset != body.length) {
+      throw new IOException("Invalid body! Expected length = " + body.length + ", bytes readed = " + offset + '.');
     }
 
+    responseBytes = body;
+    contentLength = body.length;
     date = getAndUpdateDate(headerCopy);
-    encoding = getAndUpdateEncoding(headerCopy, responseBytes);
+    encoding = getAndUpdateEncoding(headerCopy, body);
     headers = Multimaps.unmodifiableMultimap(headerCopy);
     metadata = Collections.emptyMap();
   }
@@ -635,13 +835,67 @@ public final class HttpResponse implements Externalizable {
   public void writeExternal(ObjectOutput out) throws IOException {
     out.writeInt(httpStatusCode);
     // Write out multimap as a map (see above)
-    Map<String,List<String>> map = Maps.newHashMap();
+    out.writeObject(getHeaderMap());
+    byte[] body = getResponseAsBytes();
+    out.writeInt(body.length);
+    out.write(body);
+  }
+
+  private Map<String, List<String>> getHeaderMap() {
+    Map<String, List<String>> map = Maps.newHashMap();
     for (String key : headers.keySet()) {
       map.put(key, Lists.newArrayList(headers.get(key)));
     }
-    out.writeObject(Maps.newHashMap(map));
-    out.writeInt(responseBytes.length);
-    out.write(responseBytes);
+    return map;
+  }
+
+  /**
+   * Writes the response for {@link #readStored}. Unlike {@link #writeExternal}, a body held
+   * gzipped is written as it is instead of being decompressed first.
+   */
+  void writeStored(ObjectOutput out) throws IOException {
+    out.writeInt(httpStatusCode);
+    out.writeObject(getHeaderMap());
+    out.writeUTF(encoding.name());
+    out.writeInt(contentLength);
+    byte[] body = gzippedBytes != null ? gzippedBytes : getResponseAsBytes();
+    out.writeBoolean(gzippedBytes != null);
+    out.writeInt(body.length);
+    out.write(body);
+  }
+
+  /**
+   * @return A response written by {@link #writeStored}, without metadata. A body written gzipped
+   *     is held gzipped, as by {@link #compress}.
+   */
+  @SuppressWarnings("unchecked")
+  static HttpResponse readStored(ObjectInput in) throws IOException, ClassNotFoundException {
+    HttpResponse response = new HttpResponse();
+    response.httpStatusCode = in.readInt();
+    Map<String, List<String>> headerMap = (Map<String, List<String>>) in.readObject();
+    Multimap<String, String> headerCopy = newHeaderMultimap();
+    for (Map.Entry<String, List<String>> entry : headerMap.entrySet()) {
+      headerCopy.putAll(entry.getKey(), entry.getValue());
+    }
+    String encodingName = in.readUTF();
+    if (!Charset.isSupported(encodingName)) {
+      throw new IOException("Unsupported encoding " + encodingName);
+    }
+    response.encoding = Charset.forName(encodingName);
+    response.contentLength = in.readInt();
+    boolean gzipped = in.readBoolean();
+    byte[] body = new byte[in.readInt()];
+    in.readFully(body);
+    if (gzipped) {
+      response.gzippedBytes = body;
+      response.retainBody = false;
+    } else {
+      response.responseBytes = body;
+    }
+    response.date = getAndUpdateDate(headerCopy);
+    response.headers = Multimaps.unmodifiableMultimap(headerCopy);
+    response.metadata = Collections.emptyMap();
+    return response;
   }
 
 
@@ -44,7 +44,9 @@ import java.util.Map;
  */
 public class HttpResponseBuilder extends MutableContent {
   private int httpStatusCode = HttpResponse.SC_OK;
-  private final Multimap<String, String> headers = HttpResponse.newHeaderMultimap();
+  // Shared with headerSource until the first change, then a private copy.
+  private Multimap<String, String> headers;
+  private HttpResponse headerSource;
   private final Map<String, String> metadata = Maps.newHashMap();
   
   // Stores the HttpResponse object, if any, from which this Builder is constructed.
@@ -57,9 +59,12 @@ public class HttpResponseBuilder extends MutableContent {
     super(parser, response);
     if (response != null) {
       httpStatusCode = response.getHttpStatusCode();
-      headers.putAll(response.getHeaders());
+      // HttpResponse headers are immutable, so they are only copied when first changed.
+      headers = response.getHeaders();
+      headerSource = response;
       metadata.putAll(response.getMetadata());
     } else {
+      headers = HttpResponse.newHeaderMultimap();
       setResponse(null);
     }
     responseObj = response;
@@ -107,7 +112,8 @@ public class HttpResponseBuilder extends MutableContent {
       // Remove previously set charset:
       String[] parts = StringUtils.split(contentType, ';');
       for (String part : parts) {
-        if (!part.contains("charset=")) {
+        part = part.trim();
+        if (part.length() > 0 && !part.contains("charset=")) {
           if (newContentTypeBuilder.length() > 0) {
             newContentTypeBuilder.append("; ");
           }
@@ -120,10 +126,9 @@ public class HttpResponseBuilder extends MutableContent {
         }
         newContentTypeBuilder.append("charset=").append(charset.name());
       }
-      values.clear();
       String newContentType = newContentTypeBuilder.toString();
-      values.add(newContentType);
-      if (!(values.size() == 1 && !contentType.equals(newContentType))) {
+      if (values.size() != 1 || !contentType.equals(newContentType)) {
+        mutableHeaders().replaceValues("Content-Type", Lists.newArrayList(newContentType));
         incrementNumChanges();
       }
     }
@@ -164,13 +169,13 @@ public class HttpResponseBuilder extends MutableContent {
   
   public HttpResponseBuilder clearAllHeaders() {
     incrementNumChanges();
-    headers.clear();
+    mutableHeaders().clear();
     return this;
   }
 
   public HttpResponseBuilder addHeader(String name, String value) {
     if (name != null) {
-      headers.put(name, value);
+      mutableHeaders().put(name, value);
       incrementNumChanges();
     }
     return this;
@@ -178,7 +183,7 @@ public class HttpResponseBuilder extends MutableContent {
 
   public HttpResponseBuilder setHeader(String name, String value) {
     if (name != null) {
-      headers.replaceValues(name, Lists.newArrayList(value));
+      mutableHeaders().replaceValues(name, Lists.newArrayList(value));
       incrementNumChanges();
     }
     return this;
@@ -193,7 +198,7 @@ public class HttpResponseBuilder extends MutableContent {
 
   public HttpResponseBuilder addHeaders(Map<String, String> headers) {
     for (Map.Entry<String,String> entry : headers.entrySet()) {
-      this.headers.put(entry.getKey(), entry.getValue());
+      mutableHeaders().put(entry.getKey(), entry.getValue());
       incrementNumChanges();
     }
     return this;
@@ -201,14 +206,15 @@ public class HttpResponseBuilder extends MutableContent {
 
   public HttpResponseBuilder addAllHeaders(Map<String, ? extends List<String>> headers) {
     for (Map.Entry<String,? extends List<String>> entry : headers.entrySet()) {
-      this.headers.putAll(entry.getKey(), entry.getValue());
+      mutableHeaders().putAll(entry.getKey(), entry.getValue());
       incrementNumChanges();
     }
     return this;
   }
 
   public Collection<String> removeHeader(String name) {
-    Collection<String> ret = headers.removeAll(name);
+    Collection<String> ret = headers.containsKey(name)
+        ? mutableHeaders().removeAll(name) : ImmutableList.<String>of();
     if (ret != null) {
       incrementNumChanges();
     }
@@ -216,6 +222,7 @@ public class HttpResponseBuilder extends MutableContent {
   }
 
   public HttpResponseBuilder setCacheTtl(int cacheTtl) {
+    Multimap<String, String> headers = mutableHeaders();
     headers.removeAll("Pragma");
     headers.removeAll("Expires");
     headers.replaceValues("Cache-Control", ImmutableList.of("public,max-age=" + cacheTtl));
@@ -224,6 +231,7 @@ public class HttpResponseBuilder extends MutableContent {
   }
 
   public HttpResponseBuilder setExpirationTime(long expirationTime) {
+    Multimap<String, String> headers = mutableHeaders();
     headers.removeAll("Cache-Control");
     headers.removeAll("Pragma");
     headers.put("Expires", DateUtil.formatRfc1123Date(expirationTime));
@@ -236,6 +244,7 @@ public class HttpResponseBuilder extends MutableContent {
    */
   private final List<String> NO_CACHE_HEADER = ImmutableList.of("no-cache");
   public HttpResponseBuilder setStrictNoCache() {
+    Multimap<String, String> headers = mutableHeaders();
     headers.replaceValues("Cache-Control", NO_CACHE_HEADER);
     headers.replaceValues("Pragma", NO_CACHE_HEADER);
     headers.removeAll("Expires");
@@ -259,10 +268,32 @@ public class HttpResponseBuilder extends MutableContent {
     return getResponse().length;
   }
 
+  /**
+   * @return The current headers. Read only; may be shared with the response this builder was
+   *     constructed from.
+   */
   Multimap<String, String> getHeaders() {
     return headers;
   }
 
+  /**
+   * @return The response whose headers this builder still shares, or null if they have been
+   *     changed.
+   */
+  HttpResponse getHeaderSource() {
+    return headerSource;
+  }
+
+  private Multimap<String, String> mutableHeaders() {
+    if (headerSource != null) {
+      Multimap<String, String> copy = HttpResponse.newHeaderMultimap();
+      copy.putAll(headers);
+      headers = copy;
+      headerSource = null;
+    }
+    return headers;
+  }
+
   Map<String, String> getMetadata() {
     return metadata;
   }
@@ -272,6 +303,22 @@ public class HttpResponseBuilder extends MutableContent {
     return getRawContentBytes();
   }
 
+  /**
+   * @return The response this builder was constructed from if the body has not been changed
+   *     since, so that its body and encoding can be reused.
+   */
+  HttpResponse getBodySource() {
+    return getContentSource();
+  }
+
+  /**
+   * HttpResponse bodies are immutable, so an unchanged body is shared rather than copied.
+   */
+  @Override
+  protected byte[] getSourceBytes(HttpResponse source) {
+    return source.getResponseAsBytes();
+  }
+
   public int getHttpStatusCode() {
     return httpStatusCode;
   }
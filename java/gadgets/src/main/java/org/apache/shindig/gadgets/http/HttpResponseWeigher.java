@@ -0,0 +1,41 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.apache.shindig.gadgets.http;
+
+import org.apache.shindig.common.cache.Weigher;
+
+import java.util.Map;
+
+/**
+ * Estimates the heap held by a cached HttpResponse: the body bytes (compressed, if the body is
+ * held gzipped) plus the characters of every header name and value. Small fixed costs (object
+ * headers, the status code, metadata) are covered by a flat per-entry overhead.
+ */
+public class HttpResponseWeigher implements Weigher<HttpResponse> {
+  static final int ENTRY_OVERHEAD = 256;
+
+  public int weigh(HttpResponse response) {
+    int bodyLength = response.getGzippedContentLength();
+    long weight = ENTRY_OVERHEAD + (bodyLength < 0 ? response.getContentLength() : bodyLength);
+    for (Map.Entry<String, String> header : response.getHeaders().entries()) {
+      // Two bytes per char.
+      weight += 2 * (header.getKey().length() + header.getValue().length());
+    }
+    return (int) Math.min(weight, Integer.MAX_VALUE);
+  }
+}
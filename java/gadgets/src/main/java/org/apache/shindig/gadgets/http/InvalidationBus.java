@@ -0,0 +1,45 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.apache.shindig.gadgets.http;
+
+import com.google.inject.ImplementedBy;
+
+/**
+ * Transport that spreads invalidations to every server sharing the same content, so that an
+ * invalidation received by one server is applied by all of them.
+ *
+ * Delivery is asynchronous and may be batched. Listeners receive their own events as well as
+ * those of other servers and are expected to ignore events from their own origin.
+ */
+@ImplementedBy(LocalInvalidationBus.class)
+public interface InvalidationBus {
+
+  /**
+   * Send an event to every listener on the bus, including those on other servers.
+   */
+  void publish(InvalidationEvent event);
+
+  void addListener(Listener listener);
+
+  /**
+   * Receives the events published on the bus.
+   */
+  public interface Listener {
+    void onInvalidation(InvalidationEvent event);
+  }
+}
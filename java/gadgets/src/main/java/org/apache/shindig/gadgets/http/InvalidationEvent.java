@@ -0,0 +1,89 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.apache.shindig.gadgets.http;
+
+import com.google.common.collect.ImmutableSet;
+
+import java.util.Set;
+
+/**
+ * An invalidation made on one server, as sent to the others over an {@link InvalidationBus}.
+ * Events only carry the application and the invalidated values, so they can be applied without
+ * the security token of the original call.
+ */
+public class InvalidationEvent {
+  public enum Type {
+    /** Values are uris of application resources. */
+    RESOURCES,
+    /** Values are user ids, scoped to the application. */
+    USERS,
+    /** Values are tags built by {@link InvalidationTags}. */
+    TAGS
+  }
+
+  private final Type type;
+  private final String origin;
+  private final String appKey;
+  private final Set<String> values;
+  private final long created;
+
+  public InvalidationEvent(Type type, String origin, String appKey, Set<String> values,
+      long created) {
+    this.type = type;
+    this.origin = origin;
+    this.appKey = appKey;
+    this.values = ImmutableSet.copyOf(values);
+    this.created = created;
+  }
+
+  public Type getType() {
+    return type;
+  }
+
+  /**
+   * @return An identifier for the service that made the invalidation, so that it can ignore
+   *     its own events.
+   */
+  public String getOrigin() {
+    return origin;
+  }
+
+  /**
+   * @return The appId or appUrl of the application that made the invalidation.
+   */
+  public String getAppKey() {
+    return appKey;
+  }
+
+  public Set<String> getValues() {
+    return values;
+  }
+
+  /**
+   * @return The time the invalidation was made, in milliseconds since the epoch on the clock of
+   *     the originating server.
+   */
+  public long getCreated() {
+    return created;
+  }
+
+  @Override
+  public String toString() {
+    return type + " " + appKey + ' ' + values + " from " + origin;
+  }
+}
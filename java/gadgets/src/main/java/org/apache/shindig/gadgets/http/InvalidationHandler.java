@@ -43,6 +43,10 @@ import com.google.inject.Inject;
 public class InvalidationHandler {
 
   public static final String KEYS_PARAM = "invalidationKeys";
+  public static final String TAGS_PARAM = "invalidationTags";
+
+  /** Tag for all authenticated content fetched by the calling application. */
+  public static final String APP_TAG = "app";
 
   private final InvalidationService invalidation;
 
@@ -98,7 +102,59 @@ public class InvalidationHandler {
         }
       }
     }
+
+    Set<String> tags = Sets.newHashSet();
+    List<String> tagParams = request.getListParameter(TAGS_PARAM);
+    if (tagParams != null) {
+      for (String tag : tagParams) {
+        tags.add(toInvalidationTag(tag, request, isBackendInvalidation));
+      }
+    }
+
     invalidation.invalidateApplicationResources(resources, request.getToken());
     invalidation.invalidateUserResources(userIds, request.getToken());
+    invalidation.invalidateTags(tags, request.getToken());
+  }
+
+  /**
+   * Convert a tag from the request into the form used by {@link InvalidationTags}. Accepts
+   * "app", "user:&lt;id&gt;" and "host:&lt;host&gt;", all limited to the calling application's
+   * content. Only the application backend may invalidate anything other than the content signed
+   * for the viewer.
+   */
+  private String toInvalidationTag(String tag, BaseRequestItem request,
+      boolean isBackendInvalidation) {
+    if (tag.startsWith(InvalidationTags.USER_PREFIX)) {
+      String userId = tag.substring(InvalidationTags.USER_PREFIX.length());
+      if ("@viewer".equals(userId)) {
+        userId = request.getToken().getViewerId();
+      }
+      if (StringUtils.isEmpty(userId)) {
+        throw new ProtocolException(HttpServletResponse.SC_BAD_REQUEST,
+            "Cannot invalidate the content for an unknown user: " + tag);
+      }
+      if (!isBackendInvalidation && !userId.equals(request.getToken().getViewerId())) {
+        throw new ProtocolException(HttpServletResponse.SC_BAD_REQUEST,
+            "Cannot invalidate the content for a user other than the viewer from a gadget.");
+      }
+      return InvalidationTags.forUser(userId, request.getToken());
+    }
+
+    if (!isBackendInvalidation) {
+      throw new ProtocolException(HttpServletResponse.SC_BAD_REQUEST,
+          "Cannot flush application or host content from a gadget. " +
+              "Must use OAuth consumer request");
+    }
+    if (APP_TAG.equals(tag)) {
+      return InvalidationTags.forApp(request.getToken());
+    }
+    if (tag.startsWith(InvalidationTags.HOST_PREFIX)
+        && tag.length() > InvalidationTags.HOST_PREFIX.length()) {
+      // Only the calling application's own authenticated content from the host.
+      return InvalidationTags.forHost(tag.substring(InvalidationTags.HOST_PREFIX.length()),
+          request.getToken());
+    }
+    throw new ProtocolException(HttpServletResponse.SC_BAD_REQUEST,
+        "Unknown invalidation tag: " + tag);
   }
 }
@@ -53,6 +53,15 @@ public interface InvalidationService {
    */
   void invalidateUserResources(Set<String> opensocialIds, SecurityToken token);
 
+  /**
+   * Remove every cached response that was tagged with one of the specified tags when it was
+   * marked. Tags are built by {@link InvalidationTags}; callers are responsible for only passing
+   * tags the calling application is allowed to invalidate.
+   * @param tags Set of tags to invalidate content for
+   * @param token identifying the calling application
+   */
+  void invalidateTags(Set<String> tags, SecurityToken token);
+
   /**
    * Is the specified HttpResponse still valid. If the request is signed or authenticated
    * has its content been invalidated by a call to invalidateUserResource subsequent to the
@@ -62,7 +71,7 @@ public interface InvalidationService {
 
   /**
    * Mark the HttpResponse prior to caching it so that subsequent calls to isValid can detect
-   * if it has been invalidated.
+   * if it has been invalidated, and record the tags it can be invalidated by.
    */
   HttpResponse markResponse(HttpRequest request, HttpResponse response);
 
@@ -0,0 +1,132 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.apache.shindig.gadgets.http;
+
+import org.apache.commons.lang.StringUtils;
+import org.apache.shindig.auth.SecurityToken;
+import org.apache.shindig.common.uri.Uri;
+import org.apache.shindig.gadgets.AuthType;
+
+import com.google.common.collect.Sets;
+
+import java.util.Set;
+
+/**
+ * Builds the surrogate keys ("tags") that cached responses are indexed by, so that every
+ * variant of a resource, or everything fetched on behalf of an application or a user, can be
+ * invalidated without knowing the individual cache keys.
+ *
+ * Every tag is scoped to the application in the security token, in the same way as the marks
+ * used by {@link DefaultInvalidationService#invalidateUserResources}, so that an application only
+ * ever flushes its own variants.
+ * Only authenticated responses are tagged. Unauthenticated responses are shared by every
+ * application, so no single application may flush them by tag; the uri of such a response is
+ * its cache key, which {@link InvalidationService#invalidateApplicationResources} removes
+ * directly.
+ */
+public final class InvalidationTags {
+  public static final String URI_PREFIX = "uri:";
+  public static final String HOST_PREFIX = "host:";
+  public static final String APP_PREFIX = "app:";
+  public static final String USER_PREFIX = "user:";
+
+  private InvalidationTags() {
+  }
+
+  /**
+   * @return The tag shared by every authenticated variant of the resource at the given uri
+   *     fetched by the application identified in the token.
+   */
+  public static String forUri(Uri uri, SecurityToken token) {
+    return forUri(uri, getAppKey(token));
+  }
+
+  static String forUri(Uri uri, String appKey) {
+    return URI_PREFIX + appKey + ':' + uri;
+  }
+
+  /**
+   * @return The tag shared by every authenticated response fetched from the given host by the
+   *     application identified in the token.
+   */
+  public static String forHost(String host, SecurityToken token) {
+    return HOST_PREFIX + getAppKey(token) + ':' + StringUtils.lowerCase(host);
+  }
+
+  /**
+   * @return The tag shared by every authenticated response fetched by the application
+   *     identified in the token.
+   */
+  public static String forApp(SecurityToken token) {
+    return APP_PREFIX + getAppKey(token);
+  }
+
+  /**
+   * @return The tag shared by every response signed on behalf of the given user by the
+   *     application identified in the token.
+   */
+  public static String forUser(String userId, SecurityToken token) {
+    return USER_PREFIX + getAppKey(token) + ':' + getLocalUserId(userId);
+  }
+
+  /**
+   * @return The tags the response to the given request should be indexed by.
+   */
+  public static Set<String> forRequest(HttpRequest request) {
+    Set<String> tags = Sets.newHashSet();
+    SecurityToken token = request.getSecurityToken();
+    if (request.getAuthType() == AuthType.NONE || token == null) {
+      // Shared by all applications.
+      return tags;
+    }
+    Uri uri = request.getUri();
+    tags.add(forUri(uri, token));
+    if (uri.getAuthority() != null) {
+      tags.add(forHost(uri.getAuthority(), token));
+    }
+    tags.add(forApp(token));
+    if (request.getOAuthArguments().getSignOwner() && token.getOwnerId() != null) {
+      tags.add(forUser(token.getOwnerId(), token));
+    }
+    if (request.getOAuthArguments().getSignViewer() && token.getViewerId() != null) {
+      tags.add(forUser(token.getViewerId(), token));
+    }
+    return tags;
+  }
+
+  /**
+   * Assume the container is consistent in its use of either appId or appUrl, and prefer appId.
+   */
+  static String getAppKey(SecurityToken token) {
+    if (!StringUtils.isEmpty(token.getAppId())) {
+      return token.getAppId();
+    }
+    return token.getAppUrl();
+  }
+
+  /**
+   * Convert a user id to the container relative form.
+   */
+  static String getLocalUserId(String userId) {
+    int colonIndex = userId.lastIndexOf(':');
+    if (colonIndex != -1) {
+      return userId.substring(colonIndex + 1);
+    }
+    return userId;
+  }
+}
@@ -0,0 +1,108 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.apache.shindig.gadgets.http;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A lock free histogram of request latencies, with fixed buckets spaced roughly 1-2.5-5 per
+ * decade from 10ms to 30s. Cheap enough to record every fetch, precise enough to tell a slow
+ * origin from a healthy one.
+ */
+public class LatencyHistogram {
+  private static final long[] BOUNDS = {
+    10, 25, 50, 100, 250, 500, 1000, 2500, 5000, 10000, 30000
+  };
+
+  // One more bucket than bounds, for latencies above the last bound.
+  private final AtomicLongArray buckets = new AtomicLongArray(BOUNDS.length + 1);
+  private final AtomicLong count = new AtomicLong();
+  private final AtomicLong totalMillis = new AtomicLong();
+  private final AtomicLong maxMillis = new AtomicLong();
+
+  public void record(long millis) {
+    int bucket = 0;
+    while (bucket < BOUNDS.length && millis > BOUNDS[bucket]) {
+      bucket++;
+    }
+    buckets.incrementAndGet(bucket);
+    count.incrementAndGet();
+    totalMillis.addAndGet(millis);
+    long max = maxMillis.get();
+    while (millis > max && !maxMillis.compareAndSet(max, millis)) {
+      max = maxMillis.get();
+    }
+  }
+
+  public long getCount() {
+    return count.get();
+  }
+
+  public long getMeanMillis() {
+    long n = count.get();
+    return n == 0 ? 0 : totalMillis.get() / n;
+  }
+
+  public long getMaxMillis() {
+    return maxMillis.get();
+  }
+
+  /**
+   * @param percentile between 0 and 100.
+   * @return The upper bound of the bucket holding the given percentile, or the maximum latency
+   *     if it falls beyond the last bucket. 0 if nothing has been recorded.
+   */
+  public long getPercentileMillis(double percentile) {
+    long n = count.get();
+    if (n == 0) {
+      return 0;
+    }
+    long rank = (long) Math.ceil(n * percentile / 100);
+    long seen = 0;
+    for (int i = 0; i < BOUNDS.length; i++) {
+      seen += buckets.get(i);
+      if (seen >= rank) {
+        return BOUNDS[i];
+      }
+    }
+    return maxMillis.get();
+  }
+
+  /**
+   * @return The bucket upper bounds, in milliseconds. Counts returned by {@link #getCounts}
+   *     have one more entry, for latencies above the last bound.
+   */
+  public static long[] getBounds() {
+    return BOUNDS.clone();
+  }
+
+  public long[] getCounts() {
+    long[] counts = new long[buckets.length()];
+    for (int i = 0; i < counts.length; i++) {
+      counts[i] = buckets.get(i);
+    }
+    return counts;
+  }
+
+  @Override
+  public String toString() {
+    return "count=" + getCount() + " mean=" + getMeanMillis() + "ms p50=" + getPercentileMillis(50)
+        + "ms p99=" + getPercentileMillis(99) + "ms max=" + getMaxMillis() + "ms";
+  }
+}
@@ -0,0 +1,43 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.apache.shindig.gadgets.http;
+
+import com.google.inject.Singleton;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * In-process invalidation bus. Events are delivered synchronously to the listeners in this JVM
+ * only, which is all a single server needs. It also stands in for a cluster in tests, by sharing
+ * one bus between several invalidation services.
+ */
+@Singleton
+public class LocalInvalidationBus implements InvalidationBus {
+  private final List<Listener> listeners = new CopyOnWriteArrayList<Listener>();
+
+  public void publish(InvalidationEvent event) {
+    for (Listener listener : listeners) {
+      listener.onInvalidation(event);
+    }
+  }
+
+  public void addListener(Listener listener) {
+    listeners.add(listener);
+  }
+}
@@ -0,0 +1,365 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.apache.shindig.gadgets.http;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+import org.apache.shindig.common.util.CharsetUtil;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Stores serialized HttpResponses in memory-mapped files, outside the garbage collected heap.
+ * The files are reopened on startup, so the stored responses survive a restart. Bodies held
+ * gzipped are stored and reloaded gzipped.
+ *
+ * Responses are appended to a small ring of fixed size segment files. When the newest segment
+ * is full a new one is started, and once there are more than {@link #SEGMENTS} the oldest is
+ * deleted along with every response in it, so eviction is first in, first out. Removals are
+ * recorded by appending a tombstone. Only the keys and the locations of the records are held
+ * on the heap.
+ *
+ * Record layout: magic, key length, body length (-1 for a tombstone), key, body. The magic is
+ * written last, so a record that was only partly written is ignored when the segment is
+ * reopened.
+ */
+public class MappedResponseStore {
+  private static final Logger LOG = Logger.getLogger(MappedResponseStore.class.getName());
+
+  static final int SEGMENTS = 8;
+  private static final long MAX_SEGMENT_SIZE = 64 * 1024 * 1024;
+  private static final int MIN_SEGMENT_SIZE = 64 * 1024;
+  // Changed whenever the layout of the stored responses changes, so older records are ignored.
+  private static final int MAGIC = 0x53484448;
+  private static final int TOMBSTONE = -1;
+  private static final int HEADER_SIZE = 12;
+  private static final String SEGMENT_PREFIX = "responses-";
+  private static final String SEGMENT_SUFFIX = ".seg";
+
+  private final File directory;
+  private final int segmentSize;
+  private final ConcurrentMap<String, Location> index = new ConcurrentHashMap<String, Location>();
+  // Oldest first. Guarded by this.
+  private final LinkedList<Segment> segments = Lists.newLinkedList();
+  private int nextSegmentId;
+
+  /**
+   * @param directory The directory holding the segment files. Created if missing.
+   * @param maxBytes The approximate total size of the segment files.
+   * @throws IOException If the directory or existing segments cannot be opened.
+   */
+  public MappedResponseStore(File directory, long maxBytes) throws IOException {
+    this.directory = directory;
+    this.segmentSize = (int) Math.max(MIN_SEGMENT_SIZE, Math.min(MAX_SEGMENT_SIZE,
+        maxBytes / SEGMENTS));
+    if (!directory.isDirectory() && !directory.mkdirs()) {
+      throw new IOException("Unable to create cache directory " + directory);
+    }
+    load();
+  }
+
+  /**
+   * @return The stored response, or null if there is none or it could not be read.
+   */
+  public HttpResponse get(String key) {
+    Location location = index.get(key);
+    if (location == null) {
+      return null;
+    }
+    byte[] data = new byte[location.length];
+    ByteBuffer buffer = location.segment.buffer.duplicate();
+    buffer.position(location.offset);
+    buffer.get(data);
+    try {
+      return deserialize(data);
+    } catch (IOException e) {
+      LOG.log(Level.WARNING, "Discarding unreadable cached response for " + key, e);
+    } catch (ClassNotFoundException e) {
+      LOG.log(Level.WARNING, "Discarding unreadable cached response for " + key, e);
+    }
+    remove(key);
+    return null;
+  }
+
+  /**
+   * Stores a response, replacing any stored under the same key. Responses too large for a
+   * segment are not stored.
+   */
+  public void put(String key, HttpResponse response) {
+    byte[] data;
+    try {
+      data = serialize(response);
+    } catch (IOException e) {
+      LOG.log(Level.WARNING, "Unable to serialize response for " + key, e);
+      remove(key);
+      return;
+    }
+    byte[] keyBytes = CharsetUtil.getUtf8Bytes(key);
+    if (HEADER_SIZE + keyBytes.length + data.length > segmentSize) {
+      remove(key);
+      return;
+    }
+    synchronized (this) {
+      Segment segment = segmentFor(HEADER_SIZE + keyBytes.length + data.length);
+      int offset = segment.append(keyBytes, data);
+      index.put(key, new Location(segment, offset, data.length));
+    }
+  }
+
+  /**
+   * @return true if a response was stored under the key.
+   */
+  public boolean remove(String key) {
+    synchronized (this) {
+      if (index.remove(key) == null) {
+        return false;
+      }
+      byte[] keyBytes = CharsetUtil.getUtf8Bytes(key);
+      segmentFor(HEADER_SIZE + keyBytes.length).append(keyBytes, null);
+      return true;
+    }
+  }
+
+  /**
+   * @return The number of stored responses.
+   */
+  public int getSize() {
+    return index.size();
+  }
+
+  /**
+   * Writes outstanding changes to disk. The operating system does this on its own, so this is
+   * only needed to survive a crash of the machine rather than of the process.
+   */
+  public synchronized void force() {
+    for (Segment segment : segments) {
+      segment.buffer.force();
+    }
+  }
+
+  /**
+   * @return The segment to append a record of the given size to. Must hold the lock.
+   */
+  private Segment segmentFor(int recordSize) {
+    Segment current = segments.isEmpty() ? null : segments.getLast();
+    if (current != null && current.remaining() >= recordSize) {
+      return current;
+    }
+    if (current != null) {
+      current.buffer.force();
+    }
+    try {
+      Segment segment = new Segment(nextSegmentId++, segmentSize);
+      segments.add(segment);
+      while (segments.size() > SEGMENTS) {
+        drop(segments.removeFirst());
+      }
+      return segment;
+    } catch (IOException e) {
+      // Should not happen once the directory has been created; fail like a full disk would.
+      throw new IllegalStateException("Unable to create cache segment in " + directory, e);
+    }
+  }
+
+  private void drop(Segment segment) {
+    for (Iterator<Location> it = index.values().iterator(); it.hasNext();) {
+      if (it.next().segment == segment) {
+        it.remove();
+      }
+    }
+    // The mapping stays valid for readers still holding it until it is garbage collected.
+    if (!segment.file.delete()) {
+      LOG.warning("Unable to delete cache segment " + segment.file);
+    }
+  }
+
+  private synchronized void load() throws IOException {
+    File[] files = directory.listFiles(new FilenameFilter() {
+      public boolean accept(File dir, String name) {
+        return parseId(name) >= 0;
+      }
+    });
+    List<Integer> ids = Lists.newArrayList();
+    for (File file : files) {
+      ids.add(parseId(file.getName()));
+    }
+    Collections.sort(ids);
+    for (int id : ids) {
+      Segment segment = new Segment(id, -1);
+      segments.add(segment);
+      segment.scan();
+      nextSegmentId = id + 1;
+    }
+    while (segments.size() > SEGMENTS) {
+      drop(segments.removeFirst());
+    }
+    if (!index.isEmpty()) {
+      LOG.info("Loaded " + index.size() + " cached responses from " + directory);
+    }
+  }
+
+  private static int parseId(String name) {
+    if (!name.startsWith(SEGMENT_PREFIX) || !name.endsWith(SEGMENT_SUFFIX)) {
+      return -1;
+    }
+    try {
+      return Integer.parseInt(
+          name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()));
+    } catch (NumberFormatException e) {
+      return -1;
+    }
+  }
+
+  private static byte[] serialize(HttpResponse response) throws IOException {
+    int length = response.isCompressed()
+        ? response.getGzippedContentLength() : response.getContentLength();
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream(length + 256);
+    ObjectOutputStream out = new ObjectOutputStream(bytes);
+    // Gzipped bodies are stored as they are, rather than decompressed for every write.
+    response.writeStored(out);
+    // Metadata is not part of the external form; keep it so the data hash survives.
+    out.writeObject(Maps.newHashMap(response.getMetadata()));
+    out.close();
+    return bytes.toByteArray();
+  }
+
+  @SuppressWarnings("unchecked")
+  private static HttpResponse deserialize(byte[] data) throws IOException, ClassNotFoundException {
+    ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(data));
+    HttpResponse response = HttpResponse.readStored(in);
+    Map<String, String> metadata = (Map<String, String>) in.readObject();
+    if (!metadata.isEmpty()) {
+      response = HttpResponseMetadataHelper.updateMetadata(response, metadata);
+    }
+    return response;
+  }
+
+  private static final class Location {
+    private final Segment segment;
+    private final int offset;
+    private final int length;
+
+    Location(Segment segment, int offset, int length) {
+      this.segment = segment;
+      this.offset = offset;
+      this.length = length;
+    }
+  }
+
+  private final class Segment {
+    private final File file;
+    private final MappedByteBuffer buffer;
+    // Guarded by the store's lock.
+    private int writePosition;
+
+    /**
+     * Maps the segment file, creating it with the given size if it does not exist yet.
+     *
+     * @param size The size of a new segment, or -1 to open an existing one.
+     */
+    Segment(int id, int size) throws IOException {
+      file = new File(directory, SEGMENT_PREFIX + id + SEGMENT_SUFFIX);
+      RandomAccessFile raf = new RandomAccessFile(file, "rw");
+      try {
+        if (size >= 0) {
+          raf.setLength(size);
+        }
+        // The mapping outlives the file handle.
+        buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, raf.length());
+      } finally {
+        raf.close();
+      }
+    }
+
+    int remaining() {
+      return buffer.capacity() - writePosition;
+    }
+
+    /**
+     * Appends a record.
+     *
+     * @param data The serialized response, or null for a tombstone.
+     * @return The offset of the data.
+     */
+    int append(byte[] key, byte[] data) {
+      int start = writePosition;
+      ByteBuffer out = buffer.duplicate();
+      out.position(start + 4);
+      out.putInt(key.length);
+      out.putInt(data == null ? TOMBSTONE : data.length);
+      out.put(key);
+      int offset = out.position();
+      if (data != null) {
+        out.put(data);
+      }
+      writePosition = out.position();
+      buffer.putInt(start, MAGIC);
+      return offset;
+    }
+
+    /**
+     * Adds the records in an existing segment to the index.
+     */
+    void scan() throws IOException {
+      ByteBuffer in = buffer.duplicate();
+      while (in.remaining() >= HEADER_SIZE) {
+        int start = in.position();
+        if (in.getInt() != MAGIC) {
+          break;
+        }
+        int keyLength = in.getInt();
+        int dataLength = in.getInt();
+        if (keyLength < 0 || dataLength < TOMBSTONE
+            || keyLength + Math.max(dataLength, 0) > in.remaining()) {
+          LOG.warning("Corrupt record at " + start + " in " + file);
+          break;
+        }
+        byte[] key = new byte[keyLength];
+        in.get(key);
+        String keyString = new String(key, "UTF-8");
+        if (dataLength == TOMBSTONE) {
+          index.remove(keyString);
+        } else {
+          index.put(keyString, new Location(this, in.position(), dataLength));
+          in.position(in.position() + dataLength);
+        }
+        writePosition = in.position();
+      }
+    }
+  }
+}
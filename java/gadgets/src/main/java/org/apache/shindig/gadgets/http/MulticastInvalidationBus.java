@@ -0,0 +1,351 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.apache.shindig.gadgets.http;
+
+import org.apache.shindig.common.crypto.Crypto;
+import org.apache.shindig.common.util.CharsetUtil;
+import org.apache.shindig.gadgets.DefaultGuiceModule;
+
+import com.google.common.collect.Lists;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import com.google.inject.name.Named;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.InetAddress;
+import java.net.MulticastSocket;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Queue;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Invalidation bus that spreads events to every server in a multicast group.
+ *
+ * Events published within one batch interval are sent together, packed into as few datagrams
+ * as fit in {@link #MAX_PACKET_SIZE}. Listeners in this JVM are called immediately.
+ *
+ * Delivery is not guaranteed: a server that misses a datagram keeps serving the invalidated
+ * content until it expires. Applying an event twice is harmless, so a container that needs
+ * stronger guarantees can publish important invalidations more than once.
+ *
+ * Every datagram is signed with an HMAC keyed by shindig.invalidation.multicast.key, which all
+ * servers in the group must share. Datagrams that fail the check are dropped, so other hosts on
+ * the network can't make the servers drop their caches. A captured datagram can still be
+ * replayed, which only repeats its invalidations.
+ *
+ * To use it, bind {@link InvalidationBus} to this class and set the
+ * shindig.invalidation.multicast.* properties. The bus is shut down with the JVM.
+ */
+@Singleton
+public class MulticastInvalidationBus implements InvalidationBus {
+  private static final Logger LOG = Logger.getLogger(MulticastInvalidationBus.class.getName());
+
+  static final int MAX_PACKET_SIZE = 8192;
+  private static final int MAGIC = 0x53494e56;
+  // magic, sender, event count
+  private static final int HEADER_SIZE = 4 + 8 + 4;
+  // HMAC-SHA1 of the header and body, after the body.
+  private static final int MAC_SIZE = 20;
+  private static final int MIN_KEY_SIZE = 16;
+
+  private final List<Listener> listeners = new CopyOnWriteArrayList<Listener>();
+  private final Queue<InvalidationEvent> pending = new ConcurrentLinkedQueue<InvalidationEvent>();
+  private final long sender = new Random().nextLong();
+  private final byte[] key;
+  private final InetAddress group;
+  private final int port;
+  private final MulticastSocket socket;
+  private final ScheduledExecutorService flusher =
+      Executors.newSingleThreadScheduledExecutor(DefaultGuiceModule.DAEMON_THREAD_FACTORY);
+
+  private final AtomicLong sentPackets = new AtomicLong();
+  private final AtomicLong receivedEvents = new AtomicLong();
+  private final AtomicLong rejectedPackets = new AtomicLong();
+
+  @Inject
+  public MulticastInvalidationBus(@Named("shindig.invalidation.multicast.group") String group,
+      @Named("shindig.invalidation.multicast.port") int port,
+      @Named("shindig.invalidation.multicast.batchMillis") int batchMillis,
+      @Named("shindig.invalidation.multicast.key") String key) throws IOException {
+    this.key = CharsetUtil.getUtf8Bytes(key);
+    if (this.key.length < MIN_KEY_SIZE) {
+      throw new IllegalArgumentException("shindig.invalidation.multicast.key must be at least "
+          + MIN_KEY_SIZE + " bytes");
+    }
+    this.group = InetAddress.getByName(group);
+    this.port = port;
+    socket = new MulticastSocket(port);
+    socket.joinGroup(this.group);
+
+    Thread receiver = DefaultGuiceModule.DAEMON_THREAD_FACTORY.newThread(new Runnable() {
+      public void run() {
+        receive();
+      }
+    });
+    receiver.setName("shindig-invalidation-receiver");
+    receiver.start();
+
+    flusher.scheduleWithFixedDelay(new Runnable() {
+      public void run() {
+        flush();
+      }
+    }, batchMillis, batchMillis, TimeUnit.MILLISECONDS);
+
+    Runtime.getRuntime().addShutdownHook(new Thread() {
+      @Override
+      public void run() {
+        shutdown();
+      }
+    });
+  }
+
+  public void publish(InvalidationEvent event) {
+    pending.add(event);
+    deliver(event);
+  }
+
+  public void addListener(Listener listener) {
+    listeners.add(listener);
+  }
+
+  /**
+   * Stop sending and receiving events. Events still waiting for their batch are lost.
+   */
+  public void shutdown() {
+    flusher.shutdownNow();
+    socket.close();
+  }
+
+  public long getSentPacketCount() {
+    return sentPackets.get();
+  }
+
+  public long getReceivedEventCount() {
+    return receivedEvents.get();
+  }
+
+  /**
+   * @return The number of datagrams dropped because they were malformed or not signed with the
+   *     shared key.
+   */
+  public long getRejectedPacketCount() {
+    return rejectedPackets.get();
+  }
+
+  /**
+   * Send every pending event.
+   */
+  void flush() {
+    List<InvalidationEvent> batch = Lists.newArrayList();
+    for (InvalidationEvent event = pending.poll(); event != null; event = pending.poll()) {
+      batch.add(event);
+    }
+    if (batch.isEmpty()) {
+      return;
+    }
+    try {
+      for (byte[] packet : encode(batch, sender, key)) {
+        socket.send(new DatagramPacket(packet, packet.length, group, port));
+        sentPackets.incrementAndGet();
+      }
+    } catch (IOException e) {
+      LOG.log(Level.WARNING, "Unable to send " + batch.size() + " invalidation events", e);
+    }
+  }
+
+  private void receive() {
+    byte[] buffer = new byte[MAX_PACKET_SIZE];
+    while (!socket.isClosed()) {
+      DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+      try {
+        socket.receive(packet);
+        for (InvalidationEvent event : decode(buffer, packet.getLength(), sender, key)) {
+          receivedEvents.incrementAndGet();
+          deliver(event);
+        }
+      } catch (IOException e) {
+        if (!socket.isClosed()) {
+          rejectedPackets.incrementAndGet();
+          LOG.log(Level.WARNING, "Ignoring invalidation packet from " + packet.getAddress()
+              + ": " + e.getMessage());
+        }
+      }
+    }
+  }
+
+  private void deliver(InvalidationEvent event) {
+    for (Listener listener : listeners) {
+      try {
+        listener.onInvalidation(event);
+      } catch (RuntimeException e) {
+        LOG.log(Level.WARNING, "Failed to apply invalidation " + event, e);
+      }
+    }
+  }
+
+  /**
+   * Pack events into datagrams of at most {@link #MAX_PACKET_SIZE} bytes. Events too large for
+   * one datagram are split by value.
+   */
+  static List<byte[]> encode(List<InvalidationEvent> events, long sender, byte[] key)
+      throws IOException {
+    List<byte[]> encoded = Lists.newArrayList();
+    for (InvalidationEvent event : events) {
+      encodeEvent(event, encoded);
+    }
+
+    List<byte[]> packets = Lists.newArrayList();
+    ByteArrayOutputStream body = new ByteArrayOutputStream();
+    int count = 0;
+    for (byte[] event : encoded) {
+      if (count > 0 && HEADER_SIZE + body.size() + event.length + MAC_SIZE > MAX_PACKET_SIZE) {
+        packets.add(packet(sender, count, body, key));
+        body.reset();
+        count = 0;
+      }
+      body.write(event);
+      count++;
+    }
+    if (count > 0) {
+      packets.add(packet(sender, count, body, key));
+    }
+    return packets;
+  }
+
+  private static void encodeEvent(InvalidationEvent event, List<byte[]> out) throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    DataOutputStream data = new DataOutputStream(bytes);
+    data.writeByte(event.getType().ordinal());
+    data.writeUTF(event.getOrigin());
+    data.writeUTF(event.getAppKey() == null ? "" : event.getAppKey());
+    data.writeLong(event.getCreated());
+    data.writeInt(event.getValues().size());
+    for (String value : event.getValues()) {
+      data.writeUTF(value);
+    }
+    data.flush();
+
+    if (HEADER_SIZE + bytes.size() + MAC_SIZE <= MAX_PACKET_SIZE) {
+      out.add(bytes.toByteArray());
+      return;
+    }
+    List<String> values = Lists.newArrayList(event.getValues());
+    if (values.size() < 2) {
+      LOG.warning("Dropping invalidation too large to send: " + event);
+      return;
+    }
+    int half = values.size() / 2;
+    encodeEvent(split(event, values.subList(0, half)), out);
+    encodeEvent(split(event, values.subList(half, values.size())), out);
+  }
+
+  private static InvalidationEvent split(InvalidationEvent event, List<String> values) {
+    Set<String> subset = new LinkedHashSet<String>(values);
+    return new InvalidationEvent(event.getType(), event.getOrigin(), event.getAppKey(), subset,
+        event.getCreated());
+  }
+
+  private static byte[] packet(long sender, int count, ByteArrayOutputStream body, byte[] key)
+      throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream(HEADER_SIZE + body.size() + MAC_SIZE);
+    DataOutputStream data = new DataOutputStream(bytes);
+    data.writeInt(MAGIC);
+    data.writeLong(sender);
+    data.writeInt(count);
+    body.writeTo(data);
+    data.flush();
+    data.write(mac(key, bytes.toByteArray(), bytes.size()));
+    data.flush();
+    return bytes.toByteArray();
+  }
+
+  private static byte[] mac(byte[] key, byte[] signed, int length) throws IOException {
+    byte[] content = signed;
+    if (length != signed.length) {
+      content = new byte[length];
+      System.arraycopy(signed, 0, content, 0, length);
+    }
+    try {
+      return Crypto.hmacSha1(key, content);
+    } catch (GeneralSecurityException e) {
+      throw new IOException("Unable to sign invalidation packet: " + e.getMessage());
+    }
+  }
+
+  /**
+   * @return The events in a datagram, or none if it was sent by the given sender.
+   * @throws IOException If the datagram is malformed or not signed with the key.
+   */
+  static List<InvalidationEvent> decode(byte[] packet, int length, long ignoredSender,
+      byte[] key) throws IOException {
+    if (length < HEADER_SIZE + MAC_SIZE) {
+      throw new IOException("Not an invalidation packet");
+    }
+    int signedLength = length - MAC_SIZE;
+    byte[] expected = new byte[MAC_SIZE];
+    System.arraycopy(packet, signedLength, expected, 0, MAC_SIZE);
+    if (!MessageDigest.isEqual(expected, mac(key, packet, signedLength))) {
+      throw new IOException("Invalidation packet failed authentication");
+    }
+    DataInputStream data = new DataInputStream(new ByteArrayInputStream(packet, 0, signedLength));
+    if (data.readInt() != MAGIC) {
+      throw new IOException("Not an invalidation packet");
+    }
+    if (data.readLong() == ignoredSender) {
+      return Collections.emptyList();
+    }
+    int count = data.readInt();
+    List<InvalidationEvent> events = Lists.newArrayList();
+    InvalidationEvent.Type[] types = InvalidationEvent.Type.values();
+    for (int i = 0; i < count; i++) {
+      int type = data.readByte();
+      if (type < 0 || type >= types.length) {
+        throw new IOException("Unknown invalidation type " + type);
+      }
+      String origin = data.readUTF();
+      String appKey = data.readUTF();
+      long created = data.readLong();
+      int valueCount = data.readInt();
+      Set<String> values = new LinkedHashSet<String>();
+      for (int j = 0; j < valueCount; j++) {
+        values.add(data.readUTF());
+      }
+      events.add(new InvalidationEvent(types[type], origin, appKey.length() == 0 ? null : appKey,
+          values, created));
+    }
+    return events;
+  }
+}
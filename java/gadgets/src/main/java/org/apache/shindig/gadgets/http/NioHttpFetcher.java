@@ -0,0 +1,796 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.apache.shindig.gadgets.http;
+
+import com.google.common.base.Preconditions;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import com.google.inject.name.Named;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.lang.StringUtils;
+import org.apache.http.util.ByteArrayBuffer;
+import org.apache.shindig.common.uri.Uri;
+import org.apache.shindig.gadgets.DefaultGuiceModule;
+import org.apache.shindig.gadgets.GadgetException;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.ConnectException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.Charset;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+import javax.annotation.Nullable;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * An HTTP fetcher that multiplexes all plain http fetches over non-blocking sockets served by a
+ * single selector thread, so an outstanding fetch does not hold a thread while the origin
+ * responds. Use {@link #fetchAsync} to fan out many fetches; {@link #fetch} simply waits on the
+ * result.
+ *
+ * Every request is sent with "Connection: close", so connections are not reused. https requests
+ * are delegated to a {@link BasicHttpFetcher} on a separate thread pool, which is also used for
+ * DNS lookups of redirect targets so the selector thread never blocks.
+ *
+ * Like BasicHttpFetcher, this class does not restrict which hosts may be fetched.
+ */
+@Singleton
+public class NioHttpFetcher implements AsyncHttpFetcher {
+  private static final Logger LOG = Logger.getLogger(NioHttpFetcher.class.getName());
+
+  private static final int DEFAULT_CONNECT_TIMEOUT_MS = 5000;
+  private static final int DEFAULT_READ_TIMEOUT_MS = 5000;
+  private static final int DEFAULT_MAX_OBJECT_SIZE = 0;  // no limit
+  private static final long DEFAULT_SLOW_RESPONSE_WARNING = 10000;
+
+  private static final int MAX_REDIRECTS = 10;
+  private static final int READ_BUFFER_SIZE = 16384;
+  // How often the selector thread wakes up to expire timed out fetches.
+  private static final long SELECT_INTERVAL_MS = 100;
+  private static final Charset HEADER_CHARSET = Charset.forName("ISO-8859-1");
+  private static final byte[] CRLF = {'\r', '\n'};
+  private static final byte[] HEADER_END = {'\r', '\n', '\r', '\n'};
+
+  private final HttpFetcher secureFetcher;
+  private final String proxyHost;
+  private final int proxyPort;
+
+  private final Selector selector;
+  private final Queue<Exchange> pending = new ConcurrentLinkedQueue<Exchange>();
+  private final ExecutorService blockingExecutor =
+      Executors.newCachedThreadPool(DefaultGuiceModule.DAEMON_THREAD_FACTORY);
+  // Only touched by the selector thread.
+  private final ByteBuffer readBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+  private volatile boolean running = true;
+
+  // mutable fields must be volatile
+  private volatile int maxObjSize = DEFAULT_MAX_OBJECT_SIZE;
+  private volatile long slowResponseWarning = DEFAULT_SLOW_RESPONSE_WARNING;
+  private volatile int connectTimeoutMs = DEFAULT_CONNECT_TIMEOUT_MS;
+  private volatile int readTimeoutMs = DEFAULT_READ_TIMEOUT_MS;
+
+  /**
+   * @param secureFetcher The fetcher used for https requests.
+   * @param basicHttpFetcherProxy The http proxy to use, as host:port.
+   */
+  @Inject
+  public NioHttpFetcher(BasicHttpFetcher secureFetcher,
+      @Nullable @Named("org.apache.shindig.gadgets.http.basicHttpFetcherProxy")
+      String basicHttpFetcherProxy) {
+    this.secureFetcher = secureFetcher;
+    if (StringUtils.isEmpty(basicHttpFetcherProxy)) {
+      proxyHost = null;
+      proxyPort = -1;
+    } else {
+      String[] splits = basicHttpFetcherProxy.split(":");
+      proxyHost = splits[0];
+      proxyPort = Integer.parseInt(splits[1]);
+    }
+
+    try {
+      selector = Selector.open();
+    } catch (IOException e) {
+      throw new IllegalStateException("Unable to open selector", e);
+    }
+    Thread selectorThread = new Thread(new Runnable() {
+      public void run() {
+        select();
+      }
+    }, "NioHttpFetcher");
+    selectorThread.setDaemon(true);
+    selectorThread.start();
+  }
+
+  public HttpResponse fetch(HttpRequest request) throws GadgetException {
+    Future<HttpResponse> response = fetchAsync(request);
+    try {
+      return response.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      return HttpResponse.timeout();
+    } catch (ExecutionException e) {
+      Throwable cause = e.getCause();
+      if (cause instanceof GadgetException) {
+        throw (GadgetException) cause;
+      }
+      throw new GadgetException(GadgetException.Code.INTERNAL_SERVER_ERROR, cause,
+          HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
+    }
+  }
+
+  public Future<HttpResponse> fetchAsync(HttpRequest request) throws GadgetException {
+    Preconditions.checkNotNull(request);
+    checkUri(request.getUri());
+
+    byte[] body;
+    try {
+      body = IOUtils.toByteArray(request.getPostBody());
+    } catch (IOException e) {
+      throw new GadgetException(GadgetException.Code.INTERNAL_SERVER_ERROR, e,
+          HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
+    }
+    ResponseFuture future = new ResponseFuture();
+    start(new Exchange(request, body, future, System.currentTimeMillis(), MAX_REDIRECTS));
+    return future;
+  }
+
+  /**
+   * Starts an exchange, both for new fetches and for redirects. Https goes to the secure fetcher,
+   * which blocks, so it runs on the blocking executor.
+   */
+  private void start(final Exchange exchange) {
+    if ("https".equalsIgnoreCase(exchange.uri.getScheme())) {
+      blockingExecutor.execute(new Runnable() {
+        public void run() {
+          try {
+            exchange.future.set(secureFetcher.fetch(exchange.request));
+          } catch (GadgetException e) {
+            exchange.future.setException(e);
+          }
+        }
+      });
+    } else {
+      dispatch(exchange);
+    }
+  }
+  /**
+   * Stops the selector thread. Outstanding fetches fail.
+   */
+  public void shutdown() {
+    running = false;
+    selector.wakeup();
+    blockingExecutor.shutdownNow();
+  }
+
+  /**
+   * Called when a request takes too long.   Consider subclassing this if you want to do something
+   * other than logging a warning .
+   *
+   * @param request the request that generated the slowrequest
+   * @param started  the time the request started, in milliseconds.
+   * @param finished the time the request finished, in milliseconds.
+   */
+  protected void slowResponseWarning(HttpRequest request, long started, long finished) {
+    LOG.warning("Slow response from " + request.getUri() + ' ' + (finished - started) + "ms");
+  }
+
+  /**
+   * Change the global maximum fetch size (in bytes) for all fetches.
+   *
+   * @param maxObjectSizeBytes value for maximum number of bytes, or 0 for no limit
+   */
+  @Inject(optional = true)
+  public void setMaxObjectSizeBytes(
+      @Named("shindig.http.client.max-object-size-bytes") int maxObjectSizeBytes) {
+    this.maxObjSize = maxObjectSizeBytes;
+  }
+
+  /**
+   * Change the global threshold for warning about slow responses
+   *
+   * @param slowResponseWarning time in milliseconds after we issue a warning
+   */
+  @Inject(optional = true)
+  public void setSlowResponseWarning(
+      @Named("shindig.http.client.slow-response-warning") long slowResponseWarning) {
+    this.slowResponseWarning = slowResponseWarning;
+  }
+
+  /**
+   * Change the global connection timeout for all new fetchs.
+   *
+   * @param connectionTimeoutMs new connection timeout in milliseconds
+   */
+  @Inject(optional = true)
+  public void setConnectionTimeoutMs(
+      @Named("shindig.http.client.connection-timeout-ms") int connectionTimeoutMs) {
+    Preconditions.checkArgument(connectionTimeoutMs > 0,
+        "connection-timeout-ms must be greater than 0");
+    this.connectTimeoutMs = connectionTimeoutMs;
+  }
+
+  /**
+   * Change the global read timeout for all new fetchs.
+   *
+   * @param readTimeoutMs new connection timeout in milliseconds
+   */
+  @Inject(optional = true)
+  public void setReadTimeoutMs(@Named("shindig.http.client.read-timeout-ms") int readTimeoutMs) {
+    Preconditions.checkArgument(readTimeoutMs > 0, "read-timeout-ms must be greater than 0");
+    this.readTimeoutMs = readTimeoutMs;
+  }
+
+  private static void checkUri(Uri uri) throws GadgetException {
+    if (StringUtils.isEmpty(uri.getAuthority())) {
+      throw new GadgetException(GadgetException.Code.INVALID_USER_DATA,
+          "Missing domain name for request: " + uri,
+          HttpServletResponse.SC_BAD_REQUEST);
+    }
+    if (StringUtils.isEmpty(uri.getScheme())) {
+      throw new GadgetException(GadgetException.Code.INVALID_USER_DATA,
+          "Missing schema for request: " + uri,
+          HttpServletResponse.SC_BAD_REQUEST);
+    }
+    if (!"http".equalsIgnoreCase(uri.getScheme()) && !"https".equalsIgnoreCase(uri.getScheme())) {
+      throw new GadgetException(GadgetException.Code.INVALID_USER_DATA,
+          "Unsupported scheme for request: " + uri,
+          HttpServletResponse.SC_BAD_REQUEST);
+    }
+    String[] hostparts = StringUtils.splitPreserveAllTokens(uri.getAuthority(), ':');
+    if (hostparts.length > 2) {
+      throw new GadgetException(GadgetException.Code.INVALID_USER_DATA,
+          "Bad host name in request: " + uri.getAuthority(),
+          HttpServletResponse.SC_BAD_REQUEST);
+    }
+    if (hostparts.length == 2) {
+      try {
+        Integer.parseInt(hostparts[1]);
+      } catch (NumberFormatException e) {
+        throw new GadgetException(GadgetException.Code.INVALID_USER_DATA,
+            "Bad port number in request: " + uri.getAuthority(),
+            HttpServletResponse.SC_BAD_REQUEST);
+      }
+    }
+  }
+
+  /**
+   * Resolves the exchange's address and hands it to the selector thread. May block on DNS.
+   */
+  private void dispatch(Exchange exchange) {
+    InetSocketAddress address;
+    if (proxyHost != null) {
+      address = new InetSocketAddress(proxyHost, proxyPort);
+    } else {
+      String[] hostparts = StringUtils.splitPreserveAllTokens(exchange.uri.getAuthority(), ':');
+      int port = hostparts.length == 2 ? Integer.parseInt(hostparts[1])
+          : "https".equalsIgnoreCase(exchange.uri.getScheme()) ? 443 : 80;
+      address = new InetSocketAddress(hostparts[0], port);
+    }
+    if (address.isUnresolved()) {
+      LOG.info("Timeout for " + exchange.uri + " Exception: unknown host " + address.getHostName());
+      exchange.future.set(HttpResponse.timeout());
+      return;
+    }
+    exchange.address = address;
+    pending.offer(exchange);
+    selector.wakeup();
+  }
+
+  private void select() {
+    while (running) {
+      try {
+        selector.select(SELECT_INTERVAL_MS);
+        connectPending();
+        Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+        while (keys.hasNext()) {
+          SelectionKey key = keys.next();
+          keys.remove();
+          Exchange exchange = (Exchange) key.attachment();
+          try {
+            if (!key.isValid()) {
+              continue;
+            }
+            if (key.isConnectable()) {
+              exchange.finishConnect(key);
+            } else if (key.isWritable()) {
+              exchange.write(key);
+            } else if (key.isReadable()) {
+              exchange.read(key);
+            }
+          } catch (IOException e) {
+            exchange.fail(e);
+          }
+        }
+        expireTimedOut();
+      } catch (IOException e) {
+        LOG.log(Level.WARNING, "Selector failure", e);
+      } catch (RuntimeException e) {
+        LOG.log(Level.WARNING, "Unexpected selector failure", e);
+      }
+    }
+
+    for (SelectionKey key : selector.keys()) {
+      ((Exchange) key.attachment()).fail(new IOException("Fetcher shut down"));
+    }
+    try {
+      selector.close();
+    } catch (IOException e) {
+      LOG.log(Level.FINE, "Failed to close selector", e);
+    }
+  }
+
+  private void connectPending() {
+    Exchange exchange;
+    while ((exchange = pending.poll()) != null) {
+      try {
+        exchange.connect();
+      } catch (IOException e) {
+        exchange.fail(e);
+      }
+    }
+  }
+
+  private void expireTimedOut() {
+    long now = System.currentTimeMillis();
+    for (SelectionKey key : selector.keys()) {
+      Exchange exchange = (Exchange) key.attachment();
+      if (now > exchange.deadline) {
+        LOG.info("Timeout for " + exchange.uri + " - " + (now - exchange.started) + "ms");
+        exchange.complete(HttpResponse.timeout());
+      }
+    }
+  }
+
+  /**
+   * A single request/response exchange on one connection. All methods except the constructor
+   * run on the selector thread.
+   */
+  private final class Exchange {
+    private final HttpRequest request;
+    private final Uri uri;
+    private final byte[] body;
+    private final ResponseFuture future;
+    private final long started;
+    private final int redirectsLeft;
+
+    private InetSocketAddress address;
+    private SocketChannel channel;
+    private ByteBuffer out;
+    private long deadline;
+
+    private final ByteArrayBuffer received = new ByteArrayBuffer(READ_BUFFER_SIZE);
+    private HttpResponseBuilder builder;
+    private int bodyStart = -1;
+    private long contentLength = -1;
+    private boolean chunked;
+
+    Exchange(HttpRequest request, byte[] body, ResponseFuture future, long started,
+        int redirectsLeft) {
+      this.request = request;
+      this.uri = request.getUri();
+      this.body = body;
+      this.future = future;
+      this.started = started;
+      this.redirectsLeft = redirectsLeft;
+    }
+
+    void connect() throws IOException {
+      out = ByteBuffer.wrap(encodeRequest());
+      deadline = System.currentTimeMillis() + connectTimeoutMs;
+      channel = SocketChannel.open();
+      channel.configureBlocking(false);
+      if (channel.connect(address)) {
+        startWriting(channel.register(selector, SelectionKey.OP_WRITE, this));
+      } else {
+        channel.register(selector, SelectionKey.OP_CONNECT, this);
+      }
+    }
+
+    void finishConnect(SelectionKey key) throws IOException {
+      if (channel.finishConnect()) {
+        startWriting(key);
+      }
+    }
+
+    private void startWriting(SelectionKey key) {
+      key.interestOps(SelectionKey.OP_WRITE);
+      deadline = System.currentTimeMillis() + readTimeoutMs;
+    }
+
+    void write(SelectionKey key) throws IOException {
+      channel.write(out);
+      if (!out.hasRemaining()) {
+        key.interestOps(SelectionKey.OP_READ);
+      }
+      deadline = System.currentTimeMillis() + readTimeoutMs;
+    }
+
+    void read(SelectionKey key) throws IOException {
+      readBuffer.clear();
+      int read = channel.read(readBuffer);
+      if (read < 0) {
+        endOfStream();
+        return;
+      }
+      received.append(readBuffer.array(), 0, read);
+      deadline = System.currentTimeMillis() + readTimeoutMs;
+
+      if (bodyStart < 0 && !parseHead()) {
+        return;
+      }
+      long bodyLength = received.length() - bodyStart;
+      if (maxObjSize > 0 && (bodyLength > maxObjSize || contentLength > maxObjSize)) {
+        complete(HttpResponse.badrequest("Exceeded maximum number of bytes - " + maxObjSize));
+      } else if (contentLength >= 0 && !chunked && bodyLength >= contentLength) {
+        finish();
+      }
+    }
+
+    private void endOfStream() throws IOException {
+      if (bodyStart < 0) {
+        // Same as NoHttpResponseException in BasicHttpFetcher.
+        LOG.info("Timeout for " + uri + " Exception: no response - "
+            + (System.currentTimeMillis() - started) + "ms");
+        complete(HttpResponse.timeout());
+      } else if (contentLength >= 0 && !chunked
+          && received.length() - bodyStart < contentLength) {
+        throw new IOException("Connection closed before end of body");
+      } else {
+        finish();
+      }
+    }
+
+    /**
+     * Parses the status line and headers once they have been received in full.
+     *
+     * @return true if the headers were parsed.
+     */
+    private boolean parseHead() throws IOException {
+      int end = indexOf(received.buffer(), 0, received.length(), HEADER_END);
+      if (end < 0) {
+        return false;
+      }
+      bodyStart = end + HEADER_END.length;
+      String head = new String(received.buffer(), 0, end, HEADER_CHARSET.name());
+      String[] lines = StringUtils.split(head, "\r\n");
+      String[] statusLine = StringUtils.split(lines[0], ' ');
+      if (statusLine.length < 2 || !statusLine[0].startsWith("HTTP/")) {
+        throw new IOException("Invalid status line: " + lines[0]);
+      }
+
+      builder = new HttpResponseBuilder();
+      try {
+        builder.setHttpStatusCode(Integer.parseInt(statusLine[1]));
+      } catch (NumberFormatException e) {
+        throw new IOException("Invalid status line: " + lines[0]);
+      }
+      for (int i = 1; i < lines.length; ++i) {
+        int colon = lines[i].indexOf(':');
+        if (colon <= 0) {
+          continue;
+        }
+        String name = lines[i].substring(0, colon).trim();
+        String value = lines[i].substring(colon + 1).trim();
+        builder.addHeader(name, value);
+        if ("Content-Length".equalsIgnoreCase(name)) {
+          try {
+            contentLength = Long.parseLong(value);
+          } catch (NumberFormatException e) {
+            throw new IOException("Invalid Content-Length: " + value);
+          }
+        } else if ("Transfer-Encoding".equalsIgnoreCase(name)
+            && value.toLowerCase().contains("chunked")) {
+          chunked = true;
+        }
+      }
+
+      int status = builder.getHttpStatusCode();
+      if ("HEAD".equals(request.getMethod()) || status == HttpResponse.SC_NO_CONTENT
+          || status == HttpResponse.SC_NOT_MODIFIED || status < HttpResponse.SC_OK) {
+        contentLength = 0;
+        chunked = false;
+      }
+      return true;
+    }
+
+    private void finish() throws IOException {
+      close();
+      byte[] content = new byte[received.length() - bodyStart];
+      System.arraycopy(received.buffer(), bodyStart, content, 0, content.length);
+      if (chunked) {
+        content = dechunk(content);
+      }
+      content = decode(content);
+      if (maxObjSize > 0 && content.length > maxObjSize) {
+        complete(HttpResponse.badrequest("Exceeded maximum number of bytes - " + maxObjSize));
+        return;
+      }
+      HttpResponse response = builder.setResponseNoCopy(content).create();
+
+      Uri location = getRedirect(response);
+      if (location != null) {
+        final HttpRequest redirect = new HttpRequest(request).setUri(location);
+        if (response.getHttpStatusCode() == HttpResponse.SC_SEE_OTHER) {
+          redirect.setMethod("GET");
+        }
+        final Exchange next = new Exchange(redirect, body, future, started, redirectsLeft - 1);
+        // Resolving the new host may block.
+        blockingExecutor.execute(new Runnable() {
+          public void run() {
+            start(next);
+          }
+        });
+        return;
+      }
+
+      long now = System.currentTimeMillis();
+      if (now - started > slowResponseWarning) {
+        slowResponseWarning(request, started, now);
+      }
+      future.set(response);
+    }
+
+    private Uri getRedirect(HttpResponse response) {
+      int status = response.getHttpStatusCode();
+      String location = response.getHeader("Location");
+      if (!request.getFollowRedirects() || location == null || redirectsLeft <= 0) {
+        return null;
+      }
+      String method = request.getMethod();
+      boolean safe = "GET".equals(method) || "HEAD".equals(method);
+      if ((status == HttpResponse.SC_MOVED_PERMANENTLY || status == HttpResponse.SC_FOUND
+          || status == HttpResponse.SC_TEMPORARY_REDIRECT) && safe
+          || status == HttpResponse.SC_SEE_OTHER) {
+        try {
+          Uri resolved = uri.resolve(Uri.parse(location));
+          checkUri(resolved);
+          return resolved;
+        } catch (IllegalArgumentException e) {
+          LOG.info("Invalid redirect from " + uri + " to " + location);
+        } catch (GadgetException e) {
+          LOG.info("Invalid redirect from " + uri + " to " + location);
+        }
+      }
+      return null;
+    }
+
+    private byte[] decode(byte[] content) throws IOException {
+      String encoding = builder.getHeader("Content-Encoding");
+      InputStream decoded;
+      if ("gzip".equalsIgnoreCase(encoding)) {
+        decoded = new GZIPInputStream(new ByteArrayInputStream(content));
+      } else if ("deflate".equalsIgnoreCase(encoding)) {
+        decoded = new InflaterInputStream(new ByteArrayInputStream(content), new Inflater(true));
+      } else {
+        return content;
+      }
+      builder.removeHeader("Content-Encoding");
+      builder.removeHeader("Content-Length");
+      try {
+        return IOUtils.toByteArray(decoded);
+      } finally {
+        decoded.close();
+      }
+    }
+
+    private byte[] encodeRequest() throws IOException {
+      String method = request.getMethod();
+      String target = StringUtils.isEmpty(uri.getPath()) ? "/" : uri.getPath();
+      if (uri.getQuery() != null) {
+        target += '?' + uri.getQuery();
+      }
+      if (proxyHost != null) {
+        target = uri.getScheme() + "://" + uri.getAuthority() + target;
+      }
+
+      StringBuilder head = new StringBuilder(method).append(' ').append(target)
+          .append(" HTTP/1.1\r\n")
+          .append("Host: ").append(uri.getAuthority()).append("\r\n");
+      Map<String, List<String>> headers = request.getHeaders();
+      for (Map.Entry<String, List<String>> entry : headers.entrySet()) {
+        String name = entry.getKey();
+        if ("Host".equalsIgnoreCase(name) || "Connection".equalsIgnoreCase(name)
+            || "Content-Length".equalsIgnoreCase(name)) {
+          continue;
+        }
+        head.append(name).append(": ").append(StringUtils.join(entry.getValue(), ','))
+            .append("\r\n");
+      }
+      if (request.getHeader("User-Agent") == null) {
+        head.append("User-Agent: Apache Shindig\r\n");
+      }
+      if (request.getHeader("Accept-Encoding") == null) {
+        head.append("Accept-Encoding: gzip, deflate\r\n");
+      }
+      head.append("Connection: close\r\n");
+      boolean sendBody = "POST".equals(method) || "PUT".equals(method);
+      if (sendBody) {
+        head.append("Content-Length: ").append(body.length).append("\r\n");
+      }
+      head.append("\r\n");
+
+      byte[] headBytes = head.toString().getBytes(HEADER_CHARSET.name());
+      if (!sendBody || body.length == 0) {
+        return headBytes;
+      }
+      byte[] bytes = new byte[headBytes.length + body.length];
+      System.arraycopy(headBytes, 0, bytes, 0, headBytes.length);
+      System.arraycopy(body, 0, bytes, headBytes.length, body.length);
+      return bytes;
+    }
+
+    void fail(IOException e) {
+      close();
+      long now = System.currentTimeMillis();
+      if (e instanceof ConnectException) {
+        LOG.info("Timeout for " + uri + " Exception: " + e.getClass().getName() + " - "
+            + e.getMessage() + " - " + (now - started) + "ms");
+        future.set(HttpResponse.timeout());
+        return;
+      }
+      LOG.log(Level.INFO, "Got Exception fetching " + uri + " - " + (now - started) + "ms", e);
+      future.setException(new GadgetException(GadgetException.Code.INTERNAL_SERVER_ERROR, e,
+          HttpServletResponse.SC_INTERNAL_SERVER_ERROR));
+    }
+
+    void complete(HttpResponse response) {
+      close();
+      future.set(response);
+    }
+
+    private void close() {
+      if (channel != null) {
+        try {
+          // Closing the channel also cancels its selection key.
+          channel.close();
+        } catch (IOException e) {
+          LOG.log(Level.FINE, "Failed to close connection to " + uri, e);
+        }
+      }
+    }
+  }
+
+  private static int indexOf(byte[] data, int from, int length, byte[] pattern) {
+    outer:
+    for (int i = from; i <= length - pattern.length; ++i) {
+      for (int j = 0; j < pattern.length; ++j) {
+        if (data[i + j] != pattern[j]) {
+          continue outer;
+        }
+      }
+      return i;
+    }
+    return -1;
+  }
+
+  /**
+   * Decodes a body sent with "Transfer-Encoding: chunked". Trailers are ignored.
+   */
+  static byte[] dechunk(byte[] chunked) throws IOException {
+    ByteArrayBuffer decoded = new ByteArrayBuffer(chunked.length);
+    int pos = 0;
+    while (pos < chunked.length) {
+      int lineEnd = indexOf(chunked, pos, chunked.length, CRLF);
+      if (lineEnd < 0) {
+        throw new IOException("Truncated chunk header");
+      }
+      String sizeLine = new String(chunked, pos, lineEnd - pos, HEADER_CHARSET.name());
+      int extension = sizeLine.indexOf(';');
+      if (extension >= 0) {
+        sizeLine = sizeLine.substring(0, extension);
+      }
+      int size;
+      try {
+        size = Integer.parseInt(sizeLine.trim(), 16);
+      } catch (NumberFormatException e) {
+        throw new IOException("Invalid chunk size: " + sizeLine);
+      }
+      pos = lineEnd + 2;
+      if (size == 0) {
+        break;
+      }
+      if (pos + size > chunked.length) {
+        throw new IOException("Truncated chunk");
+      }
+      decoded.append(chunked, pos, size);
+      // Skip the chunk and its trailing CRLF.
+      pos += size + 2;
+    }
+    return decoded.toByteArray();
+  }
+
+  /**
+   * A future completed by the selector thread.
+   */
+  private static final class ResponseFuture implements Future<HttpResponse> {
+    private final CountDownLatch done = new CountDownLatch(1);
+    private final AtomicBoolean completed = new AtomicBoolean();
+    private volatile HttpResponse response;
+    private volatile GadgetException exception;
+
+    void set(HttpResponse response) {
+      if (completed.compareAndSet(false, true)) {
+        this.response = response;
+        done.countDown();
+      }
+    }
+
+    void setException(GadgetException exception) {
+      if (completed.compareAndSet(false, true)) {
+        this.exception = exception;
+        done.countDown();
+      }
+    }
+
+    public boolean cancel(boolean mayInterruptIfRunning) {
+      return false;
+    }
+
+    public boolean isCancelled() {
+      return false;
+    }
+
+    public boolean isDone() {
+      return done.getCount() == 0;
+    }
+
+    public HttpResponse get() throws InterruptedException, ExecutionException {
+      done.await();
+      return getResult();
+    }
+
+    public HttpResponse get(long timeout, TimeUnit unit)
+        throws InterruptedException, ExecutionException, TimeoutException {
+      if (!done.await(timeout, unit)) {
+        throw new TimeoutException();
+      }
+      return getResult();
+    }
+
+    private HttpResponse getResult() throws ExecutionException {
+      if (exception != null) {
+        throw new ExecutionException(exception);
+      }
+      return response;
+    }
+  }
+}
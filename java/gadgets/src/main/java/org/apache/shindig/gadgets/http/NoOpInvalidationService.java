@@ -35,6 +35,10 @@ public class NoOpInvalidationService implements InvalidationService {
     // No op
   }
 
+  public void invalidateTags(Set<String> tags, SecurityToken token) {
+    // No op
+  }
+
   public boolean isValid(HttpRequest request, HttpResponse response) {
     return true;
   }
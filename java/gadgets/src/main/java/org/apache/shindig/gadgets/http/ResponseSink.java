@@ -0,0 +1,42 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.apache.shindig.gadgets.http;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Receives a response body as it is fetched, so that large bodies can be passed on without being
+ * held in memory. Set on a request with {@link HttpRequest#setResponseSink}.
+ *
+ * A streamed response is returned from the fetcher without a body and carries the
+ * {@link #STREAMED} metadata key. It is never rewritten or cached.
+ */
+public interface ResponseSink {
+  /** Metadata key present on responses whose body went to the sink. */
+  String STREAMED = "streamed";
+
+  /**
+   * Called once the status line and headers have been read.
+   *
+   * @param request The request being fetched.
+   * @param head The response, without a body.
+   * @return The stream to copy the body to, or null to buffer the body as usual.
+   */
+  OutputStream open(HttpRequest request, HttpResponse head) throws IOException;
+}
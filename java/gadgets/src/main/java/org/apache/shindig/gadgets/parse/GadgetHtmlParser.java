@@ -24,7 +24,6 @@ import com.google.inject.Provider;
 
 import org.apache.shindig.common.cache.Cache;
 import org.apache.shindig.common.cache.CacheProvider;
-import org.apache.shindig.common.util.HashUtil;
 import org.apache.shindig.gadgets.GadgetException;
 import org.apache.shindig.gadgets.parse.nekohtml.NekoSimplifiedHtmlParser;
 import org.w3c.dom.Attr;
@@ -47,6 +46,8 @@ public abstract class GadgetHtmlParser {
   public static final String PARSED_DOCUMENTS = "parsedDocuments";
   public static final String PARSED_FRAGMENTS = "parsedFragments";
 
+  // Keyed by the source itself. Strings cache their hash, and the source is small next to the
+  // parse tree it maps to, so this is cheaper than checksumming the source on every call.
   private Cache<String, Document> documentCache;
   private Cache<String, DocumentFragment> fragmentCache;
   private Provider<HtmlSerializer> serializerProvider = new DefaultSerializerProvider();
@@ -76,15 +77,24 @@ public abstract class GadgetHtmlParser {
     return normalized.contains("<!DOCTYPE") || normalized.contains("<HTML");
   }
 
+  /**
+   * @return A document parsed from the source, which the caller may change freely.
+   */
   public Document parseDom(String source) throws GadgetException {
+    return copyDom(parseDomReadOnly(source));
+  }
+
+  /**
+   * Returns a document parsed from the source that may be shared with other callers, and so
+   * must not be changed. Use {@link #copyDom} for a private copy before making changes. When
+   * parsed documents are cached this hands out the cached document itself, so neither a copy
+   * nor a parse is made for callers that only read it.
+   */
+  public Document parseDomReadOnly(String source) throws GadgetException {
     Document document = null;
-    String key = null;
-    // Avoid checksum overhead if we arent caching
     boolean shouldCache = shouldCache();
     if (shouldCache) {
-      // TODO - Consider using the source if its under a certain size
-      key = HashUtil.checksum(source.getBytes());
-      document = documentCache.getElement(key);
+      document = documentCache.getElement(source);
     }
 
     if (document == null) {
@@ -94,6 +104,7 @@ public abstract class GadgetHtmlParser {
         // DOMException is a RuntimeException
         document = errorDom(e);
         HtmlSerialization.attach(document, serializerProvider.get(), source);
+        // Not cached, so the caller already has its own copy.
         return document;
       } catch (NullPointerException e) {
         throw new GadgetException(GadgetException.Code.INTERNAL_SERVER_ERROR,
@@ -189,16 +200,23 @@ public abstract class GadgetHtmlParser {
       reprocessScriptForOpenSocial(html);
 
       if (shouldCache) {
-        documentCache.addElement(key, document);
+        documentCache.addElement(source, document);
       }
     }
+    return document;
+  }
 
-    if (shouldCache) {
-      Document copy = (Document)document.cloneNode(true);
-      HtmlSerialization.copySerializer(document, copy);
-      return copy;
+  /**
+   * @return A copy of a document returned by {@link #parseDomReadOnly} that the caller may
+   *     change. Documents that are not shared are returned as they are.
+   */
+  public Document copyDom(Document readOnly) {
+    if (!shouldCache()) {
+      return readOnly;
     }
-    return document;
+    Document copy = (Document)readOnly.cloneNode(true);
+    HtmlSerialization.copySerializer(readOnly, copy);
+    return copy;
   }
 
   protected void transferChildren(Node to, Node from) {
@@ -230,10 +248,8 @@ public abstract class GadgetHtmlParser {
    */
   public void parseFragment(String source, Node result) throws GadgetException {
     boolean shouldCache = shouldCache();
-    String key = null;
     if (shouldCache) {
-      key = HashUtil.checksum(source.getBytes());
-      DocumentFragment cachedFragment = fragmentCache.getElement(key);
+      DocumentFragment cachedFragment = fragmentCache.getElement(source);
       if (cachedFragment != null) {
         copyFragment(cachedFragment, result);
         return;
@@ -251,7 +267,7 @@ public abstract class GadgetHtmlParser {
 
     reprocessScriptForOpenSocial(fragment);
     if (shouldCache) {
-      fragmentCache.addElement(key, fragment);
+      fragmentCache.addElement(source, fragment);
     }
     copyFragment(fragment, result);
   }
@@ -20,6 +20,7 @@ package org.apache.shindig.gadgets.parse.caja;
 import org.apache.shindig.common.cache.Cache;
 import org.apache.shindig.common.cache.CacheProvider;
 import org.apache.shindig.common.uri.Uri;
+import org.apache.shindig.common.util.CharsetUtil;
 import org.apache.shindig.common.util.HashUtil;
 import org.apache.shindig.gadgets.GadgetException;
 import org.apache.shindig.gadgets.http.HttpResponse;
@@ -32,6 +33,10 @@ import com.google.caja.lexer.ParseException;
 import com.google.caja.lexer.Token;
 import com.google.caja.lexer.TokenQueue;
 import com.google.caja.lexer.TokenStream;
+import com.google.caja.parser.AbstractParseTreeNode;
+import com.google.caja.parser.AncestorChain;
+import com.google.caja.parser.ParseTreeNode;
+import com.google.caja.parser.Visitor;
 import com.google.caja.parser.css.CssParser;
 import com.google.caja.parser.css.CssTree;
 import com.google.caja.render.Concatenator;
@@ -41,12 +46,24 @@ import com.google.caja.reporting.MessageQueue;
 import com.google.caja.reporting.RenderContext;
 import com.google.caja.reporting.SimpleMessageQueue;
 import com.google.caja.util.Criterion;
+import com.google.common.base.Function;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
 import com.google.inject.Inject;
+import com.google.inject.name.Named;
 
+import java.io.IOException;
 import java.io.StringReader;
 import java.io.StringWriter;
 import java.io.Writer;
+import java.security.SecureRandom;
 import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
 
 /**
  * A CSS DOM parser using Caja.
@@ -60,13 +77,29 @@ public class CajaCssParser {
 
   private static final String PARSED_CSS = "parsedCss";
 
-  private Cache<String, CssTree.StyleSheet> parsedCssCache;
+  // Stands in for the urls of a stylesheet while it is serialized, see ParsedCss. Random so that
+  // stylesheets can't contain it by accident.
+  private static final String URI_MARKER =
+      "shindig" + Long.toHexString(new SecureRandom().nextLong()) + 'x';
+  private static final char URI_MARKER_END = 'z';
+
+  private Cache<String, ParsedCss> parsedCssCache;
+  private ExecutorService executor;
 
   @Inject
   public void setCacheProvider(CacheProvider cacheProvider) {
     parsedCssCache = cacheProvider.createCache(PARSED_CSS);
   }
 
+  /**
+   * Lets {@link #parseAll} parse stylesheets in parallel. Without an executor they are parsed
+   * one after another in the calling thread.
+   */
+  @Inject(optional = true)
+  public void setExecutor(@Named("shindig.css.parse.executor") ExecutorService executor) {
+    this.executor = executor;
+  }
+
   /**
    * Parse CSS content into Caja's CSS DOM model
    *
@@ -79,32 +112,101 @@ public class CajaCssParser {
   
   public CssTree.StyleSheet parseDom(String content, Uri source)
       throws GadgetException {
-    CssTree.StyleSheet parsedCss = null;
-    boolean shouldCache = shouldCache();
-    String key = null;
-    if (shouldCache) {
-      // TODO - Consider using the source if its under a certain size
-      key = HashUtil.checksum(content.getBytes());
-      parsedCss = parsedCssCache.getElement(key);
+    if (shouldCache()) {
+      // Cached trees are shared, callers get their own copy to change.
+      return (CssTree.StyleSheet) parse(content, source).styleSheet.clone();
     }
-    if (parsedCss == null) {
-      try {
-        parsedCss = parseImpl(content, source);
-        if (shouldCache) {
-          parsedCssCache.addElement(key, parsedCss);
+    return parseTree(content, source);
+  }
+
+  /**
+   * Parses CSS content for url rewriting. The result may be shared with other callers, and is
+   * never changed.
+   */
+  public ParsedCss parse(String content, Uri source) throws GadgetException {
+    return parse(content, source, shouldCache() ? cacheKey(content, source) : null);
+  }
+
+  /**
+   * Parses several stylesheets from the same source, in parallel if there is an executor.
+   * Stylesheets that no thread is free for right away are parsed in the calling thread.
+   *
+   * @return The parsed stylesheets in order, with null in place of those that failed to parse.
+   *     Parsing them again with {@link #parse} reports why.
+   */
+  public List<ParsedCss> parseAll(List<String> contents, final Uri source) {
+    int size = contents.size();
+    List<ParsedCss> results = Lists.newArrayListWithCapacity(size);
+    List<Future<ParsedCss>> futures = Lists.newArrayListWithCapacity(size);
+    List<String> keys = Lists.newArrayListWithCapacity(size);
+    for (int i = 0; i < size; i++) {
+      final String content = contents.get(i);
+      final String key = shouldCache() ? cacheKey(content, source) : null;
+      ParsedCss cached = key != null ? parsedCssCache.getElement(key) : null;
+      Future<ParsedCss> future = null;
+      // The calling thread parses the first stylesheet itself rather than waiting.
+      if (cached == null && executor != null && i > 0) {
+        try {
+          future = executor.submit(new Callable<ParsedCss>() {
+            public ParsedCss call() throws GadgetException {
+              return parse(content, source, key);
+            }
+          });
+        } catch (RejectedExecutionException e) {
+          // Every thread is busy.
         }
-      } catch (ParseException pe) {
-        // Bad input; not server's fault.
-        throw new GadgetException(GadgetException.Code.CSS_PARSE_ERROR, pe,
-            HttpResponse.SC_BAD_REQUEST);
       }
+      results.add(cached);
+      futures.add(future);
+      keys.add(key);
+    }
+
+    for (int i = 0; i < size; i++) {
+      if (results.get(i) != null) {
+        continue;
+      }
+      Future<ParsedCss> future = futures.get(i);
+      ParsedCss parsed = null;
+      try {
+        parsed = future != null ? future.get() : parse(contents.get(i), source, keys.get(i));
+      } catch (GadgetException e) {
+        // Left to the caller.
+      } catch (ExecutionException e) {
+        // Left to the caller.
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+      results.set(i, parsed);
     }
-    if (shouldCache) {
-      return (CssTree.StyleSheet)parsedCss.clone();
+    return results;
+  }
+
+  private ParsedCss parse(String content, Uri source, String key) throws GadgetException {
+    ParsedCss parsedCss = key != null ? parsedCssCache.getElement(key) : null;
+    if (parsedCss == null) {
+      parsedCss = new ParsedCss(parseTree(content, source));
+      if (key != null) {
+        parsedCssCache.addElement(key, parsedCss);
+      }
     }
     return parsedCss;
   }
 
+  private CssTree.StyleSheet parseTree(String content, Uri source) throws GadgetException {
+    try {
+      return parseImpl(content, source);
+    } catch (ParseException pe) {
+      // Bad input; not server's fault.
+      throw new GadgetException(GadgetException.Code.CSS_PARSE_ERROR, pe,
+          HttpResponse.SC_BAD_REQUEST);
+    }
+  }
+
+  private static String cacheKey(String content, Uri source) {
+    // Parse trees hold the positions of their nodes in the source.
+    return HashUtil.checksum(CharsetUtil.getUtf8Bytes(content)) + ' ' + source;
+  }
+
   private CssTree.StyleSheet parseImpl(String css, Uri source)
       throws ParseException {
     InputSource inputSource = new InputSource(source.toJavaUri());
@@ -129,13 +231,21 @@ public class CajaCssParser {
 
   /** Serialize a stylesheet to a String */
   public String serialize(CssTree.StyleSheet styleSheet) {
-    StringWriter writer = new StringWriter();
-    serialize(styleSheet, writer);
-    return writer.toString();
+    return render(styleSheet);
   }
 
   /** Serialize a stylesheet to a Writer. */
   public void serialize(CssTree.StyleSheet styleSheet, Writer writer) {
+    render(styleSheet, writer);
+  }
+
+  private static String render(CssTree.StyleSheet styleSheet) {
+    StringWriter writer = new StringWriter();
+    render(styleSheet, writer);
+    return writer.toString();
+  }
+
+  private static void render(CssTree.StyleSheet styleSheet, Writer writer) {
     CssPrettyPrinter cssPrinter = new CssPrettyPrinter(new Concatenator(writer, null));
     styleSheet.render(new RenderContext(cssPrinter));
     cssPrinter.noMoreTokens();
@@ -144,4 +254,130 @@ public class CajaCssParser {
   private boolean shouldCache() {
     return parsedCssCache != null && parsedCssCache.getCapacity() != 0;
   }
+
+  /**
+   * A parsed stylesheet that is never changed, so it can be cached and shared.
+   *
+   * For url rewriting the stylesheet is also kept in serialized form, split at its urls. Writing
+   * it out with new urls then takes neither a copy nor a walk of the parse tree, nor another
+   * serialization.
+   */
+  public static final class ParsedCss {
+    private final CssTree.StyleSheet styleSheet;
+    private final List<String> imports;
+    private final String[] text;
+    private final String[] uris;
+    private final String[] bodyText;
+    private final String[] bodyUris;
+
+    /**
+     * Splits the stylesheet at its urls, with and without its @import rules. The stylesheet is
+     * changed while this happens and restored afterwards, which avoids copying it.
+     */
+    private ParsedCss(CssTree.StyleSheet styleSheet) {
+      this.styleSheet = styleSheet;
+
+      final List<CssTree.UriLiteral> literals = Lists.newArrayList();
+      final List<String> allUris = Lists.newArrayList();
+      final List<String> importUris = Lists.newArrayList();
+      final List<AncestorChain<?>> importRules = Lists.newArrayList();
+      styleSheet.acceptPreOrder(new Visitor() {
+        public boolean visit(AncestorChain<?> chain) {
+          if (chain.node instanceof CssTree.Import) {
+            importUris.add(((CssTree.Import) chain.node).getUri().getValue());
+            importRules.add(chain);
+          } else if (chain.node instanceof CssTree.UriLiteral) {
+            CssTree.UriLiteral literal = (CssTree.UriLiteral) chain.node;
+            literals.add(literal);
+            allUris.add(literal.getValue());
+            literal.setValue(URI_MARKER + (allUris.size() - 1) + URI_MARKER_END);
+          }
+          return true;
+        }}, null);
+      imports = ImmutableList.copyOf(importUris);
+
+      List<String> splitText = Lists.newArrayList();
+      List<String> splitUris = Lists.newArrayList();
+      split(render(styleSheet), allUris, splitText, splitUris);
+      text = splitText.toArray(new String[splitText.size()]);
+      uris = splitUris.toArray(new String[splitUris.size()]);
+
+      List<ParseTreeNode> nextSiblings = Lists.newArrayListWithCapacity(importRules.size());
+      for (AncestorChain<?> rule : importRules) {
+        List<? extends ParseTreeNode> siblings = rule.getParentNode().children();
+        int index = siblings.indexOf(rule.node);
+        nextSiblings.add(index + 1 < siblings.size() ? siblings.get(index + 1) : null);
+        ((AbstractParseTreeNode) rule.getParentNode()).removeChild(rule.node);
+      }
+      splitText.clear();
+      splitUris.clear();
+      split(render(styleSheet), allUris, splitText, splitUris);
+      bodyText = splitText.toArray(new String[splitText.size()]);
+      bodyUris = splitUris.toArray(new String[splitUris.size()]);
+
+      // Put the stylesheet back as it was. Following rules are back in place before earlier ones.
+      for (int i = importRules.size() - 1; i >= 0; i--) {
+        AncestorChain<?> rule = importRules.get(i);
+        ((AbstractParseTreeNode) rule.getParentNode()).insertBefore(
+            rule.node, nextSiblings.get(i));
+      }
+      for (int i = 0; i < literals.size(); i++) {
+        literals.get(i).setValue(allUris.get(i));
+      }
+    }
+
+    /**
+     * @return The urls of the stylesheet's @import rules, in order.
+     */
+    public List<String> getImports() {
+      return imports;
+    }
+
+    /**
+     * Writes the stylesheet out with each of its urls replaced.
+     *
+     * @param extractImports If true the @import rules are left out.
+     * @param uriRewriter Returns the url to write in place of each url of the stylesheet.
+     */
+    public void write(Writer writer, boolean extractImports,
+        Function<String, String> uriRewriter) throws IOException {
+      String[] parts = extractImports ? bodyText : text;
+      String[] partUris = extractImports ? bodyUris : uris;
+      writer.write(parts[0]);
+      for (int i = 0; i < partUris.length; i++) {
+        writeEscaped(uriRewriter.apply(partUris[i]), writer);
+        writer.write(parts[i + 1]);
+      }
+    }
+
+    private static void split(String css, List<String> allUris, List<String> text,
+        List<String> uris) {
+      int from = 0;
+      for (int at = css.indexOf(URI_MARKER); at >= 0; at = css.indexOf(URI_MARKER, from)) {
+        int end = css.indexOf(URI_MARKER_END, at + URI_MARKER.length());
+        text.add(css.substring(from, at));
+        uris.add(allUris.get(Integer.parseInt(css.substring(at + URI_MARKER.length(), end))));
+        from = end + 1;
+      }
+      text.add(css.substring(from));
+    }
+  }
+
+  /**
+   * Writes a url into a CSS string or url() token, escaping the characters that could end it or
+   * the enclosing HTML element.
+   */
+  private static void writeEscaped(String uri, Writer writer) throws IOException {
+    for (int i = 0; i < uri.length(); i++) {
+      char c = uri.charAt(i);
+      if (c <= ' ' || c >= 0x7f || c == '\'' || c == '"' || c == '\\' || c == '(' || c == ')'
+          || c == '<' || c == '>') {
+        writer.write('\\');
+        writer.write(Integer.toHexString(c));
+        writer.write(' ');
+      } else {
+        writer.write(c);
+      }
+    }
+  }
 }
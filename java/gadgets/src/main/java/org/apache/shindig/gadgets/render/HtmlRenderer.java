@@ -29,6 +29,7 @@ import org.apache.shindig.gadgets.rewrite.RewritingException;
 import org.apache.shindig.gadgets.spec.View;
 
 import java.util.Collection;
+import java.util.List;
 
 import com.google.inject.Inject;
 
@@ -41,6 +42,7 @@ public class HtmlRenderer {
   private final ProxyRenderer proxyRenderer;
   private final GadgetRewritersProvider gadgetRewritersProvider;
   private final GadgetHtmlParser htmlParser;
+  private RewrittenContentCache rewrittenContentCache;
 
   @Inject
   public HtmlRenderer(PreloaderService preloader,
@@ -53,6 +55,11 @@ public class HtmlRenderer {
     this.htmlParser = htmlParser;
   }
 
+  @Inject(optional = true)
+  public void setRewrittenContentCache(RewrittenContentCache rewrittenContentCache) {
+    this.rewrittenContentCache = rewrittenContentCache;
+  }
+
   /**
    * Render the gadget into a string by performing the following steps:
    *
@@ -60,7 +67,8 @@ public class HtmlRenderer {
    *
    * - Fetch any preloaded data needed to handle the request, as handled by Preloader.
    *
-   * - Perform rewriting operations on the output content, handled by Rewriter.
+   * - Perform rewriting operations on the output content, handled by Rewriter. The output of
+   *   the leading rewriters that don't depend on the request is cached by RewrittenContentCache.
    *
    * @param gadget The gadget for the rendering operation.
    * @return The rendered gadget content
@@ -82,12 +90,28 @@ public class HtmlRenderer {
         content = proxyRenderer.render(gadget);
       }
 
-      MutableContent mc = new MutableContent(htmlParser, content);
-      for (GadgetRewriter rewriter : 
-          gadgetRewritersProvider.getRewriters(gadget.getContext())) {
-        rewriter.rewrite(gadget, mc);
+      List<GadgetRewriter> rewriters = gadgetRewritersProvider.getRewriters(gadget.getContext());
+      int cacheable = 0;
+      String key = null;
+      if (rewrittenContentCache != null && view.getHref() == null) {
+        // Proxied content is often made for one user, caching it would only churn the cache.
+        cacheable = RewrittenContentCache.countCacheable(gadget, rewriters);
+        key = rewrittenContentCache.createKey(gadget, content, cacheable);
+      }
+
+      MutableContent mc;
+      String rewritten = key != null ? rewrittenContentCache.getContent(key) : null;
+      if (rewritten != null) {
+        mc = new MutableContent(htmlParser, rewritten);
+      } else {
+        mc = new MutableContent(htmlParser, content);
+        rewrite(gadget, mc, rewriters.subList(0, cacheable));
+        if (key != null) {
+          rewrittenContentCache.addContent(key, mc.getContent());
+        }
       }
-      
+      rewrite(gadget, mc, rewriters.subList(cacheable, rewriters.size()));
+
       return mc.getContent();
     } catch (GadgetException e) {
       throw new RenderingException(e.getMessage(), e, e.getHttpStatusCode());
@@ -96,6 +120,13 @@ public class HtmlRenderer {
     }
   }
   
+  private static void rewrite(Gadget gadget, MutableContent mc, List<GadgetRewriter> rewriters)
+      throws RewritingException {
+    for (GadgetRewriter rewriter : rewriters) {
+      rewriter.rewrite(gadget, mc);
+    }
+  }
+
   protected String getViewContent(Gadget gadget, View view) {
     return view.getContent();
   }
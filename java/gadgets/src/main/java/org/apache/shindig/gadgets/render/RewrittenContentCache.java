@@ -0,0 +1,141 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.shindig.gadgets.render;
+
+import org.apache.shindig.common.cache.Cache;
+import org.apache.shindig.common.cache.CacheProvider;
+import org.apache.shindig.common.util.CharsetUtil;
+import org.apache.shindig.common.util.HashUtil;
+import org.apache.shindig.common.util.TimeSource;
+import org.apache.shindig.gadgets.Gadget;
+import org.apache.shindig.gadgets.GadgetContext;
+import org.apache.shindig.gadgets.rewrite.CacheableGadgetRewriter;
+import org.apache.shindig.gadgets.rewrite.ContentRewriterFeature;
+import org.apache.shindig.gadgets.rewrite.GadgetRewriter;
+import org.apache.shindig.gadgets.spec.GadgetSpec;
+import org.apache.shindig.gadgets.uri.UriCommon.Param;
+
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import com.google.inject.name.Named;
+
+import java.util.List;
+
+/**
+ * Cache of gadget content as output by the leading {@link CacheableGadgetRewriter}s of the
+ * rendering chain. The rewriters that follow, which add per user data, still run on every
+ * request.
+ *
+ * Entries are keyed by the content fed to the rewriters, and by the spec, view, locale,
+ * container, debug and refresh settings and rewriter config of the gadget. They expire after a
+ * fixed time, since rewritten content may hold versioned urls of resources that change on their
+ * own.
+ */
+@Singleton
+public class RewrittenContentCache {
+  public static final String CACHE_NAME = "rewrittenContent";
+
+  private final Cache<String, Entry> cache;
+  private final ContentRewriterFeature.Factory featureConfigFactory;
+  private final long ttl;
+  private TimeSource timeSource = new TimeSource();
+
+  @Inject
+  public RewrittenContentCache(CacheProvider cacheProvider,
+      ContentRewriterFeature.Factory featureConfigFactory,
+      @Named("shindig.cache.rewrittenContent.ttl") long ttl) {
+    this.cache = cacheProvider.createCache(CACHE_NAME);
+    this.featureConfigFactory = featureConfigFactory;
+    this.ttl = ttl;
+  }
+
+  @Inject(optional = true)
+  public void setTimeSource(TimeSource timeSource) {
+    this.timeSource = timeSource;
+  }
+
+  /**
+   * @return The number of rewriters at the start of the list whose output can be cached.
+   */
+  public static int countCacheable(Gadget gadget, List<GadgetRewriter> rewriters) {
+    int count = 0;
+    for (GadgetRewriter rewriter : rewriters) {
+      if (!(rewriter instanceof CacheableGadgetRewriter) ||
+          !((CacheableGadgetRewriter) rewriter).isCacheable(gadget)) {
+        break;
+      }
+      count++;
+    }
+    return count;
+  }
+
+  /**
+   * @param content The content before rewriting.
+   * @param rewriters The number of leading rewriters run before the content is cached.
+   * @return The key of the rewritten content, or null if it must not be cached.
+   */
+  public String createKey(Gadget gadget, String content, int rewriters) {
+    GadgetContext context = gadget.getContext();
+    if (ttl <= 0 || rewriters == 0 || context.getIgnoreCache()) {
+      return null;
+    }
+    GadgetSpec spec = gadget.getSpec();
+    StringBuilder key = new StringBuilder()
+        .append(spec.getUrl()).append(' ')
+        .append(spec.getChecksum()).append(' ')
+        .append(gadget.getCurrentView().getName()).append(' ')
+        .append(context.getLocale()).append(' ')
+        .append(context.getContainer()).append(' ')
+        .append(context.getDebug()).append(' ')
+        .append(context.getParameter(Param.REFRESH.getKey())).append(' ')
+        .append(featureConfigFactory.get(spec).getFingerprint()).append(' ')
+        .append(rewriters).append(' ')
+        .append(HashUtil.checksum(CharsetUtil.getUtf8Bytes(content)));
+    return key.toString();
+  }
+
+  /**
+   * @return The rewritten content, or null if it isn't cached or has expired.
+   */
+  public String getContent(String key) {
+    Entry entry = cache.getElement(key);
+    if (entry == null) {
+      return null;
+    }
+    if (timeSource.currentTimeMillis() >= entry.expiration) {
+      cache.removeElement(key);
+      return null;
+    }
+    return entry.content;
+  }
+
+  public void addContent(String key, String content) {
+    cache.addElement(key, new Entry(content, timeSource.currentTimeMillis() + ttl));
+  }
+
+  private static class Entry {
+    private final String content;
+    private final long expiration;
+
+    Entry(String content, long expiration) {
+      this.content = content;
+      this.expiration = expiration;
+    }
+  }
+}
@@ -111,6 +111,12 @@ public class SanitizingGadgetRewriter extends DomWalker.Rewriter {
   }
 
 
+  @Override
+  public boolean isCacheable(Gadget gadget) {
+    // Sanitized gadgets are rewritten on every request, the others pass through untouched.
+    return !gadget.sanitizeOutput();
+  }
+
   @Override
   public void rewrite(Gadget gadget, MutableContent content) throws RewritingException {
     if (gadget.sanitizeOutput()) {
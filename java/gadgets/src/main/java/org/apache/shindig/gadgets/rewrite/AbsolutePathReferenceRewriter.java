@@ -18,16 +18,34 @@
  */
 package org.apache.shindig.gadgets.rewrite;
 
+import com.google.common.collect.ImmutableList;
 import com.google.inject.Inject;
 
+import org.apache.shindig.gadgets.Gadget;
+
 /**
  * Rewriter that converts all url's to absolute.
  *
  * @since 2.0.0
  */
-public class AbsolutePathReferenceRewriter extends DomWalker.Rewriter {
+public class AbsolutePathReferenceRewriter extends TagStream.Rewriter {
   @Inject
   public AbsolutePathReferenceRewriter() {
-    super(new AbsolutePathReferenceVisitor(AbsolutePathReferenceVisitor.Tags.RESOURCES));
+    this(new AbsolutePathReferenceVisitor(AbsolutePathReferenceVisitor.Tags.RESOURCES));
+  }
+
+  private AbsolutePathReferenceRewriter(AbsolutePathReferenceVisitor visitor) {
+    super(ImmutableList.<DomWalker.Visitor>of(visitor),
+        ImmutableList.<TagStream.Filter>of(visitor));
+  }
+
+  @Override
+  protected DomWalker.Fusion getFusion() {
+    return DomWalker.Fusion.IN_PLACE;
+  }
+
+  @Override
+  public boolean isCacheable(Gadget gadget) {
+    return true;
   }
 }
@@ -36,6 +36,7 @@ import org.w3c.dom.Element;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 /**
  * Visitor that resolves relative paths relative to the
@@ -43,7 +44,8 @@ import java.util.Map;
  *
  * @since 2.0.0
  */
-public class AbsolutePathReferenceVisitor implements Visitor {
+public class AbsolutePathReferenceVisitor
+    implements DomWalker.NamedElementVisitor, TagStream.Filter {
   public enum Tags {
     // Resources which would be fetched by the browser when rendering the page.
     RESOURCES(ImmutableMap.<String, String>builder()
@@ -82,6 +84,11 @@ public class AbsolutePathReferenceVisitor implements Visitor {
     this.tagsToMakeAbsolute = tagsToMakeAbsolute;
   }
 
+  // @Override
+  public Set<String> getElementNames() {
+    return tagsToMakeAbsolute.keySet();
+  }
+
   // @Override
   public VisitStatus visit(Gadget gadget, Node node) throws RewritingException {
     Attr nodeAttr = getUriAttributeFromNode(node, tagsToMakeAbsolute);
@@ -110,6 +117,33 @@ public class AbsolutePathReferenceVisitor implements Visitor {
     return false;
   }
 
+  // @Override
+  public boolean filter(Gadget gadget, TagStream.Tag tag) {
+    String attrName = tagsToMakeAbsolute.get(tag.getName());
+    if (attrName == null || ("link".equals(tag.getName()) &&
+        (!"stylesheet".equalsIgnoreCase(tag.getAttribute("rel")) ||
+         !"text/css".equalsIgnoreCase(tag.getAttribute("type"))))) {
+      return false;
+    }
+    String value = tag.getAttribute(attrName);
+    if (StringUtils.isEmpty(value)) {
+      return false;
+    }
+    try {
+      Uri tagUri = Uri.parse(value);
+      // Only base tags before this one are known. Pages normally put theirs first in the head.
+      Uri baseUri = parseBaseHref(tag.getBaseHref());
+      Uri resolved = (baseUri != null ? baseUri : gadget.getSpec().getUrl()).resolve(tagUri);
+      if (!resolved.equals(tagUri)) {
+        tag.setAttribute(attrName, resolved.toString());
+        return true;
+      }
+    } catch (Uri.UriException e) {
+      // UriException on illegal input. Ignore.
+    }
+    return false;
+  }
+
   /**
    * Returns the uri attribute for the given node by looking up the
    * tag name -> uri attribute map.
@@ -164,7 +198,10 @@ public class AbsolutePathReferenceVisitor implements Visitor {
    */
   @VisibleForTesting
   Uri getBaseUri(Document doc) {
-    String baseHref = getBaseHref(doc);
+    return parseBaseHref(getBaseHref(doc));
+  }
+
+  private static Uri parseBaseHref(String baseHref) {
     if (baseHref != null) {
       try {
         return Uri.parse(baseHref);
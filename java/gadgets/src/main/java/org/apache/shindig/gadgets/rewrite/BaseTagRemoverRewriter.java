@@ -37,8 +37,13 @@ public class BaseTagRemoverRewriter implements GadgetRewriter, ResponseRewriter
   private static final Logger logger = Logger.getLogger(BaseTagRemoverRewriter.class.getName());
 
   public void rewrite(Gadget gadget, MutableContent mc) {
-    Document doc = mc.getDocument();
+    // Most content has no base tag, and is then left as it is, without a copy of the document.
+    Document readOnly = mc.getReadOnlyDocument();
+    if (readOnly == null || readOnly.getElementsByTagName("base").getLength() == 0) {
+      return;
+    }
 
+    Document doc = mc.getDocument();
     NodeList list = doc.getElementsByTagName("base");
     for (int i = 0; i < list.getLength(); i++) {
       Element baseElement = (Element) list.item(i);
@@ -0,0 +1,36 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.shindig.gadgets.rewrite;
+
+import org.apache.shindig.gadgets.Gadget;
+
+/**
+ * A gadget rewriter that can tell when its output is the same for every request for a gadget.
+ * The renderer caches the output of the leading rewriters for which this holds, see
+ * {@link org.apache.shindig.gadgets.render.RewrittenContentCache}.
+ */
+public interface CacheableGadgetRewriter extends GadgetRewriter {
+  /**
+   * @param gadget The gadget about to be rewritten.
+   * @return True if, given the same content, rewriting gives the same output for every request
+   *     with the gadget's spec, view, locale, container, debug and refresh settings and rewriter
+   *     config. No viewer, owner, user pref or preloaded data may be used.
+   */
+  boolean isCacheable(Gadget gadget);
+}
@@ -26,9 +26,19 @@ import com.google.inject.Inject;
  *
  * @since 2.0.0
  */
-public class ContentTypeCharsetRemoverRewriter extends DomWalker.Rewriter {
+public class ContentTypeCharsetRemoverRewriter extends TagStream.Rewriter {
   @Inject
   public ContentTypeCharsetRemoverRewriter() {
-    super(ImmutableList.<DomWalker.Visitor>of(new ContentTypeCharsetRemoverVisitor()));
+    this(new ContentTypeCharsetRemoverVisitor());
+  }
+
+  private ContentTypeCharsetRemoverRewriter(ContentTypeCharsetRemoverVisitor visitor) {
+    super(ImmutableList.<DomWalker.Visitor>of(visitor),
+        ImmutableList.<TagStream.Filter>of(visitor));
+  }
+
+  @Override
+  protected DomWalker.Fusion getFusion() {
+    return DomWalker.Fusion.IN_PLACE;
   }
 }
@@ -44,6 +44,7 @@ import com.google.caja.parser.AbstractParseTreeNode;
 import com.google.caja.parser.AncestorChain;
 import com.google.caja.parser.Visitor;
 import com.google.caja.parser.css.CssTree;
+import com.google.common.base.Function;
 import com.google.common.collect.Lists;
 import com.google.inject.Inject;
 
@@ -99,12 +100,8 @@ public class CssResponseRewriter implements ResponseRewriter {
     try {
       String original = IOUtils.toString(content);
       try {
-        CssTree.StyleSheet stylesheet = cssParser.parseDom(original, source);
-        List<String> stringList = rewrite(stylesheet, source, uriMaker, extractImports,
-            gadgetContext);
-        // Serialize the stylesheet
-        cssParser.serialize(stylesheet, writer);
-        return stringList;
+        CajaCssParser.ParsedCss parsed = cssParser.parse(original, source);
+        return write(parsed, source, uriMaker, writer, extractImports, gadgetContext);
       } catch (GadgetException ge) {
         if (ge.getCause() instanceof ParseException) {
           LOG.log(Level.WARNING,
@@ -132,19 +129,9 @@ public class CssResponseRewriter implements ResponseRewriter {
    */
   public List<String> rewrite(Element styleNode, Uri source, UriMaker uriMaker,
       boolean extractImports, GadgetContext gadgetContext) throws RewritingException {
+    CajaCssParser.ParsedCss parsed;
     try {
-      CssTree.StyleSheet stylesheet =
-        cssParser.parseDom(styleNode.getTextContent(), source);
-      List<String> imports = rewrite(stylesheet, source, uriMaker, extractImports, gadgetContext);
-      // Write the rewritten CSS back into the element
-      String content = cssParser.serialize(stylesheet);
-      if (StringUtils.isEmpty(content) || StringUtils.isWhitespace(content)) {
-        // Remove the owning node
-        styleNode.getParentNode().removeChild(styleNode);
-      } else {
-        styleNode.setTextContent(content);
-      }
-      return imports;
+      parsed = cssParser.parse(styleNode.getTextContent(), source);
     } catch (GadgetException ge) {
       if (ge.getCause() instanceof ParseException) {
         LOG.log(Level.WARNING,
@@ -154,6 +141,72 @@ public class CssResponseRewriter implements ResponseRewriter {
         throw new RewritingException(ge, ge.getHttpStatusCode());
       }
     }
+    return rewrite(styleNode, parsed, source, uriMaker, extractImports, gadgetContext);
+  }
+
+  /**
+   * Rewrite the CSS content of several style DOM nodes. The stylesheets are parsed in parallel
+   * where possible.
+   * @param styleNodes Rewrite the CSS content of these nodes
+   * @param source Uri of content
+   * @param uriMaker a UriMaker
+   * @param extractImports If true remove the import statements from the output and return their
+   *            referenced URIs.
+   * @param gadgetContext The gadgetContext
+   * @return The extracted import URIs of each node, in order.
+   */
+  public List<List<String>> rewrite(List<Element> styleNodes, Uri source, UriMaker uriMaker,
+      boolean extractImports, GadgetContext gadgetContext) throws RewritingException {
+    List<String> contents = Lists.newArrayListWithCapacity(styleNodes.size());
+    for (Element styleNode : styleNodes) {
+      contents.add(styleNode.getTextContent());
+    }
+    List<CajaCssParser.ParsedCss> parsed = cssParser.parseAll(contents, source);
+    List<List<String>> imports = Lists.newArrayListWithCapacity(styleNodes.size());
+    for (int i = 0; i < styleNodes.size(); i++) {
+      if (parsed.get(i) == null) {
+        // Parse it again to report the failure.
+        imports.add(rewrite(styleNodes.get(i), source, uriMaker, extractImports, gadgetContext));
+      } else {
+        imports.add(rewrite(styleNodes.get(i), parsed.get(i), source, uriMaker, extractImports,
+            gadgetContext));
+      }
+    }
+    return imports;
+  }
+
+  private List<String> rewrite(Element styleNode, CajaCssParser.ParsedCss parsed, Uri source,
+      UriMaker uriMaker, boolean extractImports, GadgetContext gadgetContext)
+      throws RewritingException {
+    StringWriter writer = new StringWriter();
+    List<String> imports;
+    try {
+      imports = write(parsed, source, uriMaker, writer, extractImports, gadgetContext);
+    } catch (IOException ioe) {
+      // Not possible writing to memory.
+      throw new RewritingException(ioe, HttpResponse.SC_INTERNAL_SERVER_ERROR);
+    }
+    // Write the rewritten CSS back into the element
+    String content = writer.toString();
+    if (StringUtils.isEmpty(content) || StringUtils.isWhitespace(content)) {
+      // Remove the owning node
+      styleNode.getParentNode().removeChild(styleNode);
+    } else {
+      styleNode.setTextContent(content);
+    }
+    return imports;
+  }
+
+  private static List<String> write(CajaCssParser.ParsedCss parsed, final Uri source,
+      final UriMaker uriMaker, Writer writer, boolean extractImports,
+      final GadgetContext gadgetContext) throws IOException {
+    parsed.write(writer, extractImports, new Function<String, String>() {
+      public String apply(String uri) {
+        return rewriteUri(uriMaker, uri, source, gadgetContext);
+      }
+    });
+    return extractImports ? Lists.newArrayList(parsed.getImports())
+        : Collections.<String>emptyList();
   }
 
   /**
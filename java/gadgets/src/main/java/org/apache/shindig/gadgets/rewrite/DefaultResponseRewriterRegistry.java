@@ -17,6 +17,7 @@
  */
 package org.apache.shindig.gadgets.rewrite;
 
+import org.apache.shindig.gadgets.Gadget;
 import org.apache.shindig.gadgets.http.HttpRequest;
 import org.apache.shindig.gadgets.http.HttpResponse;
 import org.apache.shindig.gadgets.http.HttpResponseBuilder;
@@ -30,6 +31,7 @@ import com.google.inject.Inject;
 
 /**
  * Basic registry -- just iterates over rewriters and invokes them sequentially.
+ * Adjacent DomWalker rewriters that allow it walk the DOM together.
  *
  * @since 2.0.0
  */
@@ -53,11 +55,48 @@ public class DefaultResponseRewriterRegistry implements ResponseRewriterRegistry
       throws RewritingException {
     HttpResponseBuilder builder = new HttpResponseBuilder(htmlParser, resp);
 
-    for (ResponseRewriter rewriter : rewriters) {
-      rewriter.rewrite(req, builder);
-    }
+    rewrite(req, builder);
     
     // Returns the original HttpResponse if no changes have been made.
     return builder.create();
   }
+
+  /**
+   * Runs the rewriters in order. Adjacent {@link DomWalker.Rewriter}s that allow it share a
+   * single walk of the DOM, see {@link DomWalker.Fusion}.
+   */
+  protected void rewrite(HttpRequest req, HttpResponseBuilder builder)
+      throws RewritingException {
+    List<List<DomWalker.Visitor>> fused = Lists.newArrayList();
+    Gadget context = null;
+    for (ResponseRewriter rewriter : rewriters) {
+      DomWalker.Rewriter walker = rewriter instanceof DomWalker.Rewriter ?
+          (DomWalker.Rewriter) rewriter : null;
+      if (walker != null && walker.getFusion() != DomWalker.Fusion.NONE &&
+          RewriterUtils.isHtml(req, builder)) {
+        if (context == null) {
+          context = DomWalker.makeGadget(req);
+        }
+        List<DomWalker.Visitor> visitors = walker.makeFusedVisitors(req, builder, context);
+        if (visitors != null) {
+          fused.add(visitors);
+          if (walker.getFusion() == DomWalker.Fusion.LAST) {
+            walk(fused, context, builder);
+          }
+          continue;
+        }
+      }
+      walk(fused, context, builder);
+      rewriter.rewrite(req, builder);
+    }
+    walk(fused, context, builder);
+  }
+
+  private void walk(List<List<DomWalker.Visitor>> fused, Gadget context,
+      HttpResponseBuilder builder) throws RewritingException {
+    if (!fused.isEmpty()) {
+      DomWalker.walk(fused, context, builder);
+      fused.clear();
+    }
+  }
 }
@@ -34,9 +34,11 @@ import org.w3c.dom.Node;
 
 import javax.servlet.http.HttpServletResponse;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 /**
  * Framework-in-a-framework facilitating the common Visitor case
@@ -103,6 +105,40 @@ public final class DomWalker {
     boolean revisit(Gadget gadget, List<Node> nodes) throws RewritingException;
   }
   
+  /**
+   * Implemented by {@code Visitor} classes that only act on elements with particular names.
+   * Walks don't call them for other nodes, which they would bypass anyway.
+   */
+  public interface NamedElementVisitor extends Visitor {
+    /**
+     * @return Lower case names of the elements to visit.
+     */
+    Set<String> getElementNames();
+  }
+
+  /**
+   * Whether the visitors of a {@code Rewriter} can walk the DOM together with those of the
+   * rewriters next to it, which is then walked once instead of once per rewriter. The result
+   * is the same as walking it rewriter by rewriter as long as no visitor depends on changes
+   * made by the revisits of another rewriter in the same walk.
+   */
+  public enum Fusion {
+    /** Always walks on its own. */
+    NONE,
+
+    /**
+     * The visitors decide what to do with a node from that node, and only change the
+     * attributes and content of nodes they visit.
+     */
+    IN_PLACE,
+
+    /**
+     * As {@code IN_PLACE}, except that the visitors also add nodes. Ends a shared walk, so that
+     * the rewriters that follow still see the added nodes.
+     */
+    LAST
+  }
+
   /**
    * Rewriter that traverses the DOM, passing each node to its
    * list of {@code Visitor} instances in order. Each visitor
@@ -110,7 +146,7 @@ public final class DomWalker {
    * will be revisited after the entire DOM tree is walked.
    * The DOM tree is walked in depth-first order.
    */
-  public static class Rewriter implements GadgetRewriter, ResponseRewriter {
+  public static class Rewriter implements CacheableGadgetRewriter, ResponseRewriter {
     private final List<Visitor> visitors;
     
     public Rewriter(List<Visitor> visitors) {
@@ -147,26 +183,113 @@ public final class DomWalker {
       }
     }
     
-    private boolean rewrite(List<Visitor> visitors, Gadget gadget, MutableContent content) 
+    private boolean rewrite(List<Visitor> visitors, Gadget gadget, MutableContent content)
         throws RewritingException {
-      Map<Visitor, List<Node>> reservations = Maps.newHashMap();
-        
-      LinkedList<Node> toVisit = Lists.newLinkedList();
-      Document doc = content.getDocument();
-      if (doc == null) {
-        throw new RewritingException("content.getDocument is null. Content: "
-                                     + content.getContent(),
-                                     HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
+      return walk(Collections.singletonList(visitors), gadget, content);
+    }
+
+    /**
+     * Override this to return true when the visitors depend only on the gadget's spec, context
+     * and rewriter config. See {@link CacheableGadgetRewriter}.
+     */
+    public boolean isCacheable(Gadget gadget) {
+      return false;
+    }
+
+    /**
+     * Override this to let the visitors of this rewriter share a walk with those of adjacent
+     * rewriters. See {@link Fusion}.
+     */
+    protected Fusion getFusion() {
+      return Fusion.NONE;
+    }
+
+    /**
+     * Returns the visitors to run for a response in a walk shared with adjacent rewriters, or
+     * null if this rewriter has to run on its own.
+     *
+     * @param context Gadget made for the request by {@link DomWalker#makeGadget(HttpRequest)}.
+     */
+    protected List<Visitor> makeFusedVisitors(HttpRequest request, HttpResponseBuilder builder,
+        Gadget context) {
+      if (getFusion() == Fusion.NONE || !RewriterUtils.isHtml(request, builder)) {
+        return null;
       }
-      toVisit.add(doc.getDocumentElement());
-      boolean mutated = false;
-      while (!toVisit.isEmpty()) {
-        Node visiting = toVisit.removeFirst();
-          
-        // Iterate through all visitors evaluating their visitation status.
+      return makeVisitors(context, request.getGadget());
+    }
+  }
+
+  /**
+   * Walks the DOM once on behalf of several lists of visitors, as if each list had walked it
+   * on its own: reservations made by the visitors of one list don't hide nodes from the other
+   * lists. All visits happen before the reserved nodes are revisited, list by list.
+   *
+   * Each node is classified once, and visitors that implement {@link NamedElementVisitor} are
+   * only called for the elements they ask for.
+   *
+   * @return True if any visitor modified the document.
+   */
+  public static boolean walk(List<List<Visitor>> passes, Gadget gadget, MutableContent content)
+      throws RewritingException {
+    int numPasses = passes.size();
+    List<Map<Visitor, List<Node>>> reservations = Lists.newArrayListWithCapacity(numPasses);
+    List<Visitor[]> visitors = Lists.newArrayListWithCapacity(numPasses);
+    List<Set<String>[]> elementNames = Lists.newArrayListWithCapacity(numPasses);
+    for (List<Visitor> pass : passes) {
+      reservations.add(Maps.<Visitor, List<Node>>newHashMap());
+      Visitor[] passVisitors = pass.toArray(new Visitor[pass.size()]);
+      @SuppressWarnings("unchecked")
+      Set<String>[] names = new Set[passVisitors.length];
+      for (int i = 0; i < passVisitors.length; i++) {
+        if (passVisitors[i] instanceof NamedElementVisitor) {
+          names[i] = ((NamedElementVisitor) passVisitors[i]).getElementNames();
+        }
+      }
+      visitors.add(passVisitors);
+      elementNames.add(names);
+    }
+
+    Document doc = content.getDocument();
+    if (doc == null) {
+      throw new RewritingException("content.getDocument is null. Content: "
+                                   + content.getContent(),
+                                   HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
+    }
+
+    // Nodes to visit, each with the passes that still visit it. Passes that reserved a tree
+    // are left out for its descendants.
+    LinkedList<Node> toVisit = Lists.newLinkedList();
+    LinkedList<boolean[]> activePasses = Lists.newLinkedList();
+    boolean[] allPasses = new boolean[numPasses];
+    Arrays.fill(allPasses, true);
+    toVisit.add(doc.getDocumentElement());
+    activePasses.add(allPasses);
+    boolean mutated = false;
+    while (!toVisit.isEmpty()) {
+      Node visiting = toVisit.removeFirst();
+      boolean[] active = activePasses.removeFirst();
+
+      // Classify the node once for all visitors.
+      String elementName = visiting.getNodeType() == Node.ELEMENT_NODE ?
+          visiting.getNodeName().toLowerCase() : null;
+
+      boolean[] childPasses = active;
+      for (int p = 0; p < numPasses; p++) {
+        if (!active[p]) {
+          continue;
+        }
+        Visitor[] passVisitors = visitors.get(p);
+        Set<String>[] names = elementNames.get(p);
+
+        // Iterate through the pass's visitors evaluating their visitation status.
         boolean treeReserved = false;
         boolean nodeReserved = false;
-        for (Visitor visitor : visitors) {
+        for (int i = 0; i < passVisitors.length; i++) {
+          if (names[i] != null && (elementName == null || !names[i].contains(elementName))) {
+            // Aka BYPASS, without asking.
+            continue;
+          }
+          Visitor visitor = passVisitors[i];
           switch(visitor.visit(gadget, visiting)) {
           case MODIFY:
             content.documentChanged();
@@ -182,38 +305,59 @@ public final class DomWalker {
             // Aka BYPASS - do nothing.
             break;
           }
-            
+
           if (nodeReserved || treeReserved) {
             // Reservation was made.
-            if (!reservations.containsKey(visitor)) {
-              reservations.put(visitor, Lists.<Node>newLinkedList());
+            Map<Visitor, List<Node>> passReservations = reservations.get(p);
+            if (!passReservations.containsKey(visitor)) {
+              passReservations.put(visitor, Lists.<Node>newLinkedList());
             }
-            reservations.get(visitor).add(visiting);
+            passReservations.get(visitor).add(visiting);
             break;
           }
         }
-          
-        if (!treeReserved && visiting.hasChildNodes()) {
-          // Tree wasn't reserved - walk children.
-          // In order to preserve DFS order, walk children in reverse.
-          for (Node child = visiting.getLastChild(); child != null;
-               child = child.getPreviousSibling()) {
-            toVisit.addFirst(child);
+
+        if (treeReserved) {
+          if (childPasses == active) {
+            childPasses = active.clone();
           }
+          childPasses[p] = false;
+        }
+      }
+
+      if (visiting.hasChildNodes() && anyActive(childPasses)) {
+        // Some pass still walks the children.
+        // In order to preserve DFS order, walk children in reverse.
+        for (Node child = visiting.getLastChild(); child != null;
+             child = child.getPreviousSibling()) {
+          toVisit.addFirst(child);
+          activePasses.addFirst(childPasses);
         }
       }
-        
-      // Run through all reservations, revisiting as needed.
-      for (Visitor visitor : visitors) {
-        List<Node> nodesReserved = reservations.get(visitor);
+    }
+
+    // Run through all reservations, revisiting as needed.
+    for (int p = 0; p < numPasses; p++) {
+      Map<Visitor, List<Node>> passReservations = reservations.get(p);
+      for (Visitor visitor : visitors.get(p)) {
+        List<Node> nodesReserved = passReservations.get(visitor);
         if (nodesReserved != null && visitor.revisit(gadget, nodesReserved)) {
           content.documentChanged();
           mutated = true;
         }
       }
-      
-      return mutated;
     }
+
+    return mutated;
+  }
+
+  private static boolean anyActive(boolean[] passes) {
+    for (boolean active : passes) {
+      if (active) {
+        return true;
+      }
+    }
+    return false;
   }
 
   // TODO: Remove these lame hacks by changing Gadget to a proper general Context object.
@@ -54,9 +54,13 @@ public class MutableContent {
   // Encoding of the content bytes. UTF-8 by default.
   private Charset contentEncoding;
 
+  // The response the content was constructed from. Kept until the content is changed, so that
+  // an unchanged body can be shared rather than copied.
   private HttpResponse contentSource;
 
   private Document document;
+  // Parse tree that may be shared with other requests. Only read until a private copy is needed.
+  private Document sharedDocument;
   private int numChanges;
   private final GadgetHtmlParser contentParser;
   private Map<String, Object> pipelinedData;
@@ -107,8 +111,6 @@ public class MutableContent {
     if (content == null) {
       if (contentSource != null) {
         content = contentSource.getResponseAsString();
-        // Clear on first use
-        contentSource = null;
       } else if (document != null) {
         content = HtmlSerialization.serialize(document);
       } else if (contentBytes != null) {
@@ -129,6 +131,7 @@ public class MutableContent {
     if (content == null || !content.equals(newContent)) {
       content = newContent;
       document = null;
+      sharedDocument = null;
       contentSource = null;
       contentBytes = null;
       incrementNumChanges();
@@ -147,9 +150,7 @@ public class MutableContent {
     if (contentBytes == null) {
       if (contentSource != null) {
         try {
-          setContentBytesState(IOUtils.toByteArray(contentSource.getResponse()),
-              contentSource.getEncodingCharset());
-          contentSource = null;
+          setContentBytesState(getSourceBytes(contentSource), contentSource.getEncodingCharset());
         } catch (IOException e) {
           // Doesn't occur; responseBytes wrapped as a ByteArrayInputStream.
         }
@@ -168,6 +169,22 @@ public class MutableContent {
     return contentBytes;
   }
 
+  /**
+   * @return A copy of the body of the response the content was constructed from. Subclasses that
+   *     can share the response's buffer may return it instead, as it is never modified.
+   */
+  protected byte[] getSourceBytes(HttpResponse source) throws IOException {
+    return IOUtils.toByteArray(source.getResponse());
+  }
+
+  /**
+   * @return The response the content was constructed from, or null if the content has been
+   *     changed since.
+   */
+  protected HttpResponse getContentSource() {
+    return contentSource;
+  }
+
   /**
    * Sets the object's contentBytes as the given raw input. If ever interpreted
    * as a String, the data will be decoded as the encoding specified.
@@ -181,6 +198,7 @@ public class MutableContent {
     if (contentBytes == null || !Arrays.equals(contentBytes, newBytes)) {
       setContentBytesState(newBytes, newEncoding);
       document = null;
+      sharedDocument = null;
       contentSource = null;
       content = null;
       incrementNumChanges();
@@ -237,7 +255,13 @@ public class MutableContent {
       return document;
     }
     try {
-      document = contentParser.parseDom(getContent());
+      if (sharedDocument != null) {
+        // Copy on write: the shared tree was only read so far.
+        document = contentParser.copyDom(sharedDocument);
+        sharedDocument = null;
+      } else {
+        document = contentParser.parseDom(getContent());
+      }
       document.setUserData(MUTABLE_CONTENT_LISTENER, this, null);
     } catch (GadgetException e) {
       logger.log(Level.WARNING, "Got GadgetException when parsing content", e);
@@ -246,6 +270,27 @@ public class MutableContent {
     return document;
   }
 
+  /**
+   * Retrieves the object contents in parsed form for reading only. The document may be shared
+   * with other requests and MUST NOT be changed; call {@link #getDocument} first to make
+   * changes. Rewriters that only sometimes change the content can use this to decide whether
+   * they need to, so that unchanged content is neither copied nor serialized again.
+   */
+  public Document getReadOnlyDocument() {
+    if (document != null) {
+      return document;
+    }
+    if (sharedDocument == null) {
+      try {
+        sharedDocument = contentParser.parseDomReadOnly(getContent());
+      } catch (GadgetException e) {
+        logger.log(Level.WARNING, "Got GadgetException when parsing content", e);
+        return null;
+      }
+    }
+    return sharedDocument;
+  }
+
   public int getNumChanges() {
     return numChanges;
   }
@@ -259,7 +304,7 @@ public class MutableContent {
    * which content is most readily available
    */
   public boolean hasDocument() {
-    return (document != null);
+    return (document != null || sharedDocument != null);
   }
 
   public void addPipelinedData(String key, Object value) {
@@ -42,7 +42,7 @@ import java.util.logging.Logger;
  *
  * This rewriter cannot be used currently without the SocialMarkupHtmlParser.
  */
-public class PipelineDataGadgetRewriter implements GadgetRewriter {
+public class PipelineDataGadgetRewriter implements CacheableGadgetRewriter {
 
   private static final Logger LOG = Logger.getLogger(
       PipelineDataGadgetRewriter.class.getName());
@@ -54,15 +54,31 @@ public class PipelineDataGadgetRewriter implements GadgetRewriter {
     this.executor = executor;
   }
   
+  public boolean isCacheable(Gadget gadget) {
+    // Pipelined data is fetched for the viewer and owner.
+    return !usesPipelining(gadget);
+  }
+
+  private static boolean usesPipelining(Gadget gadget) {
+    return gadget.getSpec().getModulePrefs().getFeatures().containsKey("opensocial-data");
+  }
+
   public void rewrite(Gadget gadget, MutableContent content) {
     // Only bother for gadgets using the opensocial-data feature
-    if (!gadget.getSpec().getModulePrefs().getFeatures().containsKey("opensocial-data")) {
+    if (!usesPipelining(gadget)) {
       return;
     }
     
+    // Look for pipelines without taking a copy of the document, which is only needed if
+    // there are some to remove.
+    Document readOnly = content.getReadOnlyDocument();
+    if (SocialDataTags.getTags(readOnly, SocialDataTags.OSML_DATA_TAG).isEmpty()) {
+      return;
+    }
+
     Document doc = content.getDocument();
     Map<PipelinedData, Node> pipelineNodes = parsePipelinedData(gadget, doc);
-    
+
     if (pipelineNodes.isEmpty()) {
       return;
     }
@@ -60,4 +60,9 @@ public class ProxyingContentRewriter extends DomWalker.Rewriter {
                             ProxyingVisitor.Tags.STYLESHEET,
                             ProxyingVisitor.Tags.EMBEDDED_IMAGES));
   }
+
+  @Override
+  public boolean isCacheable(Gadget gadget) {
+    return true;
+  }
 }
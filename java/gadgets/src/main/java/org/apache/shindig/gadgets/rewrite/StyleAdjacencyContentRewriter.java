@@ -18,6 +18,7 @@
  */
 package org.apache.shindig.gadgets.rewrite;
 
+import org.apache.shindig.gadgets.Gadget;
 import org.apache.shindig.gadgets.rewrite.DomWalker;
 
 /**
@@ -29,4 +30,9 @@ public class StyleAdjacencyContentRewriter extends DomWalker.Rewriter {
   public StyleAdjacencyContentRewriter() {
     super(new StyleAdjacencyVisitor());
   }
+
+  @Override
+  public boolean isCacheable(Gadget gadget) {
+    return true;
+  }
 }
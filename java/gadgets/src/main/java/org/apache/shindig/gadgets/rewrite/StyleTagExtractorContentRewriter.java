@@ -53,4 +53,14 @@ public class StyleTagExtractorContentRewriter extends DomWalker.Rewriter {
     return Arrays.<Visitor>asList(
         new StyleTagExtractorVisitor(config, cssRewriter, proxyUriManager));
   }
+
+  @Override
+  protected DomWalker.Fusion getFusion() {
+    return DomWalker.Fusion.LAST;
+  }
+
+  @Override
+  public boolean isCacheable(Gadget gadget) {
+    return true;
+  }
 }
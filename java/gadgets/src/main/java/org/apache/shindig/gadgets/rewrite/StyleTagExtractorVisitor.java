@@ -19,11 +19,14 @@
 package org.apache.shindig.gadgets.rewrite;
 
 import java.util.List;
+import java.util.Set;
 
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Lists;
 import org.apache.shindig.common.uri.Uri;
 import org.apache.shindig.common.xml.DomUtil;
 import org.apache.shindig.gadgets.Gadget;
-import org.apache.shindig.gadgets.rewrite.DomWalker.Visitor;
+import org.apache.shindig.gadgets.rewrite.DomWalker.NamedElementVisitor;
 import org.apache.shindig.gadgets.spec.View;
 import org.apache.shindig.gadgets.uri.ProxyUriManager;
 import org.w3c.dom.Element;
@@ -33,7 +36,7 @@ import org.w3c.dom.Node;
  * Visits nodes in the dom extracting style tags.
  * @since 2.0.0
  */
-public class StyleTagExtractorVisitor implements Visitor {
+public class StyleTagExtractorVisitor implements NamedElementVisitor {
   private final ContentRewriterFeature.Config config;
   private final CssResponseRewriter cssRewriter;
   private final ProxyUriManager proxyUriManager;
@@ -45,6 +48,10 @@ public class StyleTagExtractorVisitor implements Visitor {
     this.proxyUriManager = proxyUriManager;
   }
 
+  public Set<String> getElementNames() {
+    return ImmutableSet.of("style");
+  }
+
   public VisitStatus visit(Gadget gadget, Node node) throws RewritingException {
     if (!config.isRewriteEnabled() || !config.getIncludedTags().contains("style")) {
       return VisitStatus.BYPASS;
@@ -74,11 +81,14 @@ public class StyleTagExtractorVisitor implements Visitor {
     
     Element head = (Element)DomUtil.getFirstNamedChildNode(
         nodes.get(0).getOwnerDocument().getDocumentElement(), "head");
+    List<Element> elems = Lists.newArrayListWithCapacity(nodes.size());
     for (Node node : nodes) {
       // Guaranteed safe cast due to reservation logic.
-      Element elem = (Element)node;
-      List<String> extractedUrls = cssRewriter.rewrite(
-          elem, contentBase, CssResponseRewriter.uriMaker(proxyUriManager, config), true, gadget.getContext());
+      elems.add((Element)node);
+    }
+    List<List<String>> extractedUrlLists = cssRewriter.rewrite(elems, contentBase,
+        CssResponseRewriter.uriMaker(proxyUriManager, config), true, gadget.getContext());
+    for (List<String> extractedUrls : extractedUrlLists) {
       for (String extractedUrl : extractedUrls) {
         // Add extracted urls as link elements to head
         Element newLink = head.getOwnerDocument().createElement("link");
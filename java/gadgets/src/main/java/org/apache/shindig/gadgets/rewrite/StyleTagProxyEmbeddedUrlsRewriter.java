@@ -53,4 +53,9 @@ public class StyleTagProxyEmbeddedUrlsRewriter extends DomWalker.Rewriter {
         new StyleTagProxyEmbeddedUrlsVisitor(config, proxyUriManager,
                                              cssRewriter));
   }
+
+  @Override
+  protected DomWalker.Fusion getFusion() {
+    return DomWalker.Fusion.IN_PLACE;
+  }
 }
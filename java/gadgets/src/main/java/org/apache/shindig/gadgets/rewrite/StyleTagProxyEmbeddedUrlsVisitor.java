@@ -18,6 +18,8 @@
  */
 package org.apache.shindig.gadgets.rewrite;
 
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Lists;
 import com.google.inject.Inject;
 import org.apache.shindig.common.uri.Uri;
 import org.apache.shindig.gadgets.Gadget;
@@ -26,6 +28,7 @@ import org.w3c.dom.Element;
 import org.w3c.dom.Node;
 
 import java.util.List;
+import java.util.Set;
 
 /**
  * Visitor that replaces urls (@import + background) in
@@ -33,7 +36,7 @@ import java.util.List;
  *
  * @since 2.0.0
  */
-public class StyleTagProxyEmbeddedUrlsVisitor implements DomWalker.Visitor {
+public class StyleTagProxyEmbeddedUrlsVisitor implements DomWalker.NamedElementVisitor {
   protected final ContentRewriterFeature.Config config;
   protected final ProxyUriManager proxyUriManager;
   protected final CssResponseRewriter cssRewriter;
@@ -47,6 +50,10 @@ public class StyleTagProxyEmbeddedUrlsVisitor implements DomWalker.Visitor {
     this.cssRewriter = cssRewriter;
   }
 
+  public Set<String> getElementNames() {
+    return ImmutableSet.of("style");
+  }
+
   public VisitStatus visit(Gadget gadget, Node node) throws RewritingException {
     // Only process <style> elements.
     if (node.getNodeType() != Node.ELEMENT_NODE ||
@@ -60,12 +67,12 @@ public class StyleTagProxyEmbeddedUrlsVisitor implements DomWalker.Visitor {
   public boolean revisit(Gadget gadget, List<Node> nodes) throws RewritingException {
     Uri contentBase = gadget.getSpec().getUrl();
 
+    List<Element> elems = Lists.newArrayListWithCapacity(nodes.size());
     for (Node node: nodes) {
-      Element elem = (Element) node;
-      cssRewriter.rewrite(
-          elem, contentBase,
-          CssResponseRewriter.uriMaker(proxyUriManager, config), false, gadget.getContext());
+      elems.add((Element) node);
     }
+    cssRewriter.rewrite(elems, contentBase,
+        CssResponseRewriter.uriMaker(proxyUriManager, config), false, gadget.getContext());
     return !nodes.isEmpty();
   }
 }
@@ -0,0 +1,503 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.shindig.gadgets.rewrite;
+
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Lists;
+import com.google.inject.Inject;
+import com.google.inject.name.Named;
+
+import org.apache.commons.lang.StringEscapeUtils;
+import org.apache.shindig.common.uri.Uri;
+import org.apache.shindig.gadgets.Gadget;
+import org.apache.shindig.gadgets.http.HttpRequest;
+import org.apache.shindig.gadgets.http.HttpResponseBuilder;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.util.List;
+import java.util.Set;
+
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Streaming alternative to {@link DomWalker} for rewriters that only change the attributes of
+ * individual start tags.
+ *
+ * Markup is read as a stream of tokens and written out as it is read. Each start tag is passed to
+ * the {@code Filter} instances in order; tags no filter changed, and everything between them, are
+ * copied verbatim. No parse tree is built, and unchanged markup keeps its original form.
+ *
+ * {@link #rewrite(Gadget, List, Reader, Writer)} itself only buffers the tag being read. The
+ * {@code Rewriter} works on content held in memory, so it still keeps the whole input and
+ * output; what it saves is the parse and the DOM.
+ *
+ * @since 2.0.0
+ */
+public final class TagStream {
+  private TagStream() {}
+
+  // Elements whose content is text rather than markup, up to the matching end tag.
+  private static final Set<String> RAW_TEXT_ELEMENTS = ImmutableSet.of(
+      "script", "style", "textarea", "title", "xmp", "iframe", "noembed", "noframes");
+
+  private static final int BUFFER_SIZE = 8192;
+
+  /**
+   * Implemented by classes that rewrite start tags as they stream past.
+   */
+  public interface Filter {
+    /**
+     * Filter a start tag. Implementations may change its attributes, but must not rely on any
+     * tag other than the one passed, as the rest of the document isn't available.
+     *
+     * @param gadget Context for the request.
+     * @param tag The start tag.
+     * @return True if the tag was modified, false otherwise.
+     */
+    boolean filter(Gadget gadget, Tag tag) throws RewritingException;
+  }
+
+  /**
+   * A start tag, with its attributes.
+   */
+  public static final class Tag {
+    private final String rawName;
+    private final String name;
+    private final String baseHref;
+    private final List<Attribute> attributes = Lists.newArrayList();
+    // Whitespace and an optional '/' between the last attribute and the closing '>'.
+    private String tail = "";
+    private boolean changed;
+
+    Tag(String rawName, String baseHref) {
+      this.rawName = rawName;
+      this.name = rawName.toLowerCase();
+      this.baseHref = baseHref;
+    }
+
+    /**
+     * @return The lower case tag name.
+     */
+    public String getName() {
+      return name;
+    }
+
+    /**
+     * @return The decoded value of the attribute, an empty string if it has no value, or null if
+     *     the tag doesn't have the attribute. Attribute names are not case sensitive.
+     */
+    public String getAttribute(String attrName) {
+      Attribute attr = find(attrName);
+      return attr == null ? null : attr.value;
+    }
+
+    /**
+     * Sets the value of an attribute, adding the attribute if it isn't there yet.
+     */
+    public void setAttribute(String attrName, String value) {
+      Attribute attr = find(attrName);
+      if (attr == null) {
+        attr = new Attribute(" ", attrName, value, null);
+        attributes.add(attr);
+      } else if (value.equals(attr.value)) {
+        return;
+      } else {
+        attr.value = value;
+        attr.raw = null;
+      }
+      changed = true;
+    }
+
+    /**
+     * @return The href of the first base tag before this tag, or null if there was none.
+     */
+    public String getBaseHref() {
+      return baseHref;
+    }
+
+    private Attribute find(String attrName) {
+      for (Attribute attr : attributes) {
+        if (attr.name.equalsIgnoreCase(attrName)) {
+          return attr;
+        }
+      }
+      return null;
+    }
+
+    private void write(Writer out) throws IOException {
+      out.write('<');
+      out.write(rawName);
+      for (Attribute attr : attributes) {
+        out.write(attr.leading);
+        if (attr.raw != null) {
+          out.write(attr.raw);
+        } else {
+          out.write(attr.name);
+          out.write("=\"");
+          out.write(attr.value.replace("&", "&amp;").replace("\"", "&quot;"));
+          out.write('"');
+        }
+      }
+      out.write(tail);
+      out.write('>');
+    }
+  }
+
+  private static final class Attribute {
+    final String leading;
+    final String name;
+    String value;
+    // The attribute as it appeared in the source, or null once it has been changed.
+    String raw;
+
+    Attribute(String leading, String name, String value, String raw) {
+      this.leading = leading;
+      this.name = name;
+      this.value = value;
+      this.raw = raw;
+    }
+  }
+
+  /**
+   * Copies markup from in to out, passing each start tag through the filters.
+   *
+   * @return True if any filter modified a tag.
+   */
+  public static boolean rewrite(Gadget gadget, List<Filter> filters, Reader in, Writer out)
+      throws IOException, RewritingException {
+    Scanner scanner = new Scanner(in);
+    String baseHref = null;
+    boolean mutated = false;
+    while (scanner.copyText(out)) {
+      int c = scanner.peek();
+      if (c == '!') {
+        scanner.read();
+        out.write("<!");
+        if (scanner.peek() == '-') {
+          scanner.copyThrough("-->", false, out);
+        } else {
+          scanner.copyThrough(">", false, out);
+        }
+      } else if (c == '/' || c == '?') {
+        out.write('<');
+        scanner.copyThrough(">", false, out);
+      } else if (Character.isLetter(c)) {
+        StringBuilder raw = new StringBuilder();
+        Tag tag = scanner.readTag(raw, baseHref);
+        if (tag == null) {
+          // Cut off by the end of the input.
+          out.write(raw.toString());
+          break;
+        }
+        for (Filter filter : filters) {
+          if (filter.filter(gadget, tag)) {
+            mutated = true;
+          }
+        }
+        if (tag.changed) {
+          tag.write(out);
+        } else {
+          out.write(raw.toString());
+        }
+        if (baseHref == null && "base".equals(tag.name)) {
+          baseHref = tag.getAttribute("href");
+        }
+        if (RAW_TEXT_ELEMENTS.contains(tag.name)) {
+          scanner.copyThrough("</" + tag.name, true, out);
+          scanner.copyThrough(">", false, out);
+        }
+      } else {
+        // A literal '<'.
+        out.write('<');
+      }
+    }
+    out.flush();
+    return mutated;
+  }
+
+  private static final class Scanner {
+    private final Reader in;
+    private final char[] buf = new char[BUFFER_SIZE];
+    private int pos;
+    private int limit;
+
+    Scanner(Reader in) {
+      this.in = in;
+    }
+
+    private boolean fill() throws IOException {
+      if (pos < limit) {
+        return true;
+      }
+      int read = in.read(buf, 0, buf.length);
+      pos = 0;
+      limit = Math.max(read, 0);
+      return read > 0;
+    }
+
+    int peek() throws IOException {
+      return fill() ? buf[pos] : -1;
+    }
+
+    int read() throws IOException {
+      return fill() ? buf[pos++] : -1;
+    }
+
+    /**
+     * Copies text up to the next '<', which is consumed.
+     *
+     * @return False if the input ended first.
+     */
+    boolean copyText(Writer out) throws IOException {
+      while (fill()) {
+        int start = pos;
+        while (pos < limit && buf[pos] != '<') {
+          pos++;
+        }
+        out.write(buf, start, pos - start);
+        if (pos < limit) {
+          pos++;
+          return true;
+        }
+      }
+      return false;
+    }
+
+    /**
+     * Copies everything up to and including the terminator, or the rest of the input if there
+     * is no terminator.
+     */
+    void copyThrough(String terminator, boolean ignoreCase, Writer out) throws IOException {
+      int length = terminator.length();
+      // The last characters copied, to compare with the terminator.
+      char[] window = new char[length];
+      int seen = 0;
+      while (fill()) {
+        int start = pos;
+        while (pos < limit) {
+          char c = buf[pos++];
+          System.arraycopy(window, 1, window, 0, length - 1);
+          window[length - 1] = c;
+          seen++;
+          if (seen >= length && matches(window, terminator, ignoreCase)) {
+            out.write(buf, start, pos - start);
+            return;
+          }
+        }
+        out.write(buf, start, pos - start);
+      }
+    }
+
+    private static boolean matches(char[] window, String terminator, boolean ignoreCase) {
+      for (int i = 0; i < window.length; i++) {
+        char a = window[i];
+        char b = terminator.charAt(i);
+        if (a != b && !(ignoreCase && Character.toLowerCase(a) == b)) {
+          return false;
+        }
+      }
+      return true;
+    }
+
+    /**
+     * Reads a start tag, after its '<'. Everything read is appended to raw.
+     *
+     * @return The tag, or null if the input ended first.
+     */
+    Tag readTag(StringBuilder raw, String baseHref) throws IOException {
+      raw.append('<');
+      StringBuilder name = new StringBuilder();
+      int c = peek();
+      while (c != -1 && !isSpace(c) && c != '/' && c != '>') {
+        name.append((char) read());
+        c = peek();
+      }
+      raw.append(name);
+      Tag tag = new Tag(name.toString(), baseHref);
+
+      StringBuilder leading = new StringBuilder();
+      while (true) {
+        c = read();
+        if (c == -1) {
+          raw.append(leading);
+          return null;
+        }
+        if (c == '>') {
+          raw.append(leading).append('>');
+          tag.tail = leading.toString();
+          return tag;
+        }
+        if (isSpace(c) || c == '/') {
+          leading.append((char) c);
+          continue;
+        }
+
+        StringBuilder attr = new StringBuilder();
+        StringBuilder attrName = new StringBuilder();
+        attrName.append((char) c);
+        c = peek();
+        while (c != -1 && !isSpace(c) && c != '=' && c != '/' && c != '>') {
+          attrName.append((char) read());
+          c = peek();
+        }
+        attr.append(attrName);
+
+        // Whitespace is only part of this attribute if a value follows it.
+        StringBuilder space = new StringBuilder();
+        while (isSpace(peek())) {
+          space.append((char) read());
+        }
+        String value = "";
+        if (peek() == '=') {
+          attr.append(space).append((char) read());
+          space.setLength(0);
+          while (isSpace(peek())) {
+            attr.append((char) read());
+          }
+          value = readValue(attr);
+          if (value == null) {
+            raw.append(leading).append(attr);
+            return null;
+          }
+        }
+        raw.append(leading).append(attr);
+        tag.attributes.add(
+            new Attribute(leading.toString(), attrName.toString(), value, attr.toString()));
+        leading.setLength(0);
+        leading.append(space);
+      }
+    }
+
+    /**
+     * Reads an attribute value, quoted or not, appending it as is to attr.
+     *
+     * @return The decoded value, or null if the input ended inside a quoted value.
+     */
+    private String readValue(StringBuilder attr) throws IOException {
+      StringBuilder value = new StringBuilder();
+      int c = peek();
+      if (c == '"' || c == '\'') {
+        int quote = read();
+        attr.append((char) quote);
+        while ((c = read()) != quote) {
+          if (c == -1) {
+            attr.append(value);
+            return null;
+          }
+          value.append((char) c);
+        }
+        attr.append(value).append((char) quote);
+      } else {
+        while (c != -1 && !isSpace(c) && c != '>') {
+          value.append((char) read());
+          c = peek();
+        }
+        attr.append(value);
+      }
+      return StringEscapeUtils.unescapeHtml(value.toString());
+    }
+
+    private static boolean isSpace(int c) {
+      return c == ' ' || c == '\t' || c == '\n' || c == '\r' || c == '\f';
+    }
+  }
+
+  /**
+   * {@link DomWalker.Rewriter} that streams the content through a list of {@code Filter}
+   * instances instead of walking the DOM, when streaming is enabled and the content hasn't been
+   * parsed already. The filters must make the same changes as the visitors. The content is read
+   * from and written back to the in-memory string held by {@link MutableContent}.
+   */
+  public static class Rewriter extends DomWalker.Rewriter {
+    private final List<Filter> filters;
+    private boolean streaming;
+
+    public Rewriter(List<DomWalker.Visitor> visitors, List<Filter> filters) {
+      super(visitors);
+      this.filters = filters;
+    }
+
+    public Rewriter() {
+      this.filters = null;
+    }
+
+    @Inject(optional = true)
+    public void setStreaming(@Named("shindig.rewriting.streaming") boolean streaming) {
+      this.streaming = streaming;
+    }
+
+    // Override this to supply a list of Filters generated using request context. Returning
+    // null walks the DOM instead.
+    protected List<Filter> makeFilters(Gadget context, Uri gadgetUri) {
+      return filters;
+    }
+
+    @Override
+    public void rewrite(Gadget gadget, MutableContent content) throws RewritingException {
+      if (!streaming || content.hasDocument() ||
+          !stream(makeFilters(gadget, gadget.getSpec().getUrl()), gadget, content)) {
+        super.rewrite(gadget, content);
+      }
+    }
+
+    @Override
+    public void rewrite(HttpRequest request, HttpResponseBuilder builder)
+        throws RewritingException {
+      if (streaming && !builder.hasDocument() && RewriterUtils.isHtml(request, builder)) {
+        Gadget context = DomWalker.makeGadget(request);
+        if (stream(makeFilters(context, request.getGadget()), context, builder)) {
+          return;
+        }
+      }
+      super.rewrite(request, builder);
+    }
+
+    @Override
+    protected List<DomWalker.Visitor> makeFusedVisitors(HttpRequest request,
+        HttpResponseBuilder builder, Gadget context) {
+      if (streaming && !builder.hasDocument()) {
+        // Streaming avoids the DOM altogether.
+        return null;
+      }
+      return super.makeFusedVisitors(request, builder, context);
+    }
+
+    private boolean stream(List<Filter> filters, Gadget gadget, MutableContent content)
+        throws RewritingException {
+      if (filters == null) {
+        return false;
+      }
+      String html = content.getContent();
+      StringWriter out = new StringWriter(html.length() + 64);
+      try {
+        if (TagStream.rewrite(gadget, filters, new StringReader(html), out)) {
+          content.setContent(out.toString());
+        }
+      } catch (IOException e) {
+        // Not expected when reading and writing strings.
+        throw new RewritingException(e, HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
+      }
+      return true;
+    }
+  }
+}
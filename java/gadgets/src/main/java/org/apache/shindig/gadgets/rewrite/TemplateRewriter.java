@@ -69,7 +69,7 @@ import java.util.logging.Logger;
  * Only templates without the @name and @tag attributes are processed
  * automatically.
  */
-public class TemplateRewriter implements GadgetRewriter {
+public class TemplateRewriter implements CacheableGadgetRewriter {
 
   public final static Set<String> TAGS = ImmutableSet.of("script");
   public static final String TEMPLATES_FEATURE_NAME = "opensocial-templates";
@@ -110,15 +110,14 @@ public class TemplateRewriter implements GadgetRewriter {
     this.containerTags = containerTags;
   }
 
-  public void rewrite(Gadget gadget, MutableContent content) throws RewritingException {
-    Map<String, Feature> directFeatures = gadget.getSpec().getModulePrefs()
-        .getFeatures();
+  public boolean isCacheable(Gadget gadget) {
+    // Templates are rendered with the viewer's and owner's data.
+    Feature feature = getTemplatesFeature(gadget);
+    return feature == null || !isServerTemplatingEnabled(feature);
+  }
 
-    Feature feature = directFeatures.get(TEMPLATES_FEATURE_NAME);
-    if (feature == null && directFeatures.containsKey(OSML_FEATURE_NAME)) {
-      feature = directFeatures.get(OSML_FEATURE_NAME);
-    }
-    
+  public void rewrite(Gadget gadget, MutableContent content) throws RewritingException {
+    Feature feature = getTemplatesFeature(gadget);
     if (feature != null && isServerTemplatingEnabled(feature)) {
       try {
         rewriteImpl(gadget, feature, content);
@@ -128,6 +127,17 @@ public class TemplateRewriter implements GadgetRewriter {
     }
   }
 
+  private static Feature getTemplatesFeature(Gadget gadget) {
+    Map<String, Feature> directFeatures = gadget.getSpec().getModulePrefs()
+        .getFeatures();
+
+    Feature feature = directFeatures.get(TEMPLATES_FEATURE_NAME);
+    if (feature == null && directFeatures.containsKey(OSML_FEATURE_NAME)) {
+      feature = directFeatures.get(OSML_FEATURE_NAME);
+    }
+    return feature;
+  }
+
   /**
    * Disable server-side templating when the feature contains:
    * <pre>
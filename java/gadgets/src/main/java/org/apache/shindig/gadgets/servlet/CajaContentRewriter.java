@@ -58,7 +58,7 @@ import org.apache.shindig.gadgets.http.HttpResponse;
 import org.apache.shindig.gadgets.http.RequestPipeline;
 import org.apache.shindig.gadgets.parse.HtmlSerialization;
 import org.apache.shindig.gadgets.parse.HtmlSerializer;
-import org.apache.shindig.gadgets.rewrite.GadgetRewriter;
+import org.apache.shindig.gadgets.rewrite.CacheableGadgetRewriter;
 import org.apache.shindig.gadgets.rewrite.MutableContent;
 import org.w3c.dom.Document;
 import org.w3c.dom.Element;
@@ -72,7 +72,7 @@ import java.util.logging.Logger;
 /**
  * A GadgetRewriter based on caja technology
  */
-public class CajaContentRewriter implements GadgetRewriter {
+public class CajaContentRewriter implements CacheableGadgetRewriter {
   public static final String CAJOLED_DOCUMENTS = "cajoledDocuments";
 
   private static final Logger LOG = Logger.getLogger(CajaContentRewriter.class.getName());
@@ -90,6 +90,11 @@ public class CajaContentRewriter implements GadgetRewriter {
     this.htmlSerializer = htmlSerializer;
   }
 
+  public boolean isCacheable(Gadget gadget) {
+    // Cajoled output has a cache of its own.
+    return !cajaEnabled(gadget);
+  }
+
   public void rewrite(Gadget gadget, MutableContent mc) {
     if (!cajaEnabled(gadget)) return;
 
@@ -23,11 +23,13 @@ import com.google.inject.name.Named;
 
 import org.apache.commons.lang.StringEscapeUtils;
 import org.apache.commons.lang.StringUtils;
+import org.apache.shindig.common.servlet.AsyncServletSupport;
 import org.apache.shindig.common.servlet.HttpUtil;
 import org.apache.shindig.common.servlet.InjectedServlet;
 import org.apache.shindig.common.Pair;
 import org.apache.shindig.common.uri.Uri;
 import org.apache.shindig.common.uri.UriBuilder;
+import org.apache.shindig.common.util.TimeSource;
 import org.apache.shindig.gadgets.GadgetException;
 import org.apache.shindig.gadgets.http.HttpRequest;
 import org.apache.shindig.gadgets.http.HttpResponse;
@@ -38,16 +40,21 @@ import org.apache.shindig.gadgets.uri.ConcatUriManager;
 import org.apache.shindig.gadgets.uri.UriCommon.Param;
 
 import java.io.IOException;
+import java.io.OutputStream;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
 import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.regex.Pattern;
+import java.util.zip.GZIPOutputStream;
 
 import javax.servlet.ServletConfig;
 import javax.servlet.ServletException;
@@ -69,15 +76,22 @@ public class ConcatProxyServlet extends InjectedServlet {
   static final Integer LONG_LIVED_REFRESH = (365 * 24 * 60 * 60);  // 1 year
   static final Integer DEFAULT_REFRESH = (60 * 60);                // 1 hour
 
+  static final int DEFAULT_MAX_PARALLEL_FETCHES = 8;
+  static final long DEFAULT_DEADLINE_MS = 30000L;
+
   private static final Logger LOG 
       = Logger.getLogger(ConcatProxyServlet.class.getName());
   
   private transient RequestPipeline requestPipeline;
   private transient ConcatUriManager concatUriManager;
   private transient ResponseRewriterRegistry contentRewriterRegistry;
+  private transient ConcatResultCache resultCache;
 
-  // Sequential version of 'execute' by default.
-  private transient ExecutorService executor = Executors.newSingleThreadExecutor();
+  // Without an executor every resource is fetched in the request thread, one after another.
+  private transient ExecutorService executor;
+  private int maxParallelFetches = DEFAULT_MAX_PARALLEL_FETCHES;
+  private long deadlineMs = DEFAULT_DEADLINE_MS;
+  private transient TimeSource timeSource = new TimeSource();
 
   @Inject
   public void setRequestPipeline(RequestPipeline requestPipeline) {
@@ -97,6 +111,12 @@ public class ConcatProxyServlet extends InjectedServlet {
     this.contentRewriterRegistry = contentRewriterRegistry;
   }
   
+  @Inject
+  public void setResultCache(ConcatResultCache resultCache) {
+    checkInitialized();
+    this.resultCache = resultCache;
+  }
+
   @Inject
   public void setExecutor(@Named("shindig.concat.executor") ExecutorService executor) {
     checkInitialized();
@@ -105,9 +125,36 @@ public class ConcatProxyServlet extends InjectedServlet {
     this.executor = executor;
   }
 
+  /**
+   * Limits how many resources of one request are fetched ahead of the one being written out, so
+   * a single large bundle can't occupy the whole shared executor.
+   */
+  @Inject(optional = true)
+  public void setMaxParallelFetches(
+      @Named("shindig.concat.max-parallel-fetches") int maxParallelFetches) {
+    checkInitialized();
+    this.maxParallelFetches = maxParallelFetches;
+  }
+
+  /**
+   * Time allowed for all resources of one request. Resources not fetched by then are reported as
+   * timed out in place of their content.
+   */
+  @Inject(optional = true)
+  public void setDeadlineMs(@Named("shindig.concat.deadline-ms") long deadlineMs) {
+    checkInitialized();
+    this.deadlineMs = deadlineMs;
+  }
+
+  @Inject(optional = true)
+  public void setTimeSource(TimeSource timeSource) {
+    checkInitialized();
+    this.timeSource = timeSource;
+  }
+
   @SuppressWarnings("boxing")
   @Override
-  protected void doGet(HttpServletRequest request, HttpServletResponse response)
+  protected void doGet(final HttpServletRequest request, final HttpServletResponse response)
       throws IOException {
     if (request.getHeader("If-Modified-Since") != null) {
       response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
@@ -115,7 +162,7 @@ public class ConcatProxyServlet extends InjectedServlet {
     }
 
     Uri uri = new UriBuilder(request).toUri();
-    ConcatUriManager.ConcatUri concatUri = concatUriManager.process(uri);
+    final ConcatUriManager.ConcatUri concatUri = concatUriManager.process(uri);
 
     ConcatUriManager.Type concatType = concatUri.getType();
     try {
@@ -135,29 +182,72 @@ public class ConcatProxyServlet extends InjectedServlet {
     response.setHeader("Content-Type", concatType.getMimeType() + "; charset=UTF8");
     response.setHeader("Content-Disposition", "attachment;filename=p.txt");
 
-    if (doFetchConcatResources(response, concatUri)) {
-      response.setStatus(HttpResponse.SC_OK);
-    } else {
-      response.setStatus(HttpResponse.SC_BAD_REQUEST);
+    dispatch(request, response, new AsyncServletSupport.Handler() {
+      public void handle(HttpServletResponse response) throws IOException {
+        boolean gzipAccepted = ServletUtil.acceptsGzip(request);
+        if (writeCachedResult(request, response, concatUri, gzipAccepted)) {
+          return;
+        }
+        if (doFetchConcatResources(response, concatUri, gzipAccepted)) {
+          response.setStatus(HttpResponse.SC_OK);
+        } else {
+          response.setStatus(HttpResponse.SC_BAD_REQUEST);
+        }
+      }
+    });
+  }
+
+  /**
+   * Answers the request from the result cache, if it holds a current result for the uri.
+   *
+   * @return true if the response has been sent.
+   */
+  private boolean writeCachedResult(HttpServletRequest request, HttpServletResponse response,
+      ConcatUriManager.ConcatUri concatUri, boolean gzipAccepted) throws IOException {
+    ConcatResultCache.Entry entry = resultCache == null ? null : resultCache.getEntry(concatUri);
+    if (entry == null) {
+      return false;
+    }
+    boolean gzipped = gzipAccepted && entry.getGzippedBody() != null;
+    if (entry.getGzippedBody() != null) {
+      response.addHeader("Vary", "Accept-Encoding");
+    }
+    String etag = entry.getEtag(gzipped);
+    response.setHeader("ETag", etag);
+    if (etag.equals(request.getHeader("If-None-Match"))) {
+      response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+      return true;
     }
+    byte[] body = entry.getBody();
+    if (gzipped) {
+      response.setHeader("Content-Encoding", "gzip");
+      body = entry.getGzippedBody();
+    }
+    response.setStatus(HttpResponse.SC_OK);
+    response.setContentLength(body.length);
+    response.getOutputStream().write(body);
+    return true;
   }
 
   /**
    * @param response HttpservletResponse.
    * @param concatUri URI representing the concatenated list of resources requested.
+   * @param gzipAccepted Whether the client accepts a gzipped response.
    * @return false for cases where concat resources could not be fetched, true for success cases.
    * @throws IOException
    */
   private boolean doFetchConcatResources(HttpServletResponse response,
-      ConcatUriManager.ConcatUri concatUri) throws IOException {
+      ConcatUriManager.ConcatUri concatUri, boolean gzipAccepted) throws IOException {
     // Check for json concat and set output stream.
     ConcatOutputStream cos = null;
+    ConcatResultCache.Recorder recorder =
+        resultCache == null ? null : resultCache.newRecorder(concatUri);
     
     String jsonVar = concatUri.getSplitParam();
     if (jsonVar != null) {
       // JSON-concat mode.
       if (JSON_PARAM_PATTERN.matcher(jsonVar).matches()) {
-        cos = new JsonConcatOutputStream(response.getOutputStream(), jsonVar);
+        cos = new JsonConcatOutputStream(openOutput(response, gzipAccepted, recorder), jsonVar);
       } else {
         response.getOutputStream().println(
             formatHttpError(HttpServletResponse.SC_BAD_REQUEST,
@@ -166,11 +256,12 @@ public class ConcatProxyServlet extends InjectedServlet {
       }
     } else {
       // Standard concat output mode.
-      cos = new VerbatimConcatOutputStream(response.getOutputStream());
+      cos = new VerbatimConcatOutputStream(openOutput(response, gzipAccepted, recorder));
     }
 
     List<Pair<Uri, FutureTask<RequestContext>>> futureTasks =
         new ArrayList<Pair<Uri, FutureTask<RequestContext>>>();
+    long deadline = timeSource.currentTimeMillis() + deadlineMs;
 
     try {
       for (Uri resourceUri : concatUri.getBatch()) {
@@ -179,8 +270,13 @@ public class ConcatProxyServlet extends InjectedServlet {
           FutureTask<RequestContext> httpFetcher =
                   new FutureTask<RequestContext>(new HttpFetchCallable(httpReq));
           futureTasks.add(Pair.of(httpReq.getUri(), httpFetcher));
-          executor.execute(httpFetcher);
+          if (recorder != null) {
+            recorder.addMember(httpReq);
+          }
         } catch (GadgetException ge) {
+          if (recorder != null) {
+            recorder.abandon();
+          }
           if (cos.outputError(resourceUri, ge)) {
             // True returned from outputError indicates a terminal error.
             return false;
@@ -188,11 +284,34 @@ public class ConcatProxyServlet extends InjectedServlet {
         }
       }
 
-      for (Pair<Uri, FutureTask<RequestContext>> futureTask : futureTasks) {
+      // Keep up to maxParallelFetches resources in flight ahead of the one being written, and
+      // write each one out as soon as it and everything before it is ready.
+      int submitted = 0;
+      for (int i = 0; i < futureTasks.size(); i++) {
+        while (submitted < futureTasks.size() && submitted < i + maxParallelFetches) {
+          submit(futureTasks.get(submitted++).two);
+        }
+        Pair<Uri, FutureTask<RequestContext>> futureTask = futureTasks.get(i);
         RequestContext requestCxt = null;
         try {
+          if (deadline - timeSource.currentTimeMillis() <= 0) {
+            // Past the deadline, fetches that haven't started are reported as timed out rather
+            // than run here. Completed ones are still written.
+            futureTask.two.cancel(true);
+          } else {
+            // Fetches that were never picked up (no executor, or it was saturated) run here.
+            futureTask.two.run();
+          }
           try {
-            requestCxt = futureTask.two.get();
+            requestCxt = futureTask.two.get(
+                Math.max(0, deadline - timeSource.currentTimeMillis()), TimeUnit.MILLISECONDS);
+          } catch (TimeoutException te) {
+            futureTask.two.cancel(true);
+            throw new GadgetException(GadgetException.Code.FAILED_TO_RETRIEVE_CONTENT,
+                "Timed out", HttpResponse.SC_GATEWAY_TIMEOUT);
+          } catch (CancellationException ce) {
+            throw new GadgetException(GadgetException.Code.FAILED_TO_RETRIEVE_CONTENT,
+                "Timed out", HttpResponse.SC_GATEWAY_TIMEOUT);
           } catch (InterruptedException ie) {
             throw new GadgetException(GadgetException.Code.INTERNAL_SERVER_ERROR, ie);
           } catch (ExecutionException ee) {
@@ -203,6 +322,9 @@ public class ConcatProxyServlet extends InjectedServlet {
           }
           HttpResponse httpResp = requestCxt.getHttpResp();
           if (httpResp != null) {
+            if (recorder != null) {
+              recorder.addResponse(httpResp);
+            }
             if (contentRewriterRegistry != null) {
               try {
                 httpResp = contentRewriterRegistry.rewriteHttpResponse(requestCxt.getHttpReq(),
@@ -217,12 +339,20 @@ public class ConcatProxyServlet extends InjectedServlet {
             return false;
           }
         } catch (GadgetException ge) {
+          if (recorder != null) {
+            recorder.abandon();
+          }
           if (cos.outputError(futureTask.one, ge)) {
             return false;
           }
         }
+        cos.flush();
       }
     } finally {
+      // Nothing is waiting for fetches left behind by an early return or a failed write.
+      for (Pair<Uri, FutureTask<RequestContext>> futureTask : futureTasks) {
+        futureTask.two.cancel(true);
+      }
       if (cos != null) {
         try {
           cos.close();
@@ -232,9 +362,43 @@ public class ConcatProxyServlet extends InjectedServlet {
       }
     }
 
+    if (recorder != null) {
+      recorder.complete();
+    }
     return true;
   }
 
+  /**
+   * Hands a fetch to the executor. If there is none, or it is saturated, the fetch is left for
+   * the request thread to run when its turn to be written comes.
+   */
+  private void submit(FutureTask<RequestContext> httpFetcher) {
+    if (executor == null) {
+      return;
+    }
+    try {
+      executor.execute(httpFetcher);
+    } catch (RejectedExecutionException e) {
+      // Run inline later.
+    }
+  }
+
+  /**
+   * Cached bodies can't be sent precompressed here, as they are interleaved with separators (and
+   * escaped in JSON mode), so the output is gzipped as a whole for clients that accept it.
+   * When the result may be cached, the uncompressed output is also handed to the recorder.
+   */
+  private static OutputStream openOutput(HttpServletResponse response, boolean gzipAccepted,
+      ConcatResultCache.Recorder recorder) throws IOException {
+    OutputStream out = response.getOutputStream();
+    if (gzipAccepted) {
+      response.setHeader("Content-Encoding", "gzip");
+      response.addHeader("Vary", "Accept-Encoding");
+      out = new GZIPOutputStream(out);
+    }
+    return recorder == null ? out : recorder.capture(out);
+  }
+
   private static String formatHttpError(int status, String errorMessage, Uri uri) {
     StringBuilder err = new StringBuilder();
     err.append("/* ---- Error ");
@@ -267,9 +431,9 @@ public class ConcatProxyServlet extends InjectedServlet {
   }
   
   private static abstract class ConcatOutputStream extends ServletOutputStream {
-    private final ServletOutputStream wrapped;
+    private final OutputStream wrapped;
     
-    protected ConcatOutputStream(ServletOutputStream wrapped) {
+    protected ConcatOutputStream(OutputStream wrapped) {
       this.wrapped = wrapped;
     }
     
@@ -304,6 +468,11 @@ public class ConcatProxyServlet extends InjectedServlet {
       wrapped.write(b);
     }
     
+    @Override
+    public void flush() throws IOException {
+      wrapped.flush();
+    }
+
     @Override
     public void close() throws IOException {
       wrapped.close();
@@ -322,7 +491,7 @@ public class ConcatProxyServlet extends InjectedServlet {
   }
   
   private static class VerbatimConcatOutputStream extends ConcatOutputStream {    
-    public VerbatimConcatOutputStream(ServletOutputStream wrapped) {
+    public VerbatimConcatOutputStream(OutputStream wrapped) {
       super(wrapped);
     }
 
@@ -335,7 +504,7 @@ public class ConcatProxyServlet extends InjectedServlet {
   }
   
   private static class JsonConcatOutputStream extends ConcatOutputStream {    
-    public JsonConcatOutputStream(ServletOutputStream wrapped, String tok) throws IOException {
+    public JsonConcatOutputStream(OutputStream wrapped, String tok) throws IOException {
       super(wrapped);
       this.println(tok + "={");
     }
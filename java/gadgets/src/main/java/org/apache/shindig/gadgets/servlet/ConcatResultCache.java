@@ -0,0 +1,305 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.shindig.gadgets.servlet;
+
+import org.apache.shindig.common.cache.Cache;
+import org.apache.shindig.common.cache.CacheProvider;
+import org.apache.shindig.common.util.HashUtil;
+import org.apache.shindig.common.util.TimeSource;
+import org.apache.shindig.gadgets.http.AbstractHttpCache;
+import org.apache.shindig.gadgets.http.HttpCache;
+import org.apache.shindig.gadgets.http.HttpRequest;
+import org.apache.shindig.gadgets.http.HttpResponse;
+import org.apache.shindig.gadgets.uri.ConcatUriManager;
+
+import com.google.common.collect.Lists;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+
+import java.io.ByteArrayOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Cache of fully assembled concat responses, keyed by the validated
+ * {@link ConcatUriManager.ConcatUri}.
+ *
+ * Each result remembers the {@link HttpCache} keys of its members and a version mark for each.
+ * Marks change whenever the member's entry in the HttpCache is stored or removed, so a result is
+ * dropped on the first read after any of its members changes. Results also expire with the
+ * earliest expiring member.
+ *
+ * Only works with HttpCache implementations derived from {@link AbstractHttpCache}, which report
+ * their changes; with any other implementation nothing is cached.
+ */
+@Singleton
+public class ConcatResultCache {
+  public static final String CACHE_NAME = "concatResults";
+  public static final String VERSION_CACHE_NAME = "concatMemberVersions";
+
+  // Larger bundles are assembled on every request rather than held in memory.
+  static final int MAX_BODY_BYTES = 1024 * 1024;
+
+  private final HttpCache httpCache;
+  private final Cache<ConcatUriManager.ConcatUri, Entry> results;
+  private final Cache<String, Long> versions;
+  private final AtomicLong marker = new AtomicLong(System.currentTimeMillis());
+  private final boolean enabled;
+  private TimeSource timeSource = new TimeSource();
+
+  @Inject
+  public ConcatResultCache(HttpCache httpCache, CacheProvider cacheProvider) {
+    this.httpCache = httpCache;
+    this.results = cacheProvider.createCache(CACHE_NAME);
+    this.versions = cacheProvider.createCache(VERSION_CACHE_NAME);
+    this.enabled = httpCache instanceof AbstractHttpCache;
+    if (enabled) {
+      ((AbstractHttpCache) httpCache).addChangeListener(new AbstractHttpCache.ChangeListener() {
+        public void onChange(String key, boolean removed) {
+          // Only members of some cached result carry a mark. Results recorded against a member
+          // without one are never stored, so there is nothing to invalidate for the others.
+          if (versions.getElement(key) != null) {
+            versions.addElement(key, marker.incrementAndGet());
+          }
+        }
+      });
+    }
+  }
+
+  @Inject(optional = true)
+  public void setTimeSource(TimeSource timeSource) {
+    this.timeSource = timeSource;
+  }
+
+  /**
+   * @return The cached result for the uri, or null if there is none or it is no longer current.
+   */
+  public Entry getEntry(ConcatUriManager.ConcatUri concatUri) {
+    if (!enabled || concatUri.isNoCache()) {
+      return null;
+    }
+    Entry entry = results.getElement(concatUri);
+    if (entry == null) {
+      return null;
+    }
+    if (timeSource.currentTimeMillis() >= entry.expiration || !isCurrent(entry)) {
+      results.removeElement(concatUri);
+      return null;
+    }
+    return entry;
+  }
+
+  /**
+   * Starts recording the result for a uri. Members must be added before they are fetched, so
+   * that changes made while the result is assembled are noticed.
+   *
+   * @return A recorder, or null if results for the uri can't be cached.
+   */
+  public Recorder newRecorder(ConcatUriManager.ConcatUri concatUri) {
+    if (!enabled || concatUri.isNoCache()) {
+      return null;
+    }
+    return new Recorder(concatUri);
+  }
+
+  private boolean isCurrent(Entry entry) {
+    for (int i = 0; i < entry.memberKeys.length; i++) {
+      Long mark = versions.getElement(entry.memberKeys[i]);
+      if (mark == null || mark.longValue() != entry.marks[i]) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * An assembled concat response.
+   */
+  public static class Entry {
+    private final byte[] body;
+    private final byte[] gzippedBody;
+    private final String etag;
+    private final long expiration;
+    private final String[] memberKeys;
+    private final long[] marks;
+
+    Entry(byte[] body, byte[] gzippedBody, long expiration, String[] memberKeys, long[] marks) {
+      this.body = body;
+      this.gzippedBody = gzippedBody;
+      this.etag = '"' + HashUtil.checksum(body) + '"';
+      this.expiration = expiration;
+      this.memberKeys = memberKeys;
+      this.marks = marks;
+    }
+
+    public String getEtag() {
+      return etag;
+    }
+
+    /**
+     * @return The ETag of the body sent, which differs between the gzipped and identity bodies so
+     *     that caches in between never revalidate one with the other.
+     */
+    public String getEtag(boolean gzipped) {
+      return gzipped && gzippedBody != null
+          ? etag.substring(0, etag.length() - 1) + "-gz\"" : etag;
+    }
+
+    byte[] getBody() {
+      return body;
+    }
+
+    /**
+     * @return The gzipped body, or null if gzip doesn't make it any smaller.
+     */
+    byte[] getGzippedBody() {
+      return gzippedBody;
+    }
+
+    public long getExpiration() {
+      return expiration;
+    }
+  }
+
+  /**
+   * Collects the members and the output of one concat response, and caches the result if every
+   * member turned out to be cacheable.
+   */
+  public class Recorder {
+    private final ConcatUriManager.ConcatUri concatUri;
+    private final List<String> memberKeys = Lists.newArrayList();
+    private final List<Long> marks = Lists.newArrayList();
+    private final ByteArrayOutputStream captured = new ByteArrayOutputStream();
+    private long expiration = Long.MAX_VALUE;
+    private boolean abandoned;
+
+    Recorder(ConcatUriManager.ConcatUri concatUri) {
+      this.concatUri = concatUri;
+    }
+
+    /**
+     * Records the current version of a member's HttpCache entry.
+     */
+    public void addMember(HttpRequest request) {
+      String key = httpCache.createKey(request);
+      Long mark = versions.getElement(key);
+      if (mark == null) {
+        // Changes to this member may already have been missed. Start tracking it so the next
+        // response can be cached, but don't cache this one.
+        versions.addElement(key, marker.incrementAndGet());
+        abandon();
+        return;
+      }
+      memberKeys.add(key);
+      marks.add(mark);
+    }
+
+    /**
+     * Takes a fetched member into account. Errors and uncacheable responses prevent caching.
+     */
+    public void addResponse(HttpResponse response) {
+      if (response.getHttpStatusCode() != HttpResponse.SC_OK || response.isStrictNoCache()) {
+        abandon();
+        return;
+      }
+      expiration = Math.min(expiration, response.getCacheExpiration());
+    }
+
+    /**
+     * Gives up on caching this response, for instance because one of its members failed.
+     */
+    public void abandon() {
+      abandoned = true;
+      captured.reset();
+    }
+
+    /**
+     * @return A stream that writes through to out, keeping a copy of the uncompressed output.
+     */
+    public OutputStream capture(OutputStream out) {
+      return new FilterOutputStream(out) {
+        @Override
+        public void write(int b) throws IOException {
+          write(new byte[] { (byte) b }, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+          try {
+            out.write(b, off, len);
+          } catch (IOException e) {
+            // The captured copy would be missing whatever follows.
+            abandon();
+            throw e;
+          }
+          if (keep(len)) {
+            captured.write(b, off, len);
+          }
+        }
+      };
+    }
+
+    private boolean keep(int len) {
+      if (abandoned) {
+        return false;
+      }
+      if (captured.size() + len > MAX_BODY_BYTES) {
+        abandon();
+        return false;
+      }
+      return true;
+    }
+
+    /**
+     * Caches the captured output, unless caching was abandoned or it has already expired.
+     */
+    public void complete() {
+      if (abandoned || timeSource.currentTimeMillis() >= expiration) {
+        return;
+      }
+      byte[] body = captured.toByteArray();
+      long[] markArray = new long[marks.size()];
+      for (int i = 0; i < markArray.length; i++) {
+        markArray[i] = marks.get(i);
+      }
+      results.addElement(concatUri, new Entry(body, gzip(body), expiration,
+          memberKeys.toArray(new String[memberKeys.size()]), markArray));
+    }
+  }
+
+  /**
+   * @return The gzipped body, or null if compression doesn't make it smaller.
+   */
+  private static byte[] gzip(byte[] body) {
+    ByteArrayOutputStream compressed = new ByteArrayOutputStream(body.length / 4 + 32);
+    try {
+      GZIPOutputStream gzip = new GZIPOutputStream(compressed);
+      gzip.write(body);
+      gzip.close();
+    } catch (IOException e) {
+      // Not possible writing to memory.
+      return null;
+    }
+    return compressed.size() < body.length ? compressed.toByteArray() : null;
+  }
+}
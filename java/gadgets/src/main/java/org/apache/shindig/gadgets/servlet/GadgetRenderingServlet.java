@@ -17,6 +17,7 @@
  */
 package org.apache.shindig.gadgets.servlet;
 
+import org.apache.shindig.common.servlet.AsyncServletSupport;
 import org.apache.shindig.common.servlet.HttpUtil;
 import org.apache.shindig.common.servlet.InjectedServlet;
 import org.apache.shindig.common.uri.UriBuilder;
@@ -68,23 +69,34 @@ public class GadgetRenderingServlet extends InjectedServlet {
   }
 
   @Override
-  protected void doGet(HttpServletRequest req, HttpServletResponse resp) throws IOException {
+  protected void doGet(final HttpServletRequest req, final HttpServletResponse resp)
+      throws IOException {
     // If an If-Modified-Since header is ever provided, we always say
     // not modified. This is because when there actually is a change,
     // cache busting should occur.
-    UriStatus urlStatus = getUrlStatus(req);
+    final UriStatus urlStatus = getUrlStatus(req);
     if (req.getHeader("If-Modified-Since") != null &&
         !"1".equals(req.getParameter("nocache")) &&
         urlStatus == UriStatus.VALID_VERSIONED) {
       resp.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
       return;
     }
-    render(req, resp, urlStatus);
+    dispatch(req, resp, new AsyncServletSupport.Handler() {
+      public void handle(HttpServletResponse resp) throws IOException {
+        render(req, resp, urlStatus);
+      }
+    });
   }
 
   @Override
-  protected void doPost(HttpServletRequest req, HttpServletResponse resp) throws IOException {
-    render(req, resp, getUrlStatus(req));
+  protected void doPost(final HttpServletRequest req, final HttpServletResponse resp)
+      throws IOException {
+    final UriStatus urlStatus = getUrlStatus(req);
+    dispatch(req, resp, new AsyncServletSupport.Handler() {
+      public void handle(HttpServletResponse resp) throws IOException {
+        render(req, resp, urlStatus);
+      }
+    });
   }
 
   private void render(HttpServletRequest req, HttpServletResponse resp, UriStatus urlstatus)
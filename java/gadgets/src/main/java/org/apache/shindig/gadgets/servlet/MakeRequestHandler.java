@@ -18,8 +18,11 @@
  */
 package org.apache.shindig.gadgets.servlet;
 
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
 import com.google.inject.Inject;
 import com.google.inject.Singleton;
+import com.google.inject.name.Named;
 
 import org.apache.commons.lang.StringUtils;
 import org.apache.shindig.auth.AuthInfo;
@@ -43,12 +46,31 @@ import org.apache.shindig.gadgets.rewrite.RewritingException;
 import org.apache.shindig.gadgets.uri.UriCommon;
 import org.apache.shindig.gadgets.uri.UriCommon.Param;
 
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.io.UnsupportedEncodingException;
+import java.io.Writer;
 import java.util.Collections;
+import java.util.Enumeration;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
 import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletRequestWrapper;
 import javax.servlet.http.HttpServletResponse;
 
 /**
@@ -69,9 +91,19 @@ public class MakeRequestHandler {
   public static final String GET_SUMMARIES_PARAM = "getSummaries";
   public static final String GET_FULL_HEADERS_PARAM = "getFullHeaders";
   public static final String AUTHZ_PARAM = "authz";
+  public static final String BATCH_PARAM = "requests";
+  public static final String BATCH_ID_FIELD = "id";
+  public static final String STREAM_PARAM = "stream";
+  public static final int DEFAULT_MAX_BATCH_SIZE = 32;
+  public static final int DEFAULT_MAX_PARALLEL_FETCHES = 8;
+
+  private static final Logger LOG = Logger.getLogger(MakeRequestHandler.class.getName());
 
   private final RequestPipeline requestPipeline;
   private final ResponseRewriterRegistry contentRewriterRegistry;
+  private ExecutorService executor;
+  private int maxBatchSize = DEFAULT_MAX_BATCH_SIZE;
+  private int maxParallelFetches = DEFAULT_MAX_PARALLEL_FETCHES;
 
   @Inject
   public MakeRequestHandler(RequestPipeline requestPipeline,
@@ -80,14 +112,235 @@ public class MakeRequestHandler {
     this.contentRewriterRegistry = contentRewriterRegistry;
   }
 
+  /**
+   * Executor for the requests of a batch. Without one, or when it is saturated, they are fetched
+   * in the request thread, one after another.
+   */
+  @Inject(optional = true)
+  public void setExecutor(@Named("shindig.makerequest.batch.executor") ExecutorService executor) {
+    this.executor = executor;
+  }
+
+  @Inject(optional = true)
+  public void setMaxBatchSize(@Named("shindig.makerequest.batch.max-size") int maxBatchSize) {
+    this.maxBatchSize = maxBatchSize;
+  }
+
+  /**
+   * Limits how many requests of one batch are fetched ahead of the one being written out, so a
+   * single batch can't occupy the whole shared executor.
+   */
+  @Inject(optional = true)
+  public void setMaxParallelFetches(
+      @Named("shindig.makerequest.batch.max-parallel-fetches") int maxParallelFetches) {
+    this.maxParallelFetches = maxParallelFetches;
+  }
+
   /**
    * Executes a request, returning the response as JSON to be handled by makeRequest.
    */
   public void fetch(HttpServletRequest request, HttpServletResponse response)
       throws GadgetException, IOException {
     HttpRequest rcr = buildHttpRequest(request);
+    HttpResponse results = fetchAndRewrite(rcr);
 
     // Serialize the response
+    String output = convertResponseToJson(rcr.getSecurityToken(), request, results);
+
+    // Find and set the refresh interval
+    setResponseHeaders(request, response, results);
+
+    response.setStatus(HttpServletResponse.SC_OK);
+    response.setContentType("application/json");
+    response.setCharacterEncoding("UTF-8");
+    response.getWriter().write(UNPARSEABLE_CRUFT + output);
+  }
+
+  /**
+   * Executes a batch of requests, given as a JSON array in the {@link #BATCH_PARAM} parameter.
+   * Each element is an object holding the parameters of one makeRequest call, plus an optional
+   * {@link #BATCH_ID_FIELD}; parameters it doesn't set are taken from the batch request, so
+   * shared ones like the container and the gadget need only be given once. Authentication
+   * works as for single requests, with the security token of the batch request.
+   *
+   * The response is a JSON array with an object per request, holding its id, a status and either
+   * the response as {@link #fetch} would return it or an error message. Elements are in request
+   * order, unless {@link #STREAM_PARAM} is set, in which case each is written as soon as it is
+   * ready.
+   */
+  public void fetchBatch(HttpServletRequest request, HttpServletResponse response)
+      throws GadgetException, IOException {
+    // Container request objects aren't thread-safe, so everything the fetches need from it is
+    // read here, before any of them is handed to the executor.
+    List<BatchItem> items = parseBatch(request);
+    boolean stream = "1".equals(request.getParameter(STREAM_PARAM))
+        || "true".equals(request.getParameter(STREAM_PARAM));
+
+    BlockingQueue<BatchTask> completed = new LinkedBlockingQueue<BatchTask>();
+    List<BatchTask> tasks = Lists.newArrayListWithCapacity(items.size());
+    for (BatchItem item : items) {
+      tasks.add(new BatchTask(item, completed));
+    }
+
+    // Results are multiplexed, so they can't be cached as a whole.
+    HttpUtil.setCachingHeaders(response, 0, false);
+    response.setHeader("Content-Disposition", "attachment;filename=p.txt");
+    response.setStatus(HttpServletResponse.SC_OK);
+    response.setContentType("application/json");
+    response.setCharacterEncoding("UTF-8");
+    Writer out = response.getWriter();
+    out.write(UNPARSEABLE_CRUFT);
+    out.write('[');
+    try {
+      int submitted = 0;
+      int inline = 0;
+      for (int i = 0; i < tasks.size(); i++) {
+        // Keep up to maxParallelFetches requests in flight ahead of those written out.
+        while (submitted < tasks.size() && submitted < i + maxParallelFetches) {
+          submit(tasks.get(submitted++));
+        }
+        BatchTask result;
+        if (stream) {
+          result = completed.poll();
+          while (result == null) {
+            // Tasks the executor never started run here; running one that has started is a
+            // no-op, so then wait for whichever finishes first.
+            if (inline < submitted) {
+              tasks.get(inline++).run();
+              result = completed.poll();
+            } else {
+              result = completed.take();
+            }
+          }
+        } else {
+          result = tasks.get(i);
+          result.run();
+        }
+        if (i > 0) {
+          out.write(',');
+        }
+        out.write(result.getJson());
+        if (stream) {
+          out.flush();
+        }
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      // The response is committed by now, so it can only be cut short.
+      throw new InterruptedIOException("Interrupted while fetching batch");
+    } finally {
+      for (BatchTask task : tasks) {
+        task.cancel(true);
+      }
+    }
+    out.write(']');
+  }
+
+  /**
+   * Hands a request of a batch to the executor. If there is none, or it is saturated, the request
+   * is left for the request thread to run.
+   */
+  private void submit(BatchTask task) {
+    if (executor == null) {
+      return;
+    }
+    try {
+      executor.execute(task);
+    } catch (RejectedExecutionException e) {
+      // Run inline later.
+    }
+  }
+
+  private List<BatchItem> parseBatch(HttpServletRequest request) throws GadgetException {
+    String batch = request.getParameter(BATCH_PARAM);
+    if (batch == null) {
+      throw new GadgetException(GadgetException.Code.INVALID_PARAMETER,
+          BATCH_PARAM + " parameter is missing.", HttpResponse.SC_BAD_REQUEST);
+    }
+    Map<String, String> batchParams = Maps.newHashMap();
+    for (Enumeration<?> names = request.getParameterNames();
+         names != null && names.hasMoreElements(); ) {
+      String name = (String) names.nextElement();
+      batchParams.put(name, request.getParameter(name));
+    }
+    batchParams.remove(BATCH_PARAM);
+    try {
+      JSONArray array = new JSONArray(batch);
+      if (array.length() > maxBatchSize) {
+        throw new GadgetException(GadgetException.Code.INVALID_PARAMETER,
+            "At most " + maxBatchSize + " requests may be batched.", HttpResponse.SC_BAD_REQUEST);
+      }
+      List<BatchItem> items = Lists.newArrayListWithCapacity(array.length());
+      for (int i = 0; i < array.length(); i++) {
+        JSONObject item = array.getJSONObject(i);
+        Map<String, String> params = Maps.newHashMap(batchParams);
+        for (Iterator<?> keys = item.keys(); keys.hasNext(); ) {
+          String key = (String) keys.next();
+          Object value = item.get(key);
+          if (!BATCH_ID_FIELD.equals(key) && value != JSONObject.NULL) {
+            params.put(key, value.toString());
+          }
+        }
+        Object id = item.has(BATCH_ID_FIELD) ? item.get(BATCH_ID_FIELD) : Integer.valueOf(i);
+        HttpServletRequest itemRequest = new BatchItemRequest(request, params);
+        // Built here, as it reads the headers and the security token of the batch request.
+        try {
+          items.add(new BatchItem(id, itemRequest, buildHttpRequest(itemRequest), null));
+        } catch (GadgetException e) {
+          items.add(new BatchItem(id, itemRequest, null, e));
+        }
+      }
+      return items;
+    } catch (JSONException e) {
+      throw new GadgetException(GadgetException.Code.INVALID_PARAMETER,
+          "Malformed " + BATCH_PARAM + " parameter: " + e.getMessage(),
+          HttpResponse.SC_BAD_REQUEST);
+    }
+  }
+
+  /**
+   * @return The JSON for one element of a batch response. Errors are reported in the element.
+   */
+  private String fetchBatchItem(BatchItem item) {
+    try {
+      if (item.error != null) {
+        throw item.error;
+      }
+      HttpResponse results = fetchAndRewrite(item.httpRequest);
+      String output =
+          convertResponseToJson(item.httpRequest.getSecurityToken(), item.request, results);
+      StringBuilder json = new StringBuilder();
+      json.append("{\"id\":");
+      JsonSerializer.append(json, item.id);
+      json.append(",\"status\":").append(HttpServletResponse.SC_OK)
+          .append(",\"response\":").append(output).append('}');
+      return json.toString();
+    } catch (GadgetException e) {
+      int status = e.getCode() == GadgetException.Code.INTERNAL_SERVER_ERROR
+          ? HttpServletResponse.SC_INTERNAL_SERVER_ERROR : HttpServletResponse.SC_BAD_REQUEST;
+      return batchError(item.id, status, e.getMessage());
+    } catch (IOException e) {
+      // Not possible appending to a StringBuilder.
+      throw new RuntimeException(e);
+    }
+  }
+
+  private static String batchError(Object id, int status, String message) {
+    StringBuilder json = new StringBuilder();
+    try {
+      json.append("{\"id\":");
+      JsonSerializer.append(json, id);
+      json.append(",\"status\":").append(status).append(",\"error\":");
+      JsonSerializer.append(json, message != null ? message : "");
+      json.append('}');
+    } catch (IOException e) {
+      // Not possible appending to a StringBuilder.
+      throw new RuntimeException(e);
+    }
+    return json.toString();
+  }
+
+  private HttpResponse fetchAndRewrite(HttpRequest rcr) throws GadgetException {
     HttpResponse results = requestPipeline.execute(rcr);
 
     // Rewrite the response
@@ -99,17 +352,7 @@ public class MakeRequestHandler {
             e.getHttpStatusCode());
       }
     }
-
-    // Serialize the response
-    String output = convertResponseToJson(rcr.getSecurityToken(), request, results);
-
-    // Find and set the refresh interval
-    setResponseHeaders(request, response, results);
-
-    response.setStatus(HttpServletResponse.SC_OK);
-    response.setContentType("application/json");
-    response.setCharacterEncoding("UTF-8");
-    response.getWriter().write(UNPARSEABLE_CRUFT + output);
+    return results;
   }
 
   /**
@@ -324,4 +567,97 @@ public class MakeRequestHandler {
       response.setContentType("application/octet-stream");
     }
   }
+
+  private static class BatchItem {
+    private final Object id;
+    private final HttpServletRequest request;
+    private final HttpRequest httpRequest;
+    private final GadgetException error;
+
+    public BatchItem(Object id, HttpServletRequest request, HttpRequest httpRequest,
+        GadgetException error) {
+      this.id = id;
+      this.request = request;
+      this.httpRequest = httpRequest;
+      this.error = error;
+    }
+  }
+
+  /**
+   * Fetches one element of a batch, and queues itself once done so streamed results can be
+   * written in the order they complete.
+   */
+  private class BatchTask extends FutureTask<String> {
+    private final BatchItem item;
+    private final BlockingQueue<BatchTask> completed;
+
+    public BatchTask(final BatchItem item, BlockingQueue<BatchTask> completed) {
+      super(new Callable<String>() {
+        public String call() {
+          return fetchBatchItem(item);
+        }
+      });
+      this.item = item;
+      this.completed = completed;
+    }
+
+    @Override
+    protected void done() {
+      completed.add(this);
+    }
+
+    /**
+     * @return The JSON for the element. Unexpected failures are reported in the element too, as
+     *     the response has been committed by the time it is written.
+     */
+    public String getJson() throws InterruptedException {
+      try {
+        return get();
+      } catch (ExecutionException e) {
+        LOG.log(Level.WARNING, "Failed to fetch batched request", e.getCause());
+        return batchError(item.id, HttpServletResponse.SC_INTERNAL_SERVER_ERROR,
+            e.getCause().getMessage());
+      }
+    }
+  }
+
+  /**
+   * Presents one element of a batch as a makeRequest call of its own. Parameters are a copy of
+   * those of the batch request, overridden by those of the element, so they can be read from any
+   * thread; everything else is read from the container's request, in the request thread only.
+   */
+  private static class BatchItemRequest extends HttpServletRequestWrapper {
+    private final Map<String, String> params;
+
+    public BatchItemRequest(HttpServletRequest request, Map<String, String> params) {
+      super(request);
+      this.params = params;
+    }
+
+    @Override
+    public String getParameter(String name) {
+      return params.get(name);
+    }
+
+    @Override
+    public String[] getParameterValues(String name) {
+      String value = getParameter(name);
+      return value == null ? null : new String[] { value };
+    }
+
+    @Override
+    public Enumeration<?> getParameterNames() {
+      return Collections.enumeration(params.keySet());
+    }
+
+    @Override
+    public Map<?, ?> getParameterMap() {
+      Map<String, String[]> map = Maps.newHashMap();
+      for (Enumeration<?> names = getParameterNames(); names.hasMoreElements(); ) {
+        String name = (String) names.nextElement();
+        map.put(name, getParameterValues(name));
+      }
+      return map;
+    }
+  }
 }
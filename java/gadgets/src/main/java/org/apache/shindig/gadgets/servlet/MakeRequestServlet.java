@@ -18,6 +18,7 @@
  */
 package org.apache.shindig.gadgets.servlet;
 
+import org.apache.shindig.common.servlet.AsyncServletSupport;
 import org.apache.shindig.common.servlet.InjectedServlet;
 import org.apache.shindig.gadgets.GadgetException;
 
@@ -51,7 +52,16 @@ public class MakeRequestServlet extends InjectedServlet {
   }
 
   @Override
-  protected void doGet(HttpServletRequest request, HttpServletResponse response)
+  protected void doGet(final HttpServletRequest request, final HttpServletResponse response)
+      throws IOException {
+    dispatch(request, response, new AsyncServletSupport.Handler() {
+      public void handle(HttpServletResponse response) throws IOException {
+        fetch(request, response);
+      }
+    });
+  }
+
+  private void fetch(HttpServletRequest request, HttpServletResponse response)
       throws IOException {
     try {
       makeRequestHandler.fetch(request, response);
@@ -22,34 +22,43 @@ import com.google.inject.Inject;
 import com.google.inject.Singleton;
 import com.google.inject.name.Named;
 import org.apache.commons.lang.StringUtils;
-import org.apache.commons.io.IOUtils;
 import org.apache.shindig.common.uri.Uri;
 import org.apache.shindig.gadgets.GadgetException;
+import org.apache.shindig.gadgets.http.AbstractHttpCache;
 import org.apache.shindig.gadgets.http.HttpRequest;
 import org.apache.shindig.gadgets.http.HttpResponse;
 import org.apache.shindig.gadgets.http.HttpResponseBuilder;
 import org.apache.shindig.gadgets.http.RequestPipeline;
+import org.apache.shindig.gadgets.http.ResponseSink;
 import org.apache.shindig.gadgets.rewrite.ResponseRewriterRegistry;
 import org.apache.shindig.gadgets.rewrite.RewritingException;
 import org.apache.shindig.gadgets.uri.ProxyUriManager;
 import org.apache.shindig.gadgets.uri.UriUtils;
 import org.apache.shindig.gadgets.uri.UriUtils.DisallowedHeaders;
 
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.servlet.http.HttpServletResponse;
 
 /**
  * Handles open proxy requests.
  */
 @Singleton
 public class ProxyHandler {
+  private static final Logger LOG = Logger.getLogger(ProxyHandler.class.getName());
+
   // TODO: parameterize these.
   static final Integer LONG_LIVED_REFRESH = (365 * 24 * 60 * 60);  // 1 year
   static final Integer DEFAULT_REFRESH = (60 * 60);                // 1 hour
+  static final long DEFAULT_STREAMING_THRESHOLD = 1024 * 1024;     // 1 MB
 
   private final RequestPipeline requestPipeline;
   private final ResponseRewriterRegistry contentRewriterRegistry;
   protected final boolean remapInternalServerError;
+  private volatile long streamingThreshold = DEFAULT_STREAMING_THRESHOLD;
 
   @Inject
   public ProxyHandler(RequestPipeline requestPipeline,
@@ -61,6 +70,17 @@ public class ProxyHandler {
     this.remapInternalServerError = remapInternalServerError;
   }
 
+  /**
+   * @param streamingThreshold Bodies no rewriter handles are streamed to the client instead of
+   *     being buffered if they are declared larger than this many bytes or won't be cached.
+   *     0 disables streaming.
+   */
+  @Inject(optional = true)
+  public void setStreamingThreshold(
+      @Named("shindig.proxy.streaming.threshold-bytes") long streamingThreshold) {
+    this.streamingThreshold = streamingThreshold;
+  }
+
   /**
    * Generate a remote content request based on the parameters sent from the client.
    */
@@ -74,13 +94,46 @@ public class ProxyHandler {
 
   public HttpResponse fetch(ProxyUriManager.ProxyUri proxyUri)
       throws IOException, GadgetException {
+    return fetch(proxyUri, null);
+  }
+
+  /**
+   * Fetches the proxied resource. When a servlet response is supplied and the body qualifies for
+   * streaming (see {@link #shouldStream}), the body is copied to it as it arrives and null is
+   * returned, as the response has already been written.
+   */
+  public HttpResponse fetch(ProxyUriManager.ProxyUri proxyUri,
+      HttpServletResponse servletResponse) throws IOException, GadgetException {
     HttpRequest rcr = buildHttpRequest(proxyUri, proxyUri.getResource());
     if (rcr == null) {
       throw new GadgetException(GadgetException.Code.INVALID_PARAMETER,
           "No url parameter in request", HttpResponse.SC_BAD_REQUEST);
     }
 
-    HttpResponse results = requestPipeline.execute(rcr);
+    ServletSink sink = null;
+    if (servletResponse != null && streamingThreshold > 0) {
+      sink = new ServletSink(proxyUri, servletResponse);
+      rcr.setResponseSink(sink);
+    }
+
+    HttpResponse results;
+    try {
+      results = requestPipeline.execute(rcr);
+    } catch (GadgetException e) {
+      if (sink != null && sink.isOpen()) {
+        // Too late to report an error; the client sees a truncated body.
+        LOG.log(Level.INFO, "Failed streaming " + rcr.getUri(), e);
+        return null;
+      }
+      throw e;
+    }
+    if (sink != null && sink.isOpen()) {
+      if (results.isError()) {
+        LOG.info("Truncated streamed response from " + rcr.getUri() + ": "
+            + results.getResponseAsString());
+      }
+      return null;
+    }
 
     if (results.isError()) {
       // Error: try the fallback. Particularly useful for proxied images.
@@ -104,15 +157,25 @@ public class ProxyHandler {
       }
     }
 
-    HttpResponseBuilder response = new HttpResponseBuilder(results);
-    response.clearAllHeaders();
-
     try {
-      ServletUtil.setCachingHeaders(response,
-          proxyUri.translateStatusRefresh(LONG_LIVED_REFRESH, DEFAULT_REFRESH), false);
+      // The builder shares the body of the results, compressed or not, so it isn't copied.
+      return buildResponse(proxyUri, rcr, results).create();
     } catch (GadgetException gex) {
       return ServletUtil.errorResponse(gex);
     }
+  }
+
+  /**
+   * Builds the response to send to the client from the fetched results, with the proxy's own
+   * caching and content headers.
+   */
+  private HttpResponseBuilder buildResponse(ProxyUriManager.ProxyUri proxyUri, HttpRequest rcr,
+      HttpResponse results) throws GadgetException {
+    HttpResponseBuilder response = new HttpResponseBuilder(results);
+    response.clearAllHeaders();
+
+    ServletUtil.setCachingHeaders(response,
+        proxyUri.translateStatusRefresh(LONG_LIVED_REFRESH, DEFAULT_REFRESH), false);
 
     UriUtils.copyResponseHeadersAndStatusCode(results, response, remapInternalServerError, true,
         DisallowedHeaders.CACHING_DIRECTIVES,  // Proxy sets its own caching headers.
@@ -125,12 +188,52 @@ public class ProxyHandler {
     setResponseContentHeaders(response, results);
 
     UriUtils.maybeRewriteContentType(rcr, response);
+    return response;
+  }
 
-    // TODO: replace this with streaming APIs when ready
-    ByteArrayOutputStream baos = new ByteArrayOutputStream();
-    IOUtils.copy(results.getResponse(), baos);
-    response.setResponse(baos.toByteArray());
-    return response.create();
+  /**
+   * Decides, once its headers have arrived, whether a fetched body should be streamed to the
+   * client rather than buffered. Streaming skips the content rewriters, so bodies of a type any
+   * of them may handle are never streamed. Others are streamed if they are larger than the
+   * streaming threshold or wouldn't be cached. Errors are never streamed so that the fallback
+   * can be tried.
+   *
+   * @param request The request being fetched.
+   * @param head The response, without a body.
+   */
+  protected boolean shouldStream(HttpRequest request, HttpResponse head) {
+    if (head.isError() || isRewritable(request, head)) {
+      return false;
+    }
+    String length = head.getHeader("Content-Length");
+    if (length != null) {
+      try {
+        if (Long.parseLong(length.trim()) > streamingThreshold) {
+          return true;
+        }
+      } catch (NumberFormatException e) {
+        // Treat as unknown.
+      }
+    }
+    return !AbstractHttpCache.isCacheable(request, head);
+  }
+
+  /**
+   * @return True if a content rewriter may handle the response: markup, scripts, styles, data
+   *     and images (which may be resized), or any response whose type is unknown or overridden.
+   */
+  private static boolean isRewritable(HttpRequest request, HttpResponse head) {
+    if (!StringUtils.isEmpty(request.getRewriteMimeType())) {
+      return true;
+    }
+    String contentType = head.getHeader("Content-Type");
+    if (contentType == null) {
+      return true;
+    }
+    contentType = contentType.toLowerCase();
+    return contentType.startsWith("text/") || contentType.startsWith("image/")
+        || contentType.contains("javascript") || contentType.contains("xml")
+        || contentType.contains("json");
   }
 
   protected void setResponseContentHeaders(HttpResponseBuilder response, HttpResponse results) {
@@ -160,4 +263,39 @@ public class ProxyHandler {
     return !(StringUtils.isEmpty(results.getResponseAsString()) &&
              results.getHeaders() == null);
   }
+
+  /**
+   * Writes the response headers to the servlet and hands over its output stream when the body
+   * is to be streamed.
+   */
+  private class ServletSink implements ResponseSink {
+    private final ProxyUriManager.ProxyUri proxyUri;
+    private final HttpServletResponse servletResponse;
+    private boolean open;
+
+    ServletSink(ProxyUriManager.ProxyUri proxyUri, HttpServletResponse servletResponse) {
+      this.proxyUri = proxyUri;
+      this.servletResponse = servletResponse;
+    }
+
+    public OutputStream open(HttpRequest request, HttpResponse head) throws IOException {
+      if (!shouldStream(request, head)) {
+        return null;
+      }
+      HttpResponse response;
+      try {
+        response = buildResponse(proxyUri, request, head).create();
+      } catch (GadgetException e) {
+        // Let the buffered path report it.
+        return null;
+      }
+      ServletUtil.copyResponseHeadersToServlet(response, servletResponse);
+      open = true;
+      return servletResponse.getOutputStream();
+    }
+
+    boolean isOpen() {
+      return open;
+    }
+  }
 }
@@ -18,6 +18,7 @@
  */
 package org.apache.shindig.gadgets.servlet;
 
+import org.apache.shindig.common.servlet.AsyncServletSupport;
 import org.apache.shindig.common.servlet.InjectedServlet;
 import org.apache.shindig.common.uri.Uri;
 import org.apache.shindig.common.uri.UriBuilder;
@@ -68,13 +69,22 @@ public class ProxyServlet extends InjectedServlet {
   }
 
   @Override
-  protected void doGet(HttpServletRequest request, HttpServletResponse servletResponse)
-      throws IOException {
+  protected void doGet(final HttpServletRequest request,
+      final HttpServletResponse servletResponse) throws IOException {
     if (request.getHeader("If-Modified-Since") != null) {
       servletResponse.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
       return;
     }
 
+    dispatch(request, servletResponse, new AsyncServletSupport.Handler() {
+      public void handle(HttpServletResponse servletResponse) throws IOException {
+        proxy(request, servletResponse);
+      }
+    });
+  }
+
+  private void proxy(HttpServletRequest request, HttpServletResponse servletResponse)
+      throws IOException {
     Uri reqUri = new UriBuilder(request).toUri();
     HttpResponse response = null;
     try {
@@ -94,12 +104,17 @@ public class ProxyServlet extends InjectedServlet {
             HttpResponse.SC_BAD_REQUEST);
       }
       
-      response = proxyHandler.fetch(proxyUri);
+      response = proxyHandler.fetch(proxyUri, servletResponse);
+      if (response == null) {
+        // Already streamed to the client.
+        return;
+      }
     } catch (GadgetException e) {
       response = ServletUtil.errorResponse(new GadgetException(e.getCode(), e.getMessage(),
           HttpServletResponse.SC_BAD_REQUEST));
     }
     
-    ServletUtil.copyResponseToServlet(response, servletResponse);
+    ServletUtil.copyResponseToServlet(response, servletResponse,
+        ServletUtil.acceptsGzip(request));
   }
 }
@@ -36,6 +36,7 @@ import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.PrintWriter;
 import java.util.Enumeration;
 import java.util.Map;
@@ -96,13 +97,58 @@ public final class ServletUtil {
   
   public static void copyResponseToServlet(HttpResponse response, HttpServletResponse servletResponse)
       throws IOException {
-    servletResponse.setStatus(response.getHttpStatusCode());
     servletResponse.setContentLength(response.getContentLength());
+    copyResponseHeadersToServlet(response, servletResponse);
+    IOUtils.copy(response.getResponse(), servletResponse.getOutputStream());
+  }
+
+  /**
+   * Copies a response to the servlet, sending the body exactly as it is held when it is held
+   * gzipped and the client accepts gzip, so that it is neither decompressed nor recompressed.
+   */
+  public static void copyResponseToServlet(HttpResponse response,
+      HttpServletResponse servletResponse, boolean gzipAccepted) throws IOException {
+    InputStream gzipped = gzipAccepted ? response.getGzippedResponse() : null;
+    if (gzipped == null) {
+      copyResponseToServlet(response, servletResponse);
+      return;
+    }
+    servletResponse.setContentLength(response.getGzippedContentLength());
+    copyResponseHeadersToServlet(response, servletResponse);
+    servletResponse.setHeader("Content-Encoding", "gzip");
+    servletResponse.addHeader("Vary", "Accept-Encoding");
+    IOUtils.copy(gzipped, servletResponse.getOutputStream());
+  }
+
+  /**
+   * @return True if the request's Accept-Encoding allows a gzipped response.
+   */
+  public static boolean acceptsGzip(HttpServletRequest request) {
+    String accepted = request.getHeader("Accept-Encoding");
+    if (accepted == null) {
+      return false;
+    }
+    for (String coding : StringUtils.split(accepted, ',')) {
+      String[] parts = StringUtils.split(coding, ';');
+      if (parts.length > 0 && "gzip".equalsIgnoreCase(parts[0].trim())) {
+        // gzip;q=0 explicitly refuses it.
+        return parts.length == 1 || !parts[1].trim().matches("q=0(\\.0*)?");
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Copies the status and headers, but not the body or its length, of a response. Used when the
+   * body is streamed to the servlet separately.
+   */
+  public static void copyResponseHeadersToServlet(HttpResponse response,
+      HttpServletResponse servletResponse) {
+    servletResponse.setStatus(response.getHttpStatusCode());
     for (Map.Entry<String, String> header : response.getHeaders().entries()) {
       servletResponse.addHeader(header.getKey(), header.getValue());
     }
     HttpUtil.setCachingHeaders(servletResponse, (int)response.getCacheTtl());
-    IOUtils.copy(response.getResponse(), servletResponse.getOutputStream());
   }
   
   /**
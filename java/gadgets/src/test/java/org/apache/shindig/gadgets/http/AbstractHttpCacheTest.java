@@ -22,6 +22,7 @@ import static org.easymock.EasyMock.replay;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
 
 import com.google.common.collect.ImmutableMap;
@@ -33,6 +34,7 @@ import org.apache.shindig.common.uri.Uri;
 import org.apache.shindig.gadgets.AuthType;
 import org.apache.shindig.gadgets.oauth.OAuthArguments;
 import org.apache.shindig.gadgets.spec.RequestAuthenticationInfo;
+import org.apache.shindig.gadgets.uri.UriCommon;
 import org.easymock.EasyMock;
 import org.junit.Test;
 
@@ -344,6 +346,50 @@ public class AbstractHttpCacheTest {
     assertEquals(0, cache.map.size());
   }
 
+  @Test
+  public void removeResponseSingleLookup() {
+    HttpRequest request = new HttpRequest(DEFAULT_URI);
+    cache.map.put(cache.createKey(request), new HttpResponse("result"));
+
+    cache.removeResponse(request);
+    assertEquals(0, cache.getCount);
+  }
+
+  @Test
+  public void createKeyRememberedUntilChanged() {
+    HttpRequest request = new HttpRequest(DEFAULT_URI);
+    String key = cache.createKey(request);
+    assertSame(key, cache.createKey(request));
+
+    request.setParam(UriCommon.Param.RESIZE_WIDTH.getKey(), 100);
+    String resized = cache.createKey(request);
+    assertFalse(key.equals(resized));
+
+    request.setUri(APP_URI);
+    assertFalse(resized.equals(cache.createKey(request)));
+
+    // Copies compute their own key.
+    assertEquals(cache.createKey(request), cache.createKey(new HttpRequest(request)));
+  }
+
+  @Test
+  public void createKeySignedNotRemembered() throws Exception {
+    RequestAuthenticationInfo authInfo = newMockAuthInfo(
+        true /* isSignOwner */,
+        false /* isSignViewer */,
+        ImmutableMap.of("OAUTH_SERVICE_NAME", SERVICE_NAME, "OAUTH_TOKEN_NAME", TOKEN_NAME));
+    replay(authInfo);
+    HttpRequest request = new HttpRequest(DEFAULT_URI)
+        .setAuthType(AuthType.SIGNED)
+        .setOAuthArguments(new OAuthArguments(authInfo))
+        .setSecurityToken(new BasicSecurityToken("owner", "", "", "",
+            APP_URI.toString(), MODULE_ID, CONTAINER_NAME, null, null));
+    String key = cache.createKey(request);
+
+    request.getOAuthArguments().setSignOwner(false);
+    assertFalse(key.equals(cache.createKey(request)));
+  }
+
   @Test
   public void removeResponseIsStaled() {
     long expiration = System.currentTimeMillis() + 1000L;
@@ -362,6 +408,7 @@ public class AbstractHttpCacheTest {
 
   private static class TestHttpCache extends AbstractHttpCache {
     protected final Map<String, HttpResponse> map;
+    protected int getCount;
 
     public TestHttpCache() {
       map = Maps.newHashMap();
@@ -374,6 +421,7 @@ public class AbstractHttpCacheTest {
 
     @Override
     public HttpResponse getResponseImpl(String key) {
+      getCount++;
       return map.get(key);
     }
 
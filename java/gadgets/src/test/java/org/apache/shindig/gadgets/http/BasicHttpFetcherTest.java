@@ -17,12 +17,15 @@
  */
 package org.apache.shindig.gadgets.http;
 
+import com.google.common.collect.ImmutableList;
+
 import org.apache.http.HttpEntity;
 import org.apache.shindig.common.uri.Uri;
 import org.apache.shindig.common.uri.UriBuilder;
 import org.easymock.EasyMock;
 import org.junit.AfterClass;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 import org.junit.Before;
@@ -32,6 +35,8 @@ import org.junit.Test;
 import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
 
 public class BasicHttpFetcherTest {
   private static final int ECHO_PORT = 9003;
@@ -176,4 +181,91 @@ public class BasicHttpFetcherTest {
     }
     EasyMock.verify(mockEntity, mockInputStream);
   }
+
+  @Test
+  public void testCircuitOpensAfterRepeatedConnectFailures() throws Exception {
+    BasicHttpFetcher direct = new BasicHttpFetcher(null);
+    direct.setCircuitBreakerFailureThreshold(2);
+    // Nothing listens on port 1, so connections are refused.
+    HttpRequest request = new HttpRequest(Uri.parse("http://localhost:1/"));
+
+    assertEquals(HttpResponse.SC_GATEWAY_TIMEOUT, direct.fetch(request).getHttpStatusCode());
+    assertFalse(direct.getCircuitBreaker("localhost:1").isOpen());
+    assertEquals(HttpResponse.SC_GATEWAY_TIMEOUT, direct.fetch(request).getHttpStatusCode());
+    assertTrue(direct.getCircuitBreaker("localhost:1").isOpen());
+
+    assertEquals(HttpResponse.SC_GATEWAY_TIMEOUT, direct.fetch(request).getHttpStatusCode());
+    assertEquals(1, direct.getCircuitBreaker("localhost:1").getRejectedCount());
+    assertEquals(2, direct.getLatencyHistograms().get("localhost:1").getCount());
+  }
+
+  @Test
+  public void testWarmUpLeavesConnectionsPooled() throws Exception {
+    BasicHttpFetcher direct = new BasicHttpFetcher(null);
+    assertEquals(2, direct.warmUp(ImmutableList.of(BASE_URL), 2));
+    // The second time round the pooled connections are handed out again.
+    assertEquals(0, direct.warmUp(ImmutableList.of(BASE_URL), 2));
+
+    Uri uri = new UriBuilder(BASE_URL).addQueryParameter("body", "warm").toUri();
+    assertEquals("warm", direct.fetch(new HttpRequest(uri)).getResponseAsString());
+    assertEquals(ImmutableList.of(BASE_URL.getAuthority()), direct.getHotHosts(5));
+  }
+
+  @Test
+  public void testWarmUpSkipsUnreachableHosts() throws Exception {
+    BasicHttpFetcher direct = new BasicHttpFetcher(null);
+    assertEquals(0, direct.warmUp(ImmutableList.of(Uri.parse("http://localhost:1")), 2));
+  }
+
+  @Test
+  public void testResetOnReusedConnectionRetried() throws Exception {
+    // Answers the first request on each connection, then resets the connection when the next
+    // one arrives, as an origin does when it closes an idle connection as it is being reused.
+    final ServerSocket serverSocket = new ServerSocket(0);
+    Thread origin = new Thread() {
+      @Override
+      public void run() {
+        try {
+          while (true) {
+            Socket socket = serverSocket.accept();
+            InputStream in = socket.getInputStream();
+            readRequest(in);
+            socket.getOutputStream().write(
+                "HTTP/1.1 200 OK\r\nContent-Length: 2\r\n\r\nok".getBytes("UTF-8"));
+            socket.getOutputStream().flush();
+            readRequest(in);
+            socket.setSoLinger(true, 0);
+            socket.close();
+          }
+        } catch (IOException e) {
+          // Server socket closed.
+        }
+      }
+    };
+    origin.setDaemon(true);
+    origin.start();
+    try {
+      BasicHttpFetcher direct = new BasicHttpFetcher(null);
+      String authority = "localhost:" + serverSocket.getLocalPort();
+      HttpRequest request = new HttpRequest(Uri.parse("http://" + authority + '/'));
+
+      assertEquals("ok", direct.fetch(request).getResponseAsString());
+      assertEquals("ok", direct.fetch(request).getResponseAsString());
+      assertEquals(0, direct.getCircuitBreaker(authority).getConsecutiveFailures());
+    } finally {
+      serverSocket.close();
+    }
+  }
+
+  private static void readRequest(InputStream in) throws IOException {
+    // Requests have no body, so they end with the first empty line.
+    int matched = 0;
+    while (matched < 4) {
+      int c = in.read();
+      if (c < 0) {
+        throw new EOFException();
+      }
+      matched = (c == (matched % 2 == 0 ? '\r' : '\n')) ? matched + 1 : (c == '\r' ? 1 : 0);
+    }
+  }
 }
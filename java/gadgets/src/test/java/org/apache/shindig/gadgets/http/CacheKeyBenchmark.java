@@ -0,0 +1,101 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+
+package org.apache.shindig.gadgets.http;
+
+import org.apache.shindig.common.cache.LruCacheProvider;
+import org.apache.shindig.common.uri.Uri;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+
+/**
+ * Measures the time and memory spent on cache keys for the three key computations a proxied
+ * request makes (cache lookup, in-flight check, cache store), with the key remembered by the
+ * request and with it rebuilt every time as before. Run as a standalone program; allocation is
+ * only reported on JVMs that can measure it per thread.
+ */
+public class CacheKeyBenchmark {
+  private static final int URLS = 1000;
+
+  private final DefaultHttpCache cache = new DefaultHttpCache(new LruCacheProvider(URLS));
+  private final Uri[] uris = new Uri[URLS];
+  private final int requests;
+
+  private CacheKeyBenchmark(int requests) {
+    this.requests = requests;
+    for (int i = 0; i < URLS; ++i) {
+      uris[i] = Uri.parse("http://www.example.org/images/photo" + i + ".jpg?size=large&v=" + i);
+    }
+  }
+
+  private long run(boolean remember) {
+    long hash = 0;
+    for (int i = 0; i < requests; ++i) {
+      Uri uri = uris[i % URLS];
+      HttpRequest request = new HttpRequest(uri);
+      for (int lookup = 0; lookup < 3; ++lookup) {
+        if (!remember) {
+          // Forgets the remembered key.
+          request.setUri(uri);
+        }
+        hash += cache.createKey(request).hashCode();
+      }
+    }
+    return hash;
+  }
+
+  private void time(String name, boolean remember) {
+    ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+    long bytesBefore = allocatedBytes(threads);
+    long begin = System.nanoTime();
+    long hash = run(remember);
+    long nanos = System.nanoTime() - begin;
+    long bytes = allocatedBytes(threads) - bytesBefore;
+    System.out.println(name + ": " + (nanos / requests) + " ns/request"
+        + (bytesBefore >= 0 ? ", " + (bytes / requests) + " bytes/request" : "")
+        + " (" + hash + ')');
+  }
+
+  private static long allocatedBytes(ThreadMXBean threads) {
+    if (threads instanceof com.sun.management.ThreadMXBean) {
+      return ((com.sun.management.ThreadMXBean) threads)
+          .getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+    return -1;
+  }
+
+  public static void main(String[] args) throws Exception {
+    int requests = 1000000;
+    if (args.length == 1) {
+      try {
+        requests = Integer.parseInt(args[0]);
+      } catch (NumberFormatException e) {
+        System.err.println("Invalid request count argument: " + args[0]);
+        System.exit(1);
+      }
+    }
+    CacheKeyBenchmark benchmark = new CacheKeyBenchmark(requests);
+    // Warm up.
+    benchmark.run(false);
+    benchmark.run(true);
+
+    benchmark.time("Rebuilt", false);
+    benchmark.time("Remembered", true);
+  }
+}
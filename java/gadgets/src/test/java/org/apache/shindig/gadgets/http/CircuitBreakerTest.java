@@ -0,0 +1,95 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.apache.shindig.gadgets.http;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.apache.shindig.common.util.FakeTimeSource;
+import org.junit.Test;
+
+public class CircuitBreakerTest {
+  private final FakeTimeSource timeSource = new FakeTimeSource();
+  private final CircuitBreaker breaker = new CircuitBreaker(3, 1000L, timeSource);
+
+  @Test
+  public void opensAfterConsecutiveFailures() {
+    breaker.onFailure();
+    breaker.onFailure();
+    assertFalse(breaker.isOpen());
+    assertTrue(breaker.allowRequest());
+
+    breaker.onFailure();
+    assertTrue(breaker.isOpen());
+    assertFalse(breaker.allowRequest());
+    assertEquals(1, breaker.getRejectedCount());
+  }
+
+  @Test
+  public void successResetsFailures() {
+    breaker.onFailure();
+    breaker.onFailure();
+    breaker.onSuccess();
+    breaker.onFailure();
+    assertFalse(breaker.isOpen());
+    assertEquals(1, breaker.getConsecutiveFailures());
+  }
+
+  @Test
+  public void singleTrialAfterOpenPeriod() {
+    breaker.onFailure();
+    breaker.onFailure();
+    breaker.onFailure();
+
+    timeSource.now += 1000;
+    assertTrue(breaker.allowRequest());
+    assertFalse(breaker.allowRequest());
+
+    breaker.onSuccess();
+    assertFalse(breaker.isOpen());
+    assertTrue(breaker.allowRequest());
+  }
+
+  @Test
+  public void failedTrialReopens() {
+    breaker.onFailure();
+    breaker.onFailure();
+    breaker.onFailure();
+
+    timeSource.now += 1000;
+    assertTrue(breaker.allowRequest());
+    breaker.onFailure();
+    assertFalse(breaker.allowRequest());
+
+    timeSource.now += 999;
+    assertFalse(breaker.allowRequest());
+    timeSource.now += 1;
+    assertTrue(breaker.allowRequest());
+  }
+
+  @Test
+  public void zeroThresholdNeverOpens() {
+    CircuitBreaker disabled = new CircuitBreaker(0, 1000L, timeSource);
+    for (int i = 0; i < 100; i++) {
+      disabled.onFailure();
+    }
+    assertFalse(disabled.isOpen());
+    assertTrue(disabled.allowRequest());
+  }
+}
@@ -18,7 +18,11 @@
 package org.apache.shindig.gadgets.http;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
 
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.lang.StringUtils;
 import org.apache.shindig.common.cache.Cache;
 import org.apache.shindig.common.cache.CacheProvider;
 import org.apache.shindig.common.cache.LruCacheProvider;
@@ -26,6 +30,8 @@ import org.apache.shindig.common.uri.Uri;
 
 import org.junit.Test;
 
+import java.io.File;
+
 /**
  * Tests for basic content cache
  */
@@ -73,4 +79,99 @@ public class DefaultHttpCacheTest {
 
     assertEquals(0, cache.getSize());
   }
+
+  @Test
+  public void weightedSizeUnboundedByDefault() {
+    assertEquals(-1, httpCache.getWeightedSize());
+  }
+
+  @Test
+  public void maxBytesEvictsBySize() {
+    DefaultHttpCache sizedCache = new DefaultHttpCache(cacheProvider, 2500);
+
+    HttpRequest small = new HttpRequest(Uri.parse("http://example.org/small.txt"));
+    HttpRequest large = new HttpRequest(Uri.parse("http://example.org/large.txt"));
+    sizedCache.addResponse(small, new HttpResponse("small"));
+    assertTrue(sizedCache.getWeightedSize() > HttpResponseWeigher.ENTRY_OVERHEAD);
+
+    sizedCache.addResponse(large, new HttpResponse(StringUtils.repeat("x", 2000)));
+
+    assertNull(sizedCache.getResponse(small));
+    assertEquals(2000, sizedCache.getResponse(large).getContentLength());
+    assertEquals(0, cache.getSize());
+  }
+
+  @Test
+  public void maxBytesRejectsOversizedResponse() {
+    DefaultHttpCache sizedCache = new DefaultHttpCache(cacheProvider, 1000);
+    HttpRequest request = new HttpRequest(DEFAULT_URI);
+    sizedCache.addResponse(request, new HttpResponse(StringUtils.repeat("x", 2000)));
+    assertNull(sizedCache.getResponse(request));
+    assertEquals(0, sizedCache.getWeightedSize());
+  }
+
+  @Test
+  public void diskTierSurvivesRestart() throws Exception {
+    File directory = File.createTempFile("responses", "");
+    directory.delete();
+    try {
+      HttpRequest request = new HttpRequest(DEFAULT_URI);
+      httpCache.setDiskTier(directory.getPath(), 1024 * 1024);
+      httpCache.addResponse(request, new HttpResponse("response"));
+
+      DefaultHttpCache restarted = new DefaultHttpCache(new LruCacheProvider(10));
+      restarted.setDiskTier(directory.getPath(), 1024 * 1024);
+      assertEquals("response", restarted.getResponse(request).getResponseAsString());
+    } finally {
+      FileUtils.deleteDirectory(directory);
+    }
+  }
+
+  @Test
+  public void largeBodiesOnlyOnDisk() throws Exception {
+    File directory = File.createTempFile("responses", "");
+    directory.delete();
+    try {
+      HttpRequest request = new HttpRequest(DEFAULT_URI);
+      httpCache.setDiskTier(directory.getPath(), 1024 * 1024);
+      httpCache.setLargeBodyBytes(1000);
+      httpCache.addResponse(request, new HttpResponse(StringUtils.repeat("x", 2000)));
+
+      assertEquals(0, cache.getSize());
+      assertEquals(2000, httpCache.getResponse(request).getContentLength());
+      assertEquals(0, cache.getSize());
+    } finally {
+      FileUtils.deleteDirectory(directory);
+    }
+  }
+
+  @Test
+  public void textBodiesHeldCompressed() {
+    String body = StringUtils.repeat("var x = 1;\n", 500);
+    HttpResponse response = new HttpResponseBuilder()
+        .setHeader("Content-Type", "text/javascript; charset=UTF-8")
+        .setResponseString(body)
+        .create();
+    HttpRequest request = new HttpRequest(DEFAULT_URI);
+    httpCache.addResponse(request, response);
+
+    assertTrue(cache.getElement(httpCache.createKey(request)).getGzippedContentLength() > 0);
+    HttpResponse cached = httpCache.getResponse(request);
+    assertTrue(cached.getGzippedContentLength() > 0);
+    assertEquals(body, cached.getResponseAsString());
+    assertEquals(response, cached);
+  }
+
+  @Test
+  public void compressionCanBeDisabled() {
+    httpCache.setCompressBodies(false);
+    HttpResponse response = new HttpResponseBuilder()
+        .setHeader("Content-Type", "text/javascript; charset=UTF-8")
+        .setResponseString(StringUtils.repeat("var x = 1;\n", 500))
+        .create();
+    HttpRequest request = new HttpRequest(DEFAULT_URI);
+    httpCache.addResponse(request, response);
+
+    assertEquals(-1, httpCache.getResponse(request).getGzippedContentLength());
+  }
 }
@@ -93,6 +93,150 @@ public class DefaultInvalidationServiceTest extends Assert {
     assertEquals(0, cacheProvider.createCache(DefaultHttpCache.CACHE_NAME).getSize());
   }
 
+  @Test
+  public void testInvalidateUrlDropsSignedVariants() throws Exception {
+    oauth.httpResponse = CACHEABLE;
+    requestPipeline.execute(signedRequest);
+    HttpRequest appyRequest = new HttpRequest(signedRequest).setSecurityToken(appyToken);
+    requestPipeline.execute(appyRequest);
+    fetcher.response = CACHEABLE;
+    requestPipeline.execute(new HttpRequest(URI));
+    assertEquals(3, cacheProvider.createCache(DefaultHttpCache.CACHE_NAME).getSize());
+
+    // Only the calling application's variants are dropped, along with the shared one.
+    service.invalidateApplicationResources(ImmutableSet.of(URI), appxToken);
+    assertEquals(1, cacheProvider.createCache(DefaultHttpCache.CACHE_NAME).getSize());
+    assertNotNull(cache.getResponse(appyRequest));
+  }
+
+  @Test
+  public void testInvalidateUserAndAppTags() throws Exception {
+    oauth.httpResponse = CACHEABLE;
+    requestPipeline.execute(signedRequest);
+    HttpRequest appyRequest = new HttpRequest(signedRequest).setSecurityToken(appyToken);
+    requestPipeline.execute(appyRequest);
+    assertEquals(2, cacheProvider.createCache(DefaultHttpCache.CACHE_NAME).getSize());
+
+    // Users are scoped to the application
+    service.invalidateTags(ImmutableSet.of(InvalidationTags.forUser("OwnerX", appyToken)),
+        appyToken);
+    assertEquals(2, cacheProvider.createCache(DefaultHttpCache.CACHE_NAME).getSize());
+
+    service.invalidateTags(ImmutableSet.of(InvalidationTags.forUser("example.org:OwnerX",
+        appxToken)), appxToken);
+    assertEquals(1, cacheProvider.createCache(DefaultHttpCache.CACHE_NAME).getSize());
+    assertNotNull(cache.getResponse(appyRequest));
+
+    service.invalidateTags(ImmutableSet.of(InvalidationTags.forApp(appyToken)), appyToken);
+    assertEquals(0, cacheProvider.createCache(DefaultHttpCache.CACHE_NAME).getSize());
+  }
+
+  @Test
+  public void testInvalidateHostTag() throws Exception {
+    oauth.httpResponse = CACHEABLE;
+    requestPipeline.execute(signedRequest);
+    HttpRequest appyRequest = new HttpRequest(signedRequest).setSecurityToken(appyToken);
+    requestPipeline.execute(appyRequest);
+    fetcher.response = CACHEABLE;
+    requestPipeline.execute(new HttpRequest(URI));
+    assertEquals(3, cacheProvider.createCache(DefaultHttpCache.CACHE_NAME).getSize());
+
+    // Only the calling application's authenticated content is dropped.
+    service.invalidateTags(ImmutableSet.of(InvalidationTags.forHost("WWW.example.org",
+        appxToken)), appxToken);
+    assertEquals(2, cacheProvider.createCache(DefaultHttpCache.CACHE_NAME).getSize());
+    assertNotNull(cache.getResponse(appyRequest));
+    assertNotNull(cache.getResponse(new HttpRequest(URI)));
+    assertNull(cacheProvider.createCache(DefaultInvalidationService.TAG_CACHE_NAME)
+        .getElement(InvalidationTags.forHost("www.example.org", appxToken)));
+  }
+
+  @Test
+  public void testOnlyStoredAuthenticatedResponsesTagged() throws Exception {
+    fetcher.response = CACHEABLE;
+    requestPipeline.execute(new HttpRequest(URI));
+    oauth.httpResponse = new HttpResponseBuilder(CACHEABLE)
+        .setHeader("Cache-Control", "private, max-age=1000").create();
+    requestPipeline.execute(signedRequest);
+    requestPipeline.execute(new HttpRequest(signedRequest).setMethod("POST"));
+
+    assertEquals(0, cacheProvider.createCache(DefaultInvalidationService.TAG_CACHE_NAME)
+        .getSize());
+    assertEquals(0, cacheProvider.createCache(DefaultInvalidationService.KEY_TAGS_CACHE_NAME)
+        .getSize());
+  }
+
+  @Test
+  public void testRemovedEntriesUntagged() throws Exception {
+    oauth.httpResponse = CACHEABLE;
+    requestPipeline.execute(signedRequest);
+    String appTag = InvalidationTags.forApp(appxToken);
+    assertEquals(1, service.taggedKeys.getElement(appTag).size());
+
+    cache.removeResponse(signedRequest);
+    assertEquals(0, service.taggedKeys.getElement(appTag).size());
+    assertNull(service.keyTags.getElement(cache.createKey(signedRequest)));
+  }
+
+  @Test
+  public void testResponseInvalidWhenTagLost() throws Exception {
+    oauth.httpResponse = CACHEABLE;
+    requestPipeline.execute(signedRequest);
+    assertTrue(service.isValid(signedRequest, cache.getResponse(signedRequest)));
+
+    // An evicted tag may have missed an invalidation.
+    service.taggedKeys.removeElement(InvalidationTags.forUser("OwnerX", appxToken));
+    assertFalse(service.isValid(signedRequest, cache.getResponse(signedRequest)));
+
+    oauth.httpResponse = new HttpResponseBuilder(CACHEABLE).setResponseString("NEWCONTENT1")
+        .create();
+    assertEquals("NEWCONTENT1", requestPipeline.execute(signedRequest).getResponseAsString());
+    assertTrue(service.isValid(signedRequest, cache.getResponse(signedRequest)));
+  }
+
+  @Test
+  public void testFullTagDropsOldestEntry() throws Exception {
+    service.setMaxKeysPerTag(2);
+    oauth.httpResponse = CACHEABLE;
+    requestPipeline.execute(signedRequest);
+    HttpRequest second = new HttpRequest(signedRequest)
+        .setUri(Uri.parse("http://www.example.org/second.xml"));
+    requestPipeline.execute(second);
+    HttpRequest third = new HttpRequest(signedRequest)
+        .setUri(Uri.parse("http://www.example.org/third.xml"));
+    requestPipeline.execute(third);
+
+    assertEquals(2, service.taggedKeys.getElement(InvalidationTags.forApp(appxToken)).size());
+    assertNull(cache.getResponse(signedRequest));
+    assertNull(service.keyTags.getElement(cache.createKey(signedRequest)));
+    // Responses still listed stay valid.
+    assertTrue(service.isValid(second, cache.getResponse(second)));
+    assertTrue(service.isValid(third, cache.getResponse(third)));
+  }
+
+  @Test
+  public void testInvalidationSpreadOverBus() throws Exception {
+    LocalInvalidationBus bus = new LocalInvalidationBus();
+    service = new DefaultInvalidationService(cache, cacheProvider, new AtomicLong(), bus);
+    LruCacheProvider otherProvider = new LruCacheProvider(100);
+    HttpCache otherCache = new DefaultHttpCache(otherProvider);
+    DefaultInvalidationService other =
+        new DefaultInvalidationService(otherCache, otherProvider, new AtomicLong(), bus);
+
+    cache.addResponse(new HttpRequest(URI), CACHEABLE);
+    otherCache.addResponse(new HttpRequest(URI), CACHEABLE);
+    service.invalidateApplicationResources(ImmutableSet.of(URI), appxToken);
+    assertEquals(0, otherProvider.createCache(DefaultHttpCache.CACHE_NAME).getSize());
+
+    service.invalidateUserResources(ImmutableSet.of("example.org:1"), appxToken);
+    assertNotNull(otherProvider.createCache(DefaultInvalidationService.CACHE_NAME)
+        .getElement("INV_TOK:AppX:1"));
+
+    assertEquals(2, other.getRemoteInvalidationCount());
+    assertEquals(0, service.getRemoteInvalidationCount());
+    assertTrue(other.getMaxConvergenceMillis() >= other.getMeanConvergenceMillis());
+  }
+
   @Test
   public void testInvalidateUsers() throws Exception {
     service.invalidateUserResources(ImmutableSet.of("example.org:1", "example.org:2"),
@@ -18,7 +18,11 @@
 package org.apache.shindig.gadgets.http;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
 
+import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
 import com.google.inject.Provider;
 
@@ -27,9 +31,16 @@ import org.apache.shindig.gadgets.AuthType;
 import org.apache.shindig.gadgets.GadgetException;
 import org.apache.shindig.gadgets.oauth.OAuthRequest;
 import org.apache.shindig.gadgets.rewrite.DefaultResponseRewriterRegistry;
+import org.apache.shindig.gadgets.uri.UriCommon;
 import org.junit.Test;
 
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class DefaultRequestPipelineTest {
   private static final Uri DEFAULT_URI = Uri.parse("http://example.org/gadget.xml");
@@ -220,6 +231,287 @@ public class DefaultRequestPipelineTest {
     assertEquals(0, cache.writeCount);
   }
 
+  @Test
+  public void concurrentMissesCoalesced() throws Exception {
+    BlockingFetcher slowFetcher = new BlockingFetcher(new HttpResponse("fetched"));
+    DefaultRequestPipeline coalescing = new DefaultRequestPipeline(slowFetcher, cache,
+        oauth, new DefaultResponseRewriterRegistry(null, null), new NoOpInvalidationService(),
+        helper);
+    Uri uri = Uri.parse("http://example.org/gadget.xml?v=1");
+
+    HttpResponse[] responses = executeConcurrently(coalescing, slowFetcher,
+        new HttpRequest(uri), new HttpRequest(uri));
+
+    assertEquals(1, slowFetcher.fetchCount.get());
+    assertEquals(1, coalescing.getCoalescedFetchCount());
+    assertEquals("fetched", responses[0].getResponseAsString());
+    assertSame(responses[0], responses[1]);
+  }
+
+  @Test
+  public void coalescingDisabled() throws Exception {
+    BlockingFetcher slowFetcher = new BlockingFetcher(new HttpResponse("fetched"));
+    DefaultRequestPipeline uncoalesced = new DefaultRequestPipeline(slowFetcher, cache, oauth,
+        new DefaultResponseRewriterRegistry(null, null), new NoOpInvalidationService(), helper);
+    uncoalesced.setCoalesceWaitMs(0);
+    Uri uri = Uri.parse("http://example.org/gadget.xml?v=1");
+
+    executeConcurrently(uncoalesced, slowFetcher, new HttpRequest(uri), new HttpRequest(uri));
+
+    assertEquals(2, slowFetcher.fetchCount.get());
+    assertEquals(0, uncoalesced.getCoalescedFetchCount());
+  }
+
+  @Test
+  public void requestsWithCallerHeadersNotCoalesced() throws Exception {
+    BlockingFetcher slowFetcher = new BlockingFetcher(new HttpResponse("fetched"));
+    DefaultRequestPipeline coalescing = new DefaultRequestPipeline(slowFetcher, cache, oauth,
+        new DefaultResponseRewriterRegistry(null, null), new NoOpInvalidationService(), helper);
+    Uri uri = Uri.parse("http://example.org/gadget.xml?v=1");
+
+    executeConcurrently(coalescing, slowFetcher,
+        new HttpRequest(uri).addHeader("Cookie", "session=first"),
+        new HttpRequest(uri).addHeader("Cookie", "session=second"));
+
+    assertEquals(2, slowFetcher.fetchCount.get());
+    assertEquals(0, coalescing.getCoalescedFetchCount());
+  }
+
+  @Test
+  public void privateResponseNotShared() throws Exception {
+    HttpResponse privateResponse = new HttpResponseBuilder()
+        .setResponseString("private")
+        .addHeader("Cache-Control", "private")
+        .create();
+    BlockingFetcher slowFetcher = new BlockingFetcher(privateResponse);
+    DefaultRequestPipeline coalescing = new DefaultRequestPipeline(slowFetcher, cache, oauth,
+        new DefaultResponseRewriterRegistry(null, null), new NoOpInvalidationService(), helper);
+    Uri uri = Uri.parse("http://example.org/gadget.xml?v=1");
+
+    executeConcurrently(coalescing, slowFetcher, new HttpRequest(uri), new HttpRequest(uri));
+
+    // The second request waited on the first, then fetched for itself.
+    assertEquals(2, slowFetcher.fetchCount.get());
+    assertEquals(0, coalescing.getCoalescedFetchCount());
+  }
+
+  /**
+   * Executes two requests at once: the second starts while the first is blocked in the fetcher,
+   * and the fetcher is released once the second is waiting on it or on the first request.
+   */
+  private static HttpResponse[] executeConcurrently(final DefaultRequestPipeline pipeline,
+      BlockingFetcher slowFetcher, final HttpRequest first, final HttpRequest second)
+      throws Exception {
+    final HttpResponse[] responses = new HttpResponse[2];
+    Thread leader = new Thread() {
+      @Override
+      public void run() {
+        try {
+          responses[0] = pipeline.execute(first);
+        } catch (GadgetException e) {
+          throw new RuntimeException(e);
+        }
+      }
+    };
+    Thread follower = new Thread() {
+      @Override
+      public void run() {
+        try {
+          responses[1] = pipeline.execute(second);
+        } catch (GadgetException e) {
+          throw new RuntimeException(e);
+        }
+      }
+    };
+
+    leader.start();
+    slowFetcher.started.await();
+    follower.start();
+    // Wait for the follower to block on the leader's fetch, or to start its own.
+    while (follower.getState() != Thread.State.TIMED_WAITING
+        && slowFetcher.fetchCount.get() < 2 && follower.isAlive()) {
+      Thread.sleep(10);
+    }
+    slowFetcher.release.countDown();
+    leader.join();
+    follower.join();
+    return responses;
+  }
+
+  @Test
+  public void staleServedWhileRevalidating() throws Exception {
+    Uri uri = Uri.parse("http://example.org/gadget.xml?v=1");
+    HttpResponse cached = new HttpResponseBuilder().setCacheTtl(-1).create();
+    cache.data.put(uri, cached);
+    fetcher.response = new HttpResponse("fetched");
+
+    ExecutorService executor = Executors.newSingleThreadExecutor();
+    DefaultRequestPipeline swr = new DefaultRequestPipeline(fetcher, cache, oauth,
+        new DefaultResponseRewriterRegistry(null, null), new NoOpInvalidationService(), helper);
+    swr.setStaleWhileRevalidate(true);
+    swr.setRefreshExecutor(executor);
+
+    HttpResponse response = swr.execute(new HttpRequest(uri));
+    executor.shutdown();
+    executor.awaitTermination(10, TimeUnit.SECONDS);
+
+    assertSame(cached, response);
+    assertEquals(1, fetcher.fetchCount);
+    assertEquals("fetched", cache.data.get(uri).getResponseAsString());
+    assertEquals(1, swr.getRefreshSuccessCount());
+    assertEquals(0, swr.getRefreshFailureCount());
+  }
+
+  @Test
+  public void staleRefreshFailureKeepsStale() throws Exception {
+    Uri uri = Uri.parse("http://example.org/gadget.xml?v=1");
+    HttpResponse cached = new HttpResponseBuilder().setCacheTtl(-1).create();
+    cache.data.put(uri, cached);
+    fetcher.response = HttpResponse.error();
+
+    ExecutorService executor = Executors.newSingleThreadExecutor();
+    DefaultRequestPipeline swr = new DefaultRequestPipeline(fetcher, cache, oauth,
+        new DefaultResponseRewriterRegistry(null, null), new NoOpInvalidationService(), helper);
+    swr.setStaleWhileRevalidate(true);
+    swr.setRefreshExecutor(executor);
+
+    swr.execute(new HttpRequest(uri));
+    executor.shutdown();
+    executor.awaitTermination(10, TimeUnit.SECONDS);
+
+    assertSame(cached, cache.data.get(uri));
+    assertEquals(0, swr.getRefreshSuccessCount());
+    assertEquals(1, swr.getRefreshFailureCount());
+  }
+
+  @Test
+  public void staleRefetchedInlineOverHostLimit() throws Exception {
+    Uri uri = Uri.parse("http://example.org/gadget.xml?v=1");
+    cache.data.put(uri, new HttpResponseBuilder().setCacheTtl(-1).create());
+    HttpResponse fetched = new HttpResponse("fetched");
+    fetcher.response = fetched;
+
+    ExecutorService executor = Executors.newSingleThreadExecutor();
+    DefaultRequestPipeline swr = new DefaultRequestPipeline(fetcher, cache, oauth,
+        new DefaultResponseRewriterRegistry(null, null), new NoOpInvalidationService(), helper);
+    swr.setStaleWhileRevalidate(true);
+    swr.setMaxRefreshesPerHost(0);
+    swr.setRefreshExecutor(executor);
+
+    HttpResponse response = swr.execute(new HttpRequest(uri));
+    executor.shutdown();
+
+    assertEquals("fetched", response.getResponseAsString());
+    assertEquals(1, fetcher.fetchCount);
+    assertEquals(1, swr.getRefreshRejectedCount());
+  }
+
+  @Test
+  public void staleRefreshKeepsRequestParams() throws Exception {
+    Uri uri = Uri.parse("http://example.org/image.png?v=1");
+    String resizeWidth = UriCommon.Param.RESIZE_WIDTH.getKey();
+    fetcher.response = new HttpResponse("fetched");
+    final List<HttpRequest> written = Lists.newArrayList();
+    FakeHttpCache recordingCache = new FakeHttpCache() {
+      @Override
+      public boolean addResponse(HttpRequest request, HttpResponse response) {
+        written.add(request);
+        return super.addResponse(request, response);
+      }
+    };
+    recordingCache.data.put(uri, new HttpResponseBuilder().setCacheTtl(-1).create());
+
+    ExecutorService executor = Executors.newSingleThreadExecutor();
+    DefaultRequestPipeline swr = new DefaultRequestPipeline(fetcher, recordingCache, oauth,
+        new DefaultResponseRewriterRegistry(null, null), new NoOpInvalidationService(), helper);
+    swr.setStaleWhileRevalidate(true);
+    swr.setRefreshExecutor(executor);
+
+    HttpRequest request = new HttpRequest(uri);
+    request.setParam(resizeWidth, 100);
+    swr.execute(request);
+    executor.shutdown();
+    executor.awaitTermination(10, TimeUnit.SECONDS);
+
+    assertEquals(1, swr.getRefreshSuccessCount());
+    assertEquals("100", fetcher.request.getParam(resizeWidth));
+    assertEquals(1, written.size());
+    assertEquals("100", written.get(0).getParam(resizeWidth));
+  }
+
+  @Test
+  public void staleRevalidatedWithValidators() throws Exception {
+    HttpRequest request = new HttpRequest(DEFAULT_URI)
+        .setAuthType(AuthType.NONE);
+
+    HttpResponse cached = new HttpResponseBuilder()
+        .setResponseString("cached")
+        .addHeader("ETag", "\"abc\"")
+        .addHeader("Last-Modified", "Mon, 01 Jan 2007 00:00:00 GMT")
+        .setMetadata("foo", "bar")
+        .setCacheTtl(-1)
+        .create();
+    cache.data.put(DEFAULT_URI, cached);
+
+    fetcher.response = new HttpResponseBuilder()
+        .setHttpStatusCode(HttpResponse.SC_NOT_MODIFIED)
+        .setCacheTtl(100)
+        .create();
+
+    DefaultRequestPipeline revalidating = new DefaultRequestPipeline(fetcher, cache, oauth,
+        new DefaultResponseRewriterRegistry(null, null), new NoOpInvalidationService(), helper);
+    HttpResponse response = revalidating.execute(request);
+
+    assertEquals("\"abc\"", fetcher.request.getHeader("If-None-Match"));
+    assertEquals("Mon, 01 Jan 2007 00:00:00 GMT", fetcher.request.getHeader("If-Modified-Since"));
+    assertNull(request.getHeader("If-None-Match"));
+
+    assertEquals(HttpResponse.SC_OK, response.getHttpStatusCode());
+    assertEquals("cached", response.getResponseAsString());
+    assertEquals("bar", response.getMetadata().get("foo"));
+    assertFalse(response.isStale());
+    assertEquals(response, cache.data.get(DEFAULT_URI));
+    assertEquals(1, cache.writeCount);
+    assertEquals(1, revalidating.getRevalidatedCount());
+  }
+
+  @Test
+  public void staleWithoutValidatorsFetchedUnconditionally() throws Exception {
+    HttpRequest request = new HttpRequest(DEFAULT_URI)
+        .setAuthType(AuthType.NONE);
+    cache.data.put(DEFAULT_URI, new HttpResponseBuilder().setCacheTtl(-1).create());
+    fetcher.response = new HttpResponse("fetched");
+
+    DefaultRequestPipeline revalidating = new DefaultRequestPipeline(fetcher, cache, oauth,
+        new DefaultResponseRewriterRegistry(null, null), new NoOpInvalidationService(), helper);
+    revalidating.execute(request);
+
+    assertSame(request, fetcher.request);
+    assertEquals(0, revalidating.getRevalidatedCount());
+  }
+
+  private static class BlockingFetcher implements HttpFetcher {
+    private final CountDownLatch started = new CountDownLatch(1);
+    private final CountDownLatch release = new CountDownLatch(1);
+    private final AtomicInteger fetchCount = new AtomicInteger();
+    private final HttpResponse response;
+
+    BlockingFetcher(HttpResponse response) {
+      this.response = response;
+    }
+
+    public HttpResponse fetch(HttpRequest request) throws GadgetException {
+      fetchCount.incrementAndGet();
+      started.countDown();
+      try {
+        release.await();
+      } catch (InterruptedException e) {
+        throw new GadgetException(GadgetException.Code.INTERNAL_SERVER_ERROR, e);
+      }
+      return response;
+    }
+  }
+
   public static class FakeHttpFetcher implements HttpFetcher {
     protected HttpRequest request;
     protected HttpResponse response;
@@ -261,6 +553,10 @@ public class DefaultRequestPipelineTest {
       throw new UnsupportedOperationException();
     }
 
+    public HttpResponse removeResponseForKey(String key) {
+      throw new UnsupportedOperationException();
+    }
+
     public String createKey(HttpRequest request) {
       return request.getUri().getQuery();
     }
@@ -0,0 +1,190 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+
+package org.apache.shindig.gadgets.http;
+
+import com.google.common.collect.Lists;
+
+import org.apache.shindig.common.uri.Uri;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Fires a burst of concurrent fetches at a deliberately slow origin and reports the peak number
+ * of live threads and the latency seen by {@link NioHttpFetcher} and by {@link BasicHttpFetcher}
+ * on a thread per request. Run as a standalone program.
+ */
+public class FetcherLoadBenchmark {
+  private static final int PORT = 9004;
+  private static final int BACKLOG = 2048;
+  private static final byte[] RESPONSE =
+      "HTTP/1.1 200 OK\r\nContent-Length: 4\r\nConnection: close\r\n\r\nslow".getBytes();
+
+  private final int fetches;
+  private final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+
+  private FetcherLoadBenchmark(int fetches) {
+    this.fetches = fetches;
+  }
+
+  private void runNio(Uri uri) throws Exception {
+    NioHttpFetcher fetcher = new NioHttpFetcher(new BasicHttpFetcher(null), null);
+    fetcher.setReadTimeoutMs(30000);
+    threads.resetPeakThreadCount();
+    long begin = System.nanoTime();
+    List<Future<HttpResponse>> responses = Lists.newArrayList();
+    for (int i = 0; i < fetches; ++i) {
+      responses.add(fetcher.fetchAsync(new HttpRequest(uri)));
+    }
+    report("NioHttpFetcher", responses, begin);
+    fetcher.shutdown();
+  }
+
+  private void runBlocking(Uri uri) throws Exception {
+    final BasicHttpFetcher fetcher = new BasicHttpFetcher(0, 30000, 30000, null);
+    ExecutorService executor = Executors.newFixedThreadPool(fetches);
+    threads.resetPeakThreadCount();
+    long begin = System.nanoTime();
+    List<Future<HttpResponse>> responses = Lists.newArrayList();
+    for (int i = 0; i < fetches; ++i) {
+      final HttpRequest request = new HttpRequest(uri);
+      responses.add(executor.submit(new Callable<HttpResponse>() {
+        public HttpResponse call() throws Exception {
+          return fetcher.fetch(request);
+        }
+      }));
+    }
+    report("BasicHttpFetcher", responses, begin);
+    executor.shutdown();
+  }
+
+  private void report(String name, List<Future<HttpResponse>> responses, long begin)
+      throws Exception {
+    int ok = 0;
+    for (Future<HttpResponse> response : responses) {
+      if (response.get().getHttpStatusCode() == HttpResponse.SC_OK) {
+        ok++;
+      }
+    }
+    long elapsed = (System.nanoTime() - begin) / 1000000;
+    System.out.println(name + ": " + ok + '/' + fetches + " ok in " + elapsed
+        + "ms, peak threads " + threads.getPeakThreadCount());
+  }
+
+  /**
+   * Accepts connections and answers each one after a fixed delay, without a thread per
+   * connection.
+   */
+  private static void serveSlowly(long delayMs) throws IOException {
+    Selector selector = Selector.open();
+    ServerSocketChannel server = ServerSocketChannel.open();
+    server.socket().setReuseAddress(true);
+    server.socket().bind(new InetSocketAddress("localhost", PORT), BACKLOG);
+    server.configureBlocking(false);
+    server.register(selector, SelectionKey.OP_ACCEPT);
+
+    PriorityQueue<Reply> replies = new PriorityQueue<Reply>();
+    ByteBuffer discard = ByteBuffer.allocate(4096);
+    while (true) {
+      long now = System.currentTimeMillis();
+      while (!replies.isEmpty() && replies.peek().due <= now) {
+        Reply reply = replies.poll();
+        reply.channel.write(ByteBuffer.wrap(RESPONSE));
+        reply.channel.close();
+      }
+      selector.select(replies.isEmpty() ? 0 : Math.max(1, replies.peek().due - now));
+      Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+      while (keys.hasNext()) {
+        SelectionKey key = keys.next();
+        keys.remove();
+        if (key.isAcceptable()) {
+          SocketChannel channel;
+          while ((channel = server.accept()) != null) {
+            channel.configureBlocking(false);
+            channel.register(selector, SelectionKey.OP_READ);
+            replies.add(new Reply(channel, System.currentTimeMillis() + delayMs));
+          }
+        } else if (key.isReadable()) {
+          discard.clear();
+          if (((SocketChannel) key.channel()).read(discard) < 0) {
+            key.cancel();
+          }
+        }
+      }
+    }
+  }
+
+  private static final class Reply implements Comparable<Reply> {
+    private final SocketChannel channel;
+    private final long due;
+
+    Reply(SocketChannel channel, long due) {
+      this.channel = channel;
+      this.due = due;
+    }
+
+    public int compareTo(Reply other) {
+      return due < other.due ? -1 : due == other.due ? 0 : 1;
+    }
+  }
+
+  public static void main(String[] args) throws Exception {
+    int fetches = 1000;
+    if (args.length == 1) {
+      try {
+        fetches = Integer.parseInt(args[0]);
+      } catch (NumberFormatException e) {
+        System.err.println("Invalid fetch count argument: " + args[0]);
+        System.exit(1);
+      }
+    }
+    Thread origin = new Thread() {
+      @Override
+      public void run() {
+        try {
+          serveSlowly(2000);
+        } catch (IOException e) {
+          e.printStackTrace();
+        }
+      }
+    };
+    origin.setDaemon(true);
+    origin.start();
+
+    Uri uri = Uri.parse("http://localhost:" + PORT + "/slow");
+    FetcherLoadBenchmark test = new FetcherLoadBenchmark(fetches);
+    test.runNio(uri);
+    test.runBlocking(uri);
+    System.exit(0);
+  }
+}
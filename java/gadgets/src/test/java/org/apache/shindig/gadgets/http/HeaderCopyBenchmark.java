@@ -0,0 +1,112 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+
+package org.apache.shindig.gadgets.http;
+
+import org.apache.commons.lang.StringUtils;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+
+/**
+ * Measures the time and memory spent copying a response through a chain of rewriters, when the
+ * rewriters leave the headers alone (so they are shared) and when each one changes a header (so
+ * each makes its own copy, as every builder did before headers were copied on write). Run as a
+ * standalone program; allocation is only reported on JVMs that can measure it per thread.
+ */
+public class HeaderCopyBenchmark {
+  private static final int REWRITERS = 5;
+
+  private final HttpResponse response;
+  private final int requests;
+
+  private HeaderCopyBenchmark(int requests) {
+    this.requests = requests;
+    response = new HttpResponseBuilder()
+        .addHeader("Content-Type", "text/html; charset=UTF-8")
+        .addHeader("Cache-Control", "public,max-age=300")
+        .addHeader("Server", "Apache")
+        .addHeader("Vary", "Accept-Encoding")
+        .addHeader("ETag", "\"4d2-4b5d8d1e9c2c0\"")
+        .addHeader("Last-Modified", "Mon, 01 Mar 2010 00:00:00 GMT")
+        .addHeader("X-Powered-By", "PHP/5.2.6")
+        .addHeader("Set-Cookie", "session=1234567890abcdef; path=/")
+        .addHeader("Set-Cookie", "prefs=compact; path=/")
+        .addHeader("Accept-Ranges", "bytes")
+        .setResponseString("<html><body>" + StringUtils.repeat("<p>content</p>", 1000)
+            + "</body></html>")
+        .create();
+  }
+
+  private long run(boolean changeHeaders) {
+    long hash = 0;
+    for (int i = 0; i < requests; ++i) {
+      HttpResponse current = response;
+      for (int rewriter = 0; rewriter < REWRITERS; ++rewriter) {
+        HttpResponseBuilder builder = new HttpResponseBuilder(current);
+        if (changeHeaders) {
+          builder.setHeader("X-Rewriter", Integer.toString(rewriter));
+        } else {
+          builder.setMetadata("rewriter", Integer.toString(rewriter));
+        }
+        current = builder.create();
+      }
+      hash += current.getHeaders().size();
+    }
+    return hash;
+  }
+
+  private void time(String name, boolean changeHeaders) {
+    ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+    long bytesBefore = allocatedBytes(threads);
+    long begin = System.nanoTime();
+    long hash = run(changeHeaders);
+    long nanos = System.nanoTime() - begin;
+    long bytes = allocatedBytes(threads) - bytesBefore;
+    System.out.println(name + ": " + (nanos / requests) + " ns/request"
+        + (bytesBefore >= 0 ? ", " + (bytes / requests) + " bytes/request" : "")
+        + " (" + hash + ')');
+  }
+
+  private static long allocatedBytes(ThreadMXBean threads) {
+    if (threads instanceof com.sun.management.ThreadMXBean) {
+      return ((com.sun.management.ThreadMXBean) threads)
+          .getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+    return -1;
+  }
+
+  public static void main(String[] args) throws Exception {
+    int requests = 100000;
+    if (args.length == 1) {
+      try {
+        requests = Integer.parseInt(args[0]);
+      } catch (NumberFormatException e) {
+        System.err.println("Invalid request count argument: " + args[0]);
+        System.exit(1);
+      }
+    }
+    HeaderCopyBenchmark benchmark = new HeaderCopyBenchmark(requests);
+    // Warm up.
+    benchmark.run(true);
+    benchmark.run(false);
+
+    benchmark.time("Headers copied by every rewriter", true);
+    benchmark.time("Headers shared", false);
+  }
+}
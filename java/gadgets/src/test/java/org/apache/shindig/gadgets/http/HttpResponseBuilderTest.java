@@ -233,4 +233,79 @@ public class HttpResponseBuilderTest {
     assertNotSame(response, newResponse);
     assertSame(newResponse, builder.create());
   }
+
+  @Test
+  public void headerOnlyCopySharesBody() throws Exception {
+    HttpResponse response = new HttpResponseBuilder()
+        .addHeader("Content-Type", "text/plain; charset=ISO-8859-1")
+        .setResponse("caf\u00e9".getBytes("ISO-8859-1"))
+        .create();
+    String body = response.getResponseAsString();
+
+    HttpResponse copy = new HttpResponseBuilder(response).setHeader("X-Foo", "bar").create();
+    assertNotSame(response, copy);
+    assertEquals("bar", copy.getHeader("X-Foo"));
+    assertSame(response.getResponseAsBytes(), copy.getResponseAsBytes());
+    assertSame(response.getEncodingCharset(), copy.getEncodingCharset());
+    assertSame(body, copy.getResponseAsString());
+  }
+
+  @Test
+  public void headerOnlyCopyKeepsDetectedEncoding() {
+    HttpResponse response = new HttpResponseBuilder()
+        .addHeader("Content-Type", "text/html; foo=bar")
+        .setResponse(CharsetUtil.getUtf8Bytes("<html>hello</html>"))
+        .create();
+    String contentType = response.getHeader("Content-Type");
+
+    HttpResponse copy = new HttpResponseBuilder(response).setHeader("X-Foo", "bar").create();
+    assertEquals(contentType, copy.getHeader("Content-Type"));
+    assertEquals(response.getEncoding(), copy.getEncoding());
+  }
+
+  @Test
+  public void changedBodyNotShared() {
+    HttpResponse response = new HttpResponse("foo");
+    response.getResponseAsString();
+
+    HttpResponse copy = new HttpResponseBuilder(response).setResponseString("bar").create();
+    assertNotSame(response.getResponseAsBytes(), copy.getResponseAsBytes());
+    assertEquals("foo", response.getResponseAsString());
+    assertEquals("bar", copy.getResponseAsString());
+  }
+
+  @Test
+  public void headersSharedUntilChanged() {
+    HttpResponse response = new HttpResponseBuilder()
+        .addHeader("Content-Type", "text/plain; charset=UTF-8")
+        .addHeader("X-Foo", "foo")
+        .setResponseString("body")
+        .create();
+
+    HttpResponseBuilder builder = new HttpResponseBuilder(response)
+        .setHttpStatusCode(HttpResponse.SC_NOT_FOUND);
+    HttpResponse copy = builder.create();
+    assertEquals(HttpResponse.SC_NOT_FOUND, copy.getHttpStatusCode());
+    assertSame(response.getHeaders(), copy.getHeaders());
+
+    HttpResponse changed = new HttpResponseBuilder(copy).setHeader("X-Foo", "bar").create();
+    assertEquals("bar", changed.getHeader("X-Foo"));
+    assertEquals("foo", copy.getHeader("X-Foo"));
+    assertEquals("foo", response.getHeader("X-Foo"));
+  }
+
+  @Test
+  public void removeMissingHeaderKeepsSharing() {
+    HttpResponse response = new HttpResponseBuilder()
+        .addHeader("X-Foo", "foo")
+        .setResponseString("body")
+        .create();
+
+    HttpResponseBuilder builder = new HttpResponseBuilder(response);
+    assertTrue(builder.removeHeader("X-Bar").isEmpty());
+    assertSame(response.getHeaders(), builder.getHeaders());
+    assertEquals(ImmutableList.of("foo"), Lists.newArrayList(builder.removeHeader("X-Foo")));
+    assertFalse(builder.getHeaders().containsKey("X-Foo"));
+    assertEquals("foo", response.getHeader("X-Foo"));
+  }
 }
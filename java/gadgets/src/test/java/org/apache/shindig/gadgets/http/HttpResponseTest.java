@@ -21,6 +21,7 @@ import org.apache.shindig.common.util.DateUtil;
 import org.apache.shindig.common.util.FakeTimeSource;
 
 import org.apache.commons.io.IOUtils;
+import org.apache.commons.lang.StringUtils;
 import org.junit.Assert;
 import org.junit.Before;
 import org.junit.Test;
@@ -30,6 +31,7 @@ import java.io.ByteArrayOutputStream;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
 import java.util.Arrays;
+import java.util.zip.GZIPInputStream;
 
 public class HttpResponseTest extends Assert {
   private static final byte[] UTF8_DATA = {
@@ -554,4 +556,66 @@ public class HttpResponseTest extends Assert {
 
     assertEquals(expectedResponse, deserialized);
   }
+
+  private static HttpResponse textResponse(String body) {
+    return new HttpResponseBuilder()
+        .setHeader("Content-Type", "text/javascript; charset=UTF-8")
+        .setResponseString(body)
+        .create();
+  }
+
+  @Test
+  public void compressedResponseKeepsItsBody() throws Exception {
+    String body = StringUtils.repeat("var x = 1;\n", 500);
+    HttpResponse response = textResponse(body);
+    HttpResponse compressed = response.compress();
+
+    assertTrue(compressed.isCompressed());
+    assertTrue(compressed.getGzippedContentLength() < body.length() / 10);
+    assertEquals(body.length(), compressed.getContentLength());
+    assertEquals(body, compressed.getResponseAsString());
+    assertEquals(response, compressed);
+    assertEquals(body,
+        IOUtils.toString(new GZIPInputStream(compressed.getGzippedResponse()), "UTF-8"));
+  }
+
+  @Test
+  public void headerOnlyCopyOfCompressedResponseStaysCompressed() {
+    HttpResponse compressed = textResponse(StringUtils.repeat("var x = 1;\n", 500)).compress();
+    HttpResponse copy = new HttpResponseBuilder(compressed.copy())
+        .setHeader("X-Foo", "bar")
+        .create();
+
+    assertEquals(compressed.getGzippedContentLength(), copy.getGzippedContentLength());
+    assertEquals("bar", copy.getHeader("X-Foo"));
+    assertEquals(compressed.getResponseAsString(), copy.getResponseAsString());
+  }
+
+  @Test
+  public void hotCompressedResponseKeepsDecompressedBody() {
+    HttpResponse compressed = textResponse(StringUtils.repeat("var x = 1;\n", 500)).compress();
+
+    HttpResponse first = compressed.handOut(1);
+    HttpResponse second = compressed.handOut(1);
+    HttpResponse third = compressed.handOut(1);
+    // The first copy decompresses on its own; once hot, copies share one decompressed body.
+    assertNotSame(first.getResponseAsBytes(), second.getResponseAsBytes());
+    assertSame(second.getResponseAsBytes(), third.getResponseAsBytes());
+    assertTrue(third.isCompressed());
+    assertEquals(compressed.getGzippedContentLength(), third.getGzippedContentLength());
+  }
+
+  @Test
+  public void smallOrBinaryBodiesNotCompressed() {
+    HttpResponse small = textResponse("var x = 1;");
+    assertSame(small, small.compress());
+
+    HttpResponse image = new HttpResponseBuilder()
+        .setHeader("Content-Type", "image/png")
+        .setResponse(new byte[4096])
+        .create();
+    assertSame(image, image.compress());
+    assertEquals(-1, image.getGzippedContentLength());
+    assertNull(image.getGzippedResponse());
+  }
 }
@@ -110,6 +110,56 @@ public class InvalidationHandlerTest extends EasyMockTestCase {
     reset();
   }
 
+  @Test
+  public void testConsumerAuthInvalidateTags() throws Exception {
+    String path = "/cache/invalidate";
+    RestHandler operation = registry.getRestHandler(path, "POST");
+    params.put(InvalidationHandler.TAGS_PARAM,
+        new String[]{"app", "user:userY", "host:www.example.org"});
+    token.setAuthenticationMode(AuthenticationMode.OAUTH_CONSUMER_REQUEST.name());
+    invalidationService.invalidateTags(
+        eq(ImmutableSet.of(InvalidationTags.forApp(token),
+            InvalidationTags.forUser("userY", token),
+            InvalidationTags.forHost("www.example.org", token))),
+        eq(token));
+    expectLastCall();
+
+    replay();
+    operation.execute(params, null, token, converter).get();
+    verify();
+    reset();
+  }
+
+  @Test
+  public void testTokenAuthInvalidateViewerTag() throws Exception {
+    String path = "/cache/invalidate";
+    RestHandler operation = registry.getRestHandler(path, "POST");
+    params.put(InvalidationHandler.TAGS_PARAM, new String[]{"user:@viewer"});
+    invalidationService.invalidateTags(
+        eq(ImmutableSet.of(InvalidationTags.forUser("userX", token))),
+        eq(token));
+    expectLastCall();
+
+    replay();
+    operation.execute(params, null, token, converter).get();
+    verify();
+    reset();
+  }
+
+  @Test
+  public void testFailTokenAuthInvalidateAppTag() throws Exception {
+    String path = "/cache/invalidate";
+    RestHandler operation = registry.getRestHandler(path, "POST");
+    params.put(InvalidationHandler.TAGS_PARAM, new String[]{"app"});
+
+    try {
+      operation.execute(params, null, token, converter).get();
+      fail("Expected error");
+    } catch (ExecutionException ee) {
+      assertTrue(ee.getCause() instanceof ProtocolException);
+    }
+  }
+
   @Test
   public void testFailTokenAuthInvalidateAppResource() throws Exception {
     String path = "/cache/invalidate";
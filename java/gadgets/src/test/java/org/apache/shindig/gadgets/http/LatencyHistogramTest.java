@@ -0,0 +1,70 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.apache.shindig.gadgets.http;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+public class LatencyHistogramTest {
+  private final LatencyHistogram histogram = new LatencyHistogram();
+
+  @Test
+  public void empty() {
+    assertEquals(0, histogram.getCount());
+    assertEquals(0, histogram.getMeanMillis());
+    assertEquals(0, histogram.getPercentileMillis(99));
+  }
+
+  @Test
+  public void recordsIntoBuckets() {
+    histogram.record(5);
+    histogram.record(10);
+    histogram.record(11);
+    histogram.record(40000);
+
+    long[] counts = histogram.getCounts();
+    assertEquals(LatencyHistogram.getBounds().length + 1, counts.length);
+    assertEquals(2, counts[0]);
+    assertEquals(1, counts[1]);
+    assertEquals(1, counts[counts.length - 1]);
+    assertEquals(4, histogram.getCount());
+    assertEquals(40000, histogram.getMaxMillis());
+    assertEquals((5 + 10 + 11 + 40000) / 4, histogram.getMeanMillis());
+  }
+
+  @Test
+  public void percentiles() {
+    for (int i = 0; i < 98; i++) {
+      histogram.record(20);
+    }
+    histogram.record(400);
+    histogram.record(35000);
+
+    assertEquals(25, histogram.getPercentileMillis(50));
+    assertEquals(25, histogram.getPercentileMillis(98));
+    assertEquals(500, histogram.getPercentileMillis(99));
+    assertEquals(35000, histogram.getPercentileMillis(100));
+  }
+
+  @Test
+  public void boundsAreCopied() {
+    LatencyHistogram.getBounds()[0] = -1;
+    assertEquals(10, LatencyHistogram.getBounds()[0]);
+  }
+}
@@ -0,0 +1,143 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+
+package org.apache.shindig.gadgets.http;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.lang.StringUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+
+/**
+ * Tests for MappedResponseStore.
+ */
+public class MappedResponseStoreTest {
+  // Small enough that each segment is the minimum size of 64k.
+  private static final long MAX_BYTES = 8 * 64 * 1024;
+
+  private File directory;
+  private MappedResponseStore store;
+
+  @Before
+  public void setUp() throws Exception {
+    directory = File.createTempFile("responses", "");
+    directory.delete();
+    store = new MappedResponseStore(directory, MAX_BYTES);
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    FileUtils.deleteDirectory(directory);
+  }
+
+  @Test
+  public void putAndGet() {
+    HttpResponse response = new HttpResponseBuilder()
+        .setHttpStatusCode(HttpResponse.SC_NOT_FOUND)
+        .setResponseString("not here")
+        .addHeader("Content-Type", "text/plain")
+        .setMetadata("hash", "abc")
+        .create();
+    store.put("key", response);
+
+    HttpResponse stored = store.get("key");
+    assertEquals(HttpResponse.SC_NOT_FOUND, stored.getHttpStatusCode());
+    assertEquals("not here", stored.getResponseAsString());
+    assertEquals("text/plain", stored.getHeader("Content-Type"));
+    assertEquals("abc", stored.getMetadata().get("hash"));
+    assertNull(store.get("other"));
+  }
+
+  @Test
+  public void compressedBodyStoredCompressed() {
+    String body = StringUtils.repeat("var x = 1;\n", 500);
+    HttpResponse compressed = new HttpResponseBuilder()
+        .setHeader("Content-Type", "text/javascript; charset=UTF-8")
+        .setResponseString(body)
+        .create()
+        .compress();
+    store.put("key", compressed);
+
+    HttpResponse stored = store.get("key");
+    assertTrue(stored.isCompressed());
+    assertEquals(compressed.getGzippedContentLength(), stored.getGzippedContentLength());
+    assertEquals(body.length(), stored.getContentLength());
+    assertEquals(body, stored.getResponseAsString());
+  }
+
+  @Test
+  public void replaceAndRemove() {
+    store.put("key", new HttpResponse("first"));
+    store.put("key", new HttpResponse("second"));
+    assertEquals("second", store.get("key").getResponseAsString());
+    assertEquals(1, store.getSize());
+
+    assertTrue(store.remove("key"));
+    assertFalse(store.remove("key"));
+    assertNull(store.get("key"));
+  }
+
+  @Test
+  public void survivesReopen() throws Exception {
+    store.put("kept", new HttpResponse("kept"));
+    store.put("replaced", new HttpResponse("old"));
+    store.put("replaced", new HttpResponse("new"));
+    store.put("removed", new HttpResponse("removed"));
+    store.remove("removed");
+    store.force();
+
+    MappedResponseStore reopened = new MappedResponseStore(directory, MAX_BYTES);
+    assertEquals(2, reopened.getSize());
+    assertEquals("kept", reopened.get("kept").getResponseAsString());
+    assertEquals("new", reopened.get("replaced").getResponseAsString());
+    assertNull(reopened.get("removed"));
+
+    // Appends continue after the existing records.
+    reopened.put("added", new HttpResponse("added"));
+    assertEquals("kept", reopened.get("kept").getResponseAsString());
+    assertEquals("added", reopened.get("added").getResponseAsString());
+  }
+
+  @Test
+  public void oldestSegmentDropped() {
+    String body = StringUtils.repeat("x", 20000);
+    for (int i = 0; i < 40; ++i) {
+      store.put("key" + i, new HttpResponse(body));
+    }
+    // Three responses fit in each segment, and only the newest segments are kept.
+    assertNull(store.get("key0"));
+    assertEquals(body, store.get("key39").getResponseAsString());
+    assertTrue(store.getSize() <= MappedResponseStore.SEGMENTS * 3);
+    assertTrue(directory.list().length <= MappedResponseStore.SEGMENTS);
+  }
+
+  @Test
+  public void oversizedResponseNotStored() {
+    store.put("key", new HttpResponse("small"));
+    store.put("key", new HttpResponse(StringUtils.repeat("x", 100 * 1024)));
+    assertNull(store.get("key"));
+  }
+}
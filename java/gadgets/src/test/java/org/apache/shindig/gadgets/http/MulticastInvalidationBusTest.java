@@ -0,0 +1,116 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.apache.shindig.gadgets.http;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Sets;
+
+import org.apache.shindig.common.util.CharsetUtil;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Set;
+
+public class MulticastInvalidationBusTest extends Assert {
+  private static final long SENDER = 42L;
+  private static final byte[] KEY = CharsetUtil.getUtf8Bytes("0123456789abcdef");
+
+  @Test
+  public void encodeDecodeBatch() throws Exception {
+    InvalidationEvent users = new InvalidationEvent(InvalidationEvent.Type.USERS, "node1", "AppX",
+        ImmutableSet.of("1", "2"), 1000L);
+    InvalidationEvent tags = new InvalidationEvent(InvalidationEvent.Type.TAGS, "node1", null,
+        ImmutableSet.of("host:www.example.org"), 2000L);
+
+    List<byte[]> packets =
+        MulticastInvalidationBus.encode(ImmutableList.of(users, tags), SENDER, KEY);
+    assertEquals(1, packets.size());
+
+    List<InvalidationEvent> decoded =
+        MulticastInvalidationBus.decode(packets.get(0), packets.get(0).length, 0L, KEY);
+    assertEquals(2, decoded.size());
+    assertEquals(InvalidationEvent.Type.USERS, decoded.get(0).getType());
+    assertEquals("node1", decoded.get(0).getOrigin());
+    assertEquals("AppX", decoded.get(0).getAppKey());
+    assertEquals(ImmutableSet.of("1", "2"), decoded.get(0).getValues());
+    assertEquals(1000L, decoded.get(0).getCreated());
+    assertEquals(InvalidationEvent.Type.TAGS, decoded.get(1).getType());
+    assertNull(decoded.get(1).getAppKey());
+  }
+
+  @Test
+  public void ownPacketsIgnored() throws Exception {
+    InvalidationEvent event = new InvalidationEvent(InvalidationEvent.Type.USERS, "node1", "AppX",
+        ImmutableSet.of("1"), 1000L);
+    byte[] packet = MulticastInvalidationBus.encode(ImmutableList.of(event), SENDER, KEY).get(0);
+    assertEquals(0, MulticastInvalidationBus.decode(packet, packet.length, SENDER, KEY).size());
+  }
+
+  @Test
+  public void largeEventsSplit() throws Exception {
+    Set<String> uris = Sets.newHashSet();
+    for (int i = 0; i < 1000; i++) {
+      uris.add("http://www.example.org/resources/" + i + ".xml");
+    }
+    InvalidationEvent event = new InvalidationEvent(InvalidationEvent.Type.RESOURCES, "node1",
+        "AppX", uris, 1000L);
+
+    List<byte[]> packets = MulticastInvalidationBus.encode(ImmutableList.of(event), SENDER, KEY);
+    assertTrue(packets.size() > 1);
+
+    Set<String> received = Sets.newHashSet();
+    for (byte[] packet : packets) {
+      assertTrue(packet.length <= MulticastInvalidationBus.MAX_PACKET_SIZE);
+      for (InvalidationEvent decoded :
+          MulticastInvalidationBus.decode(packet, packet.length, 0L, KEY)) {
+        assertEquals(InvalidationEvent.Type.RESOURCES, decoded.getType());
+        received.addAll(decoded.getValues());
+      }
+    }
+    assertEquals(uris, received);
+  }
+
+  @Test(expected = IOException.class)
+  public void wrongKeyRejected() throws Exception {
+    InvalidationEvent event = new InvalidationEvent(InvalidationEvent.Type.USERS, "node1", "AppX",
+        ImmutableSet.of("1"), 1000L);
+    byte[] packet = MulticastInvalidationBus.encode(ImmutableList.of(event), SENDER,
+        CharsetUtil.getUtf8Bytes("fedcba9876543210")).get(0);
+    MulticastInvalidationBus.decode(packet, packet.length, 0L, KEY);
+  }
+
+  @Test(expected = IOException.class)
+  public void tamperedPacketRejected() throws Exception {
+    InvalidationEvent event = new InvalidationEvent(InvalidationEvent.Type.USERS, "node1", "AppX",
+        ImmutableSet.of("1"), 1000L);
+    byte[] packet = MulticastInvalidationBus.encode(ImmutableList.of(event), SENDER, KEY).get(0);
+    packet[packet.length / 2] ^= 1;
+    MulticastInvalidationBus.decode(packet, packet.length, 0L, KEY);
+  }
+
+  @Test(expected = IOException.class)
+  public void unsignedPacketRejected() throws Exception {
+    InvalidationEvent event = new InvalidationEvent(InvalidationEvent.Type.USERS, "node1", "AppX",
+        ImmutableSet.of("1"), 1000L);
+    byte[] packet = MulticastInvalidationBus.encode(ImmutableList.of(event), SENDER, KEY).get(0);
+    MulticastInvalidationBus.decode(packet, packet.length - 20, 0L, KEY);
+  }
+}
@@ -0,0 +1,124 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+
+package org.apache.shindig.gadgets.http;
+
+import com.google.common.collect.Lists;
+
+import org.apache.shindig.common.uri.Uri;
+import org.apache.shindig.common.uri.UriBuilder;
+import org.junit.After;
+import static org.junit.Assert.assertEquals;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.List;
+import java.util.concurrent.Future;
+
+/**
+ * Runs the standard fetcher tests against {@link NioHttpFetcher}.
+ */
+public class NioHttpFetcherTest extends AbstractHttpFetcherTest {
+  private NioHttpFetcher nioFetcher;
+
+  @Before
+  public void setUp() throws Exception {
+    nioFetcher = new NioHttpFetcher(new BasicHttpFetcher(null), null);
+    fetcher = nioFetcher;
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    nioFetcher.shutdown();
+  }
+
+  @Test
+  public void concurrentFetchAsync() throws Exception {
+    List<Future<HttpResponse>> responses = Lists.newArrayList();
+    for (int i = 0; i < 50; ++i) {
+      Uri uri = new UriBuilder(BASE_URL).addQueryParameter("body", "response " + i).toUri();
+      responses.add(nioFetcher.fetchAsync(new HttpRequest(uri)));
+    }
+    for (int i = 0; i < 50; ++i) {
+      HttpResponse response = responses.get(i).get();
+      assertEquals(200, response.getHttpStatusCode());
+      assertEquals("response " + i, response.getResponseAsString());
+    }
+  }
+
+  @Test
+  public void maxObjectSize() throws Exception {
+    nioFetcher.setMaxObjectSizeBytes(10);
+    Uri uri = new UriBuilder(BASE_URL).addQueryParameter("body", "more than ten bytes").toUri();
+    HttpResponse response = nioFetcher.fetch(new HttpRequest(uri));
+    assertEquals(HttpResponse.SC_BAD_REQUEST, response.getHttpStatusCode());
+  }
+
+  @Test
+  public void connectionRefused() throws Exception {
+    // Nothing listens on port 1.
+    HttpResponse response = nioFetcher.fetch(new HttpRequest(Uri.parse("http://localhost:1/")));
+    assertEquals(HttpResponse.SC_GATEWAY_TIMEOUT, response.getHttpStatusCode());
+  }
+
+  @Test
+  public void redirectToHttpsUsesSecureFetcher() throws Exception {
+    final List<HttpRequest> secureRequests = Lists.newArrayList();
+    BasicHttpFetcher secureFetcher = new BasicHttpFetcher(null) {
+      @Override
+      public HttpResponse fetch(HttpRequest request) {
+        secureRequests.add(request);
+        return new HttpResponse("secure");
+      }
+    };
+    nioFetcher.shutdown();
+    nioFetcher = new NioHttpFetcher(secureFetcher, null);
+    fetcher = nioFetcher;
+
+    Uri secureUri = Uri.parse("https://localhost:9004/?body=secure");
+    Uri uri = new UriBuilder(BASE_URL)
+        .addQueryParameter("body", "redirect")
+        .addQueryParameter("status", "302")
+        .addQueryParameter("header", "Location=" + secureUri)
+        .toUri();
+    HttpResponse response = nioFetcher.fetch(new HttpRequest(uri));
+
+    assertEquals(200, response.getHttpStatusCode());
+    assertEquals("secure", response.getResponseAsString());
+    assertEquals(1, secureRequests.size());
+    assertEquals(secureUri, secureRequests.get(0).getUri());
+  }
+
+  @Test
+  public void redirectToUnsupportedSchemeNotFollowed() throws Exception {
+    Uri uri = new UriBuilder(BASE_URL)
+        .addQueryParameter("body", "redirect")
+        .addQueryParameter("status", "302")
+        .addQueryParameter("header", "Location=ftp://localhost/file")
+        .toUri();
+    HttpResponse response = nioFetcher.fetch(new HttpRequest(uri));
+    assertEquals(302, response.getHttpStatusCode());
+    assertEquals("ftp://localhost/file", response.getHeader("Location"));
+  }
+
+  @Test
+  public void dechunk() throws Exception {
+    byte[] chunked = "5\r\nHello\r\n8;ext=1\r\n, world!\r\n0\r\n\r\n".getBytes("UTF-8");
+    assertEquals("Hello, world!", new String(NioHttpFetcher.dechunk(chunked), "UTF-8"));
+  }
+}
@@ -20,11 +20,18 @@ package org.apache.shindig.gadgets.parse.caja;
 import com.google.caja.parser.css.CssTree;
 
 import org.apache.shindig.common.cache.LruCacheProvider;
+import org.apache.shindig.common.uri.Uri;
 import org.junit.Assert;
 import org.junit.Before;
 import org.junit.Test;
 
+import com.google.common.base.Function;
+import com.google.common.collect.ImmutableList;
+
+import java.io.StringWriter;
 import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 /**
  * Basic CSS parse tests
@@ -127,4 +134,79 @@ public class CajaCssParserTest extends Assert {
     assertEquals(1, selectorList.size());
     assertSame(CssTree.SimpleSelector.class, selectorList.get(0).getClass());
   }
+
+  private static final Uri SOURCE = Uri.parse("http://www.example.org/gadget.xml");
+
+  private static final Function<String, String> PROXY = new Function<String, String>() {
+    public String apply(String uri) {
+      return "http://proxy/?url=" + uri;
+    }
+  };
+
+  @Test
+  public void testParsedCssIsShared() throws Exception {
+    String css = "A { background : url(a.png) }";
+    CajaCssParser.ParsedCss parsed = cajaCssParser.parse(css, SOURCE);
+    assertSame(parsed, cajaCssParser.parse(css, SOURCE));
+    assertNotSame(parsed, cajaCssParser.parse(css, Uri.parse("http://www.example.org/other")));
+  }
+
+  @Test
+  public void testWriteRewritesUrls() throws Exception {
+    String css = "@import url('imported.css');\nA { background : url(a.png) }";
+    CajaCssParser.ParsedCss parsed = cajaCssParser.parse(css, SOURCE);
+    assertEquals(ImmutableList.of("imported.css"), parsed.getImports());
+
+    StringWriter writer = new StringWriter();
+    parsed.write(writer, false, PROXY);
+    String rewritten = writer.toString();
+    assertTrue(rewritten, rewritten.contains("http://proxy/?url=imported.css"));
+    assertTrue(rewritten, rewritten.contains("http://proxy/?url=a.png"));
+
+    writer = new StringWriter();
+    parsed.write(writer, true, PROXY);
+    rewritten = writer.toString();
+    assertFalse(rewritten, rewritten.contains("@import"));
+    assertTrue(rewritten, rewritten.contains("http://proxy/?url=a.png"));
+  }
+
+  @Test
+  public void testWriteLeavesStyleSheetUnchanged() throws Exception {
+    String css = "@import url('imported.css');\nA { background : url(a.png) }";
+    String serialized = cajaCssParser.serialize(cajaCssParser.parseDom(css, SOURCE));
+    CajaCssParser.ParsedCss parsed = cajaCssParser.parse(css, SOURCE);
+    parsed.write(new StringWriter(), true, PROXY);
+    assertEquals(serialized, cajaCssParser.serialize(cajaCssParser.parseDom(css, SOURCE)));
+  }
+
+  @Test
+  public void testWriteEscapesUrls() throws Exception {
+    CajaCssParser.ParsedCss parsed = cajaCssParser.parse("A { background : url(a.png) }",
+        SOURCE);
+    StringWriter writer = new StringWriter();
+    parsed.write(writer, false, new Function<String, String>() {
+      public String apply(String uri) {
+        return "x'); }</style>";
+      }
+    });
+    assertFalse(writer.toString(), writer.toString().contains("</style>"));
+    assertFalse(writer.toString(), writer.toString().contains("')"));
+  }
+
+  @Test
+  public void testParseAllInParallel() throws Exception {
+    ExecutorService executor = Executors.newFixedThreadPool(2);
+    try {
+      cajaCssParser.setExecutor(executor);
+      List<CajaCssParser.ParsedCss> parsed = cajaCssParser.parseAll(ImmutableList.of(
+          "A { background : url(a.png) }", "B { color : red }", "C { background : url(c.png) }"),
+          SOURCE);
+      assertEquals(3, parsed.size());
+      assertSame(cajaCssParser.parse("A { background : url(a.png) }", SOURCE), parsed.get(0));
+      assertSame(cajaCssParser.parse("B { color : red }", SOURCE), parsed.get(1));
+      assertSame(cajaCssParser.parse("C { background : url(c.png) }", SOURCE), parsed.get(2));
+    } finally {
+      executor.shutdownNow();
+    }
+  }
 }
@@ -23,15 +23,20 @@ import static org.junit.Assert.assertTrue;
 
 import org.apache.shindig.auth.AnonymousSecurityToken;
 import org.apache.shindig.auth.SecurityToken;
+import org.apache.shindig.common.cache.LruCacheProvider;
 import org.apache.shindig.common.uri.Uri;
+import org.apache.shindig.common.util.FakeTimeSource;
 import org.apache.shindig.common.xml.XmlUtil;
 import org.apache.shindig.gadgets.Gadget;
 import org.apache.shindig.gadgets.GadgetContext;
 import org.apache.shindig.gadgets.GadgetException;
 import org.apache.shindig.gadgets.preload.PreloadedData;
 import org.apache.shindig.gadgets.preload.PreloaderService;
+import org.apache.shindig.gadgets.rewrite.CacheableGadgetRewriter;
 import org.apache.shindig.gadgets.rewrite.CaptureRewriter;
+import org.apache.shindig.gadgets.rewrite.ContentRewriterFeature;
 import org.apache.shindig.gadgets.rewrite.GadgetRewriter;
+import org.apache.shindig.gadgets.rewrite.MutableContent;
 import org.apache.shindig.gadgets.spec.GadgetSpec;
 import org.apache.shindig.gadgets.spec.View;
 import org.junit.Before;
@@ -113,6 +118,82 @@ public class HtmlRendererTest {
     assertTrue("Rewriting not performed.", captureRewriter.viewWasRewritten());
   }
 
+  @Test
+  public void cacheableRewritesAreReused() throws Exception {
+    AppendingRewriter cacheable = new AppendingRewriter(" cached", true);
+    AppendingRewriter perRequest = new AppendingRewriter(" fresh", false);
+    AppendingRewriter afterPerRequest = new AppendingRewriter(" last", true);
+    FakeTimeSource timeSource = new FakeTimeSource();
+    renderer = makeCachingRenderer(timeSource, cacheable, perRequest, afterPerRequest);
+
+    String expected = BASIC_HTML_CONTENT + " cached fresh last";
+    assertEquals(expected, renderer.render(makeGadget(BASIC_HTML_CONTENT)));
+    assertEquals(expected, renderer.render(makeGadget(BASIC_HTML_CONTENT)));
+
+    // Only the rewriters before the first uncacheable one are skipped.
+    assertEquals(1, cacheable.count);
+    assertEquals(2, perRequest.count);
+    assertEquals(2, afterPerRequest.count);
+
+    timeSource.incrementSeconds(61);
+    assertEquals(expected, renderer.render(makeGadget(BASIC_HTML_CONTENT)));
+    assertEquals(2, cacheable.count);
+  }
+
+  @Test
+  public void cachedRewritesKeyedByContent() throws Exception {
+    AppendingRewriter cacheable = new AppendingRewriter(" cached", true);
+    renderer = makeCachingRenderer(new FakeTimeSource(), cacheable);
+
+    assertEquals(BASIC_HTML_CONTENT + " cached",
+        renderer.render(makeGadget(BASIC_HTML_CONTENT)));
+    assertEquals("Goodbye cached", renderer.render(makeGadget("Goodbye")));
+    assertEquals(2, cacheable.count);
+  }
+
+  @Test
+  public void proxiedContentNotCached() throws Exception {
+    AppendingRewriter cacheable = new AppendingRewriter(" cached", true);
+    renderer = makeCachingRenderer(new FakeTimeSource(), cacheable);
+
+    renderer.render(makeHrefGadget("none"));
+    renderer.render(makeHrefGadget("none"));
+    assertEquals(2, cacheable.count);
+  }
+
+  private HtmlRenderer makeCachingRenderer(FakeTimeSource timeSource,
+      GadgetRewriter... rewriters) {
+    HtmlRenderer caching = new HtmlRenderer(preloaderService, proxyRenderer,
+        new GadgetRewritersProvider(ImmutableList.copyOf(rewriters)), null);
+    ContentRewriterFeature.Factory factory = new ContentRewriterFeature.Factory(null,
+        new ContentRewriterFeature.DefaultConfig(".*", "", "86400", "img", false, false));
+    RewrittenContentCache cache =
+        new RewrittenContentCache(new LruCacheProvider(10), factory, 60000L);
+    cache.setTimeSource(timeSource);
+    caching.setRewrittenContentCache(cache);
+    return caching;
+  }
+
+  private static class AppendingRewriter implements CacheableGadgetRewriter {
+    private final String suffix;
+    private final boolean cacheable;
+    private int count;
+
+    private AppendingRewriter(String suffix, boolean cacheable) {
+      this.suffix = suffix;
+      this.cacheable = cacheable;
+    }
+
+    public boolean isCacheable(Gadget gadget) {
+      return cacheable;
+    }
+
+    public void rewrite(Gadget gadget, MutableContent content) {
+      count++;
+      content.setContent(content.getContent() + suffix);
+    }
+  }
+
   private static class FakeProxyRenderer extends ProxyRenderer {
     public FakeProxyRenderer() {
       super(null, null, null);
@@ -18,17 +18,21 @@
  */
 package org.apache.shindig.gadgets.rewrite;
 
+import com.google.common.collect.ImmutableList;
 import org.apache.shindig.common.uri.Uri;
 import org.apache.shindig.gadgets.rewrite.DomWalker.Visitor.VisitStatus;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
 import org.junit.Test;
 import org.w3c.dom.Comment;
 import org.w3c.dom.Element;
 import org.w3c.dom.Node;
 import org.w3c.dom.Text;
 
+import java.io.StringReader;
+import java.io.StringWriter;
 import java.util.HashMap;
 import java.util.Map;
 
@@ -191,6 +195,23 @@ public class AbsolutePathReferenceVisitorTest extends DomWalkerTestBase {
                  visitor.getBaseUri(html.getOwnerDocument()).toString());
   }
 
+  @Test
+  public void filterStreamedTags() throws Exception {
+    String html = "<html><head><link rel=stylesheet type=text/css href='/host/relative'>"
+        + "<link rel=alternate href='/host/relative'></head>"
+        + "<body><img src=\"path/relative\"><a href=" + JS_URI_STR + ">"
+        + "<base href='http://www.example1.org/'><IMG SRC='" + INVALID_URI_STRING + "'>"
+        + "<img src='a.png'></body></html>";
+    StringWriter out = new StringWriter();
+    assertTrue(TagStream.rewrite(gadget(), ImmutableList.<TagStream.Filter>of(visitorForAllTags()),
+        new StringReader(html), out));
+    assertEquals("<html><head><link rel=stylesheet type=text/css href=\""
+        + RELATIVE_RESOLVED_URI + "\"><link rel=alternate href='/host/relative'></head>"
+        + "<body><img src=\"" + PATH_RELATIVE_RESOLVED_URI + "\"><a href=" + JS_URI_STR + ">"
+        + "<base href='http://www.example1.org/'><IMG SRC='" + INVALID_URI_STRING + "'>"
+        + "<img src=\"http://www.example1.org/a.png\"></body></html>", out.toString());
+  }
+
   private void checkAbsolutifyStates(String tagName) throws Exception {
     String lcTag = tagName.toLowerCase();
     String ucTag = tagName.toUpperCase();
@@ -76,10 +76,8 @@ public class BaseTagRemoverRewriterTest {
                      + "</head><body>"
                      + "<img src='/img1.png'>"
                      + "</body></html>";
-    String expected = "<html><head>"
-                     + "</head><body>"
-                     + "<img src=\"/img1.png\">"
-                     + "</body></html>";
+    // Left as it is rather than serialized again.
+    String expected = content;
 
     HttpRequest req = new HttpRequest(Uri.parse("http://www.google.com/"));
     HttpResponse resp = new HttpResponseBuilder()
@@ -22,12 +22,14 @@ import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
 
 import org.apache.shindig.common.uri.Uri;
+import org.apache.shindig.gadgets.Gadget;
 import org.apache.shindig.gadgets.http.HttpRequest;
 import org.apache.shindig.gadgets.http.HttpResponse;
 import org.apache.shindig.gadgets.http.HttpResponseBuilder;
 import org.easymock.EasyMock;
 import org.junit.Before;
 import org.junit.Test;
+import org.w3c.dom.Node;
 
 import java.util.List;
 
@@ -88,4 +90,48 @@ public class DefaultContentRewriterRegistryTest extends BaseRewriterTestCase {
     assertSame(rewritten, fakeResponse.create());
     control.verify();
   }
+
+  @Test
+  public void testAdjacentDomWalkersShareWalk() throws Exception {
+    List<String> visits = Lists.newArrayList();
+    registry = new DefaultResponseRewriterRegistry(Lists.<ResponseRewriter>newArrayList(
+        recordingRewriter("a", DomWalker.Fusion.IN_PLACE, visits),
+        recordingRewriter("b", DomWalker.Fusion.LAST, visits),
+        recordingRewriter("c", DomWalker.Fusion.IN_PLACE, visits),
+        recordingRewriter("d", DomWalker.Fusion.NONE, visits)), parser);
+    HttpResponse response = new HttpResponseBuilder()
+        .setHeader("Content-Type", "text/html")
+        .setResponseString("<html><head></head><body><p>x</p></body></html>")
+        .create();
+
+    registry.rewriteHttpResponse(new HttpRequest(SPEC_URL), response);
+
+    // a and b share a walk, which b ends. c walks alone as d never shares.
+    assertEquals(Lists.newArrayList(
+        "a:html", "b:html", "a:head", "b:head", "a:body", "b:body", "a:p", "b:p",
+        "c:html", "c:head", "c:body", "c:p",
+        "d:html", "d:head", "d:body", "d:p"), visits);
+  }
+
+  private DomWalker.Rewriter recordingRewriter(final String name,
+      final DomWalker.Fusion fusion, final List<String> visits) {
+    DomWalker.Visitor visitor = new DomWalker.Visitor() {
+      public VisitStatus visit(Gadget gadget, Node node) {
+        if (node.getNodeType() == Node.ELEMENT_NODE) {
+          visits.add(name + ':' + node.getNodeName().toLowerCase());
+        }
+        return VisitStatus.BYPASS;
+      }
+
+      public boolean revisit(Gadget gadget, List<Node> nodes) {
+        return false;
+      }
+    };
+    return new DomWalker.Rewriter(visitor) {
+      @Override
+      protected DomWalker.Fusion getFusion() {
+        return fusion;
+      }
+    };
+  }
 }
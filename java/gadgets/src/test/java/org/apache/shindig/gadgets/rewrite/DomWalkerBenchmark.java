@@ -0,0 +1,158 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.shindig.gadgets.rewrite;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.shindig.common.uri.Uri;
+import org.apache.shindig.gadgets.http.HttpRequest;
+import org.apache.shindig.gadgets.http.HttpResponseBuilder;
+import org.apache.shindig.gadgets.parse.GadgetHtmlParser;
+import org.apache.shindig.gadgets.parse.ParseModule;
+import org.apache.shindig.gadgets.parse.caja.CajaCssParser;
+import org.apache.shindig.gadgets.parse.nekohtml.NekoSimplifiedHtmlParser;
+import org.apache.shindig.gadgets.uri.ConcatUriManager;
+import org.apache.shindig.gadgets.uri.PassthruManager;
+import org.apache.shindig.gadgets.uri.ProxyUriManager;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Lists;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.util.List;
+
+/**
+ * Benchmarks DOM walk time of the default response rewriter chain, one walk per rewriter
+ * against the walks shared by {@link DefaultResponseRewriterRegistry}.
+ */
+public class DomWalkerBenchmark {
+  private static final Uri PAGE_URL = Uri.parse("http://www.example.org/dir/page.html");
+
+  private final GadgetHtmlParser parser = new NekoSimplifiedHtmlParser(
+      new ParseModule.DOMImplementationProvider().get());
+  private final List<ResponseRewriter> rewriters;
+  private final DefaultResponseRewriterRegistry registry;
+  private int numRuns;
+  private String content;
+  private boolean warmup;
+
+  private DomWalkerBenchmark(String file, int numRuns) throws Exception {
+    File inputFile = new File(file);
+    if (!inputFile.exists() || !inputFile.canRead()) {
+      System.err.println("Input file: " + file + " not found or can't be read.");
+      System.exit(1);
+    }
+    content = new String(IOUtils.toByteArray(new FileInputStream(file)), "UTF-8");
+
+    ContentRewriterFeature.Factory factory = new ContentRewriterFeature.Factory(null,
+        new ContentRewriterFeature.DefaultConfig(".*", "", "86400", "embed,img,script,link,style",
+            false, false));
+    ProxyUriManager proxyUriManager = new PassthruManager("www.example.org", "/gadgets/proxy");
+    rewriters = Lists.<ResponseRewriter>newArrayList(
+        new AbsolutePathReferenceRewriter(),
+        new StyleTagExtractorContentRewriter(factory, proxyUriManager,
+            new CssResponseRewriter(new CajaCssParser(), proxyUriManager, factory)),
+        new StyleAdjacencyContentRewriter(),
+        new ProxyingContentRewriter(factory, proxyUriManager, new StubConcatUriManager()));
+    registry = new DefaultResponseRewriterRegistry(rewriters, parser);
+
+    this.numRuns = 10;
+    warmup = true;
+    run();
+    // Sleep to let JIT kick in
+    Thread.sleep(10000L);
+    this.numRuns = numRuns;
+    warmup = false;
+    run();
+  }
+
+  private void run() throws Exception {
+    long separateNanos = 0;
+    long fusedNanos = 0;
+    for (int i = 0; i < numRuns; ++i) {
+      // Only the walks are timed, the content is parsed beforehand.
+      HttpResponseBuilder builder = parsed();
+      HttpRequest request = new HttpRequest(PAGE_URL);
+      long start = System.nanoTime();
+      for (ResponseRewriter rewriter : rewriters) {
+        rewriter.rewrite(request, builder);
+      }
+      separateNanos += System.nanoTime() - start;
+
+      builder = parsed();
+      start = System.nanoTime();
+      registry.rewrite(request, builder);
+      fusedNanos += System.nanoTime() - start;
+    }
+    output("One walk per rewriter", separateNanos);
+    output("Shared walks", fusedNanos);
+  }
+
+  private HttpResponseBuilder parsed() {
+    HttpResponseBuilder builder = new HttpResponseBuilder(parser, null);
+    builder.setHeader("Content-Type", "text/html");
+    builder.setResponseString(content);
+    builder.getDocument();
+    return builder;
+  }
+
+  private void output(String name, long nanos) {
+    if (!warmup) {
+      double millis = nanos / 1e6;
+      System.out.println(name + " [" + millis + " ms total: " + millis / numRuns + "ms/run]");
+    }
+  }
+
+  private static class StubConcatUriManager implements ConcatUriManager {
+    public List<ConcatData> make(List<ConcatUri> batches, boolean isAdjacent) {
+      List<ConcatData> results = Lists.newArrayListWithCapacity(batches.size());
+      for (ConcatUri batch : batches) {
+        results.add(new ConcatData(Uri.parse("http://www.example.org/gadgets/concat?n="
+            + batch.getBatch().size()), ImmutableMap.<Uri, String>of()));
+      }
+      return results;
+    }
+
+    public ConcatUri process(Uri uri) {
+      return null;
+    }
+  }
+
+  public static void main(String[] args) {
+    // Can be run as a standalone program over a saved gadget or page.
+    if (args.length != 2) {
+      System.err.println("Args: <input-file> <num-runs>");
+      System.exit(1);
+    }
+
+    String fileArg = args[0];
+    String runsArg = args[1];
+    int numRuns = -1;
+    try {
+      numRuns = Integer.parseInt(runsArg);
+    } catch (Exception e) {
+      System.err.println("Invalid num-runs argument: " + runsArg + ", reason: " + e);
+    }
+    try {
+      new DomWalkerBenchmark(fileArg, numRuns);
+    } catch (Exception e) {
+      e.printStackTrace();
+    }
+  }
+}
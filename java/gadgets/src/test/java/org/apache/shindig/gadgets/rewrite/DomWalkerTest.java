@@ -18,6 +18,7 @@
  */
 package org.apache.shindig.gadgets.rewrite;
 
+import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.Lists;
 import org.apache.shindig.gadgets.Gadget;
 import org.junit.Before;
@@ -265,6 +266,59 @@ public class DomWalkerTest extends DomWalkerTestBase {
     assertTrue(exceptionCaught);
   }
 
+  @Test
+  public void fusedPassesReserveIndependently() throws Exception {
+    Gadget gadget = gadget();
+
+    // The first pass reserves the whole tree, which doesn't stop the second from seeing it.
+    DomWalker.Visitor treeVisitor = createMock(DomWalker.Visitor.class);
+    expect(treeVisitor.visit(gadget, root))
+        .andReturn(DomWalker.Visitor.VisitStatus.RESERVE_TREE).once();
+    expect(treeVisitor.revisit(gadget, Lists.newArrayList(root))).andReturn(true).once();
+    DomWalker.Visitor nodeVisitor = createMock(DomWalker.Visitor.class);
+    expect(nodeVisitor.visit(gadget, root))
+        .andReturn(DomWalker.Visitor.VisitStatus.RESERVE_NODE).once();
+    expect(nodeVisitor.visit(gadget, child1))
+        .andReturn(DomWalker.Visitor.VisitStatus.BYPASS).once();
+    expect(nodeVisitor.visit(gadget, child2))
+        .andReturn(DomWalker.Visitor.VisitStatus.MODIFY).once();
+    expect(nodeVisitor.visit(gadget, subchild1))
+        .andReturn(DomWalker.Visitor.VisitStatus.BYPASS).once();
+    expect(nodeVisitor.visit(gadget, text1))
+        .andReturn(DomWalker.Visitor.VisitStatus.BYPASS).once();
+    expect(nodeVisitor.visit(gadget, text2))
+        .andReturn(DomWalker.Visitor.VisitStatus.BYPASS).once();
+    expect(nodeVisitor.revisit(gadget, Lists.newArrayList(root))).andReturn(false).once();
+    replay(treeVisitor, nodeVisitor);
+
+    MutableContent mc = getContent(2);
+
+    List<List<DomWalker.Visitor>> passes = Lists.newArrayList();
+    passes.add(Lists.newArrayList(treeVisitor));
+    passes.add(Lists.newArrayList(nodeVisitor));
+    assertTrue(DomWalker.walk(passes, gadget, mc));
+
+    verify(mc, treeVisitor, nodeVisitor);
+  }
+
+  @Test
+  public void namedElementVisitorOnlyVisitsItsElements() throws Exception {
+    Gadget gadget = gadget();
+
+    DomWalker.NamedElementVisitor visitor = createMock(DomWalker.NamedElementVisitor.class);
+    expect(visitor.getElementNames()).andReturn(ImmutableSet.of("child2")).anyTimes();
+    expect(visitor.visit(gadget, child2))
+        .andReturn(DomWalker.Visitor.VisitStatus.MODIFY).once();
+    replay(visitor);
+
+    MutableContent mc = getContent(1);
+
+    DomWalker.Rewriter rewriter = getRewriter(visitor);
+    rewriter.rewrite(gadget, mc);
+
+    verify(mc, visitor);
+  }
+
   private DomWalker.Rewriter getRewriter(DomWalker.Visitor... visitors) {
     return new DomWalker.Rewriter(Lists.newArrayList(visitors));
   }
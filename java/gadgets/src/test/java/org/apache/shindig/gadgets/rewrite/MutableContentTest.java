@@ -21,14 +21,18 @@ package org.apache.shindig.gadgets.rewrite;
 import com.google.common.base.Charsets;
 import org.apache.commons.io.IOUtils;
 import org.apache.shindig.common.PropertiesModule;
+import org.apache.shindig.common.cache.LruCacheProvider;
 import org.apache.shindig.common.util.CharsetUtil;
 import org.apache.shindig.gadgets.parse.GadgetHtmlParser;
 import org.apache.shindig.gadgets.parse.ParseModule;
+import org.apache.shindig.gadgets.parse.nekohtml.NekoSimplifiedHtmlParser;
 
 import com.google.inject.Guice;
 import com.google.inject.Injector;
 import org.junit.Assert;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
 import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
 import org.junit.Before;
@@ -129,4 +133,41 @@ public class MutableContentTest {
     // GadgetHtmlNode hasn't changed because string hasn't changed
     assertSame(document, mhc.getDocument());
   }
+
+  @Test
+  public void readOnlyDocumentSharedUntilChanged() throws Exception {
+    NekoSimplifiedHtmlParser parser =
+        new NekoSimplifiedHtmlParser(new ParseModule.DOMImplementationProvider().get());
+    parser.setCacheProvider(new LruCacheProvider(10));
+    String html = "<html><head></head><body><div>SHARED</div></body></html>";
+    MutableContent first = new MutableContent(parser, html);
+    MutableContent second = new MutableContent(parser, html);
+
+    Document shared = first.getReadOnlyDocument();
+    assertSame(shared, second.getReadOnlyDocument());
+    assertTrue(first.hasDocument());
+
+    // Changes are made to a private copy.
+    Document document = first.getDocument();
+    assertNotSame(shared, document);
+    assertSame(document, first.getReadOnlyDocument());
+    document.getElementsByTagName("div").item(0).setTextContent("CHANGED");
+    MutableContent.notifyEdit(document);
+    assertEquals(1, first.getNumChanges());
+    assertTrue(first.getContent().contains("CHANGED"));
+
+    assertEquals("SHARED", shared.getElementsByTagName("div").item(0).getTextContent());
+    assertSame(shared, new MutableContent(parser, html).getReadOnlyDocument());
+    assertSame(html, second.getContent());
+    assertEquals(0, second.getNumChanges());
+  }
+
+  @Test
+  public void readOnlyDocumentClearedWithContent() throws Exception {
+    Document document = mhc.getReadOnlyDocument();
+    assertEquals("DEFAULT VIEW", document.getFirstChild().getTextContent());
+    mhc.setContent("NEW CONTENT");
+    assertFalse(mhc.hasDocument());
+    assertEquals("NEW CONTENT", mhc.getReadOnlyDocument().getFirstChild().getTextContent());
+  }
 }
@@ -122,10 +122,9 @@ public class StyleTagExtractorVisitorTest extends DomWalkerTestBase {
     List<String> extractedUrls1 = ImmutableList.of(urlStr1);
     String urlStr2 = "http://bar.com/1.css";
     List<String> extractedUrls2 = ImmutableList.of(urlStr2);
-    expect(cssRewriter.rewrite(eq(elem1), eq(base), isA(UriMaker.class), eq(true), eq(gadget.getContext())))
-        .andReturn(extractedUrls1).once();
-    expect(cssRewriter.rewrite(eq(elem2), eq(base), isA(UriMaker.class), eq(true), eq(gadget.getContext())))
-        .andReturn(extractedUrls2).once();
+    expect(cssRewriter.rewrite(eq(ImmutableList.of(elem1, elem2)), eq(base), isA(UriMaker.class),
+        eq(true), eq(gadget.getContext())))
+        .andReturn(ImmutableList.of(extractedUrls1, extractedUrls2)).once();
     replay(cssRewriter);
     
     // Tag name isn't inspected since visit() filters this.
@@ -160,10 +159,9 @@ public class StyleTagExtractorVisitorTest extends DomWalkerTestBase {
     List<String> extractedUrls1 = ImmutableList.of(urlStr1);
     String urlStr2 = "http://bar.com/1.css";
     List<String> extractedUrls2 = ImmutableList.of(urlStr2);
-    expect(cssRewriter.rewrite(eq(elem1), eq(base), isA(UriMaker.class), eq(true), eq(gadget.getContext())))
-        .andReturn(extractedUrls1).once();
-    expect(cssRewriter.rewrite(eq(elem2), eq(base), isA(UriMaker.class), eq(true), eq(gadget.getContext())))
-        .andReturn(extractedUrls2).once();
+    expect(cssRewriter.rewrite(eq(ImmutableList.of(elem1, elem2)), eq(base), isA(UriMaker.class),
+        eq(true), eq(gadget.getContext())))
+        .andReturn(ImmutableList.of(extractedUrls1, extractedUrls2)).once();
     replay(cssRewriter);
     
     // Tag name isn't inspected since visit() filters this.
@@ -196,10 +194,9 @@ public class StyleTagExtractorVisitorTest extends DomWalkerTestBase {
     Element elem2 = elem("elem2");
     List<String> extractedUrls1 = ImmutableList.of();
     List<String> extractedUrls2 = ImmutableList.of();
-    expect(cssRewriter.rewrite(eq(elem1), eq(base), isA(UriMaker.class), eq(true), eq(gadget.getContext())))
-        .andReturn(extractedUrls1).once();
-    expect(cssRewriter.rewrite(eq(elem2), eq(base), isA(UriMaker.class), eq(true), eq(gadget.getContext())))
-        .andReturn(extractedUrls2).once();
+    expect(cssRewriter.rewrite(eq(ImmutableList.of(elem1, elem2)), eq(base), isA(UriMaker.class),
+        eq(true), eq(gadget.getContext())))
+        .andReturn(ImmutableList.of(extractedUrls1, extractedUrls2)).once();
     replay(cssRewriter);
     
     // Tag name isn't inspected since visit() filters this.
@@ -0,0 +1,190 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.shindig.gadgets.rewrite;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import org.apache.shindig.common.uri.Uri;
+import org.apache.shindig.gadgets.Gadget;
+import org.apache.shindig.gadgets.http.HttpRequest;
+import org.apache.shindig.gadgets.parse.ParseModule;
+import org.apache.shindig.gadgets.parse.caja.CajaHtmlParser;
+import org.junit.Test;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.util.List;
+
+public class TagStreamTest extends DomWalkerTestBase {
+  private final List<String> baseHrefs = Lists.newArrayList();
+
+  // Appends the base href to each src attribute, and records the base href seen by each tag.
+  private final TagStream.Filter srcFilter = new TagStream.Filter() {
+    public boolean filter(Gadget gadget, TagStream.Tag tag) {
+      baseHrefs.add(tag.getBaseHref());
+      String src = tag.getAttribute("src");
+      if (src == null) {
+        return false;
+      }
+      tag.setAttribute("src", src + "&base=" + tag.getBaseHref());
+      return true;
+    }
+  };
+
+  private String rewrite(String html, boolean expectMutated) throws Exception {
+    StringWriter out = new StringWriter();
+    assertEquals(expectMutated, TagStream.rewrite(gadget(),
+        ImmutableList.of(srcFilter), new StringReader(html), out));
+    return out.toString();
+  }
+
+  @Test
+  public void unchangedMarkupCopiedVerbatim() throws Exception {
+    String html = "<!DOCTYPE html><HTML><head><TITLE>a < b</TITLE>"
+        + "<script type='text/javascript'>if (a<b) document.write('<img src=x>');</script>"
+        + "</head><body class = x Id='y' checked><!-- <img src='c'> -->1 < 2<br/></body></HTML>";
+    assertEquals(html, rewrite(html, false));
+  }
+
+  @Test
+  public void changedTagRewritten() throws Exception {
+    String html = "<html><body><IMG alt='x' SRC = 'a.png?x=1&amp;y=2' />text</body></html>";
+    assertEquals("<html><body><IMG alt='x' SRC=\"a.png?x=1&amp;y=2&amp;base=null\" />text"
+        + "</body></html>", rewrite(html, true));
+  }
+
+  @Test
+  public void attributeValueDecoded() throws Exception {
+    String html = "<a href=\"a?b=1&amp;c=&quot;d&quot;\" title=plain disabled>";
+    final List<String> values = Lists.newArrayList();
+    TagStream.Filter filter = new TagStream.Filter() {
+      public boolean filter(Gadget gadget, TagStream.Tag tag) {
+        assertEquals("a", tag.getName());
+        values.add(tag.getAttribute("HREF"));
+        values.add(tag.getAttribute("title"));
+        values.add(tag.getAttribute("disabled"));
+        values.add(tag.getAttribute("missing"));
+        tag.setAttribute("title", "plain");
+        return false;
+      }
+    };
+    StringWriter out = new StringWriter();
+    TagStream.rewrite(gadget(), ImmutableList.of(filter), new StringReader(html), out);
+    assertEquals(Lists.newArrayList("a?b=1&c=\"d\"", "plain", "", null), values);
+    // Setting an attribute to its current value isn't a change.
+    assertEquals(html, out.toString());
+  }
+
+  @Test
+  public void newAttributeAppended() throws Exception {
+    TagStream.Filter filter = new TagStream.Filter() {
+      public boolean filter(Gadget gadget, TagStream.Tag tag) {
+        tag.setAttribute("data-x", "\"1\"");
+        return true;
+      }
+    };
+    StringWriter out = new StringWriter();
+    assertTrue(TagStream.rewrite(gadget(), ImmutableList.of(filter),
+        new StringReader("<p id=a>x</p><br/>"), out));
+    assertEquals("<p id=a data-x=\"&quot;1&quot;\">x</p><br data-x=\"&quot;1&quot;\"/>",
+        out.toString());
+  }
+
+  @Test
+  public void baseHrefOfEarlierBaseTag() throws Exception {
+    String html = "<html><head><base href='http://base.com/'><base href='http://other.com/'>"
+        + "</head><body><img src=a></body></html>";
+    assertEquals("<html><head><base href='http://base.com/'><base href='http://other.com/'>"
+        + "</head><body><img src=\"a&amp;base=http://base.com/\"></body></html>",
+        rewrite(html, true));
+    assertEquals(Lists.newArrayList(null, null, null, "http://base.com/", "http://base.com/",
+        "http://base.com/"), baseHrefs);
+  }
+
+  @Test
+  public void rawTextNotFiltered() throws Exception {
+    String html = "<style>a{}</STYLE ><img src=b><textarea><img src=c></textarea>";
+    assertEquals("<style>a{}</STYLE ><img src=\"b&amp;base=null\"><textarea><img src=c>"
+        + "</textarea>", rewrite(html, true));
+  }
+
+  @Test
+  public void truncatedInputCopied() throws Exception {
+    assertEquals("<p>text <", rewrite("<p>text <", false));
+    assertEquals("<img src='cut", rewrite("<img src='cut", false));
+    assertEquals("<!-- open", rewrite("<!-- open", false));
+    assertEquals("<script>open", rewrite("<script>open", false));
+  }
+
+  @Test
+  public void longInputCrossesBuffer() throws Exception {
+    StringBuilder html = new StringBuilder();
+    StringBuilder expected = new StringBuilder();
+    for (int i = 0; i < 2000; i++) {
+      html.append("<img src='").append(i).append("'><!-- -- -->");
+      expected.append("<img src=\"").append(i).append("&amp;base=null\"><!-- -- -->");
+    }
+    assertEquals(expected.toString(), rewrite(html.toString(), true));
+  }
+
+  @Test
+  public void rewriterStreamsUnparsedContent() throws Exception {
+    CajaHtmlParser parser = new CajaHtmlParser(new ParseModule.DOMImplementationProvider().get());
+    String html = "<html><head><META Http-Equiv='Content-Type' "
+        + "Content='text/html; charset=GBK'></head><body><p>x</body></html>";
+    ContentTypeCharsetRemoverRewriter rewriter = new ContentTypeCharsetRemoverRewriter();
+    rewriter.setStreaming(true);
+    Gadget gadget = DomWalker.makeGadget(new HttpRequest(Uri.parse("http://1.com/")));
+
+    MutableContent mc = new MutableContent(parser, html);
+    rewriter.rewrite(gadget, mc);
+    assertFalse(mc.hasDocument());
+    assertEquals("<html><head><META Http-Equiv='Content-Type' Content=\"text/html\">"
+        + "</head><body><p>x</body></html>", mc.getContent());
+    assertEquals(1, mc.getNumChanges());
+
+    // Nothing to change, so the content is left alone.
+    String unchanged = "<html><body><p>x</body></html>";
+    mc = new MutableContent(parser, unchanged);
+    rewriter.rewrite(gadget, mc);
+    assertSame(unchanged, mc.getContent());
+    assertEquals(0, mc.getNumChanges());
+  }
+
+  @Test
+  public void rewriterWalksParsedContent() throws Exception {
+    CajaHtmlParser parser = new CajaHtmlParser(new ParseModule.DOMImplementationProvider().get());
+    ContentTypeCharsetRemoverRewriter rewriter = new ContentTypeCharsetRemoverRewriter();
+    rewriter.setStreaming(true);
+    Gadget gadget = DomWalker.makeGadget(new HttpRequest(Uri.parse("http://1.com/")));
+
+    MutableContent mc = new MutableContent(parser, "<html><head><META Http-Equiv='Content-Type' "
+        + "Content='text/html; charset=GBK'></head><body></body></html>");
+    mc.getDocument();
+    rewriter.rewrite(gadget, mc);
+    assertEquals("text/html", mc.getDocument().getElementsByTagName("meta").item(0)
+        .getAttributes().getNamedItem("content").getNodeValue());
+  }
+}
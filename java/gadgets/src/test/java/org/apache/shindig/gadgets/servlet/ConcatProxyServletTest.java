@@ -20,11 +20,17 @@ package org.apache.shindig.gadgets.servlet;
 
 import static org.easymock.EasyMock.expect;
 
+import org.easymock.IAnswer;
+
 import java.util.List;
 
+import org.apache.commons.lang.StringUtils;
+import org.apache.shindig.common.cache.LruCacheProvider;
 import org.apache.shindig.common.uri.Uri;
 import org.apache.shindig.common.uri.UriBuilder;
+import org.apache.shindig.common.util.FakeTimeSource;
 import org.apache.shindig.gadgets.GadgetException;
+import org.apache.shindig.gadgets.http.DefaultHttpCache;
 import org.apache.shindig.gadgets.http.HttpRequest;
 import org.apache.shindig.gadgets.http.HttpResponse;
 import org.apache.shindig.gadgets.http.HttpResponseBuilder;
@@ -36,11 +42,16 @@ import org.junit.Test;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
 
+import java.io.ByteArrayOutputStream;
 import java.util.Map;
 import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class ConcatProxyServletTest extends ServletTestFixture {
   private static final String REQUEST_DOMAIN = "example.org";
@@ -156,6 +167,179 @@ public class ConcatProxyServletTest extends ServletTestFixture {
     runConcat(threadedExecutor, results, null, URL1, URL2, URL3);
   }
   
+  @Test
+  public void testConcatWithoutExecutor() throws Exception {
+    String results = addComment(SCRT1, URL1.toString()) + addComment(SCRT2,URL2.toString())
+        + addComment(SCRT3, URL3.toString());
+    runConcat(null, results, null, URL1, URL2, URL3);
+  }
+
+  @Test
+  public void testParallelFetchesAreCapped() throws Exception {
+    // Holds on to tasks without running them, so the servlet has to run each in turn.
+    final List<Runnable> submitted = Lists.newArrayList();
+    final int[] maxOutstanding = new int[1];
+    ExecutorService holdingExecutor = new AbstractExecutorService() {
+      public void execute(Runnable command) {
+        submitted.add(command);
+        int outstanding = 0;
+        for (Runnable task : submitted) {
+          if (!((Future<?>) task).isDone()) {
+            outstanding++;
+          }
+        }
+        maxOutstanding[0] = Math.max(maxOutstanding[0], outstanding);
+      }
+      public boolean awaitTermination(long timeout, TimeUnit unit) { return true; }
+      public boolean isShutdown() { return false; }
+      public boolean isTerminated() { return false; }
+      public void shutdown() { }
+      public List<Runnable> shutdownNow() { return null; }
+    };
+    servlet.setMaxParallelFetches(2);
+
+    String results = addComment(SCRT1, URL1.toString()) + addComment(SCRT2,URL2.toString())
+        + addComment(SCRT3, URL3.toString());
+    runConcat(holdingExecutor, results, null, URL1, URL2, URL3);
+    assertEquals(3, submitted.size());
+    assertEquals(2, maxOutstanding[0]);
+  }
+
+  private static ExecutorService saturatedExecutor() {
+    return new AbstractExecutorService() {
+      public void execute(Runnable command) {
+        throw new RejectedExecutionException();
+      }
+      public boolean awaitTermination(long timeout, TimeUnit unit) { return true; }
+      public boolean isShutdown() { return false; }
+      public boolean isTerminated() { return false; }
+      public void shutdown() { }
+      public List<Runnable> shutdownNow() { return null; }
+    };
+  }
+
+  @Test
+  public void testSaturatedExecutorFetchesInline() throws Exception {
+    String results = addComment(SCRT1, URL1.toString()) + addComment(SCRT2,URL2.toString());
+    runConcat(saturatedExecutor(), results, null, URL1, URL2);
+  }
+
+  @Test
+  public void testSaturatedExecutorSkipsInlineFetchesPastDeadline() throws Exception {
+    final Uri URL4 = Uri.parse("http://example.org/4.js");
+    final Uri URL5 = Uri.parse("http://example.org/5.js");
+    final FakeTimeSource timeSource = new FakeTimeSource();
+    final AtomicInteger lateFetches = new AtomicInteger();
+    expect(pipeline.execute(new HttpRequest(URL4)))
+        .andAnswer(new IAnswer<HttpResponse>() {
+          public HttpResponse answer() throws Throwable {
+            timeSource.incrementSeconds(1);
+            return new HttpResponseBuilder().setResponseString(SCRT3).create();
+          }
+        }).anyTimes();
+    expect(pipeline.execute(new HttpRequest(URL5)))
+        .andAnswer(new IAnswer<HttpResponse>() {
+          public HttpResponse answer() throws Throwable {
+            lateFetches.incrementAndGet();
+            return new HttpResponseBuilder().setResponseString(SCRT3).create();
+          }
+        }).anyTimes();
+    servlet.setTimeSource(timeSource);
+    servlet.setDeadlineMs(500L);
+
+    String results = addComment(SCRT3, URL4.toString())
+        + "FAILED_TO_RETRIEVE_CONTENT concat(http://example.org/5.js) Timed out";
+    runConcat(saturatedExecutor(), results, null, URL4, URL5);
+    assertEquals(0, lateFetches.get());
+  }
+
+  @Test
+  public void testSlowResourceTimesOutAtDeadline() throws Exception {
+    final Uri URL4 = Uri.parse("http://example.org/4.js");
+    final CountDownLatch release = new CountDownLatch(1);
+    expect(pipeline.execute(new HttpRequest(URL4)))
+        .andAnswer(new IAnswer<HttpResponse>() {
+          public HttpResponse answer() throws Throwable {
+            release.await(10, TimeUnit.SECONDS);
+            return new HttpResponseBuilder().setResponseString(SCRT3).create();
+          }
+        }).anyTimes();
+    servlet.setDeadlineMs(500L);
+
+    String results = addComment(SCRT1, URL1.toString())
+        + "FAILED_TO_RETRIEVE_CONTENT concat(http://example.org/4.js) Timed out";
+    try {
+      runConcat(threadedExecutor, results, null, URL1, URL4);
+    } finally {
+      release.countDown();
+    }
+  }
+
+  /**
+   * Stores a result for the uris, as if it had been assembled before.
+   *
+   * @return The ETag of the result.
+   */
+  private String primeResultCache(String body, Uri... uris) throws Exception {
+    ConcatResultCache resultCache = new ConcatResultCache(
+        new DefaultHttpCache(new LruCacheProvider(10)), new LruCacheProvider(10));
+    ConcatUriManager.ConcatUri concatUri = new ConcatUriManager.ConcatUri(
+        UriStatus.VALID_UNVERSIONED, Lists.newArrayList(uris), null, ConcatUriManager.Type.JS,
+        null);
+    // The first recording only starts tracking the members.
+    for (int i = 0; i < 2; i++) {
+      ConcatResultCache.Recorder recorder = resultCache.newRecorder(concatUri);
+      for (Uri uri : uris) {
+        recorder.addMember(new HttpRequest(uri));
+      }
+      recorder.capture(new ByteArrayOutputStream()).write(body.getBytes("UTF-8"));
+      recorder.complete();
+    }
+    servlet.setResultCache(resultCache);
+    return resultCache.getEntry(concatUri).getEtag();
+  }
+
+  @Test
+  public void testServedFromResultCache() throws Exception {
+    String etag = primeResultCache("cached", URL1, URL2);
+    expectRequestWithUris(Lists.newArrayList(URL1, URL2));
+
+    servlet.doGet(request, recorder);
+    verify();
+    assertEquals("cached", recorder.getResponseAsString());
+    assertEquals(200, recorder.getHttpStatusCode());
+    assertEquals(etag, recorder.getHeader("ETag"));
+  }
+
+  @Test
+  public void testCachedResultNotModified() throws Exception {
+    String etag = primeResultCache("cached", URL1, URL2);
+    expect(request.getHeader("If-None-Match")).andReturn(etag);
+    expectRequestWithUris(Lists.newArrayList(URL1, URL2));
+
+    servlet.doGet(request, recorder);
+    verify();
+    assertEquals("", recorder.getResponseAsString());
+    assertEquals(304, recorder.getHttpStatusCode());
+  }
+
+  @Test
+  public void testCachedResultEtagPerEncoding() throws Exception {
+    String body = StringUtils.repeat("cached ", 100);
+    String etag = primeResultCache(body, URL1, URL2);
+    // The client revalidates with the ETag of the identity body, but now accepts gzip.
+    expect(request.getHeader("If-None-Match")).andReturn(etag);
+    expect(request.getHeader("Accept-Encoding")).andReturn("gzip").anyTimes();
+    expectRequestWithUris(Lists.newArrayList(URL1, URL2));
+
+    servlet.doGet(request, recorder);
+    verify();
+    assertEquals(200, recorder.getHttpStatusCode());
+    assertEquals("gzip", recorder.getHeader("Content-Encoding"));
+    assertFalse(etag.equals(recorder.getHeader("ETag")));
+    assertTrue(recorder.getHeader("ETag").endsWith("-gz\""));
+  }
+
   @Test
   public void testConcatBadException() throws Exception {
     final Uri URL4 = Uri.parse("http://example.org/4.js");
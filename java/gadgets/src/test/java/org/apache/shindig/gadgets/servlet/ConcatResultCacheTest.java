@@ -0,0 +1,124 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.shindig.gadgets.servlet;
+
+import org.apache.shindig.common.cache.LruCacheProvider;
+import org.apache.shindig.common.uri.Uri;
+import org.apache.shindig.common.util.FakeTimeSource;
+import org.apache.shindig.gadgets.http.DefaultHttpCache;
+import org.apache.shindig.gadgets.http.HttpRequest;
+import org.apache.shindig.gadgets.http.HttpResponse;
+import org.apache.shindig.gadgets.http.HttpResponseBuilder;
+import org.apache.shindig.gadgets.uri.ConcatUriManager;
+import org.apache.shindig.gadgets.uri.UriStatus;
+
+import com.google.common.collect.Lists;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.OutputStream;
+
+/**
+ * Tests for ConcatResultCache.
+ */
+public class ConcatResultCacheTest extends Assert {
+  private static final Uri URL1 = Uri.parse("http://example.org/1.js");
+  private static final Uri URL2 = Uri.parse("http://example.org/2.js");
+  private static final String BODY = "/* 1.js */ /* 2.js */";
+
+  private final DefaultHttpCache httpCache = new DefaultHttpCache(new LruCacheProvider(10));
+  private final ConcatResultCache cache =
+      new ConcatResultCache(httpCache, new LruCacheProvider(10));
+  private final ConcatUriManager.ConcatUri concatUri = new ConcatUriManager.ConcatUri(
+      UriStatus.VALID_UNVERSIONED, Lists.newArrayList(URL1, URL2), null,
+      ConcatUriManager.Type.JS, null);
+  private final HttpResponse ok = new HttpResponseBuilder().setResponseString("x").create();
+
+  private void record(HttpResponse response) throws Exception {
+    ConcatResultCache.Recorder recorder = cache.newRecorder(concatUri);
+    recorder.addMember(new HttpRequest(URL1));
+    recorder.addMember(new HttpRequest(URL2));
+    OutputStream out = recorder.capture(new ByteArrayOutputStream());
+    out.write(BODY.getBytes("UTF-8"));
+    recorder.addResponse(ok);
+    recorder.addResponse(response);
+    recorder.complete();
+  }
+
+  @Test
+  public void resultCachedOnceMembersAreTracked() throws Exception {
+    record(ok);
+    assertNull(cache.getEntry(concatUri));
+
+    record(ok);
+    ConcatResultCache.Entry entry = cache.getEntry(concatUri);
+    assertNotNull(entry);
+    assertEquals(BODY, new String(entry.getBody(), "UTF-8"));
+    assertNotNull(entry.getEtag());
+  }
+
+  @Test
+  public void memberChangeInvalidatesResult() throws Exception {
+    record(ok);
+    record(ok);
+    assertNotNull(cache.getEntry(concatUri));
+
+    httpCache.addResponse(new HttpRequest(URL2), ok);
+    assertNull(cache.getEntry(concatUri));
+
+    // Reassembled against the new versions of the members.
+    httpCache.addResponse(new HttpRequest(URL1), ok);
+    record(ok);
+    assertNotNull(cache.getEntry(concatUri));
+
+    httpCache.removeResponse(new HttpRequest(URL1));
+    assertNull(cache.getEntry(concatUri));
+  }
+
+  @Test
+  public void resultExpiresWithMembers() throws Exception {
+    FakeTimeSource timeSource = new FakeTimeSource(System.currentTimeMillis());
+    cache.setTimeSource(timeSource);
+    record(ok);
+    record(ok);
+    assertNotNull(cache.getEntry(concatUri));
+
+    timeSource.setCurrentTimeMillis(ok.getCacheExpiration() + 1);
+    assertNull(cache.getEntry(concatUri));
+  }
+
+  @Test
+  public void failedMembersPreventCaching() throws Exception {
+    HttpResponse notFound = new HttpResponseBuilder().setHttpStatusCode(404).create();
+    record(notFound);
+    record(notFound);
+    assertNull(cache.getEntry(concatUri));
+  }
+
+  @Test
+  public void noCacheUrisAreNotCached() throws Exception {
+    ConcatUriManager.ConcatUri noCacheUri = new ConcatUriManager.ConcatUri(
+        UriStatus.VALID_UNVERSIONED, Lists.newArrayList(URL1), null,
+        ConcatUriManager.Type.JS, Uri.parse("http://example.com/concat?nocache=1"));
+    assertTrue(noCacheUri.isNoCache());
+    assertNull(cache.newRecorder(noCacheUri));
+  }
+}
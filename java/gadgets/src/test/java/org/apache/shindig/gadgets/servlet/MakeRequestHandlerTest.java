@@ -24,6 +24,7 @@ import static org.easymock.EasyMock.expect;
 
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
 
 import org.apache.shindig.auth.AuthInfo;
 import org.apache.shindig.auth.SecurityToken;
@@ -45,11 +46,18 @@ import org.json.JSONObject;
 import org.junit.Before;
 import org.junit.Test;
 
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.Enumeration;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import javax.servlet.http.HttpServletRequest;
 
@@ -58,6 +66,7 @@ import javax.servlet.http.HttpServletRequest;
  */
 public class MakeRequestHandlerTest extends ServletTestFixture {
   private static final Uri REQUEST_URL = Uri.parse("http://example.org/file");
+  private static final Uri OTHER_URL = Uri.parse("http://example.org/other");
   private static final String REQUEST_BODY = "I+am+the+request+body!foo=baz%20la";
   private static final String RESPONSE_BODY = "makeRequest response body";
   private static final SecurityToken DUMMY_TOKEN = new FakeGadgetToken();
@@ -607,4 +616,149 @@ public class MakeRequestHandlerTest extends ServletTestFixture {
 
     assertEquals(ContainerConfig.DEFAULT_CONTAINER, MakeRequestHandler.getContainer(request));
   }
+
+  private JSONArray extractBatchFromResponse() throws JSONException {
+    String body = recorder.getResponseAsString();
+    assertStartsWith(MakeRequestHandler.UNPARSEABLE_CRUFT, body);
+    return new JSONArray(body.substring(MakeRequestHandler.UNPARSEABLE_CRUFT.length()));
+  }
+
+  private void expectBatch(boolean stream) throws Exception {
+    expect(request.getParameter(MakeRequestHandler.BATCH_PARAM)).andReturn(
+        "[{id:'first',url:'" + REQUEST_URL + "'},{url:'" + OTHER_URL + "',numEntries:5}]")
+        .anyTimes();
+    if (stream) {
+      expect(request.getParameter(MakeRequestHandler.STREAM_PARAM)).andReturn("1").anyTimes();
+    }
+    expectGetAndReturnBody(RESPONSE_BODY);
+    expect(pipeline.execute(new HttpRequest(OTHER_URL))).andReturn(new HttpResponse("other"));
+  }
+
+  @Test
+  public void testBatchRequest() throws Exception {
+    expectBatch(false);
+    replay();
+
+    handler.fetchBatch(request, recorder);
+
+    JSONArray results = extractBatchFromResponse();
+    assertEquals(2, results.length());
+    JSONObject first = results.getJSONObject(0);
+    assertEquals("first", first.get("id"));
+    assertEquals(HttpResponse.SC_OK, first.getInt("status"));
+    assertEquals(RESPONSE_BODY, first.getJSONObject("response")
+        .getJSONObject(REQUEST_URL.toString()).get("body"));
+    JSONObject second = results.getJSONObject(1);
+    assertEquals(1, second.getInt("id"));
+    assertEquals("other", second.getJSONObject("response")
+        .getJSONObject(OTHER_URL.toString()).get("body"));
+    assertEquals(HttpResponse.SC_OK, recorder.getHttpStatusCode());
+  }
+
+  @Test
+  public void testBatchRequestStreamedConcurrently() throws Exception {
+    expectBatch(true);
+    replay();
+
+    ExecutorService executor = Executors.newCachedThreadPool();
+    try {
+      handler.setExecutor(executor);
+      handler.fetchBatch(request, recorder);
+    } finally {
+      executor.shutdown();
+    }
+
+    JSONArray results = extractBatchFromResponse();
+    assertEquals(2, results.length());
+    Set<Object> ids = Sets.newHashSet();
+    for (int i = 0; i < results.length(); i++) {
+      assertEquals(HttpResponse.SC_OK, results.getJSONObject(i).getInt("status"));
+      ids.add(results.getJSONObject(i).get("id"));
+    }
+    assertEquals(Sets.<Object>newHashSet("first", 1), ids);
+  }
+
+  @Test
+  public void testBatchRequestReadOnlyInRequestThread() throws Exception {
+    expectBatch(true);
+    replay();
+
+    final Thread requestThread = Thread.currentThread();
+    final AtomicBoolean readElsewhere = new AtomicBoolean();
+    HttpServletRequest checked = (HttpServletRequest) Proxy.newProxyInstance(
+        HttpServletRequest.class.getClassLoader(), new Class<?>[] { HttpServletRequest.class },
+        new InvocationHandler() {
+          public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            if (Thread.currentThread() != requestThread) {
+              readElsewhere.set(true);
+            }
+            return method.invoke(request, args);
+          }
+        });
+
+    ExecutorService executor = Executors.newCachedThreadPool();
+    try {
+      handler.setExecutor(executor);
+      handler.setMaxParallelFetches(1);
+      handler.fetchBatch(checked, recorder);
+    } finally {
+      executor.shutdown();
+    }
+
+    assertFalse(readElsewhere.get());
+    JSONArray results = extractBatchFromResponse();
+    assertEquals(2, results.length());
+    for (int i = 0; i < results.length(); i++) {
+      assertEquals(HttpResponse.SC_OK, results.getJSONObject(i).getInt("status"));
+    }
+  }
+
+  @Test
+  public void testBatchRequestReportsUnexpectedFailuresPerItem() throws Exception {
+    expect(request.getParameter(MakeRequestHandler.BATCH_PARAM)).andReturn(
+        "[{url:'" + REQUEST_URL + "'},{url:'" + OTHER_URL + "'}]").anyTimes();
+    expectGetAndReturnBody(RESPONSE_BODY);
+    expect(pipeline.execute(new HttpRequest(OTHER_URL))).andThrow(new RuntimeException("broken"));
+    replay();
+
+    handler.fetchBatch(request, recorder);
+
+    JSONArray results = extractBatchFromResponse();
+    assertEquals(HttpResponse.SC_OK, results.getJSONObject(0).getInt("status"));
+    assertEquals(HttpResponse.SC_INTERNAL_SERVER_ERROR, results.getJSONObject(1).getInt("status"));
+    assertEquals(HttpResponse.SC_OK, recorder.getHttpStatusCode());
+  }
+
+  @Test
+  public void testBatchRequestReportsErrorsPerItem() throws Exception {
+    expect(request.getParameter(MakeRequestHandler.BATCH_PARAM)).andReturn(
+        "[{url:'ftp://example.org/file'},{url:'" + REQUEST_URL + "'}]").anyTimes();
+    expectGetAndReturnBody(RESPONSE_BODY);
+    replay();
+
+    handler.fetchBatch(request, recorder);
+
+    JSONArray results = extractBatchFromResponse();
+    assertEquals(HttpResponse.SC_BAD_REQUEST, results.getJSONObject(0).getInt("status"));
+    assertTrue(results.getJSONObject(0).has("error"));
+    assertEquals(HttpResponse.SC_OK, results.getJSONObject(1).getInt("status"));
+  }
+
+  @Test(expected = GadgetException.class)
+  public void testBatchTooLarge() throws Exception {
+    expect(request.getParameter(MakeRequestHandler.BATCH_PARAM)).andReturn(
+        "[{url:'" + REQUEST_URL + "'},{url:'" + OTHER_URL + "'}]").anyTimes();
+    replay();
+
+    handler.setMaxBatchSize(1);
+    handler.fetchBatch(request, recorder);
+  }
+
+  @Test(expected = GadgetException.class)
+  public void testMalformedBatch() throws Exception {
+    expect(request.getParameter(MakeRequestHandler.BATCH_PARAM)).andReturn("[{url:").anyTimes();
+    replay();
+
+    handler.fetchBatch(request, recorder);
+  }
 }
@@ -22,6 +22,7 @@ import com.google.common.base.Objects;
 import com.google.common.collect.Maps;
 
 import org.apache.shindig.common.EasyMockTestCase;
+import org.apache.shindig.common.servlet.HttpServletResponseRecorder;
 import org.apache.shindig.common.uri.Uri;
 import org.apache.shindig.config.ContainerConfig;
 import org.apache.shindig.gadgets.Gadget;
@@ -30,6 +31,7 @@ import org.apache.shindig.gadgets.http.HttpRequest;
 import org.apache.shindig.gadgets.http.HttpResponse;
 import org.apache.shindig.gadgets.http.HttpResponseBuilder;
 import org.apache.shindig.gadgets.http.RequestPipeline;
+import org.apache.shindig.gadgets.http.ResponseSink;
 import org.apache.shindig.gadgets.rewrite.CaptureRewriter;
 import org.apache.shindig.gadgets.rewrite.DefaultResponseRewriterRegistry;
 import org.apache.shindig.gadgets.rewrite.DomWalker;
@@ -41,6 +43,7 @@ import org.apache.shindig.gadgets.uri.ProxyUriManager;
 import org.apache.shindig.gadgets.uri.UriCommon.Param;
 import org.easymock.Capture;
 import org.easymock.EasyMock;
+import org.easymock.IAnswer;
 import static org.easymock.EasyMock.capture;
 import static org.easymock.EasyMock.expect;
 import static org.easymock.EasyMock.isA;
@@ -50,6 +53,8 @@ import java.util.Arrays;
 import java.util.List;
 import java.util.Map;
 
+import javax.servlet.http.HttpServletResponse;
+
 public class ProxyHandlerTest extends EasyMockTestCase {
   private final static String URL_ONE = "http://www.example.org/test.html";
   private final static String DATA_ONE = "hello world";
@@ -453,4 +458,71 @@ public class ProxyHandlerTest extends EasyMockTestCase {
     // We use CaptureRewrite which always rewrite - always set encoding
     expectMime("image/*", "image/gif", "image/gif");
   }
+
+  @Test
+  public void testLargeBodyStreamed() throws Exception {
+    String url = "http://example.org/movie.mp4";
+    setupNoArgsProxyRequestMock("example.org", url);
+    final byte[] body = DATA_ONE.getBytes("UTF-8");
+    final HttpResponse head = new HttpResponseBuilder()
+        .addHeader("Content-Type", "video/mp4")
+        .addHeader("Content-Length", String.valueOf(ProxyHandler.DEFAULT_STREAMING_THRESHOLD + 1))
+        .create();
+    expect(pipeline.execute(new HttpRequest(Uri.parse(url))))
+        .andAnswer(new IAnswer<HttpResponse>() {
+          public HttpResponse answer() throws Throwable {
+            HttpRequest req = (HttpRequest) EasyMock.getCurrentArguments()[0];
+            req.getResponseSink().open(req, head).write(body);
+            return new HttpResponseBuilder(head).setMetadata(ResponseSink.STREAMED, "true")
+                .create();
+          }
+        });
+    HttpServletResponseRecorder recorder =
+        new HttpServletResponseRecorder(mock(HttpServletResponse.class));
+    replay();
+
+    assertNull(proxyHandler.fetch(request, recorder));
+    verify();
+    assertEquals(HttpResponse.SC_OK, recorder.getHttpStatusCode());
+    assertEquals("video/mp4", recorder.getHeader("Content-Type"));
+    assertEquals(DATA_ONE, recorder.getResponseAsString());
+    assertFalse(rewriter.responseWasRewritten());
+  }
+
+  @Test
+  public void testShouldStream() throws Exception {
+    HttpRequest req = new HttpRequest(Uri.parse(URL_ONE));
+    HttpResponse image = new HttpResponseBuilder()
+        .addHeader("Content-Type", "image/png")
+        .create();
+    HttpResponse video = new HttpResponseBuilder()
+        .addHeader("Content-Type", "video/mp4")
+        .create();
+    HttpResponse largeImage = new HttpResponseBuilder(image)
+        .addHeader("Content-Length", String.valueOf(ProxyHandler.DEFAULT_STREAMING_THRESHOLD + 1))
+        .create();
+    HttpResponse largeVideo = new HttpResponseBuilder(video)
+        .addHeader("Content-Length", String.valueOf(ProxyHandler.DEFAULT_STREAMING_THRESHOLD + 1))
+        .create();
+
+    // Small, cacheable, or rewritable bodies are buffered as before.
+    assertFalse(proxyHandler.shouldStream(req, image));
+    assertFalse(proxyHandler.shouldStream(req, video));
+    assertFalse(proxyHandler.shouldStream(new HttpRequest(req).setIgnoreCache(true), image));
+    assertFalse(proxyHandler.shouldStream(req, HttpResponse.notFound()));
+    // However large, images still go through the rewriters, which may resize them.
+    assertFalse(proxyHandler.shouldStream(req, largeImage));
+
+    assertTrue(proxyHandler.shouldStream(new HttpRequest(req).setIgnoreCache(true), video));
+    assertTrue(proxyHandler.shouldStream(req, largeVideo));
+
+    proxyHandler.setStreamingThreshold(0);
+    HttpServletResponseRecorder recorder =
+        new HttpServletResponseRecorder(mock(HttpServletResponse.class));
+    setupNoArgsProxyRequestMock("example.org", URL_ONE);
+    expectGetAndReturnData(URL_ONE, DATA_ONE.getBytes("UTF-8"));
+    replay();
+    assertEquals(DATA_ONE, proxyHandler.fetch(request, recorder).getResponseAsString());
+    verify();
+  }
 }
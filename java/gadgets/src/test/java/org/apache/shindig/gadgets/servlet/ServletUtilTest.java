@@ -19,11 +19,16 @@
 package org.apache.shindig.gadgets.servlet;
 
 import org.apache.commons.codec.binary.Base64;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.lang.StringUtils;
+import org.apache.shindig.common.cache.LruCacheProvider;
 import org.apache.shindig.common.servlet.HttpServletResponseRecorder;
 import org.apache.shindig.common.servlet.HttpUtil;
 import org.apache.shindig.common.uri.Uri;
 import org.apache.shindig.common.util.FakeTimeSource;
 import org.apache.shindig.gadgets.GadgetException;
+import org.apache.shindig.gadgets.http.DefaultHttpCache;
+import org.apache.shindig.gadgets.http.HttpCache;
 import org.apache.shindig.gadgets.http.HttpRequest;
 import org.apache.shindig.gadgets.http.HttpResponse;
 import org.apache.shindig.gadgets.http.HttpResponseBuilder;
@@ -39,9 +44,12 @@ import java.io.IOException;
 import java.util.Arrays;
 import java.util.Enumeration;
 import java.util.Vector;
+import java.util.zip.GZIPInputStream;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
 
 public class ServletUtilTest {
   @Test
@@ -246,6 +254,45 @@ public class ServletUtilTest {
     assertEquals("no-cache", recorder.getHeader("Cache-Control"));
   }
 
+  @Test
+  public void testAcceptsGzip() {
+    assertTrue(ServletUtil.acceptsGzip(requestAccepting("gzip, deflate")));
+    assertTrue(ServletUtil.acceptsGzip(requestAccepting("deflate, GZIP;q=0.5")));
+    assertFalse(ServletUtil.acceptsGzip(requestAccepting("gzip;q=0")));
+    assertFalse(ServletUtil.acceptsGzip(requestAccepting("deflate")));
+    assertFalse(ServletUtil.acceptsGzip(requestAccepting(null)));
+  }
+
+  @Test
+  public void testCopyCompressedResponseToServlet() throws Exception {
+    String body = StringUtils.repeat("var x = 1;\n", 500);
+    HttpCache cache = new DefaultHttpCache(new LruCacheProvider(10));
+    HttpRequest request = new HttpRequest(Uri.parse("http://example.org/file.js"));
+    cache.addResponse(request, new HttpResponseBuilder()
+        .setHeader("Content-Type", "text/javascript; charset=UTF-8")
+        .setResponseString(body).create());
+    HttpResponse response = cache.getResponse(request);
+
+    HttpServletResponseRecorder recorder =
+        new HttpServletResponseRecorder(EasyMock.createMock(HttpServletResponse.class));
+    ServletUtil.copyResponseToServlet(response, recorder, true);
+    assertEquals("gzip", recorder.getHeader("Content-Encoding"));
+    assertEquals(body, IOUtils.toString(
+        new GZIPInputStream(new ByteArrayInputStream(recorder.getResponseAsBytes())), "UTF-8"));
+
+    recorder = new HttpServletResponseRecorder(EasyMock.createMock(HttpServletResponse.class));
+    ServletUtil.copyResponseToServlet(response, recorder, false);
+    assertNull(recorder.getHeader("Content-Encoding"));
+    assertEquals(body, recorder.getResponseAsString());
+  }
+
+  private static HttpServletRequest requestAccepting(String encodings) {
+    HttpServletRequest request = EasyMock.createMock(HttpServletRequest.class);
+    EasyMock.expect(request.getHeader("Accept-Encoding")).andReturn(encodings);
+    EasyMock.replay(request);
+    return request;
+  }
+
   Enumeration<String> makeEnumeration(String... args) {
     Vector<String> vector = new Vector<String>();
     vector.addAll(Arrays.asList(args));